@@ -0,0 +1,802 @@
+package ai;
+
+import java.util.Arrays;
+import java.util.List;
+
+import bot.TickBudget;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.UnitAction;
+import rts.units.Unit;
+import rts.units.UnitType;
+import utilities.Metrics;
+import utilities.UnitUtils;
+
+/**
+ * A fast, abstract forward simulation of the whole game, for comparing MacroPlans
+ * \author Louis
+ *
+ * The game is captured into a State: a table of units stored as int columns (position, hit points, type, player,
+ * busy time, carried resources and role) plus a tile occupancy grid. Every unit then follows a simple script
+ * driven by its player's plan: collectors shuttle between the nearest resource and base, a builder puts barracks
+ * next to the base, producers train what the plan asks for and everything else walks greedily at the nearest
+ * enemy and hits it for its average damage. Effects happen when an action starts, then the unit is busy for the
+ * action's duration. It is far from exact, but cheap enough to play out a few hundred cycles of every candidate.
+ *
+ * States branch without copying: forkFrom() shares the parent's columns, and each column is only copied into the
+ * child's own buffer the first time the child writes to it. The buffers are kept, so a scratch state reused for
+ * many rollouts stops allocating. A state must not be reused while states forked from it are still in use.
+ *
+ * After capture(), rollouts only read the simulator, so several threads may roll out at once on their own states.
+ */
+public class ForwardSimulator {
+	// Columns of the unit table
+	private static final int X = 0; /**< Column of X positions */
+	private static final int Y = 1; /**< Column of Y positions */
+	private static final int HP = 2; /**< Column of hit points. Dead units have 0 */
+	private static final int TYPE = 3; /**< Column of unit type IDs */
+	private static final int PLAYER = 4; /**< Column of owners, -1 for resources */
+	private static final int BUSY_UNTIL = 5; /**< Column of the times at which units finish their current action */
+	private static final int CARRIED = 6; /**< Column of resources carried, or left in a resource */
+	private static final int ROLE = 7; /**< Column of worker roles */
+	private static final int SCRIPT = 8; /**< Column of fighting scripts */
+	private static final int NUM_COLUMNS = 9; /**< Number of columns */
+
+	// Worker roles
+	private static final int ROLE_NONE = 0; /**< Not assigned yet */
+	private static final int ROLE_COLLECT = 1; /**< Collecting resources */
+	private static final int ROLE_BUILD = 2; /**< Building barracks */
+	private static final int ROLE_FIGHT = 3; /**< Fighting */
+
+	// Fighting scripts, which let a unit fight differently from its player's plan
+	public static final int SCRIPT_PLAN = 0; /**< Follow the player's plan: collect, build or fight as it says */
+	public static final int SCRIPT_ATTACK = 1; /**< Always close in on and attack the nearest enemy */
+	public static final int SCRIPT_KITE = 2; /**< Attack the nearest enemy, but step away from enemies with a shorter range that could hit back */
+	public static final int SCRIPT_HOLD = 3; /**< Attack enemies in range, but never approach them */
+
+	public static final int NUM_PLAYERS = 2; /**< Number of players simulated */
+	private static final int DEFEND_RADIUS = 6; /**< How close to their base enemies must come before a defending army engages */
+	private static final int WIN_SCORE = 100000; /**< Score of having destroyed every enemy unit */
+	private static final int END_CHECK_PERIOD = 50; /**< How often rollouts check whether a player has been wiped out, in cycles */
+
+	private static final Metrics.Timer rolloutTimer = Metrics.timer("sim.rollout"); /**< Metrics timer of a rollout */
+	private static final Metrics.Timer choosePlanTimer = Metrics.timer("sim.choosePlan"); /**< Metrics timer of choosing a plan */
+
+	/**
+	 * A snapshot of the simulated game. See ForwardSimulator for how branching works
+	 */
+	public static class State {
+		int time = 0; /**< The game time */
+		int numUnits = 0; /**< Number of rows in the unit table, including dead units */
+		final int[] resources = new int[NUM_PLAYERS]; /**< Resources of each player */
+		final int[][] columns = new int[NUM_COLUMNS][]; /**< The unit table's columns, possibly shared with the parent state */
+		final int[][] buffers = new int[NUM_COLUMNS][]; /**< This state's own column buffers */
+		int ownedColumns = 0; /**< Bit per column, set if the column is in this state's own buffer */
+		int[] occupants = null; /**< Index + 1 of the unit on each tile, or 0. Possibly shared with the parent state */
+		int[] occupantBuffer = null; /**< This state's own occupancy buffer */
+		boolean ownsOccupants = false; /**< Whether occupants is this state's own buffer */
+
+		/**
+		 * Makes this state a copy of another without copying any columns
+		 * \param parent the state to branch from. It must not change while this state is in use
+		 */
+		public void forkFrom(State parent) {
+			time = parent.time;
+			numUnits = parent.numUnits;
+			System.arraycopy(parent.resources, 0, resources, 0, NUM_PLAYERS);
+			System.arraycopy(parent.columns, 0, columns, 0, NUM_COLUMNS);
+			ownedColumns = 0;
+			occupants = parent.occupants;
+			ownsOccupants = false;
+		}
+
+		/**
+		 * Returns the game time
+		 */
+		public int getTime() {
+			return time;
+		}
+
+		/**
+		 * Returns the resources of a player
+		 * \param player the player
+		 */
+		public int getResources(int player) {
+			return resources[player];
+		}
+
+		/**
+		 * Empties the state, giving it its own columns with room for a number of units
+		 */
+		void clear(int capacity, int numTiles) {
+			numUnits = 0;
+
+			for (int column = 0; column < NUM_COLUMNS; column++) {
+				if (buffers[column] == null || buffers[column].length < capacity) {
+					buffers[column] = new int[capacity];
+				}
+
+				columns[column] = buffers[column];
+			}
+
+			ownedColumns = (1 << NUM_COLUMNS) - 1;
+
+			if (occupantBuffer == null || occupantBuffer.length != numTiles) {
+				occupantBuffer = new int[numTiles];
+			} else {
+				Arrays.fill(occupantBuffer, 0);
+			}
+
+			occupants = occupantBuffer;
+			ownsOccupants = true;
+		}
+
+		/**
+		 * Returns a column for writing, copying it into this state's own buffer first if it's shared
+		 */
+		int[] write(int column) {
+			if ((ownedColumns & (1 << column)) == 0) {
+				int[] shared = columns[column];
+
+				if (buffers[column] == null || buffers[column].length < shared.length) {
+					buffers[column] = new int[shared.length];
+				}
+
+				System.arraycopy(shared, 0, buffers[column], 0, numUnits);
+				columns[column] = buffers[column];
+				ownedColumns |= 1 << column;
+			}
+
+			return columns[column];
+		}
+
+		/**
+		 * Returns the occupancy grid for writing, copying it first if it's shared
+		 */
+		int[] writeOccupants() {
+			if (!ownsOccupants) {
+				if (occupantBuffer == null || occupantBuffer.length != occupants.length) {
+					occupantBuffer = new int[occupants.length];
+				}
+
+				System.arraycopy(occupants, 0, occupantBuffer, 0, occupants.length);
+				occupants = occupantBuffer;
+				ownsOccupants = true;
+			}
+
+			return occupants;
+		}
+
+		/**
+		 * Makes sure every column has room for another unit
+		 */
+		void ensureCapacity(int capacity) {
+			for (int column = 0; column < NUM_COLUMNS; column++) {
+				if (columns[column].length < capacity) {
+					int[] grown = new int[capacity * 2];
+
+					System.arraycopy(columns[column], 0, grown, 0, numUnits);
+					buffers[column] = grown;
+					columns[column] = grown;
+					ownedColumns |= 1 << column;
+				}
+			}
+		}
+	}
+
+	private final UnitUtils units; /**< Unit utilities, for the unit types and positions */
+	private int width = 0; /**< Width of the captured map */
+	private int height = 0; /**< Height of the captured map */
+	private boolean[] walls = new boolean[0]; /**< Whether each tile of the captured map is a wall */
+	private UnitType[] typesById = new UnitType[0]; /**< The unit types by ID */
+	private long[] capturedIds = new long[0]; /**< The unit ID of each row of the last captured state, or -1 for units still being produced */
+
+	/**
+	 * Creates a simulator
+	 * \param units the unit utilities of the player, ticked before each capture
+	 */
+	public ForwardSimulator(UnitUtils units) {
+		this.units = units;
+	}
+
+	/**
+	 * Captures a game state. Units part way through a move are placed at their destination, and units being
+	 * produced are created straight away, busy until they would be finished
+	 * \param gs the game state, which the unit utilities have already been ticked with
+	 * \param into the state to capture into
+	 */
+	public void capture(GameState gs, State into) {
+		PhysicalGameState pgs = gs.getPhysicalGameState();
+		List<Unit> unitList = gs.getUnits();
+
+		width = pgs.getWidth();
+		height = pgs.getHeight();
+
+		if (walls.length != width * height) {
+			walls = new boolean[width * height];
+		}
+
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				walls[x + y * width] = pgs.getTerrain(x, y) == PhysicalGameState.TERRAIN_WALL;
+			}
+		}
+
+		for (UnitType type : new UnitType[] {units.worker, units.base, units.resource, units.barracks, units.light, units.heavy, units.ranged}) {
+			if (type.ID >= typesById.length) {
+				typesById = Arrays.copyOf(typesById, type.ID + 1);
+			}
+
+			typesById[type.ID] = type;
+		}
+
+		into.clear(unitList.size() * 2 + 16, width * height);
+
+		if (capturedIds.length < unitList.size() * 2) {
+			capturedIds = new long[unitList.size() * 2];
+		}
+
+		into.time = gs.getTime();
+
+		for (int player = 0; player < NUM_PLAYERS; player++) {
+			into.resources[player] = gs.getPlayer(player).getResources();
+		}
+
+		for (Unit u : unitList) {
+			UnitAction action = units.getAction(u);
+			int busyUntil = action != null ? gs.getTime() + units.timeToFinishAction(u) : gs.getTime();
+			int index = spawn(into, u.getType(), u.getPlayer(), units.getXAfter(u, Integer.MAX_VALUE), units.getYAfter(u, Integer.MAX_VALUE), busyUntil);
+
+			into.write(HP)[index] = u.getHitPoints();
+			into.write(CARRIED)[index] = u.getResources();
+			capturedIds[index] = u.getID();
+
+			// Production in progress appears now, but can't act until it would have been finished
+			if (action != null && action.getType() == UnitAction.TYPE_PRODUCE && u.getPlayer() >= 0 && u.getPlayer() < NUM_PLAYERS) {
+				int produceX = u.getX() + UnitAction.DIRECTION_OFFSET_X[action.getDirection()];
+				int produceY = u.getY() + UnitAction.DIRECTION_OFFSET_Y[action.getDirection()];
+
+				if (isFree(into, produceX, produceY)) {
+					capturedIds[spawn(into, action.getUnitType(), u.getPlayer(), produceX, produceY, busyUntil)] = -1;
+					into.resources[u.getPlayer()] -= action.getUnitType().cost;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the row of a unit in the last captured state
+	 * \param state the last captured state, or a state forked from it
+	 * \param unitId the ID of the unit
+	 * \return the row, or -1 if the unit wasn't captured
+	 */
+	public int getRow(State state, long unitId) {
+		for (int i = 0; i < state.numUnits && i < capturedIds.length; i++) {
+			if (capturedIds[i] == unitId) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Makes a unit fight with a script instead of following its player's plan
+	 * \param state the state to change
+	 * \param row the unit's row
+	 * \param script SCRIPT_PLAN, SCRIPT_ATTACK, SCRIPT_KITE or SCRIPT_HOLD
+	 */
+	public void setScript(State state, int row, int script) {
+		if (state.columns[SCRIPT][row] != script) {
+			state.write(SCRIPT)[row] = script;
+		}
+	}
+
+	/**
+	 * Plays both players' plans out until a time, or until a player has been wiped out
+	 * \param state the state to advance
+	 * \param plan0 the plan of player 0
+	 * \param plan1 the plan of player 1
+	 * \param endTime the game time to stop at
+	 */
+	public void rollout(State state, MacroPlan plan0, MacroPlan plan1, int endTime) {
+		long startTime = Metrics.start();
+
+		while (state.time < endTime) {
+			if (state.time % END_CHECK_PERIOD == 0 && isOver(state)) {
+				break;
+			}
+
+			for (int i = 0; i < state.numUnits; i++) {
+				int player = state.columns[PLAYER][i];
+
+				if (player >= 0 && player < NUM_PLAYERS && state.columns[HP][i] > 0 && state.columns[BUSY_UNTIL][i] <= state.time) {
+					act(state, i, player == 0 ? plan0 : plan1);
+				}
+			}
+
+			state.time++;
+		}
+
+		rolloutTimer.stop(startTime);
+	}
+
+	/**
+	 * Scores a state for a player: the difference in remaining unit value (cost scaled by health), carried and
+	 * banked resources, plus WIN_SCORE if the other player has no units left, or minus it if this player has none
+	 * \param state the state to score
+	 * \param player the player to score for
+	 */
+	public int evaluate(State state, int player) {
+		int myValue = 0, enemyValue = 0;
+		boolean amAlive = false, isEnemyAlive = false;
+
+		for (int i = 0; i < state.numUnits; i++) {
+			int owner = state.columns[PLAYER][i];
+
+			if (owner >= 0 && owner < NUM_PLAYERS && state.columns[HP][i] > 0) {
+				UnitType type = typesById[state.columns[TYPE][i]];
+				int value = type.cost * 10 * state.columns[HP][i] / type.hp + state.columns[CARRIED][i] * 10;
+
+				if (owner == player) {
+					myValue += value;
+					amAlive = true;
+				} else {
+					enemyValue += value;
+					isEnemyAlive = true;
+				}
+			}
+		}
+
+		int score = myValue - enemyValue + (state.resources[player] - state.resources[1 - player]) * 10;
+
+		if (!isEnemyAlive) {
+			score += WIN_SCORE;
+		} else if (!amAlive) {
+			score -= WIN_SCORE;
+		}
+
+		return score;
+	}
+
+	/**
+	 * Returns the candidate with the best worst-case score against the opponent scripts, stopping early with the best
+	 * candidate fully scored so far if the tick's budget runs out
+	 * \param root the captured state
+	 * \param player the player choosing a plan
+	 * \param candidates the plans to choose from
+	 * \param opponentScripts the plans the opponent might follow
+	 * \param horizon how many cycles to play each pairing out for
+	 * \param scratch a state to roll out on
+	 * \param budget the tick's budget, checked before every rollout, or null to score every candidate
+	 * \return the best candidate, or null if the budget ran out before any was scored
+	 */
+	public MacroPlan choosePlan(State root, int player, List<MacroPlan> candidates, List<MacroPlan> opponentScripts, int horizon, State scratch, TickBudget budget) {
+		long startTime = Metrics.start();
+		MacroPlan bestPlan = null;
+		int bestScore = Integer.MIN_VALUE;
+
+		search:
+		for (MacroPlan candidate : candidates) {
+			int worstScore = Integer.MAX_VALUE;
+
+			for (MacroPlan script : opponentScripts) {
+				// A partly scored candidate only has an optimistic score, so it can't be chosen
+				if (budget != null && !budget.canAffordSearch()) {
+					break search;
+				}
+
+				worstScore = Math.min(worstScore, score(root, player, candidate, script, horizon, scratch));
+
+				// This candidate can't beat the best any more
+				if (worstScore <= bestScore) {
+					break;
+				}
+			}
+
+			if (worstScore > bestScore) {
+				bestScore = worstScore;
+				bestPlan = candidate;
+			}
+		}
+
+		choosePlanTimer.stop(startTime);
+		return bestPlan;
+	}
+
+	/**
+	 * Plays a plan out against an opponent script on a fork of the root, and scores the result
+	 * \param root the captured state
+	 * \param player the player following the plan
+	 * \param plan the player's plan
+	 * \param opponentScript the opponent's plan
+	 * \param horizon how many cycles to play out for
+	 * \param scratch a state to roll out on
+	 * \return the score for the player at the end
+	 */
+	public int score(State root, int player, MacroPlan plan, MacroPlan opponentScript, int horizon, State scratch) {
+		scratch.forkFrom(root);
+
+		if (player == 0) {
+			rollout(scratch, plan, opponentScript, root.time + horizon);
+		} else {
+			rollout(scratch, opponentScript, plan, root.time + horizon);
+		}
+
+		return evaluate(scratch, player);
+	}
+
+	/**
+	 * Runs a unit's script for its player's plan
+	 */
+	private void act(State state, int i, MacroPlan plan) {
+		UnitType type = typesById[state.columns[TYPE][i]];
+
+		if (type == units.base) {
+			produce(state, i, countWorkers(state, state.columns[PLAYER][i]) < plan.getMaxWorkers() ? units.worker : null);
+		} else if (type == units.barracks) {
+			produce(state, i, plan.armyType);
+		} else if (type == units.worker && state.columns[SCRIPT][i] == SCRIPT_PLAN) {
+			int role = state.columns[ROLE][i];
+
+			if (role == ROLE_NONE) {
+				role = chooseRole(state, i, plan);
+				state.write(ROLE)[i] = role;
+			}
+
+			if (role == ROLE_COLLECT) {
+				collect(state, i);
+			} else if (role == ROLE_BUILD) {
+				build(state, i);
+			} else {
+				fight(state, i, plan);
+			}
+		} else if (type.canMove && type.canAttack) {
+			fight(state, i, plan);
+		} else {
+			setBusy(state, i, 1);
+		}
+	}
+
+	/**
+	 * Assigns a role to a new worker: collecting until there are enough collectors, then building barracks when
+	 * the plan wants them, otherwise fighting
+	 */
+	private int chooseRole(State state, int i, MacroPlan plan) {
+		int player = state.columns[PLAYER][i];
+		int numCollectors = 0;
+		boolean hasBarracks = false;
+
+		for (int j = 0; j < state.numUnits; j++) {
+			if (state.columns[PLAYER][j] == player && state.columns[HP][j] > 0) {
+				numCollectors += state.columns[ROLE][j] == ROLE_COLLECT ? 1 : 0;
+				hasBarracks |= state.columns[ROLE][j] == ROLE_BUILD || typesById[state.columns[TYPE][j]] == units.barracks;
+			}
+		}
+
+		if (numCollectors < plan.numCollectors) {
+			return ROLE_COLLECT;
+		} else if (!hasBarracks && state.time >= plan.barracksTime) {
+			return ROLE_BUILD;
+		}
+
+		return ROLE_FIGHT;
+	}
+
+	/**
+	 * Trains a unit next to a producer if it can be afforded
+	 */
+	private void produce(State state, int i, UnitType type) {
+		int player = state.columns[PLAYER][i];
+
+		if (type == null || state.resources[player] < type.cost) {
+			setBusy(state, i, 1);
+			return;
+		}
+
+		int x = state.columns[X][i], y = state.columns[Y][i];
+
+		for (int direction = 0; direction < 4; direction++) {
+			int produceX = x + UnitAction.DIRECTION_OFFSET_X[direction], produceY = y + UnitAction.DIRECTION_OFFSET_Y[direction];
+
+			if (isFree(state, produceX, produceY)) {
+				state.resources[player] -= type.cost;
+				spawn(state, type, player, produceX, produceY, state.time + type.produceTime);
+				setBusy(state, i, type.produceTime);
+				return;
+			}
+		}
+
+		setBusy(state, i, 1);
+	}
+
+	/**
+	 * Harvests from the nearest resource and returns to the nearest base
+	 */
+	private void collect(State state, int i) {
+		int player = state.columns[PLAYER][i];
+		UnitType type = typesById[state.columns[TYPE][i]];
+
+		if (state.columns[CARRIED][i] > 0) {
+			int base = findNearest(state, i, player, units.base);
+
+			if (base < 0) {
+				state.write(ROLE)[i] = ROLE_FIGHT;
+				setBusy(state, i, 1);
+			} else if (distance(state, i, base) <= 1) {
+				state.resources[player] += state.columns[CARRIED][i];
+				state.write(CARRIED)[i] = 0;
+				setBusy(state, i, type.returnTime);
+			} else {
+				stepTowards(state, i, state.columns[X][base], state.columns[Y][base]);
+			}
+
+			return;
+		}
+
+		int resource = findNearest(state, i, -1, units.resource);
+
+		if (resource < 0) {
+			state.write(ROLE)[i] = ROLE_FIGHT;
+			setBusy(state, i, 1);
+		} else if (distance(state, i, resource) <= 1) {
+			int amount = Math.min(type.harvestAmount, state.columns[CARRIED][resource]);
+			int[] carried = state.write(CARRIED);
+
+			carried[i] = amount;
+			carried[resource] -= amount;
+
+			if (carried[resource] <= 0) {
+				kill(state, resource);
+			}
+
+			setBusy(state, i, type.harvestTime);
+		} else {
+			stepTowards(state, i, state.columns[X][resource], state.columns[Y][resource]);
+		}
+	}
+
+	/**
+	 * Walks to a free tile two steps from the base and builds barracks there once they can be afforded
+	 */
+	private void build(State state, int i) {
+		int player = state.columns[PLAYER][i];
+		int base = findNearest(state, i, player, units.base);
+
+		if (base < 0) {
+			state.write(ROLE)[i] = ROLE_FIGHT;
+			setBusy(state, i, 1);
+			return;
+		}
+
+		// Find a site around the base
+		int baseX = state.columns[X][base], baseY = state.columns[Y][base];
+		int siteX = -1, siteY = -1;
+
+		for (int offset = -2; offset <= 2 && siteX < 0; offset++) {
+			int dy = 2 - Math.abs(offset);
+
+			if (isFree(state, baseX + offset, baseY + dy)) {
+				siteX = baseX + offset;
+				siteY = baseY + dy;
+			} else if (isFree(state, baseX + offset, baseY - dy)) {
+				siteX = baseX + offset;
+				siteY = baseY - dy;
+			}
+		}
+
+		if (siteX < 0) {
+			state.write(ROLE)[i] = ROLE_FIGHT;
+			setBusy(state, i, 1);
+		} else if (Math.abs(siteX - state.columns[X][i]) + Math.abs(siteY - state.columns[Y][i]) > 1) {
+			stepTowards(state, i, siteX, siteY);
+		} else if (state.resources[player] >= units.barracks.cost) {
+			state.resources[player] -= units.barracks.cost;
+			spawn(state, units.barracks, player, siteX, siteY, state.time + units.barracks.produceTime);
+			state.write(ROLE)[i] = ROLE_NONE;
+			setBusy(state, i, units.barracks.produceTime);
+		} else {
+			setBusy(state, i, 1);
+		}
+	}
+
+	/**
+	 * Attacks the nearest enemy if it's in range, otherwise walks towards it, unless the plan is to defend and the
+	 * enemy is far from our base. Units with a script fight as it says instead
+	 */
+	private void fight(State state, int i, MacroPlan plan) {
+		int player = state.columns[PLAYER][i];
+		int script = state.columns[SCRIPT][i];
+		UnitType type = typesById[state.columns[TYPE][i]];
+		int target = findNearest(state, i, 1 - player, null);
+
+		if (target < 0) {
+			setBusy(state, i, type.moveTime);
+			return;
+		}
+
+		int dx = state.columns[X][target] - state.columns[X][i], dy = state.columns[Y][target] - state.columns[Y][i];
+		UnitType targetType = typesById[state.columns[TYPE][target]];
+
+		// Kiting units back off from enemies that could hit them but can't reach as far
+		if (script == SCRIPT_KITE && targetType.canAttack && targetType.attackRange < type.attackRange
+				&& dx * dx + dy * dy <= targetType.attackRange * targetType.attackRange) {
+			step(state, i, state.columns[X][target], state.columns[Y][target], true);
+			return;
+		}
+
+		if (dx * dx + dy * dy <= type.attackRange * type.attackRange) {
+			int[] hp = state.write(HP);
+
+			hp[target] -= (type.minDamage + type.maxDamage + 1) / 2;
+
+			if (hp[target] <= 0) {
+				kill(state, target);
+			}
+
+			setBusy(state, i, type.attackTime);
+			return;
+		}
+
+		if (script == SCRIPT_HOLD) {
+			setBusy(state, i, type.moveTime);
+			return;
+		}
+
+		if (script == SCRIPT_PLAN && !plan.isRush) {
+			int base = findNearest(state, target, player, units.base);
+
+			if (base >= 0 && distance(state, target, base) > DEFEND_RADIUS) {
+				setBusy(state, i, type.moveTime);
+				return;
+			}
+		}
+
+		stepTowards(state, i, state.columns[X][target], state.columns[Y][target]);
+	}
+
+	/**
+	 * Steps onto the free neighbour closest to a target, or waits if there is none
+	 */
+	private void stepTowards(State state, int i, int targetX, int targetY) {
+		step(state, i, targetX, targetY, false);
+	}
+
+	/**
+	 * Steps onto the free neighbour closest to (or furthest from) a position, or waits if none is closer (or further)
+	 */
+	private void step(State state, int i, int targetX, int targetY, boolean isAway) {
+		UnitType type = typesById[state.columns[TYPE][i]];
+		int x = state.columns[X][i], y = state.columns[Y][i];
+		int sign = isAway ? -1 : 1;
+		int bestDirection = -1, bestDistance = sign * (Math.abs(targetX - x) + Math.abs(targetY - y));
+
+		for (int direction = 0; direction < 4; direction++) {
+			int nextX = x + UnitAction.DIRECTION_OFFSET_X[direction], nextY = y + UnitAction.DIRECTION_OFFSET_Y[direction];
+			int distance = sign * (Math.abs(targetX - nextX) + Math.abs(targetY - nextY));
+
+			if (distance < bestDistance && isFree(state, nextX, nextY)) {
+				bestDistance = distance;
+				bestDirection = direction;
+			}
+		}
+
+		if (bestDirection >= 0) {
+			int[] occupants = state.writeOccupants();
+			int nextX = x + UnitAction.DIRECTION_OFFSET_X[bestDirection], nextY = y + UnitAction.DIRECTION_OFFSET_Y[bestDirection];
+
+			occupants[x + y * width] = 0;
+			occupants[nextX + nextY * width] = i + 1;
+			state.write(X)[i] = nextX;
+			state.write(Y)[i] = nextY;
+		}
+
+		setBusy(state, i, type.moveTime);
+	}
+
+	/**
+	 * Returns the nearest living unit of a player (and type, unless null) to a unit, or -1
+	 */
+	private int findNearest(State state, int i, int player, UnitType type) {
+		int nearest = -1, nearestDistance = Integer.MAX_VALUE;
+
+		for (int j = 0; j < state.numUnits; j++) {
+			if (state.columns[PLAYER][j] == player && state.columns[HP][j] > 0 && (type == null || typesById[state.columns[TYPE][j]] == type)) {
+				int distance = distance(state, i, j);
+
+				if (distance < nearestDistance) {
+					nearestDistance = distance;
+					nearest = j;
+				}
+			}
+		}
+
+		return nearest;
+	}
+
+	/**
+	 * Returns the number of living workers of a player
+	 */
+	private int countWorkers(State state, int player) {
+		int count = 0;
+
+		for (int i = 0; i < state.numUnits; i++) {
+			if (state.columns[PLAYER][i] == player && state.columns[HP][i] > 0 && typesById[state.columns[TYPE][i]] == units.worker) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns whether either player has no units left
+	 */
+	private boolean isOver(State state) {
+		boolean isAlive0 = false, isAlive1 = false;
+
+		for (int i = 0; i < state.numUnits && !(isAlive0 && isAlive1); i++) {
+			if (state.columns[HP][i] > 0) {
+				isAlive0 |= state.columns[PLAYER][i] == 0;
+				isAlive1 |= state.columns[PLAYER][i] == 1;
+			}
+		}
+
+		return !isAlive0 || !isAlive1;
+	}
+
+	/**
+	 * Adds a unit to the table
+	 * \return the unit's index
+	 */
+	private int spawn(State state, UnitType type, int player, int x, int y, int busyUntil) {
+		int index = state.numUnits;
+
+		state.ensureCapacity(index + 1);
+		state.write(X)[index] = x;
+		state.write(Y)[index] = y;
+		state.write(HP)[index] = type.hp;
+		state.write(TYPE)[index] = type.ID;
+		state.write(PLAYER)[index] = player;
+		state.write(BUSY_UNTIL)[index] = busyUntil;
+		state.write(CARRIED)[index] = 0;
+		state.write(ROLE)[index] = ROLE_NONE;
+		state.write(SCRIPT)[index] = SCRIPT_PLAN;
+		state.numUnits++;
+
+		if (x >= 0 && y >= 0 && x < width && y < height) {
+			state.writeOccupants()[x + y * width] = index + 1;
+		}
+
+		return index;
+	}
+
+	/**
+	 * Removes a unit from the map
+	 */
+	private void kill(State state, int i) {
+		state.write(HP)[i] = 0;
+		state.writeOccupants()[state.columns[X][i] + state.columns[Y][i] * width] = 0;
+	}
+
+	/**
+	 * Makes a unit busy for a duration
+	 */
+	private void setBusy(State state, int i, int duration) {
+		state.write(BUSY_UNTIL)[i] = state.time + Math.max(duration, 1);
+	}
+
+	/**
+	 * Returns whether a tile exists and has neither a wall nor a unit on it
+	 */
+	private boolean isFree(State state, int x, int y) {
+		return x >= 0 && y >= 0 && x < width && y < height && !walls[x + y * width] && state.occupants[x + y * width] == 0;
+	}
+
+	/**
+	 * Returns the Manhattan distance between two units
+	 */
+	private static int distance(State state, int i, int j) {
+		return Math.abs(state.columns[X][i] - state.columns[X][j]) + Math.abs(state.columns[Y][i] - state.columns[Y][j]);
+	}
+}
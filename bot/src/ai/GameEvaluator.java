@@ -1,51 +1,99 @@
 package ai;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
-import ai.abstraction.pathfinding.AStarPathFinding;
 import rts.GameState;
+import rts.UnitActionAssignment;
 import rts.units.Unit;
 import rts.units.UnitType;
 import rts.UnitAction;
-import utilities.MapUtils;
+import utilities.ConnectivityMap;
 import utilities.UnitUtils;
 
 /**
  * Builds a broad evaluation of the game state including
  *  - Number of units per player
+ *  - Units being produced and the resources left over
+ *  - Army value and resource income of both players, which the production scheduler weighs up
  * \author Louis
  *
+ * The evaluator is long-lived: update() is called every tick, and the unit totals are only changed when units are
+ * born or die, found by walking this tick's units alongside the previous tick's in ID order. Production is counted
+ * straight from the action assignments rather than by looking up each unit's action.
+ *
+ * The public counters are reset from the tracked totals by every update(), so the coordinators are free to adjust
+ * them during a tick (e.g. to reserve resources they are about to spend).
  */
 public class GameEvaluator {
 	private int playerId; /**< ID of the player owning this evaluation */
-	
+	private UnitUtils units; /**< The unit utilities of the player, ticked before each update */
+
 	// Unit counts for this player
 	public int numBarracks = 0; /**< Number of barracks */
 	public int numBuildingBarracks = 0; /**< Number of barracks being built */
-	
+
 	public int numBase = 0; /**< Number of bases */
 	public int numBuildingBase = 0; /**< Number of bases being built */
-	
+
 	public int numWorker = 0; /**< Number of workers */
 	public int numBuildingWorker = 0; /**< Number of workers being built */
-	
+
 	public int numLight = 0;/**< Number of light units */
 	public int numBuildingLight; /**< Number of light units being built */
-	
+
 	public int numHeavy = 0; /**< Number of heavy units */
 	public int numBuildingHeavy = 0; /**< Number of heavy units being built */
-	
+
 	public int numRanged = 0; /**< Number of ranged units */
 	public int numBuildingRanged = 0; /**< Number of ranged units being built */
-	
+
 	public int numUnits = 0; /**< Number of units owned by this player total */
 	public int numBuildingUnits = 0; /**< Number of units being built */
-	
+
 	public int numAvailableResources = 0; /**< The number of resources available to the player */
 	public int numTotalResources = 0; /**< The number of resources total */
-	
+
 	public boolean doesPathToEnemyExist; /**< Whether there is a path to the enemy base */
-	
+
+	private static final int NUM_PLAYERS = 2; /**< Number of players tracked */
+	private static final int INCOME_WINDOW = 200; /**< Cycles the resource income rates are measured over */
+
+	// Totals tracked across ticks, for both players
+	private int[][] unitCounts = new int[NUM_PLAYERS][8]; /**< Number of units of each player, by type ID */
+	private int[] totalUnits = new int[NUM_PLAYERS]; /**< Number of units of each player */
+	private int[] armyValues = new int[NUM_PLAYERS]; /**< Total cost of each player's attacking units, excluding workers */
+	private int[][] incomeWindows = new int[NUM_PLAYERS][INCOME_WINDOW]; /**< Resources returned by each player in each of the last INCOME_WINDOW cycles, by time modulo INCOME_WINDOW */
+	private int[] incomeWindowTotals = new int[NUM_PLAYERS]; /**< Resources returned by each player in the last INCOME_WINDOW cycles */
+	private int[] returnedResources = new int[NUM_PLAYERS]; /**< Resources returned by each player since the last update */
+	private int firstTime = -1; /**< The game time of the first update of the game */
+
+	// Units as of the last update, sorted by ID
+	private int numLive = 0; /**< Number of units at the last update */
+	private long[] liveIds = new long[0]; /**< ID of each unit at the last update */
+	private Unit[] liveUnits = new Unit[0]; /**< Each unit at the last update */
+	private int[] liveResources = new int[0]; /**< Resources carried by each unit at the last update */
+	private long[] currentIds = new long[0]; /**< Scratch buffer for this update's IDs */
+	private Unit[] currentUnits = new Unit[0]; /**< Scratch buffer for this update's units */
+	private int[] currentResources = new int[0]; /**< Scratch buffer for this update's carried resources */
+	private int lastTime = -1; /**< The game time of the last update */
+
+	// Reachability, recomputed only when it could have changed
+	private ConnectivityMap reachabilityConnectivity = null; /**< The connectivity map doesPathToEnemyExist was computed with */
+	private int reachabilityVersion = -1; /**< The version of that connectivity map */
+	private boolean haveUnitsChanged = true; /**< Whether any unit was born or died in the last update */
+
+	/**
+	 * Creates a long-lived evaluator. Call update() every tick before reading it
+	 * \param playerId the player to evaluate
+	 * \param units the unit utilities of the player
+	 */
+	public GameEvaluator(int playerId, UnitUtils units) {
+		this.playerId = playerId;
+		this.units = units;
+	}
+
 	/**
 	 * Instantiates a GameEvaluator with a basic evaluation of the player's state
 	 * \param playerId the player to evaluate
@@ -53,78 +101,271 @@ public class GameEvaluator {
 	 * \param units a set of unit utilities
 	 */
 	public GameEvaluator(int playerId, GameState gs, UnitUtils units) {
-		this.playerId = playerId;
-		
-		this.numTotalResources = this.numAvailableResources = gs.getPlayer(playerId).getResources();
-		
-		// Count units
-		for (Unit u : gs.getUnits()) {
-			if (u.getPlayer() != playerId) {
+		this(playerId, units);
+		update(gs);
+	}
+
+	/**
+	 * Brings the evaluation up to date with a new tick and resets the public counters
+	 * \param gs the gamestate to evaluate, which the unit utilities have already been ticked with
+	 */
+	public void update(GameState gs) {
+		if (gs.getTime() < lastTime) {
+			// A new game
+			reset();
+		}
+
+		trackUnits(gs);
+
+		// Reset the counters for this tick
+		int[] myCounts = unitCounts[playerId];
+
+		numBase = getCount(myCounts, units.base);
+		numBarracks = getCount(myCounts, units.barracks);
+		numWorker = getCount(myCounts, units.worker);
+		numLight = getCount(myCounts, units.light);
+		numHeavy = getCount(myCounts, units.heavy);
+		numRanged = getCount(myCounts, units.ranged);
+		numUnits = totalUnits[playerId];
+		numBuildingBase = numBuildingBarracks = numBuildingWorker = numBuildingLight = numBuildingHeavy = numBuildingRanged = 0;
+		numTotalResources = numAvailableResources = gs.getPlayer(playerId).getResources();
+
+		// Count what our bases and barracks are producing
+		for (Map.Entry<Unit, UnitActionAssignment> entry : gs.getUnitActions().entrySet()) {
+			Unit u = entry.getKey();
+			UnitAction action = entry.getValue().action;
+
+			if (u.getPlayer() != playerId || action.getType() != UnitAction.TYPE_PRODUCE) {
 				continue;
 			}
-			
-			// Check types and add to counters 
-			UnitType type = u.getType();
-			UnitAction action = units.getAction(u);
-			int actionType = action != null ? action.getType() : UnitAction.TYPE_NONE;
-			
+
 			if (units.isBase(u)) {
-				numBase++;
-				
-				// Check if it is building a worker
-				if (actionType == UnitAction.TYPE_PRODUCE) {
-					numBuildingWorker++;
-					
-					// Subtract from available resources
-					numAvailableResources -= units.worker.cost;
-				}
-			}
-			else if (units.isBarracks(u)) {
-				numBarracks++;
-				
-				if (actionType == UnitAction.TYPE_PRODUCE) {
-					// Add units being currently built
-					if (action.getUnitType() == units.light) {
-						numBuildingLight++;
-					} else if (action.getUnitType() == units.heavy) {
-						numBuildingHeavy++;
-					} else if (action.getUnitType() == units.ranged) {
-						numBuildingRanged++;
-					}
-					
-					// Subtract from available resources
-					numAvailableResources -= action.getUnitType().cost;
+				numBuildingWorker++;
+
+				// Subtract from available resources
+				numAvailableResources -= units.worker.cost;
+			} else if (units.isBarracks(u)) {
+				// Add units being currently built
+				if (action.getUnitType() == units.light) {
+					numBuildingLight++;
+				} else if (action.getUnitType() == units.heavy) {
+					numBuildingHeavy++;
+				} else if (action.getUnitType() == units.ranged) {
+					numBuildingRanged++;
 				}
+
+				// Subtract from available resources
+				numAvailableResources -= action.getUnitType().cost;
 			}
-			else if (units.isWorker(u)) {
-				numWorker++;
+		}
+
+		numBuildingUnits = numBuildingWorker + numBuildingLight + numBuildingHeavy + numBuildingRanged;
+
+		// Determine whether there is a path to the enemy. Units only change region when they are born or die, or the buildings change
+		ConnectivityMap connectivity = units.getConnectivity();
+
+		if (haveUnitsChanged || connectivity != reachabilityConnectivity || connectivity.getVersion() != reachabilityVersion) {
+			if (units.myBase != null && units.enemyBase != null) {
+				doesPathToEnemyExist = connectivity.isAnyReachable(units.enemies, units.myUnits);
+			} else {
+				doesPathToEnemyExist = true; // we'll assume someone killed their base, or perhaps there are no bases
 			}
-			else if (units.isLight(u)) {
-				numLight++;
+
+			reachabilityConnectivity = connectivity;
+			reachabilityVersion = connectivity.getVersion();
+		}
+
+		lastTime = gs.getTime();
+	}
+
+	/**
+	 * Returns the ID of the player owning this evaluation
+	 */
+	public int getPlayerId() {
+		return playerId;
+	}
+
+	/**
+	 * Returns the total cost of a player's attacking units, not counting workers
+	 * \param player the player
+	 */
+	public int getArmyValue(int player) {
+		return armyValues[player];
+	}
+
+	/**
+	 * Returns how many resources a player's workers have returned per 100 cycles, over the last INCOME_WINDOW cycles
+	 * (or the whole game, if it's shorter)
+	 * \param player the player
+	 */
+	public double getResourceIncomeRate(int player) {
+		return incomeWindowTotals[player] * 100.0 / Math.max(Math.min(lastTime - firstTime, INCOME_WINDOW), 1);
+	}
+
+	/**
+	 * Walks this tick's units alongside the last update's in ID order, counting births, deaths and returned resources
+	 */
+	private void trackUnits(GameState gs) {
+		List<Unit> unitList = gs.getUnits();
+		int numCurrent = 0;
+		boolean isSorted = true;
+
+		if (currentIds.length < unitList.size()) {
+			currentIds = new long[unitList.size() * 2];
+			currentUnits = new Unit[unitList.size() * 2];
+			currentResources = new int[unitList.size() * 2];
+		}
+
+		for (Unit u : unitList) {
+			if (u.getPlayer() < 0 || u.getPlayer() >= NUM_PLAYERS) {
+				continue;
 			}
-			else if (units.isHeavy(u)) {
-				numHeavy++;
+
+			isSorted &= numCurrent == 0 || currentIds[numCurrent - 1] < u.getID();
+			currentIds[numCurrent] = u.getID();
+			currentUnits[numCurrent] = u;
+			currentResources[numCurrent++] = u.getResources();
+		}
+
+		if (!isSorted) {
+			// New units are appended with increasing IDs, so this only happens with unusual states
+			sortCurrent(numCurrent);
+		}
+
+		int live = 0;
+
+		Arrays.fill(returnedResources, 0);
+
+		haveUnitsChanged = false;
+
+		for (int current = 0; current < numCurrent; current++) {
+			// Units that have disappeared
+			while (live < numLive && liveIds[live] < currentIds[current]) {
+				count(liveUnits[live++], -1);
 			}
-			else if (units.isRanged(u)) {
-				numRanged++;
+
+			if (live < numLive && liveIds[live] == currentIds[current]) {
+				// A worker dropping its load has returned it
+				if (currentResources[current] < liveResources[live]) {
+					returnedResources[currentUnits[current].getPlayer()] += liveResources[live] - currentResources[current];
+				}
+
+				live++;
+			} else {
+				count(currentUnits[current], 1);
 			}
 		}
-		
-		// Determine whether there is a path to the enemy
-		if (units.myBase != null && units.enemyBase != null) {
-			doesPathToEnemyExist = false;
-			
-			for (Unit enemy : units.enemies) {
-				for (Unit ally : units.myUnits) {
-					if (MapUtils.doesPathExist(enemy, ally.getX(), ally.getY(), new AStarPathFinding(), gs)) {
-						doesPathToEnemyExist = true;
-						break;
-					}					
+
+		while (live < numLive) {
+			count(liveUnits[live++], -1);
+		}
+
+		// Slide the income window up to now, forgetting the cycles that have dropped out of it
+		if (firstTime < 0) {
+			firstTime = gs.getTime();
+		} else {
+			for (int time = gs.getTime(); time > lastTime && time > gs.getTime() - INCOME_WINDOW; time--) {
+				for (int player = 0; player < NUM_PLAYERS; player++) {
+					incomeWindowTotals[player] -= incomeWindows[player][time % INCOME_WINDOW];
+					incomeWindows[player][time % INCOME_WINDOW] = 0;
 				}
 			}
-		} else {
-			doesPathToEnemyExist = true; // we'll assume someone killed their base, or perhaps there are no bases
 		}
+
+		for (int player = 0; player < NUM_PLAYERS; player++) {
+			incomeWindows[player][gs.getTime() % INCOME_WINDOW] += returnedResources[player];
+			incomeWindowTotals[player] += returnedResources[player];
+		}
+
+		// This update's units are now the live units
+		long[] swapIds = liveIds;
+		Unit[] swapUnits = liveUnits;
+		int[] swapResources = liveResources;
+
+		liveIds = currentIds;
+		liveUnits = currentUnits;
+		liveResources = currentResources;
+		currentIds = swapIds;
+		currentUnits = swapUnits;
+		currentResources = swapResources;
+		Arrays.fill(currentUnits, 0, Math.min(numLive, currentUnits.length), null);
+		numLive = numCurrent;
+	}
+
+	/**
+	 * Adds or removes a unit from the totals
+	 * \param u the unit that was born or died
+	 * \param amount 1 for a birth, -1 for a death
+	 */
+	private void count(Unit u, int amount) {
+		int player = u.getPlayer();
+		UnitType type = u.getType();
+
+		if (type.ID >= unitCounts[player].length) {
+			for (int i = 0; i < NUM_PLAYERS; i++) {
+				unitCounts[i] = Arrays.copyOf(unitCounts[i], type.ID * 2);
+			}
+		}
+
+		unitCounts[player][type.ID] += amount;
+		totalUnits[player] += amount;
+
+		if (type.canAttack && type.canMove && type != units.worker) {
+			armyValues[player] += type.cost * amount;
+		}
+
+		haveUnitsChanged = true;
+	}
+
+	/**
+	 * Returns the count of a type in a player's counts, allowing for types that have never been seen
+	 */
+	private static int getCount(int[] counts, UnitType type) {
+		return type != null && type.ID < counts.length ? counts[type.ID] : 0;
+	}
+
+	/**
+	 * Sorts the first numCurrent entries of the scratch buffers by ID (insertion sort, as they are nearly sorted anyway)
+	 */
+	private void sortCurrent(int numCurrent) {
+		for (int i = 1; i < numCurrent; i++) {
+			long id = currentIds[i];
+			Unit u = currentUnits[i];
+			int resources = currentResources[i];
+			int j = i - 1;
+
+			while (j >= 0 && currentIds[j] > id) {
+				currentIds[j + 1] = currentIds[j];
+				currentUnits[j + 1] = currentUnits[j];
+				currentResources[j + 1] = currentResources[j];
+				j--;
+			}
+
+			currentIds[j + 1] = id;
+			currentUnits[j + 1] = u;
+			currentResources[j + 1] = resources;
+		}
+	}
+
+	/**
+	 * Forgets every tracked unit and total, e.g. when a new game starts
+	 */
+	private void reset() {
+		for (int[] counts : unitCounts) {
+			Arrays.fill(counts, 0);
+		}
+
+		Arrays.fill(totalUnits, 0);
+		Arrays.fill(armyValues, 0);
+		for (int[] window : incomeWindows) {
+			Arrays.fill(window, 0);
+		}
+
+		Arrays.fill(incomeWindowTotals, 0);
+		Arrays.fill(liveUnits, 0, numLive, null);
+		numLive = 0;
+		lastTime = -1;
+		firstTime = -1;
+		reachabilityConnectivity = null;
 	}
 }
- 
\ No newline at end of file
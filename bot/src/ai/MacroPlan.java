@@ -0,0 +1,89 @@
+package ai;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import rts.units.UnitType;
+import utilities.UnitUtils;
+
+/**
+ * A high-level plan for a player's economy and army, simple enough to be played out by the ForwardSimulator
+ * \author Louis
+ *
+ * A plan says how many workers collect, when to start the barracks, what the barracks train, and whether the army
+ * rushes the enemy or holds near its base. Workers that aren't collecting or building fight.
+ */
+public class MacroPlan {
+	public static final int NEVER = Integer.MAX_VALUE; /**< Barracks time of a plan that never builds barracks */
+
+	public final String name; /**< Name of the plan, for debugging */
+	public final int numCollectors; /**< Number of workers to keep collecting */
+	public final int barracksTime; /**< The game time from which to build barracks, or NEVER */
+	public final UnitType armyType; /**< The unit type the barracks train, or null to only train workers */
+	public final boolean isRush; /**< Whether the army attacks the enemy wherever they are, rather than defending the base */
+
+	/**
+	 * Creates a plan
+	 * \param name the name of the plan, for debugging
+	 * \param numCollectors the number of workers to keep collecting
+	 * \param barracksTime the game time from which to build barracks, or NEVER
+	 * \param armyType the unit type the barracks train, or null
+	 * \param isRush whether the army attacks rather than defends
+	 */
+	public MacroPlan(String name, int numCollectors, int barracksTime, UnitType armyType, boolean isRush) {
+		this.name = name;
+		this.numCollectors = numCollectors;
+		this.barracksTime = barracksTime;
+		this.armyType = armyType;
+		this.isRush = isRush;
+	}
+
+	/**
+	 * Returns the most workers the base should train under this plan. Without an army type the workers are the army
+	 */
+	public int getMaxWorkers() {
+		return armyType == null || barracksTime == NEVER ? Integer.MAX_VALUE : numCollectors + 1;
+	}
+
+	/**
+	 * Returns the plans the bot chooses between
+	 * \param units unit utilities, for the unit types
+	 */
+	public static List<MacroPlan> getCandidates(UnitUtils units) {
+		List<MacroPlan> candidates = new ArrayList<MacroPlan>();
+
+		for (int numCollectors = 1; numCollectors <= 3; numCollectors++) {
+			for (boolean isRush : new boolean[] {true, false}) {
+				String posture = isRush ? "rush" : "defend";
+
+				candidates.add(new MacroPlan(numCollectors + " collectors, workers, " + posture, numCollectors, NEVER, null, isRush));
+
+				for (UnitType armyType : new UnitType[] {units.ranged, units.light}) {
+					candidates.add(new MacroPlan(numCollectors + " collectors, early " + armyType.name + ", " + posture, numCollectors, 0, armyType, isRush));
+					candidates.add(new MacroPlan(numCollectors + " collectors, late " + armyType.name + ", " + posture, numCollectors, 300, armyType, isRush));
+				}
+			}
+		}
+
+		return candidates;
+	}
+
+	/**
+	 * Returns plans resembling the usual opponent scripts, for candidates to be tested against
+	 * \param units unit utilities, for the unit types
+	 */
+	public static List<MacroPlan> getOpponentScripts(UnitUtils units) {
+		List<MacroPlan> scripts = new ArrayList<MacroPlan>();
+
+		scripts.add(new MacroPlan("WorkerRush", 1, NEVER, null, true));
+		scripts.add(new MacroPlan("LightRush", 1, 0, units.light, true));
+		scripts.add(new MacroPlan("RangedRush", 1, 0, units.ranged, true));
+
+		return scripts;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,318 @@
+package bot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.UnitAction;
+import rts.units.Unit;
+import utilities.MapUtils;
+import utilities.Metrics;
+import utilities.SituationHash;
+import utilities.UnitUtils;
+
+/**
+ * \brief Chooses which workers collect, and which resource and base each one shuttles between
+ * \author Louis
+ *
+ * The route from each resource to each of our bases is measured once, by a breadth-first search outwards from the
+ * tiles around the base, treating walls and every unit that can't move (buildings and resources) as obstacles. Each
+ * resource keeps the base with the shortest route. The routes are only measured again when a resource runs out or
+ * appears, a base is built or lost, or the connectivity map changes, which the planner notices through a hash of
+ * the resource and base IDs.
+ *
+ * Every tick the collectors are chosen greedily: the worker and route with the lowest cost (the worker's distance to
+ * the resource plus the route, less a bit for resources it's already carrying) go first, and so on. Each resource
+ * takes at most as many collectors as it has open sides, up to MAX_COLLECTORS_PER_RESOURCE, since any more would only
+ * queue.
+ *
+ * The expected income is each collector's harvest amount divided by its round trip: walking the route there and back,
+ * harvesting and returning.
+ */
+public class EconomyPlanner {
+	private static final int MAX_COLLECTORS_PER_RESOURCE = 2; /**< The most workers sent to one resource */
+	private static final int UNREACHABLE = Integer.MAX_VALUE; /**< Route length between a resource and a base that can't reach each other */
+
+	private static final Metrics.Timer planTimer = Metrics.timer("economy.plan"); /**< Metrics timer of planning */
+	private static final Metrics.Counter rebuildCounter = Metrics.counter("economy.routeRebuilds"); /**< Metrics count of route rebuilds */
+
+	private final UnitUtils units; /**< Unit utilities of the player */
+
+	// Routes, rebuilt when the resources or bases change
+	private long routeSignature = 0; /**< Hash of the resources, bases and connectivity the routes were measured for */
+	private final ArrayList<Unit> resources = new ArrayList<Unit>(); /**< Every resource on the map */
+	private final ArrayList<Unit> bases = new ArrayList<Unit>(); /**< Our bases */
+	private int[] routeBase = new int[0]; /**< Index in bases of the closest base to each resource, or -1 */
+	private int[] routeLength = new int[0]; /**< Steps from each resource to its base, or UNREACHABLE */
+	private int[] resourceCapacity = new int[0]; /**< The most collectors each resource takes */
+	private int[] field = new int[0]; /**< Distance field of the base being measured */
+	private int[] queue = new int[0]; /**< Tiles waiting to be searched */
+
+	// The plan of the current tick
+	private int[] resourceLoad = new int[0]; /**< Collectors assigned to each resource */
+	private int[] workerRoute = new int[0]; /**< Index in resources of each worker's resource, or -1 if it isn't collecting */
+	private float expectedIncome = 0; /**< Resources expected per cycle from the collectors */
+
+	/**
+	 * \brief Creates an economy planner
+	 * \param units the unit utilities of the player
+	 */
+	public EconomyPlanner(UnitUtils units) {
+		this.units = units;
+	}
+
+	/**
+	 * \brief Chooses the collectors for this tick and their routes
+	 * \param workers our workers
+	 * \param numCollectors how many collectors are wanted
+	 * \param thinkers the thinkers of our units. Workers with the "build" role are never chosen
+	 */
+	public void plan(List<Unit> workers, int numCollectors, UnitThinkerRegistry thinkers) {
+		long startTime = Metrics.start();
+		GameState gs = units.getGameState();
+
+		if (getSignature(gs) != routeSignature) {
+			rebuildRoutes(gs);
+		}
+
+		if (workerRoute.length < workers.size()) {
+			workerRoute = new int[workers.size() * 2];
+		}
+
+		Arrays.fill(workerRoute, 0, workers.size(), -1);
+		Arrays.fill(resourceLoad, 0, resources.size(), 0);
+		expectedIncome = 0;
+
+		// Hand out the cheapest worker and route pairs until there are enough collectors or no routes left
+		for (int collector = 0; collector < numCollectors; collector++) {
+			int bestWorker = -1, bestResource = -1, bestCost = Integer.MAX_VALUE;
+
+			for (int w = 0; w < workers.size(); w++) {
+				Unit worker = workers.get(w);
+
+				if (workerRoute[w] != -1 || thinkers.get(worker).role.equals("build")) {
+					continue;
+				}
+
+				for (int r = 0; r < resources.size(); r++) {
+					if (routeLength[r] == UNREACHABLE || resourceLoad[r] >= resourceCapacity[r]) {
+						continue;
+					}
+
+					int cost = MapUtils.distance(worker, resources.get(r)) + routeLength[r] - worker.getResources() * 2;
+
+					if (cost < bestCost) {
+						bestCost = cost;
+						bestWorker = w;
+						bestResource = r;
+					}
+				}
+			}
+
+			if (bestWorker == -1) {
+				break;
+			}
+
+			workerRoute[bestWorker] = bestResource;
+			resourceLoad[bestResource]++;
+			expectedIncome += getIncome(workers.get(bestWorker), routeLength[bestResource]);
+		}
+
+		planTimer.stop(startTime);
+	}
+
+	/**
+	 * \brief Returns whether a worker was chosen to collect this tick
+	 * \param workerIndex the worker's index in the list given to plan()
+	 */
+	public boolean isCollector(int workerIndex) {
+		return workerRoute[workerIndex] != -1;
+	}
+
+	/**
+	 * \brief Returns the resource a collector should harvest
+	 * \param workerIndex the worker's index in the list given to plan()
+	 * \return the resource, or null if the worker isn't collecting
+	 */
+	public Unit getResource(int workerIndex) {
+		return workerRoute[workerIndex] != -1 ? resources.get(workerRoute[workerIndex]) : null;
+	}
+
+	/**
+	 * \brief Returns the base a collector should return its resources to
+	 * \param workerIndex the worker's index in the list given to plan()
+	 * \return the base, or null if the worker isn't collecting
+	 */
+	public Unit getBase(int workerIndex) {
+		return workerRoute[workerIndex] != -1 ? bases.get(routeBase[workerRoute[workerIndex]]) : null;
+	}
+
+	/**
+	 * \brief Returns how many resources per cycle this tick's collectors are expected to bring in
+	 */
+	public float getExpectedIncome() {
+		return expectedIncome;
+	}
+
+	/**
+	 * \brief Returns how many resources per cycle one more collector would bring in, on the best route with room left
+	 * \return the income, or 0 if every route is full
+	 */
+	public float getMarginalIncome() {
+		int bestLength = UNREACHABLE;
+
+		for (int r = 0; r < resources.size(); r++) {
+			if (routeLength[r] < bestLength && resourceLoad[r] < resourceCapacity[r]) {
+				bestLength = routeLength[r];
+			}
+		}
+
+		return bestLength != UNREACHABLE && units.worker != null ? getIncome(units.worker.moveTime, units.worker.harvestTime, units.worker.returnTime, units.worker.harvestAmount, bestLength) : 0;
+	}
+
+	/**
+	 * \brief Returns the income of a worker on a route of a given length
+	 */
+	private static float getIncome(Unit worker, int length) {
+		return getIncome(worker.getMoveTime(), worker.getType().harvestTime, worker.getType().returnTime, worker.getHarvestAmount(), length);
+	}
+
+	/**
+	 * \brief Returns the income of a worker with the given times on a route of a given length: its harvest amount over its round trip
+	 */
+	private static float getIncome(int moveTime, int harvestTime, int returnTime, int harvestAmount, int length) {
+		return (float)harvestAmount / Math.max(length * 2 * moveTime + harvestTime + returnTime, 1);
+	}
+
+	/**
+	 * \brief Returns a hash of everything the routes depend on: the resources, our bases and the connectivity map
+	 */
+	private long getSignature(GameState gs) {
+		long signature = SituationHash.mix(units.getConnectivity().getVersion());
+
+		for (Unit u : gs.getUnits()) {
+			if (u.getType().isResource || (u.getType().isStockpile && !units.isEnemy(u))) {
+				signature += SituationHash.mix(u.getID() * 2 + (u.getType().isResource ? 1 : 0));
+			}
+		}
+
+		return signature;
+	}
+
+	/**
+	 * \brief Measures the routes from every resource to every base, keeping the closest base of each resource
+	 */
+	private void rebuildRoutes(GameState gs) {
+		PhysicalGameState pgs = gs.getPhysicalGameState();
+		int width = pgs.getWidth(), height = pgs.getHeight();
+
+		resources.clear();
+		bases.clear();
+
+		for (Unit u : gs.getUnits()) {
+			if (u.getType().isResource) {
+				resources.add(u);
+			} else if (u.getType().isStockpile && !units.isEnemy(u)) {
+				bases.add(u);
+			}
+		}
+
+		if (routeBase.length < resources.size()) {
+			routeBase = new int[resources.size() * 2];
+			routeLength = new int[resources.size() * 2];
+			resourceCapacity = new int[resources.size() * 2];
+			resourceLoad = new int[resources.size() * 2];
+		}
+
+		if (field.length != width * height) {
+			field = new int[width * height];
+			queue = new int[width * height];
+		}
+
+		Arrays.fill(routeBase, 0, resources.size(), -1);
+		Arrays.fill(routeLength, 0, resources.size(), UNREACHABLE);
+
+		for (int r = 0; r < resources.size(); r++) {
+			Unit resource = resources.get(r);
+
+			resourceCapacity[r] = 0;
+
+			for (int direction = 0; direction < 4; direction++) {
+				if (isWalkable(resource.getX() + UnitAction.DIRECTION_OFFSET_X[direction], resource.getY() + UnitAction.DIRECTION_OFFSET_Y[direction], pgs)) {
+					resourceCapacity[r]++;
+				}
+			}
+
+			resourceCapacity[r] = Math.min(resourceCapacity[r], MAX_COLLECTORS_PER_RESOURCE);
+		}
+
+		for (int b = 0; b < bases.size(); b++) {
+			measureFrom(bases.get(b), pgs);
+
+			for (int r = 0; r < resources.size(); r++) {
+				Unit resource = resources.get(r);
+
+				// The route runs between a tile beside the base and a tile beside the resource
+				for (int direction = 0; direction < 4; direction++) {
+					int x = resource.getX() + UnitAction.DIRECTION_OFFSET_X[direction], y = resource.getY() + UnitAction.DIRECTION_OFFSET_Y[direction];
+
+					if (x >= 0 && y >= 0 && x < width && y < height && field[x + y * width] < routeLength[r]) {
+						routeLength[r] = field[x + y * width];
+						routeBase[r] = b;
+					}
+				}
+			}
+		}
+
+		routeSignature = getSignature(gs);
+		rebuildCounter.increment();
+	}
+
+	/**
+	 * \brief Fills the distance field with the steps from the tiles beside a base to every tile
+	 */
+	private void measureFrom(Unit base, PhysicalGameState pgs) {
+		int width = pgs.getWidth();
+		int head = 0, tail = 0;
+
+		Arrays.fill(field, UNREACHABLE);
+
+		for (int direction = 0; direction < 4; direction++) {
+			int x = base.getX() + UnitAction.DIRECTION_OFFSET_X[direction], y = base.getY() + UnitAction.DIRECTION_OFFSET_Y[direction];
+
+			if (isWalkable(x, y, pgs) && field[x + y * width] != 0) {
+				field[x + y * width] = 0;
+				queue[tail++] = x + y * width;
+			}
+		}
+
+		while (head < tail) {
+			int position = queue[head++];
+			int x = position % width, y = position / width;
+
+			for (int direction = 0; direction < 4; direction++) {
+				int nextX = x + UnitAction.DIRECTION_OFFSET_X[direction], nextY = y + UnitAction.DIRECTION_OFFSET_Y[direction];
+
+				if (isWalkable(nextX, nextY, pgs) && field[nextX + nextY * width] == UNREACHABLE) {
+					field[nextX + nextY * width] = field[position] + 1;
+					queue[tail++] = nextX + nextY * width;
+				}
+			}
+		}
+	}
+
+	/**
+	 * \brief Returns whether a route could pass through a tile: on the map, not a wall, and not under a building or resource
+	 */
+	private boolean isWalkable(int x, int y, PhysicalGameState pgs) {
+		if (x < 0 || y < 0 || x >= pgs.getWidth() || y >= pgs.getHeight() || pgs.getTerrain(x, y) == PhysicalGameState.TERRAIN_WALL) {
+			return false;
+		}
+
+		Unit unit = units.getUnitAt(x, y);
+
+		return unit == null || unit.getType().canMove;
+	}
+}
@@ -1,13 +1,16 @@
 package bot;
 
+import ai.ForwardSimulator;
 import ai.GameEvaluator;
+import ai.MacroPlan;
 import ai.abstraction.AbstractionLayerAI;
 import ai.abstraction.Attack;
 import ai.abstraction.Idle;
 import ai.abstraction.pathfinding.AStarPathFinding;
 import ai.core.AI;
 import ai.core.ParameterSpecification;
-import bot.UnitThinker.StrategyFunc;
+import bot.TickBudget.Phase;
+import bot.UnitThinker.Strategy;
 import extra_abstractions.DoNothing;
 import extra_abstractions.Step;
 import extra_abstractions.TrainWithPreferredTile;
@@ -21,8 +24,11 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 import java.util.HashMap;
 
 import rts.*;
@@ -31,6 +37,11 @@ import rts.units.UnitType;
 import rts.units.UnitTypeTable;
 
 import utilities.MapUtils;
+import utilities.Metrics;
+import utilities.ReservationTable;
+import utilities.SituationCache;
+import utilities.TileReservations;
+import utilities.DangerAwarePathFinding;
 import utilities.DebugUtils;
 import utilities.UnitUtils;
 
@@ -49,7 +60,44 @@ public class MyDisappointingRoboticSon extends AbstractionLayerAI {
 	private PhysicalGameState pgs; /** < The current physical game state */
 
 	private UnitUtils units; /** < Unit utilities */
-	private HashMap<Unit, UnitThinker> unitThinkers = new HashMap<Unit, UnitThinker>(); /**< UnitThinkers associated with each unit */
+	private ArrayList<SituationCache> barracksCacheList = new ArrayList<SituationCache>(); /**< Every thread's cache of workerBuildBarracksStrategy decisions, to total their hits */
+	private ThreadLocal<SituationCache> barracksCaches = ThreadLocal.withInitial(this::createBarracksCache); /**< The tile workerBuildBarracksStrategy chose, by situation. One cache per thread ticking this bot's thinkers, so there is no lock to contend */
+	private ThreadLocal<DangerAwarePathFinding> safePathFinders = ThreadLocal.withInitial(() -> new DangerAwarePathFinding(units)); /**< The danger-aware pathfinder of each thread ticking this bot's thinkers, since one isn't thread-safe */
+	private UnitThinkerRegistry unitThinkers = new UnitThinkerRegistry(barracksCaches, safePathFinders); /**< UnitThinkers associated with each unit */
+	private TargetAssigner targetAssigner; /**< Shares out the enemies between our attackers every tick */
+	private EconomyPlanner economy; /**< Chooses our collectors and their harvest routes every tick */
+	private ProductionScheduler production; /**< Plans what to train and build, and when */
+	private GameEvaluator evaluator = null; /**< Evaluation of the game, updated incrementally every tick. Recreated if we change player */
+	
+	// Reusable per-tick buffers, so that coordination doesn't allocate
+	private TileReservations blockedTiles = new TileReservations(); /**< Tiles being moved into by our units this tick */
+	private ReservationTable pathReservations = new ReservationTable(RESERVATION_SLOTS, RESERVATION_CYCLES_PER_SLOT); /**< Tiles our units plan to be on over the next few moves, kept between ticks */
+	private ArrayList<UnitThinker> brothers = new ArrayList<UnitThinker>(); /**< Units chosen for the brother strategy this tick */
+	private ArrayList<Unit> attackers = new ArrayList<Unit>(); /**< Units given targets by the target assigner this tick */
+	private ArrayList<Unit> tickOrder = new ArrayList<Unit>(); /**< Our units in the order their thinkers are ticked, urgent units first */
+	
+	private TickBudget budget = new TickBudget(); /**< Times each phase of the tick against the time budget */
+	private SpeculativePlanner planner = null; /**< Plans the next tick in the background while enabled, otherwise null */
+	private ParallelThinkerRunner parallelThinkers = null; /**< Ticks the thinkers in parallel while enabled, otherwise null */
+	private int parallelThinkersThreshold = 16; /**< The fewest units worth ticking in parallel */
+	private ForwardSimulator simulator = null; /**< Chooses macro plans by simulation while enabled, otherwise null */
+	private ForwardSimulator.State simulationRoot = new ForwardSimulator.State(); /**< The captured state macro plans are simulated from */
+	private ForwardSimulator.State simulationScratch = new ForwardSimulator.State(); /**< The state macro plans are played out on */
+	private List<MacroPlan> macroCandidates = null; /**< The macro plans to choose from */
+	private List<MacroPlan> opponentScripts = null; /**< The opponent plans to test the candidates against */
+	private PortfolioSearch portfolioSearch = null; /**< Chooses squad strategies by simulation while enabled, otherwise null */
+	private MacroPlan macroPlan = null; /**< The chosen macro plan, or null to use the hand-written rules */
+	private int macroPlanTime = Integer.MIN_VALUE; /**< The game time at which macroPlan was chosen */
+	private static final int MACRO_PLAN_PERIOD = 200; /**< How often to choose a new macro plan, in cycles */
+	private static final int MACRO_PLAN_HORIZON = 300; /**< How far ahead to simulate each macro plan, in cycles */
+	private static final int DEFEND_RADIUS = 6; /**< How close to the base enemies must come before workers defend against them, when the macro plan isn't a rush */
+	private static final Metrics.Timer getActionTimer = Metrics.timer("bot.getAction"); /**< Metrics timer of the whole of getAction */
+	private static final int URGENT_DANGER_TIME = 20; /**< Units that could be attacked within this many cycles are ticked first */
+	private static final int RESERVATION_SLOTS = 16; /**< Number of time slots of path reservations to keep */
+	private static final int RESERVATION_CYCLES_PER_SLOT = 4; /**< Game cycles per time slot of path reservations. With 16 slots that's several moves of any unit */
+	
+	/** Orders units by reverse distance from our base (furthest first) */
+	private final Comparator<Unit> frontmostSortOrder = (Unit a, Unit b) -> MapUtils.distance(b, units.myBase) - MapUtils.distance(a, units.myBase);
 
 	public MyDisappointingRoboticSon(UnitTypeTable utt) {
 		// Initialise parent
@@ -58,10 +106,79 @@ public class MyDisappointingRoboticSon extends AbstractionLayerAI {
 		// Initialise variables
 		this.utt = utt;
 		this.units = new UnitUtils(utt);
+		this.targetAssigner = new TargetAssigner(units);
+		this.economy = new EconomyPlanner(units);
+		this.production = new ProductionScheduler(units);
+		
+		// Speculative planning is opt-in, since it costs a thread and a state clone per tick
+		setSpeculationEnabled(Boolean.getBoolean("bot.speculate"));
+		setParallelThinkersEnabled(Boolean.getBoolean("bot.parallelThinkers"));
+		setMacroSearchEnabled(Boolean.getBoolean("bot.macroSearch"));
+		setPortfolioSearchEnabled(Boolean.getBoolean("bot.portfolioSearch"));
+	}
+	
+	/**
+	 * \brief Enables or disables choosing the strategy of each squad of attackers by simulating the alternatives
+	 * against the usual opponent scripts, on the common fork-join pool
+	 * \param enabled whether to search for squad strategies
+	 */
+	public void setPortfolioSearchEnabled(boolean enabled) {
+		portfolioSearch = enabled ? new PortfolioSearch(units, ForkJoinPool.commonPool()) : null;
+	}
+	
+	/**
+	 * \brief Enables or disables choosing the number of collectors, barracks timing, army type and posture by
+	 * simulating candidate macro plans against the usual opponent scripts every MACRO_PLAN_PERIOD cycles
+	 * \param enabled whether to search for macro plans
+	 */
+	public void setMacroSearchEnabled(boolean enabled) {
+		simulator = enabled ? new ForwardSimulator(units) : null;
+		macroCandidates = enabled ? MacroPlan.getCandidates(units) : null;
+		opponentScripts = enabled ? MacroPlan.getOpponentScripts(units) : null;
+		macroPlan = null;
+		macroPlanTime = Integer.MIN_VALUE;
+	}
+	
+	/**
+	 * \brief Enables or disables ticking the unit thinkers in parallel on the common fork-join pool when there are many units.
+	 * The actions chosen are the same either way
+	 * \param enabled whether to tick in parallel
+	 */
+	public void setParallelThinkersEnabled(boolean enabled) {
+		parallelThinkers = enabled ? new ParallelThinkerRunner(ForkJoinPool.commonPool()) : null;
+	}
+	
+	/**
+	 * \brief Sets how many units there must be for the thinkers to be ticked in parallel, when enabled
+	 * \param minUnits the fewest units worth ticking in parallel
+	 */
+	public void setParallelThinkersThreshold(int minUnits) {
+		parallelThinkersThreshold = minUnits;
+	}
+	
+	/**
+	 * \brief Enables or disables planning the next tick on a background thread
+	 * \param enabled whether to plan ahead
+	 */
+	public void setSpeculationEnabled(boolean enabled) {
+		if (enabled && planner == null) {
+			planner = new SpeculativePlanner(utt);
+		} else if (!enabled && planner != null) {
+			planner.stop();
+			planner = null;
+		}
 	}
 
 	@Override
 	public void reset() {
+		// Stop the background planner between games; it starts again with the first submit
+		if (planner != null) {
+			planner.stop();
+		}
+		
+		evaluator = null;
+		macroPlan = null;
+		macroPlanTime = Integer.MIN_VALUE;
 	}
 
 	@Override
@@ -73,45 +190,184 @@ public class MyDisappointingRoboticSon extends AbstractionLayerAI {
 	public PlayerAction getAction(int player, GameState gs) {
 		PhysicalGameState pgs = gs.getPhysicalGameState();
 
+		budget.start(TIME_BUDGET);
+
 		// Refresh tick state variables
 		this.player = gs.getPlayer(player);
 		this.playerId = player;
 		this.gs = gs;
 		this.pgs = pgs;
 
-		this.units.tick(playerId, gs);
+		// Use the background planner's work if it predicted this state
+		SpeculativePlanner.Speculation speculation = planner != null ? planner.take(playerId, gs) : null;
+		
+		if (speculation != null) {
+			this.units.tick(playerId, gs, speculation.units);
+			planner.recycle(speculation.units);
+		} else {
+			this.units.tick(playerId, gs);
+		}
 
 		// Synchronise the unit thinkers with the units
 		synchroniseUnitThinkers();
 
 		// Begin an evil strategy!?
-		GameEvaluator eval = new GameEvaluator(playerId, gs, units);
+		if (evaluator == null || evaluator.getPlayerId() != playerId) {
+			evaluator = new GameEvaluator(playerId, units);
+		}
+		
+		evaluator.update(gs);
+		
+		GameEvaluator eval = evaluator;
 
 		// Assign default action to all units
 		for (Unit unit : units.myUnits) {
-			unitThinkers.get(unit).strategy = null;
+			unitThinkers.get(unit).setStrategy(Strategy.NONE);
+			unitThinkers.get(unit).setAssignedTarget(null);
 		}
 		
+		budget.endPhase(Phase.SETUP);
+		
+		// Choose a macro plan every so often, if there's time
+		if (simulator != null && (gs.getTime() - macroPlanTime >= MACRO_PLAN_PERIOD || gs.getTime() < macroPlanTime) && budget.canAffordSearch()) {
+			simulator.capture(gs, simulationRoot);
+			
+			MacroPlan chosenPlan = simulator.choosePlan(simulationRoot, playerId, macroCandidates, opponentScripts, MACRO_PLAN_HORIZON, simulationScratch, budget);
+			
+			// If the budget ran out before any candidate was scored, keep the old plan and try again next tick
+			if (chosenPlan != null) {
+				macroPlan = chosenPlan;
+				macroPlanTime = gs.getTime();
+			}
+		}
+		
+		budget.endPhase(Phase.MACRO);
+		
 		// --- Coordinate the workers ---
 		coordinateWorkers(eval);
+		budget.endPhase(Phase.WORKERS);
 
 		// --- Coordinate the other attackers ---
 		coordinateAttackers(eval);
+		budget.endPhase(Phase.ATTACKERS);
+		
+		// Let the simulations second-guess the attackers' strategies, if there's time
+		if (portfolioSearch != null && budget.canAffordSearch()) {
+			portfolioSearch.search(gs, playerId, macroPlan, unitThinkers, budget);
+		}
+		
+		budget.endPhase(Phase.PORTFOLIO);
 		
 		// --- Coordinate the producers ---
 		coordinateProducers(eval);
+		budget.endPhase(Phase.PRODUCERS);
 
 		// Tick the thinkers
-		boolean[] blockedTiles = new boolean[pgs.getWidth() * pgs.getHeight()];
+		pathReservations.advance(gs.getTime(), pgs.getWidth() * pgs.getHeight());
+		blockedTiles.clear(pgs.getWidth() * pgs.getHeight(), pathReservations);
+		
+		// Urgent units always get a full tick. The rest only do while the budget lasts
+		int numUrgent = sortTickOrder();
+		
+		boolean isParallel = parallelThinkers != null && tickOrder.size() >= parallelThinkersThreshold;
+		
+		if (isParallel) {
+			// The budget has to be shared out in advance, since the thinkers don't run one after another
+			int numFullTicks = numUrgent + Math.min(budget.getAffordableThinkers(parallelThinkers.getParallelism()), tickOrder.size() - numUrgent);
+			
+			parallelThinkers.tick(gs, tickOrder, unitThinkers, numFullTicks, blockedTiles, budget);
+		}
 		
-		for (Unit key : unitThinkers.keySet()) {
-			unitThinkers.get(key).tick(gs, blockedTiles);
+		for (int i = 0; i < tickOrder.size(); i++) {
+			Unit unit = tickOrder.get(i);
+			UnitThinker thinker = unitThinkers.get(unit);
+			
+			if (isParallel) {
+				// Already ticked
+			} else if (i < numUrgent || budget.canAffordThinker()) {
+				long thinkerStartTime = System.nanoTime();
+				
+				thinker.tick(gs, blockedTiles);
+				budget.recordThinkerCost(System.nanoTime() - thinkerStartTime);
+			} else {
+				thinker.tickCheaply(gs, blockedTiles);
+				budget.recordDegraded();
+			}
 
-			actions.put(key, unitThinkers.get(key).getAction());
+			actions.put(unit, thinker.getAction());
 		}
 		
+		budget.endPhase(Phase.THINKERS);
+		
 		// Done! Play our moves!
-		return translateActions(player, gs);
+		PlayerAction playerAction = translateActions(player, gs);
+		
+		budget.endPhase(Phase.TRANSLATE);
+		
+		// Start planning the next tick while the opponent thinks
+		if (planner != null) {
+			planner.submit(playerId, gs, playerAction);
+		}
+		
+		getActionTimer.record(budget.getElapsed());
+		return playerAction;
+	}
+	
+	/**
+	 * \brief Returns the economy planner, which holds this tick's collectors and their expected income
+	 */
+	public EconomyPlanner getEconomy() {
+		return economy;
+	}
+	
+	/**
+	 * \brief Returns the number of hits so far across every thread's cache of workerBuildBarracksStrategy decisions
+	 */
+	public long getBarracksCacheHits() {
+		long hits = 0;
+		
+		synchronized (barracksCacheList) {
+			for (SituationCache cache : barracksCacheList) {
+				hits += cache.getHits();
+			}
+		}
+		
+		return hits;
+	}
+	
+	/**
+	 * \brief Returns the number of misses so far across every thread's cache of workerBuildBarracksStrategy decisions
+	 */
+	public long getBarracksCacheMisses() {
+		long misses = 0;
+		
+		synchronized (barracksCacheList) {
+			for (SituationCache cache : barracksCacheList) {
+				misses += cache.getMisses();
+			}
+		}
+		
+		return misses;
+	}
+	
+	/**
+	 * \brief Creates the calling thread's cache of workerBuildBarracksStrategy decisions
+	 */
+	private SituationCache createBarracksCache() {
+		SituationCache cache = new SituationCache("barracks", 256);
+		
+		synchronized (barracksCacheList) {
+			barracksCacheList.add(cache);
+		}
+		
+		return cache;
+	}
+	
+	/**
+	 * \brief Returns the time budget tracker, which holds the phase times of the last tick
+	 */
+	public TickBudget getTickBudget() {
+		return budget;
 	}
 
 	@Override
@@ -123,27 +379,47 @@ public class MyDisappointingRoboticSon extends AbstractionLayerAI {
 	 * \brief Synchronises the unit thinkers with this bot's units
 	 */
 	private void synchroniseUnitThinkers() {
-		// Since we can't tell when a bot is deleted, copy unit thinkers from the unit
-		// thinker map to a new one for each existing unit
-		// The ones that have died will be left behind
-		// Create a new unit thinker hash map
-		HashMap<Unit, UnitThinker> newUnitThinkers = new HashMap<Unit, UnitThinker>();
-
-		// Collect all the existing unit thinkers into the new list
-		for (Unit u : gs.getUnits()) {
-			if (u.getPlayer() == playerId) {
-				if (unitThinkers.containsKey(u)) {
-					// Move the existing thinker to the new list
-					newUnitThinkers.put(u, unitThinkers.get(u));
-				} else {
-					// This is a new unit: Create a new unit thinker!
-					newUnitThinkers.put(u, new UnitThinker(u, units));
-				}
+		// Add thinkers for new units and drop the thinkers of dead ones
+		unitThinkers.synchronise(units.myUnits, units, pf);
+	}
+	
+	/**
+	 * \brief Fills tickOrder with our units, urgent units first
+	 * \return the number of urgent units at the front of tickOrder
+	 */
+	private int sortTickOrder() {
+		int numUrgent = 0;
+		
+		tickOrder.clear();
+		
+		for (Unit unit : units.myUnits) {
+			if (isUrgent(unit)) {
+				tickOrder.add(numUrgent++, unit);
+			} else {
+				tickOrder.add(unit);
 			}
 		}
-
-		// Reassign the unit thinker map with the new map
-		unitThinkers = newUnitThinkers;
+		
+		return numUrgent;
+	}
+	
+	/**
+	 * \brief Returns whether a unit is in danger or next to an enemy, in which case a cheap tick could get it killed
+	 */
+	private boolean isUrgent(Unit unit) {
+		if (MapUtils.getDangerTime(unit.getX(), unit.getY(), 1, units) < URGENT_DANGER_TIME) {
+			return true;
+		}
+		
+		for (int direction = 0; direction < 4; direction++) {
+			Unit neighbour = units.getUnitAt(unit.getX() + UnitAction.DIRECTION_OFFSET_X[direction], unit.getY() + UnitAction.DIRECTION_OFFSET_Y[direction]);
+			
+			if (neighbour != null && units.isEnemyCondition.meetsConditions(neighbour)) {
+				return true;
+			}
+		}
+		
+		return false;
 	}
 	
 	/**
@@ -151,37 +427,34 @@ public class MyDisappointingRoboticSon extends AbstractionLayerAI {
 	 * \param eval a GameEvaluator representing the current state of the game
 	 */
 	private void coordinateWorkers(GameEvaluator eval) {
-		Unit closestResource = units.myBase != null ? units.findClosestUnit(units.myBase.getX(), units.myBase.getY(), (Unit u) -> units.isResource(u)) : null;
+		Unit closestResource = units.myBase != null ? units.findClosestUnit(units.myBase.getX(), units.myBase.getY(), units.isResourceCondition) : null;
 		boolean isSafeToBuildBarracks 
 						= units.myBase != null ? MapUtils.getDangerTime(units.myBase.getX(), units.myBase.getY(), 1, units) > 80 : false
 						  || !eval.doesPathToEnemyExist;
-		boolean wannaBuildBarracks = units.myBase != null && isSafeToBuildBarracks && eval.numBarracks == 0 && eval.numBuildingBarracks == 0;
-		boolean canBuildBarracks = wannaBuildBarracks && eval.numAvailableResources > units.barracks.cost;
+		boolean mayBuildBarracks = units.myBase != null && isSafeToBuildBarracks && eval.numBarracks == 0 && eval.numBuildingBarracks == 0;
+		
 		int numCollectorsRequired = 1;
 		
 		// Decide number of workers to have
-		if (wannaBuildBarracks && eval.numAvailableResources < units.barracks.cost + 5) {
-			// We want to build barracks, so get more workers in there
-			numCollectorsRequired = 2;
-		}
-
-		if (eval.numBarracks > 0 && eval.numAvailableResources < 5) {
-			// We want enough resources to build more things
+		if (macroPlan != null) {
+			// The simulations have decided for us
+			numCollectorsRequired = macroPlan.numCollectors;
+		} else if (production.isResourceBound()) {
+			// Last tick's production plan was waiting on resources, so get more workers in there
 			numCollectorsRequired = 2;
 		}
 		
-		// Sort the worker list from closest to base to furthest
-		if (units.myBase != null && closestResource != null) {
-			// Sort them in order of distance from our base, if possible (closest to furthest)
-			HashMap<Unit, UnitThinker> tempThinkers = unitThinkers;
-			units.myWorkers.sort((Unit a, Unit b) -> 
-				  (MapUtils.distance(a, units.myBase) + MapUtils.distance(a, closestResource) - a.getResources() * 2)
-				- (MapUtils.distance(b, units.myBase) + MapUtils.distance(b, closestResource) - b.getResources() * 2));
-		} else {
+		if (units.myBase == null || closestResource == null) {
 			// Until a backup (rebuild the base!) strategy is created, don't send any collectors if we lose our base or resources
 			numCollectorsRequired = 0;
 		}
 		
+		// Choose the collectors and their routes first, so production is planned on the income they will actually bring in
+		economy.plan(units.myWorkers, numCollectorsRequired, unitThinkers);
+		production.plan(eval, numCollectorsRequired, macroPlan, economy, mayBuildBarracks);
+		
+		boolean canBuildBarracks = mayBuildBarracks && production.isDue(ProductionScheduler.BUILD_BARRACKS) && eval.numAvailableResources >= units.barracks.cost;
+		
 		// See if we have a builder
 		for (Unit worker : units.myWorkers) {
 			if (unitThinkers.get(worker).role.equals("build")) {
@@ -193,23 +466,35 @@ public class MyDisappointingRoboticSon extends AbstractionLayerAI {
 			}
 		}
 		
+		// A new barracks builder is the free worker closest to the base
+		Unit newBuilder = null;
+		
+		if (canBuildBarracks && eval.numBuildingBarracks == 0) {
+			for (int i = 0; i < units.myWorkers.size(); i++) {
+				Unit worker = units.myWorkers.get(i);
+				
+				if (!economy.isCollector(i) && (newBuilder == null || MapUtils.distance(worker, units.myBase) < MapUtils.distance(newBuilder, units.myBase))) {
+					newBuilder = worker;
+				}
+			}
+		}
+		
 		// When a ranged warrior enters the scene, let workers retreat to only the Brothers strategy, which only kills when safe
 		
 		// Command the rest of the workers
-		for (Unit worker : units.myWorkers) {
+		for (int i = 0; i < units.myWorkers.size(); i++) {
+			Unit worker = units.myWorkers.get(i);
 			UnitThinker thinker = unitThinkers.get(worker);
 			
 			// Assign collectors
-			if (numCollectorsRequired > 0 && !thinker.role.equals("build")) {
-				thinker.strategy = () -> thinker.workerCollectStrategy();
+			if (economy.isCollector(i)) {
+				thinker.setCollectStrategy(economy.getResource(i), economy.getBase(i));
 				thinker.role = "collect";
-				
-				numCollectorsRequired--;
 			}
 
 			// Assign barracks builders
-			else if ((canBuildBarracks && eval.numBuildingBarracks == 0) || thinker.role.equals("build")) {
-				thinker.strategy = () -> thinker.workerBuildBarracksStrategy();
+			else if (worker == newBuilder || thinker.role.equals("build")) {
+				thinker.setStrategy(Strategy.WORKER_BUILD_BARRACKS);
 				thinker.role = "build";
 				
 				// Update evaluation
@@ -221,20 +506,27 @@ public class MyDisappointingRoboticSon extends AbstractionLayerAI {
 			else if (eval.doesPathToEnemyExist) {
 				// Attack the closest enemy
 				// Todo attack enemies close to the base?
-				Unit closestEnemy = units.findClosestUnit(worker.getX(), worker.getY(), (Unit u) -> u.getPlayer() != playerId && u.getPlayer() != -1);
+				Unit closestEnemy = units.findClosestUnit(worker.getX(), worker.getY(), units.isEnemyCondition);
+				
+				// A defensive plan only goes for enemies near the base
+				if (closestEnemy != null && macroPlan != null && !macroPlan.isRush && units.myBase != null && MapUtils.distance(closestEnemy, units.myBase) > DEFEND_RADIUS) {
+					closestEnemy = null;
+					thinker.setStrategy(Strategy.VACATE_BASE);
+					thinker.role = "vacate";
+				}
 	
 				if (closestEnemy != null) {
 					//Unit enemyToTarget = units.enemyBase;
 					Unit enemyToTarget = closestEnemy;
-					thinker.strategy = () -> thinker.ninjaWarriorStrategy(enemyToTarget);
+					thinker.setStrategy(Strategy.NINJA_WARRIOR, enemyToTarget);
 					thinker.role = "attack";
-					//thinker.strategy = () -> thinker.driveByStrategy(enemyToTarget);
+					//thinker.setStrategy(Strategy.DRIVE_BY, enemyToTarget);
 				}
 			}
 
 			// Assign empty action (vacate the base)
 			else {
-				thinker.strategy = () -> thinker.vacateBaseStrategy();
+				thinker.setStrategy(Strategy.VACATE_BASE);
 				thinker.role = "vacate";
 			}
 		}
@@ -246,28 +538,39 @@ public class MyDisappointingRoboticSon extends AbstractionLayerAI {
 	 */
 	private void coordinateAttackers(GameEvaluator eval) {
 		// Sort units by reverse distance from the base
-		units.myUnits.sort((Unit a, Unit b) -> MapUtils.distance(b, units.myBase) - MapUtils.distance(a, units.myBase));
+		units.myUnits.sort(frontmostSortOrder);
 		
 		// Order basic attackers to attack
 		for (Unit attacker : units.myUnits) {
 			// Only order idle attackers to attack
 			UnitThinker thinker = unitThinkers.get(attacker);
-			if (!attacker.getType().canAttack || thinker.strategy != null) {
+			if (!attacker.getType().canAttack || thinker.hasStrategy()) {
 				continue;
 			}
 
 			if (units.isRanged(attacker)) {
 				// I'm a ranged warrior, I'm here to eat butt and kick popcorn
-				thinker.strategy = () -> thinker.rangedTempStrategy();
+				thinker.setStrategy(Strategy.RANGED_TEMP);
+			}
+		}
+
+		// Share out the enemies between everything that can fight, all at once
+		attackers.clear();
+		
+		for (Unit attacker : units.myUnits) {
+			if (attacker.getType().canAttack && attacker.getType().canMove && (!units.isWorker(attacker) || unitThinkers.get(attacker).role.equals("attack"))) {
+				attackers.add(attacker);
 			}
 		}
+		
+		targetAssigner.assign(attackers, unitThinkers);
 
 		// Testing: Try advanced strategies with frontmost workers
 		int numBrothersRequired = (eval.numWorker + eval.numRanged) >= 5 ? 0 : 0;
 		int numDriveBysRequired = (eval.numWorker + eval.numRanged) >= 5 ? 3 : 0;  
 		
 		// Brothers go first
-		ArrayList<UnitThinker> brothers = new ArrayList<UnitThinker>();
+		brothers.clear();
 		
 		for (Unit attacker : units.myUnits) {
 			UnitThinker thinker = unitThinkers.get(attacker);
@@ -278,10 +581,9 @@ public class MyDisappointingRoboticSon extends AbstractionLayerAI {
 					
 					brothers.add(thinker);
 				} else if (numDriveBysRequired > 0) {
-					Unit closestEnemy = units.findClosestUnit(attacker.getX(), attacker.getY(), (Unit u) -> units.isEnemy(u));
 					numDriveBysRequired--;
 					
-					thinker.strategy = () -> thinker.driveByStrategy(closestEnemy);
+					thinker.setStrategy(Strategy.DRIVE_BY, thinker.getAssignedTarget());
 				}
 			}
 		}
@@ -289,10 +591,10 @@ public class MyDisappointingRoboticSon extends AbstractionLayerAI {
 		// Assign brothers
 		for (int i = 0; i < brothers.size() - 1; i += 2) {
 			UnitThinker broA = brothers.get(i), broB = brothers.get(i + 1);
-			Unit closestEnemy = units.findClosestUnit(broA.getUnit().getX(), broA.getUnit().getY(), (Unit u) -> units.isEnemy(u));
+			Unit victim = broA.getAssignedTarget() != null ? broA.getAssignedTarget() : broB.getAssignedTarget();
 
-			broA.strategy = () -> broA.brotherStrategy(broB.getUnit(), closestEnemy);
-			broB.strategy = () -> broB.brotherStrategy(broA.getUnit(), closestEnemy);
+			broA.setBrotherStrategy(broB.getUnit(), victim);
+			broB.setBrotherStrategy(broA.getUnit(), victim);
 		}
 	}
 	
@@ -305,23 +607,25 @@ public class MyDisappointingRoboticSon extends AbstractionLayerAI {
 			UnitThinker thinker = unitThinkers.get(unit);
 
 			if (units.isBase(unit)) {
-				if (eval.numAvailableResources >= units.worker.cost && (eval.doesPathToEnemyExist || eval.numWorker < 5)) {
-					if (eval.numWorker < 2 /* temp */) {
+				if (production.isDue(ProductionScheduler.TRAIN_WORKER) && eval.numAvailableResources >= units.worker.cost) {
+					if (eval.numWorker < production.getCollectorsWanted()) {
 						// Produce a worker
-						thinker.strategy = () -> thinker.produceCollectorStrategy();
+						thinker.setStrategy(Strategy.PRODUCE_COLLECTOR);
 					} else {
 						// Produce a rusher
 						// Put a worker in the position closest to an enemy unit
-						thinker.strategy = () -> thinker.produceRusherStrategy(units.worker);
+						thinker.setStrategy(Strategy.PRODUCE_RUSHER, units.worker);
 					}
 				}
 			}
 
 			if (units.isBarracks(unit) && units.getAction(unit) == null) {
-				if (eval.numAvailableResources >= units.ranged.cost) {
-					thinker.strategy = () -> thinker.produceRusherStrategy(units.ranged);
+				UnitType armyType = macroPlan != null && macroPlan.armyType != null ? macroPlan.armyType : units.ranged;
+				
+				if (production.isDue(ProductionScheduler.TRAIN_ARMY) && eval.numAvailableResources >= armyType.cost) {
+					thinker.setStrategy(Strategy.PRODUCE_RUSHER, armyType);
 
-					eval.numAvailableResources -= units.ranged.cost;
+					eval.numAvailableResources -= armyType.cost;
 				}
 			}
 		}
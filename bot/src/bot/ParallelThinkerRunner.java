@@ -0,0 +1,172 @@
+package bot;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import rts.GameState;
+import rts.units.Unit;
+import utilities.Metrics;
+import utilities.TileReservations;
+
+/**
+ * \brief Ticks the unit thinkers on a fork-join pool, with the same result as ticking them one after another
+ * \author Louis
+ *
+ * Phase one ticks every thinker in parallel. Each one gets a recording view of the (still empty) tile reservations,
+ * which logs the tiles it checked and buffers the tiles it reserved. Phase two walks the thinkers in tick order:
+ * if every tile a thinker checked is still as it saw it, its reservations are committed. Otherwise an earlier
+ * thinker claimed one of them in the meantime, so the thinker is rolled back and ticked again against the
+ * committed reservations, exactly as the sequential loop would have done.
+ *
+ * Everything else the thinkers read (the game state, UnitUtils and its helpers) is either immutable during the
+ * tick or safe to query from several threads, and is the same whatever order the thinkers run in.
+ */
+public class ParallelThinkerRunner {
+	private static final int THINKERS_PER_TASK = 4; /**< Phase one tasks are split until they have at most this many thinkers */
+
+	private static final Metrics.Counter conflictCounter = Metrics.counter("thinkers.conflicts"); /**< Metrics count of thinkers ticked again in phase two */
+	private static final Metrics.Timer proposeTimer = Metrics.timer("thinkers.propose"); /**< Metrics timer of phase one */
+
+	private final ForkJoinPool pool; /**< The pool to tick on */
+
+	// Per-tick state, indexed by tick order
+	private UnitThinker[] thinkers = new UnitThinker[0]; /**< The thinkers to tick */
+	private TileReservations[] proposals = new TileReservations[0]; /**< The recording view of each thinker */
+	private long[] thinkerCosts = new long[0]; /**< How long each thinker took in phase one */
+	private int numThinkers = 0; /**< Number of thinkers this tick */
+	private int numFullTicks = 0; /**< Thinkers before this index get a full tick, the rest a cheap tick */
+	private GameState gs = null; /**< The current game state */
+	private TileReservations committed = null; /**< The bot's tile reservations */
+
+	/**
+	 * \brief A phase one task, ticking a range of thinkers against their own recording views
+	 */
+	private class ProposalTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int start; /**< First thinker index */
+		private final int end; /**< Thinker index after the last */
+
+		ProposalTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > THINKERS_PER_TASK) {
+				int middle = (start + end) / 2;
+
+				invokeAll(new ProposalTask(start, middle), new ProposalTask(middle, end));
+				return;
+			}
+
+			for (int i = start; i < end; i++) {
+				long startTime = System.nanoTime();
+
+				thinkers[i].saveState();
+				proposals[i].beginRecording(committed);
+				tickThinker(i, proposals[i]);
+				thinkerCosts[i] = System.nanoTime() - startTime;
+			}
+		}
+	}
+
+	/**
+	 * \brief Creates a runner that ticks on a pool
+	 * \param pool the fork-join pool to use, e.g. ForkJoinPool.commonPool()
+	 */
+	public ParallelThinkerRunner(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * \brief Returns the number of threads the runner ticks on
+	 */
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * \brief Ticks the thinkers of every unit, in effect in the order given
+	 * \param gs the current game state
+	 * \param tickOrder the units to tick, in the order the sequential loop would tick them
+	 * \param registry the thinkers of the units
+	 * \param numFullTicks the number of units at the start of tickOrder that get a full tick. The rest are ticked cheaply
+	 * \param blockedTiles the tile reservations, which must not change until this returns
+	 * \param budget the tick budget, to record the thinker costs in
+	 */
+	public void tick(GameState gs, List<Unit> tickOrder, UnitThinkerRegistry registry, int numFullTicks, TileReservations blockedTiles, TickBudget budget) {
+		numThinkers = tickOrder.size();
+		ensureCapacity(numThinkers);
+
+		for (int i = 0; i < numThinkers; i++) {
+			thinkers[i] = registry.get(tickOrder.get(i));
+		}
+
+		this.gs = gs;
+		this.committed = blockedTiles;
+		this.numFullTicks = numFullTicks;
+
+		// Phase one: propose in parallel
+		long startTime = Metrics.start();
+
+		pool.invoke(new ProposalTask(0, numThinkers));
+		proposeTimer.stop(startTime);
+
+		// Phase two: resolve in order
+		for (int i = 0; i < numThinkers; i++) {
+			if (proposals[i].isValid()) {
+				proposals[i].commit();
+			} else {
+				conflictCounter.increment();
+
+				thinkers[i].restoreState();
+				tickThinker(i, committed);
+			}
+
+			if (i < numFullTicks) {
+				budget.recordThinkerCost(thinkerCosts[i]);
+			} else {
+				budget.recordDegraded();
+			}
+		}
+
+		// Don't keep the units alive until the next tick
+		Arrays.fill(thinkers, 0, numThinkers, null);
+		this.gs = null;
+	}
+
+	/**
+	 * \brief Ticks a thinker fully or cheaply, depending on its index
+	 */
+	private void tickThinker(int index, TileReservations blockedTiles) {
+		if (index < numFullTicks) {
+			thinkers[index].tick(gs, blockedTiles);
+		} else {
+			thinkers[index].tickCheaply(gs, blockedTiles);
+		}
+	}
+
+	/**
+	 * \brief Grows the per-thinker arrays to hold a number of thinkers
+	 */
+	private void ensureCapacity(int capacity) {
+		if (thinkers.length >= capacity) {
+			return;
+		}
+
+		int oldCapacity = thinkers.length;
+
+		capacity = Math.max(capacity, oldCapacity * 2);
+		thinkers = Arrays.copyOf(thinkers, capacity);
+		proposals = Arrays.copyOf(proposals, capacity);
+		thinkerCosts = Arrays.copyOf(thinkerCosts, capacity);
+
+		for (int i = oldCapacity; i < capacity; i++) {
+			proposals[i] = new TileReservations();
+		}
+	}
+}
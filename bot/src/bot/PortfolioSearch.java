@@ -0,0 +1,337 @@
+package bot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ai.ForwardSimulator;
+import ai.MacroPlan;
+import bot.UnitThinker.Strategy;
+import rts.GameState;
+import rts.units.Unit;
+import utilities.MapUtils;
+import utilities.Metrics;
+import utilities.UnitUtils;
+
+/**
+ * \brief Chooses a strategy for each squad of attackers by portfolio greedy search with the forward simulator
+ * \author Louis
+ *
+ * Attackers close to each other are grouped into squads. Each squad starts with the strategy the coordinators gave
+ * it; then, squad by squad, every strategy in the portfolio is played out in the simulator against each opponent
+ * script, and the squad keeps whichever has the best worst-case score. Later squads are searched with the choices
+ * of earlier ones in place. The candidates of a squad are played out in parallel, each on its own states.
+ *
+ * The simulator can't run the thinkers' strategies themselves, so each strategy is played out as the abstract
+ * fighting script closest to it: NINJA_WARRIOR closes in and attacks, DRIVE_BY and RANGED_TEMP kite, and
+ * VACATE_BASE holds its ground. BROTHER needs a pair of units and a victim, and dodging isn't an assignable
+ * strategy, so neither is in the portfolio.
+ *
+ * Choices aren't cached between ticks: a rollout plays out the whole map for HORIZON cycles, so its result depends
+ * on every unit, and a key covering all of them would hardly ever repeat. Instead the search checks the tick's
+ * budget before every squad and every rollout. Once it runs out, the squad being searched and every squad after it
+ * keep the coordinators' choices, since a partly scored squad's candidates can't be compared.
+ */
+public class PortfolioSearch {
+	private static final int SQUAD_RADIUS = 4; /**< Attackers within this distance of a squad's first unit join the squad */
+	private static final int HORIZON = 100; /**< How far ahead to play each candidate out, in cycles */
+
+	/** The strategies a squad can be given, in the order they're tried */
+	private static final Strategy[] PORTFOLIO = { Strategy.NINJA_WARRIOR, Strategy.DRIVE_BY, Strategy.RANGED_TEMP, Strategy.VACATE_BASE };
+
+	private static final Metrics.Timer searchTimer = Metrics.timer("portfolio.search"); /**< Metrics timer of a whole search */
+
+	private final UnitUtils units; /**< Unit utilities of the player */
+	private final ForkJoinPool pool; /**< The pool to play candidates out on */
+	private final ForwardSimulator simulator; /**< The simulator, which holds the captured units */
+	private final List<MacroPlan> opponentScripts; /**< The opponent plans to test candidates against */
+	private final MacroPlan defaultPlan; /**< The plan played out for the rest of our units when there is no macro plan */
+
+	// Reusable per-search buffers
+	private final ForwardSimulator.State root = new ForwardSimulator.State(); /**< The captured state */
+	private final ForwardSimulator.State base = new ForwardSimulator.State(); /**< The root with the chosen scripts of the squads so far */
+	private ForwardSimulator.State[] candidateStates = new ForwardSimulator.State[0]; /**< The base with a candidate's scripts, per candidate */
+	private ForwardSimulator.State[] scratchStates = new ForwardSimulator.State[0]; /**< The state each candidate is played out on */
+	private final ArrayList<Unit> members = new ArrayList<Unit>(); /**< The units of every squad, squad by squad */
+	private int[] squadStarts = new int[1]; /**< Index in members of the first unit of each squad, plus the end of the last */
+	private int numSquads = 0; /**< Number of squads */
+	private int[] rows = new int[0]; /**< Simulator row of each member, or -1 */
+	private final Strategy[] candidates = new Strategy[PORTFOLIO.length + 1]; /**< The strategies being tried for the current squad; NONE keeps the coordinators' choices */
+	private final int[] candidateScores = new int[PORTFOLIO.length + 1]; /**< Worst-case score of each candidate */
+
+	// Per-search state read by the tasks
+	private int playerId = 0; /**< Our player */
+	private MacroPlan plan = null; /**< The plan our other units follow */
+	private int squadStart = 0; /**< First member of the squad being searched */
+	private int squadEnd = 0; /**< Member after the last of the squad being searched */
+	private TickBudget budget = null; /**< The tick's budget */
+	private volatile boolean isOutOfTime = false; /**< Set by a task that skipped a rollout because the budget ran out */
+
+	/**
+	 * \brief A task playing out a range of the current squad's candidates
+	 */
+	private class CandidateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int start; /**< First candidate index */
+		private final int end; /**< Candidate index after the last */
+
+		CandidateTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > 1) {
+				int middle = (start + end) / 2;
+
+				invokeAll(new CandidateTask(start, middle), new CandidateTask(middle, end));
+				return;
+			}
+
+			for (int i = start; i < end; i++) {
+				candidateScores[i] = scoreCandidate(i);
+			}
+		}
+	}
+
+	/**
+	 * \brief Creates a search
+	 * \param units the unit utilities of the player, ticked before each search
+	 * \param pool the fork-join pool to play candidates out on
+	 */
+	public PortfolioSearch(UnitUtils units, ForkJoinPool pool) {
+		this.units = units;
+		this.pool = pool;
+		this.simulator = new ForwardSimulator(units);
+		this.opponentScripts = MacroPlan.getOpponentScripts(units);
+		this.defaultPlan = new MacroPlan("Default", 1, 0, units.ranged, true);
+	}
+
+	/**
+	 * \brief Groups the attackers into squads and gives each squad the best strategy from the portfolio
+	 * \param gs the current game state
+	 * \param playerId our player
+	 * \param macroPlan the macro plan our other units follow, or null
+	 * \param thinkers the thinkers of our units, whose strategies have been assigned by the coordinators
+	 * \param budget the tick's budget, checked before every squad and rollout
+	 */
+	public void search(GameState gs, int playerId, MacroPlan macroPlan, UnitThinkerRegistry thinkers, TickBudget budget) {
+		long startTime = Metrics.start();
+
+		this.playerId = playerId;
+		this.plan = macroPlan != null ? macroPlan : defaultPlan;
+		this.budget = budget;
+		this.isOutOfTime = false;
+
+		buildSquads(thinkers);
+
+		if (numSquads == 0) {
+			searchTimer.stop(startTime);
+			return;
+		}
+
+		simulator.capture(gs, root);
+		base.forkFrom(root);
+
+		// Start with the coordinators' choices in place
+		if (rows.length < members.size()) {
+			rows = new int[members.size() * 2];
+		}
+
+		for (int i = 0; i < members.size(); i++) {
+			Unit member = members.get(i);
+
+			rows[i] = simulator.getRow(root, member.getID());
+
+			if (rows[i] >= 0) {
+				simulator.setScript(base, rows[i], getScript(thinkers.get(member).getStrategy()));
+			}
+		}
+
+		// Improve the squads one at a time
+		for (int squad = 0; squad < numSquads && budget.canAffordSearch(); squad++) {
+			squadStart = squadStarts[squad];
+			squadEnd = squadStarts[squad + 1];
+
+			Strategy best = searchSquad();
+
+			if (isOutOfTime) {
+				break;
+			}
+
+			if (best != Strategy.NONE) {
+				apply(best, thinkers);
+			}
+		}
+
+		searchTimer.stop(startTime);
+	}
+
+	/**
+	 * \brief Plays out every candidate of the current squad and returns the best
+	 * \return the best strategy, or NONE if the coordinators' choices were best
+	 */
+	private Strategy searchSquad() {
+		int numCandidates = 0;
+		boolean isAllRanged = true;
+
+		for (int i = squadStart; i < squadEnd; i++) {
+			isAllRanged &= units.isRanged(members.get(i));
+		}
+
+		candidates[numCandidates++] = Strategy.NONE;
+
+		for (Strategy strategy : PORTFOLIO) {
+			if (strategy != Strategy.RANGED_TEMP || isAllRanged) {
+				candidates[numCandidates++] = strategy;
+			}
+		}
+
+		ensureCapacity(numCandidates);
+		pool.invoke(new CandidateTask(0, numCandidates));
+
+		// Ties go to the earlier candidate, so the coordinators' choices win unless something is actually better
+		int best = 0;
+
+		for (int i = 1; i < numCandidates; i++) {
+			if (candidateScores[i] > candidateScores[best]) {
+				best = i;
+			}
+		}
+
+		return candidates[best];
+	}
+
+	/**
+	 * \brief Plays a candidate out against every opponent script, unless the budget runs out first
+	 * \param candidate the index of the candidate
+	 * \return the worst score, meaningless if isOutOfTime has been set
+	 */
+	private int scoreCandidate(int candidate) {
+		ForwardSimulator.State state = candidateStates[candidate];
+
+		state.forkFrom(base);
+
+		if (candidates[candidate] != Strategy.NONE) {
+			int script = getScript(candidates[candidate]);
+
+			for (int i = squadStart; i < squadEnd; i++) {
+				if (rows[i] >= 0) {
+					simulator.setScript(state, rows[i], script);
+				}
+			}
+		}
+
+		int worstScore = Integer.MAX_VALUE;
+
+		for (MacroPlan opponentScript : opponentScripts) {
+			if (isOutOfTime || !budget.canAffordSearch()) {
+				isOutOfTime = true;
+				break;
+			}
+
+			worstScore = Math.min(worstScore, simulator.score(state, playerId, plan, opponentScript, HORIZON, scratchStates[candidate]));
+		}
+
+		return worstScore;
+	}
+
+	/**
+	 * \brief Gives every unit of the current squad a strategy against the target the target assigner gave it (or the
+	 * closest enemy, if it has none), and sets their scripts in the base state for the squads searched after it
+	 */
+	private void apply(Strategy strategy, UnitThinkerRegistry thinkers) {
+		int script = getScript(strategy);
+
+		for (int i = squadStart; i < squadEnd; i++) {
+			Unit member = members.get(i);
+			UnitThinker thinker = thinkers.get(member);
+			Unit target = thinker.getAssignedTarget();
+
+			if (target == null) {
+				target = units.findClosestUnit(member.getX(), member.getY(), units.isEnemyCondition);
+			}
+
+			thinker.setStrategy(strategy, target);
+
+			if (rows[i] >= 0) {
+				simulator.setScript(base, rows[i], script);
+			}
+		}
+	}
+
+	/**
+	 * \brief Groups our mobile attackers into squads: each unit not yet in a squad starts one, joined by every other
+	 * such unit within SQUAD_RADIUS of it
+	 */
+	private void buildSquads(UnitThinkerRegistry thinkers) {
+		members.clear();
+		numSquads = 0;
+
+		for (Unit seed : units.myUnits) {
+			if (!isSquadCandidate(seed, thinkers) || members.contains(seed)) {
+				continue;
+			}
+
+			if (squadStarts.length < numSquads + 2) {
+				squadStarts = Arrays.copyOf(squadStarts, (numSquads + 2) * 2);
+			}
+
+			squadStarts[numSquads++] = members.size();
+			members.add(seed);
+
+			for (Unit other : units.myUnits) {
+				if (other != seed && MapUtils.distance(seed, other) <= SQUAD_RADIUS && isSquadCandidate(other, thinkers) && !members.contains(other)) {
+					members.add(other);
+				}
+			}
+		}
+
+		squadStarts[numSquads] = members.size();
+	}
+
+	/**
+	 * \brief Returns whether a unit should be in a squad: it can move and attack, and isn't a worker with an economic role
+	 */
+	private boolean isSquadCandidate(Unit unit, UnitThinkerRegistry thinkers) {
+		return unit.getType().canAttack && unit.getType().canMove && (!units.isWorker(unit) || thinkers.get(unit).role.equals("attack"));
+	}
+
+	/**
+	 * \brief Returns the simulator script closest to a strategy
+	 */
+	private static int getScript(Strategy strategy) {
+		switch (strategy) {
+			case NINJA_WARRIOR:
+				return ForwardSimulator.SCRIPT_ATTACK;
+			case DRIVE_BY:
+			case RANGED_TEMP:
+				return ForwardSimulator.SCRIPT_KITE;
+			case VACATE_BASE:
+				return ForwardSimulator.SCRIPT_HOLD;
+			default:
+				return ForwardSimulator.SCRIPT_PLAN;
+		}
+	}
+
+	/**
+	 * \brief Makes sure there are states for a number of candidates
+	 */
+	private void ensureCapacity(int numCandidates) {
+		if (candidateStates.length < numCandidates) {
+			int oldLength = candidateStates.length;
+
+			candidateStates = Arrays.copyOf(candidateStates, numCandidates);
+			scratchStates = Arrays.copyOf(scratchStates, numCandidates);
+
+			for (int i = oldLength; i < numCandidates; i++) {
+				candidateStates[i] = new ForwardSimulator.State();
+				scratchStates[i] = new ForwardSimulator.State();
+			}
+		}
+	}
+}
@@ -0,0 +1,390 @@
+package bot;
+
+import ai.GameEvaluator;
+import ai.MacroPlan;
+import rts.UnitAction;
+import rts.units.Unit;
+import rts.units.UnitType;
+import utilities.Metrics;
+import utilities.SituationCache;
+import utilities.SituationHash;
+import utilities.UnitUtils;
+
+/**
+ * \brief Plans our next few productions (workers, barracks and army units) against projected income, and says which are due now
+ * \author Louis
+ *
+ * Each tick the scheduler searches the orders of the next PLAN_LENGTH events. An event starts once the previous one
+ * has started, its producer is free and enough resources have come in at the expected income; a worker that will
+ * collect raises the income once it's trained. Every unit finished within HORIZON cycles is worth its cost (army
+ * units ARMY_VALUE times as much, or ARMY_VALUE_BEHIND times while the enemy's army plus what its income could buy
+ * over the horizon is worth more than ours), less the further into the horizon it finishes, and the plan with the
+ * most value wins. Barracks are worth nothing in themselves, only for the army they let the search train afterwards.
+ *
+ * The search is depth-first with every state's value memoised in a SituationCache under a hash of the state, with
+ * times relative to now. Most orders reach the same states, and states recur from tick to tick, so a plan costs a few
+ * hundred node visits at worst and usually a handful of cache hits.
+ *
+ * The events at the front of the plan whose start time has come are due, and the coordinators issue them. An event is
+ * only due once every event before it is, so nothing later in the plan can spend the resources the first event that
+ * isn't due is waiting for, and the due events are affordable by construction.
+ */
+public class ProductionScheduler {
+	public static final int TRAIN_WORKER = 0; /**< Event: the base trains a worker */
+	public static final int BUILD_BARRACKS = 1; /**< Event: a worker builds barracks */
+	public static final int TRAIN_ARMY = 2; /**< Event: the barracks train an army unit */
+	private static final int NUM_EVENTS = 3; /**< Number of kinds of event */
+
+	private static final int PLAN_LENGTH = 4; /**< How many events to plan ahead */
+	private static final int HORIZON = 300; /**< How far ahead units are worth anything, in cycles */
+	private static final int NEVER = Integer.MAX_VALUE / 4; /**< Time of something that won't happen, small enough to add times to */
+	private static final float ARMY_VALUE = 1.5f; /**< Value of an army unit per resource it costs, relative to a worker */
+	private static final float ARMY_VALUE_BEHIND = 2.5f; /**< Value of an army unit per resource it costs while the enemy's army could outgrow ours */
+	private static final int BUILD_LEAD_MOVES = 2; /**< Moves a builder is expected to walk before it starts the barracks */
+	private static final int DEFAULT_MAX_WORKERS = 5; /**< The most workers to train without a macro plan when the enemy can't be reached */
+	private static final float VALUE_SCALE = 1000; /**< Values are cached as ints of this many units to 1 */
+	private static final int CACHE_CAPACITY = 4096; /**< The most states to remember */
+
+	private static final Metrics.Timer planTimer = Metrics.timer("production.plan"); /**< Metrics timer of planning */
+
+	private final UnitUtils units; /**< Unit utilities of the player */
+	private final SituationCache cache = new SituationCache("production", CACHE_CAPACITY); /**< Value of each state searched */
+
+	// Parameters of the current search
+	private int now = 0; /**< The game time */
+	private int collectorsWanted = 0; /**< How many workers collect; workers beyond this don't raise the income */
+	private int maxWorkers = 0; /**< The most workers to have */
+	private int barracksTime = 0; /**< The earliest time barracks may be started */
+	private boolean mayBuildBarracks = false; /**< Whether barracks may be built at all */
+	private UnitType armyType = null; /**< The unit type the barracks train, or null for none */
+	private float incomePerCollector = 0; /**< Resources per cycle one more collector brings in */
+	private float armyValue = 0; /**< Value of an army unit per resource it costs */
+	private long salt = 0; /**< Hash of the parameters, mixed into every state's hash */
+
+	// State after the last apply(), read straight away by the caller
+	private float childResources = 0; /**< Resources after the event starts */
+	private float childIncome = 0; /**< Income after the event */
+	private int childWorkers = 0; /**< Workers after the event */
+	private int childBaseFree = 0; /**< When the base is next free */
+	private int childBarracksFree = 0; /**< When the barracks are next free, or NEVER if there are none */
+	private float childValue = 0; /**< Value of the event itself */
+	private boolean lastStartWaitedForResources = false; /**< Whether the last getStart() was held back by resources rather than the producer */
+
+	// The plan
+	private final int[] planEvents = new int[PLAN_LENGTH]; /**< The planned events, in order */
+	private final int[] planStarts = new int[PLAN_LENGTH]; /**< The start time of each planned event */
+	private int planSize = 0; /**< Number of planned events */
+	private boolean isResourceBound = false; /**< Whether the first event not yet due is waiting for resources */
+
+	/**
+	 * \brief Creates a production scheduler
+	 * \param units the unit utilities of the player
+	 */
+	public ProductionScheduler(UnitUtils units) {
+		this.units = units;
+	}
+
+	/**
+	 * \brief Plans the next few productions
+	 * \param eval the evaluation of the current game state
+	 * \param numCollectors how many workers collect, as given to the economy planner
+	 * \param macroPlan the chosen macro plan, or null to use the defaults
+	 * \param economy the economy planner, already planned this tick, for the income
+	 * \param mayBuildBarracks whether it is safe and sensible to build barracks, ignoring resources and timing
+	 */
+	public void plan(GameEvaluator eval, int numCollectors, MacroPlan macroPlan, EconomyPlanner economy, boolean mayBuildBarracks) {
+		long startTime = Metrics.start();
+
+		now = units.getGameState().getTime();
+		collectorsWanted = numCollectors;
+		maxWorkers = macroPlan != null ? macroPlan.getMaxWorkers() : (eval.doesPathToEnemyExist ? Integer.MAX_VALUE : DEFAULT_MAX_WORKERS);
+		barracksTime = macroPlan != null ? macroPlan.barracksTime : now;
+		armyType = macroPlan != null ? macroPlan.armyType : units.ranged;
+		incomePerCollector = economy.getMarginalIncome();
+		this.mayBuildBarracks = mayBuildBarracks;
+
+		// Armies are worth more while the enemy's could outgrow ours
+		int enemyId = 1 - eval.getPlayerId();
+		double enemyArmyValue = eval.getArmyValue(enemyId) + eval.getResourceIncomeRate(enemyId) * HORIZON / 100;
+
+		armyValue = enemyArmyValue > eval.getArmyValue(eval.getPlayerId()) ? ARMY_VALUE_BEHIND : ARMY_VALUE;
+
+		salt = SituationHash.mix(collectorsWanted);
+		salt = SituationHash.mix(salt ^ Math.min(maxWorkers, 255));
+		salt = SituationHash.mix(salt ^ Math.min(Math.max(barracksTime - now, 0), NEVER));
+		salt = SituationHash.mix(salt ^ (armyType != null ? armyType.ID + 1 : 0));
+		salt = SituationHash.mix(salt ^ (mayBuildBarracks ? 1 : 2));
+		salt = SituationHash.mix(salt ^ Math.round(armyValue * 10));
+		salt = SituationHash.mix(salt ^ Math.round(incomePerCollector * 10000));
+
+		// Where we stand
+		int t = now;
+		float resources = eval.numAvailableResources;
+		float income = economy.getExpectedIncome();
+		int workers = eval.numWorker + eval.numBuildingWorker;
+		int baseFree = eval.numBase > 0 && units.myBase != null ? now + units.timeToFinishAction(units.myBase) : NEVER;
+		int barracksFree = getBarracksFreeTime();
+
+		// Follow the best path down the search, which is mostly cache hits after the first level
+		planSize = 0;
+		isResourceBound = false;
+
+		for (int depth = PLAN_LENGTH; depth > 0; depth--) {
+			int bestEvent = -1, bestStart = NEVER;
+			float bestValue = 0;
+			boolean bestWaitedForResources = false;
+
+			for (int event = 0; event < NUM_EVENTS; event++) {
+				int start = getStart(event, t, resources, income, workers, baseFree, barracksFree);
+
+				if (start == NEVER) {
+					continue;
+				}
+
+				boolean waitedForResources = lastStartWaitedForResources;
+
+				apply(event, start, t, resources, income, workers, baseFree, barracksFree);
+
+				float value = childValue + search(depth - 1, start, childResources, childIncome, childWorkers, childBaseFree, childBarracksFree);
+
+				if (value > bestValue) {
+					bestValue = value;
+					bestEvent = event;
+					bestStart = start;
+					bestWaitedForResources = waitedForResources;
+				}
+			}
+
+			if (bestEvent == -1) {
+				break;
+			}
+
+			if (bestStart > now && planSize == getNumDue()) {
+				// The first event that isn't due yet says what's holding the plan up
+				isResourceBound = bestWaitedForResources;
+			}
+
+			planEvents[planSize] = bestEvent;
+			planStarts[planSize] = bestStart;
+			planSize++;
+
+			apply(bestEvent, bestStart, t, resources, income, workers, baseFree, barracksFree);
+			t = bestStart;
+			resources = childResources;
+			income = childIncome;
+			workers = childWorkers;
+			baseFree = childBaseFree;
+			barracksFree = childBarracksFree;
+		}
+
+		planTimer.stop(startTime);
+	}
+
+	/**
+	 * \brief Returns whether an event should be issued now: it's in the plan, and it and every event before it have reached their start time
+	 * \param event TRAIN_WORKER, BUILD_BARRACKS or TRAIN_ARMY
+	 */
+	public boolean isDue(int event) {
+		for (int i = 0; i < planSize && planStarts[i] <= now; i++) {
+			if (planEvents[i] == event) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * \brief Returns whether the plan is held up by resources rather than by producers, i.e. more collectors would help
+	 */
+	public boolean isResourceBound() {
+		return isResourceBound;
+	}
+
+	/**
+	 * \brief Returns how many workers the plan expects to collect; workers trained beyond this are rushers
+	 */
+	public int getCollectorsWanted() {
+		return collectorsWanted;
+	}
+
+	/**
+	 * \brief Returns the number of events at the front of the plan that are due
+	 */
+	private int getNumDue() {
+		int numDue = 0;
+
+		while (numDue < planSize && planStarts[numDue] <= now) {
+			numDue++;
+		}
+
+		return numDue;
+	}
+
+	/**
+	 * \brief Returns the best value of the rest of a plan from a state, from the cache if possible
+	 * \param depth how many more events to plan
+	 * \param t the start time of the previous event; nothing can start earlier
+	 * \param resources the resources at time t
+	 * \param income resources per cycle
+	 * \param workers the number of workers, including those being trained
+	 * \param baseFree when the base is next free, or NEVER if there is no base
+	 * \param barracksFree when the barracks are next free, or NEVER if there are none
+	 */
+	private float search(int depth, int t, float resources, float income, int workers, int baseFree, int barracksFree) {
+		if (depth == 0) {
+			return 0;
+		}
+
+		long key = SituationHash.mix(salt ^ depth);
+		key = SituationHash.mix(key ^ (t - now));
+		key = SituationHash.mix(key ^ Math.round(resources * 4));
+		key = SituationHash.mix(key ^ Math.round(income * 10000));
+		key = SituationHash.mix(key ^ Math.min(workers, 255));
+		key = SituationHash.mix(key ^ (baseFree != NEVER ? Math.max(baseFree - t, 0) : -1));
+		key = SituationHash.mix(key ^ (barracksFree != NEVER ? Math.max(barracksFree - t, 0) : -1));
+
+		int cached = cache.get(key);
+
+		if (cached != SituationCache.MISSING) {
+			return cached / VALUE_SCALE;
+		}
+
+		// Producing nothing more is always an option
+		float bestValue = 0;
+
+		for (int event = 0; event < NUM_EVENTS; event++) {
+			int start = getStart(event, t, resources, income, workers, baseFree, barracksFree);
+
+			if (start == NEVER) {
+				continue;
+			}
+
+			apply(event, start, t, resources, income, workers, baseFree, barracksFree);
+
+			float value = childValue + search(depth - 1, start, childResources, childIncome, childWorkers, childBaseFree, childBarracksFree);
+
+			bestValue = Math.max(bestValue, value);
+		}
+
+		cache.put(key, Math.round(bestValue * VALUE_SCALE));
+		return bestValue;
+	}
+
+	/**
+	 * \brief Returns the earliest an event could start from a state, or NEVER if it can't start within the horizon
+	 * Also sets lastStartWaitedForResources.
+	 */
+	private int getStart(int event, int t, float resources, float income, int workers, int baseFree, int barracksFree) {
+		int producerFree;
+
+		switch (event) {
+		case TRAIN_WORKER:
+			producerFree = workers < maxWorkers ? baseFree : NEVER;
+			break;
+		case BUILD_BARRACKS:
+			producerFree = mayBuildBarracks && barracksFree == NEVER && workers > 0 && baseFree != NEVER ? Math.max(barracksTime, now) : NEVER;
+			break;
+		default:
+			producerFree = armyType != null ? barracksFree : NEVER;
+			break;
+		}
+
+		if (producerFree >= NEVER) {
+			return NEVER;
+		}
+
+		int start = Math.max(t, producerFree);
+		float shortfall = getCost(event) - (resources + income * (start - t));
+
+		lastStartWaitedForResources = false;
+
+		if (shortfall > 0) {
+			if (income <= 0) {
+				return NEVER;
+			}
+
+			start += (int)Math.ceil(shortfall / income);
+			lastStartWaitedForResources = true;
+		}
+
+		return start <= now + HORIZON ? start : NEVER;
+	}
+
+	/**
+	 * \brief Works out the state after an event starts at a time, into the child fields
+	 */
+	private void apply(int event, int start, int t, float resources, float income, int workers, int baseFree, int barracksFree) {
+		UnitType type = getType(event);
+
+		childResources = resources + income * (start - t) - type.cost;
+		childIncome = income;
+		childWorkers = workers;
+		childBaseFree = baseFree;
+		childBarracksFree = barracksFree;
+
+		switch (event) {
+		case TRAIN_WORKER:
+			childBaseFree = start + type.produceTime;
+			childWorkers++;
+			childValue = type.cost * getDiscount(childBaseFree);
+
+			if (childWorkers <= collectorsWanted) {
+				// The new collector's income only starts once it's trained, so take back what it would have made before then
+				childIncome += incomePerCollector;
+				childResources -= incomePerCollector * type.produceTime;
+			}
+			break;
+		case BUILD_BARRACKS:
+			childBarracksFree = start + BUILD_LEAD_MOVES * units.worker.moveTime + type.produceTime;
+			childValue = 0;
+			break;
+		default:
+			childBarracksFree = start + type.produceTime;
+			childValue = armyValue * type.cost * getDiscount(childBarracksFree);
+			break;
+		}
+	}
+
+	/**
+	 * \brief Returns how much of its value a unit finishing at a time keeps: all of it now, none at the horizon
+	 */
+	private float getDiscount(int finishTime) {
+		return Math.max(1 - (float)(finishTime - now) / HORIZON, 0);
+	}
+
+	/**
+	 * \brief Returns the unit type an event produces
+	 */
+	private UnitType getType(int event) {
+		return event == TRAIN_WORKER ? units.worker : (event == BUILD_BARRACKS ? units.barracks : armyType);
+	}
+
+	/**
+	 * \brief Returns the cost of an event
+	 */
+	private int getCost(int event) {
+		return getType(event).cost;
+	}
+
+	/**
+	 * \brief Returns when our barracks are next free: when they finish their current production, or are finished being built. NEVER if there are none
+	 */
+	private int getBarracksFreeTime() {
+		int freeTime = NEVER;
+
+		for (Unit unit : units.myUnits) {
+			if (units.isBarracks(unit)) {
+				freeTime = Math.min(freeTime, now + units.timeToFinishAction(unit));
+			} else if (units.isWorker(unit)) {
+				UnitAction action = units.getAction(unit);
+
+				if (action != null && action.getType() == UnitAction.TYPE_PRODUCE && action.getUnitType() == units.barracks) {
+					freeTime = Math.min(freeTime, now + units.timeToFinishAction(unit));
+				}
+			}
+		}
+
+		return freeTime;
+	}
+}
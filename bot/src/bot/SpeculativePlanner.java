@@ -0,0 +1,358 @@
+package bot;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import rts.GameState;
+import rts.PlayerAction;
+import rts.UnitAction;
+import rts.UnitActionAssignment;
+import rts.units.Unit;
+import rts.units.UnitType;
+import rts.units.UnitTypeTable;
+import util.Pair;
+import utilities.Metrics;
+import utilities.UnitUtils;
+
+/**
+ * \brief Precomputes the bot's per-tick helpers on a background thread while the opponent thinks and the game cycles
+ * \author Louis
+ *
+ * After the bot returns its PlayerAction, it submits a clone of the state with that action. The planner thread
+ * issues the action on the clone, cycles it once to predict the next state and ticks its own UnitUtils on the
+ * prediction, which builds the danger map, connectivity and distance fields. It then warms the layers and fields
+ * the thinkers are likely to ask for.
+ *
+ * States where a production would complete are not predicted (see wouldCreateUnit).
+ *
+ * On the next getAction, take() compares a signature of the real state against the prediction's. The prediction
+ * is only used if they match, which is typically when the opponent didn't issue any new actions.
+ *
+ * Everything is handed between the threads through AtomicReferences, and the planner parks while idle. A request
+ * or a speculation is only ever owned by one thread at a time. Requests are pooled, and only hold the bot's actions
+ * as plain fields, so submitting allocates nothing but the state's clone, which has to be taken on the bot's thread
+ * before the game moves on. The planner builds the actions to issue from those fields on its own thread.
+ *
+ * The thread is only started by the first submit, and stop() ends it until the next submit, so a bot that is
+ * cloned for every game and reset between them doesn't leave a parked thread behind per game.
+ */
+public class SpeculativePlanner {
+	/**
+	 * \brief A state to predict from, owned by the planner once submitted
+	 */
+	private static class Request {
+		int playerId; /**< The player the bot is playing as */
+		GameState gs; /**< A clone of the state the bot acted on */
+		int numActions = 0; /**< Number of unit actions the bot returned */
+		long[] unitIds = new long[16]; /**< ID of the unit of each action */
+		int[] types = new int[16]; /**< Type of each action */
+		int[] directions = new int[16]; /**< Direction of each action */
+		int[] locationX = new int[16]; /**< Target X of each attack */
+		int[] locationY = new int[16]; /**< Target Y of each attack */
+		UnitType[] unitTypes = new UnitType[16]; /**< Unit type of each production */
+	}
+
+	/**
+	 * \brief The results of planning ahead, owned by the bot once taken
+	 */
+	public static class Speculation {
+		long signature; /**< Signature of the predicted state */
+		public UnitUtils units; /**< Unit utilities ticked on the predicted state, with warmed helpers */
+	}
+
+	private static final Metrics.Counter hitCounter = Metrics.counter("planner.hits"); /**< Metrics count of adopted speculations */
+	private static final Metrics.Counter missCounter = Metrics.counter("planner.misses"); /**< Metrics count of ticks without a matching speculation */
+	private static final Metrics.Timer planTimer = Metrics.timer("planner.plan"); /**< Metrics timer of a background planning pass */
+
+	private final UnitTypeTable utt; /**< Unit type table for new UnitUtils */
+
+	private final AtomicReference<Request> pendingRequest = new AtomicReference<Request>(); /**< The latest unplanned request */
+	private final AtomicReference<Speculation> latestSpeculation = new AtomicReference<Speculation>(); /**< The latest untaken speculation */
+	private final AtomicReference<UnitUtils> spareUnits = new AtomicReference<UnitUtils>(); /**< A UnitUtils the bot has finished with, to plan with next */
+	private final AtomicReference<Request> spareRequest = new AtomicReference<Request>(); /**< A planned or replaced request, to submit with next */
+
+	private volatile Thread thread = null; /**< The planner thread, or null while stopped. A thread runs for as long as it's this one */
+
+	/**
+	 * \brief Creates a stopped planner. The thread starts with the first submit
+	 * \param utt the unit type table of the game
+	 */
+	public SpeculativePlanner(UnitTypeTable utt) {
+		this.utt = utt;
+	}
+
+	/**
+	 * \brief Stops the planner thread and drops any pending request or speculation. The next submit starts a new thread
+	 */
+	public void stop() {
+		Thread stoppedThread = thread;
+
+		thread = null;
+		pendingRequest.set(null);
+		latestSpeculation.set(null);
+
+		if (stoppedThread != null) {
+			LockSupport.unpark(stoppedThread);
+		}
+	}
+
+	/**
+	 * \brief Asks the planner to predict the state following an action. Must be called before the state changes
+	 * \param playerId the player the bot is playing as
+	 * \param gs the state the bot acted on
+	 * \param playerAction the action the bot returned
+	 */
+	public void submit(int playerId, GameState gs, PlayerAction playerAction) {
+		Request request = spareRequest.getAndSet(null);
+
+		if (request == null) {
+			request = new Request();
+		}
+
+		request.playerId = playerId;
+		request.gs = gs.clone();
+		request.numActions = 0;
+
+		// Keep the actions as fields: UnitActions cache their resource usage, so they shouldn't be shared between threads
+		for (Pair<Unit, UnitAction> unitAction : playerAction.getActions()) {
+			UnitAction action = unitAction.m_b;
+			int i = request.numActions++;
+
+			if (i == request.unitIds.length) {
+				growActions(request);
+			}
+
+			request.unitIds[i] = unitAction.m_a.getID();
+			request.types[i] = action.getType();
+			request.directions[i] = action.getType() == UnitAction.TYPE_ATTACK_LOCATION ? UnitAction.DIRECTION_NONE : action.getDirection();
+			request.locationX[i] = action.getType() == UnitAction.TYPE_ATTACK_LOCATION ? action.getLocationX() : 0;
+			request.locationY[i] = action.getType() == UnitAction.TYPE_ATTACK_LOCATION ? action.getLocationY() : 0;
+			request.unitTypes[i] = action.getType() == UnitAction.TYPE_PRODUCE ? action.getUnitType() : null;
+		}
+
+		// Replace any request the planner hasn't got to yet, and keep it for next time
+		Request replaced = pendingRequest.getAndSet(request);
+
+		if (replaced != null) {
+			replaced.gs = null;
+			spareRequest.set(replaced);
+		}
+
+		// Start the thread if it isn't running
+		Thread plannerThread = thread;
+
+		if (plannerThread == null) {
+			plannerThread = new Thread(this::run, "Speculative planner");
+			plannerThread.setDaemon(true);
+			thread = plannerThread;
+			plannerThread.start();
+		} else {
+			LockSupport.unpark(plannerThread);
+		}
+	}
+
+	/**
+	 * \brief Takes the latest speculation if it predicted the current state
+	 * \param playerId the player the bot is playing as
+	 * \param gs the current state
+	 * \return the speculation, or null if there is none or it doesn't match. Pass its units to recycle() once done with them
+	 */
+	public Speculation take(int playerId, GameState gs) {
+		Speculation speculation = latestSpeculation.getAndSet(null);
+
+		if (speculation != null && speculation.signature == computeSignature(playerId, gs)) {
+			hitCounter.increment();
+			return speculation;
+		}
+
+		if (speculation != null) {
+			recycle(speculation.units);
+		}
+
+		missCounter.increment();
+		return null;
+	}
+
+	/**
+	 * \brief Gives a UnitUtils back to the planner to plan with, once the bot no longer uses it or its helpers
+	 * \param units the unit utilities to recycle
+	 */
+	public void recycle(UnitUtils units) {
+		spareUnits.set(units);
+	}
+
+	/**
+	 * \brief Plans each request as it arrives, parking while there are none
+	 */
+	private void run() {
+		while (thread == Thread.currentThread()) {
+			Request request = pendingRequest.getAndSet(null);
+
+			if (request == null) {
+				LockSupport.park(this);
+				continue;
+			}
+
+			long startTime = Metrics.start();
+			Speculation speculation = plan(request);
+
+			request.gs = null;
+			spareRequest.set(request);
+
+			// A stopped thread's speculation belongs to a game that's over
+			if (speculation == null || thread != Thread.currentThread()) {
+				continue;
+			}
+
+			Speculation untaken = latestSpeculation.getAndSet(speculation);
+
+			planTimer.stop(startTime);
+
+			// The bot never saw the previous speculation, so its UnitUtils is still ours
+			if (untaken != null) {
+				spareUnits.set(untaken.units);
+			}
+		}
+	}
+
+	/**
+	 * \brief Predicts the next state of a request and precomputes everything the bot will need for it
+	 */
+	private Speculation plan(Request request) {
+		GameState gs = request.gs;
+		PlayerAction playerAction = new PlayerAction();
+
+		// The actions refer to the real units, so point them at the clones
+		for (int i = 0; i < request.numActions; i++) {
+			Unit clonedUnit = gs.getUnit(request.unitIds[i]);
+
+			if (clonedUnit != null) {
+				playerAction.addUnitAction(clonedUnit, createAction(request, i));
+			}
+		}
+
+		// Predict the next state. The opponent's new actions are unknown, but their current ones carry on
+		gs.issueSafe(playerAction);
+
+		if (wouldCreateUnit(gs)) {
+			return null;
+		}
+
+		gs.cycle();
+
+		Speculation speculation = new Speculation();
+		UnitUtils units = spareUnits.getAndSet(null);
+
+		if (units == null) {
+			units = new UnitUtils(utt);
+		}
+
+		// Build the helpers
+		units.tick(request.playerId, gs);
+
+		// Warm the danger layers and distance fields that the thinkers query most
+		units.getDangerMap().getDangerTime(0, 0, 1);
+
+		for (Unit u : units.myUnits) {
+			if (!u.getType().canMove) {
+				continue;
+			}
+
+			units.getDangerMap().getDangerTimeAssumingEnemiesCharge(0, 0, 1, u.getMoveTime());
+
+			if (units.isRanged(u)) {
+				Unit closestEnemy = units.findClosestUnit(u.getX(), u.getY(), units.isEnemyCondition);
+
+				if (closestEnemy != null) {
+					units.getPathService().getDistance(u.getX(), u.getY(), closestEnemy.getX() + closestEnemy.getY() * gs.getPhysicalGameState().getWidth(), 2);
+				}
+			}
+		}
+
+		speculation.units = units;
+		speculation.signature = computeSignature(request.playerId, gs);
+
+		return speculation;
+	}
+
+	/**
+	 * \brief Returns whether cycling the state would complete a production. New units take their IDs from a global
+	 * counter that isn't thread-safe, so the planner must never create one. The real unit's ID would differ anyway
+	 */
+	private static boolean wouldCreateUnit(GameState gs) {
+		for (UnitActionAssignment assignment : gs.getUnitActions().values()) {
+			if (assignment.action.getType() == UnitAction.TYPE_PRODUCE && assignment.time + assignment.action.ETA(assignment.unit) <= gs.getTime() + 1) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * \brief Returns a signature of everything the precomputed helpers and evaluation depend on:
+	 * the time, the player's resources, every unit and every pending action.
+	 * The sum is order-independent, since the action assignments are stored in a HashMap keyed by unit identity
+	 */
+	private static long computeSignature(int playerId, GameState gs) {
+		long signature = mix(gs.getTime() * 31L + gs.getPlayer(playerId).getResources());
+
+		for (Unit u : gs.getUnits()) {
+			signature += mix(u.getID() * 0x9E3779B97F4A7C15L
+					+ ((((long)u.getX() * 1024 + u.getY()) * 1024 + u.getHitPoints()) * 1024 + u.getResources()) * 8 + (u.getPlayer() + 1)
+					+ u.getType().ID * 0xC2B2AE3D27D4EB4FL);
+		}
+
+		for (UnitActionAssignment assignment : gs.getUnitActions().values()) {
+			UnitAction action = assignment.action;
+
+			signature += mix(~assignment.unit.getID() * 0x9E3779B97F4A7C15L
+					+ (((long)action.getType() * 16 + action.getDirection() + 1) * 1000003L + assignment.time) * 1000003L
+					+ (action.getType() == UnitAction.TYPE_ATTACK_LOCATION ? action.getLocationX() * 4099L + action.getLocationY() : 0));
+		}
+
+		return signature;
+	}
+
+	/**
+	 * \brief Mixes the bits of a key so that sums of different keys rarely collide
+	 */
+	private static long mix(long key) {
+		key ^= key >>> 31;
+		key *= 0xBF58476D1CE4E5B9L;
+		key ^= key >>> 29;
+		key *= 0x94D049BB133111EBL;
+		key ^= key >>> 32;
+
+		return key;
+	}
+
+	/**
+	 * \brief Returns a new unit action from the fields of one of a request's actions
+	 */
+	private static UnitAction createAction(Request request, int i) {
+		switch (request.types[i]) {
+			case UnitAction.TYPE_ATTACK_LOCATION:
+				return new UnitAction(request.types[i], request.locationX[i], request.locationY[i]);
+			case UnitAction.TYPE_PRODUCE:
+				return new UnitAction(request.types[i], request.directions[i], request.unitTypes[i]);
+			default:
+				return new UnitAction(request.types[i], request.directions[i]);
+		}
+	}
+
+	/**
+	 * \brief Doubles the room for actions in a request
+	 */
+	private static void growActions(Request request) {
+		int capacity = request.unitIds.length * 2;
+
+		request.unitIds = Arrays.copyOf(request.unitIds, capacity);
+		request.types = Arrays.copyOf(request.types, capacity);
+		request.directions = Arrays.copyOf(request.directions, capacity);
+		request.locationX = Arrays.copyOf(request.locationX, capacity);
+		request.locationY = Arrays.copyOf(request.locationY, capacity);
+		request.unitTypes = Arrays.copyOf(request.unitTypes, capacity);
+	}
+}
@@ -0,0 +1,170 @@
+package bot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import rts.units.Unit;
+import utilities.MapUtils;
+import utilities.Metrics;
+import utilities.UnitUtils;
+
+/**
+ * \brief Assigns every attacker an enemy to attack, once per tick, so that attackers focus fire without overkilling
+ * \author Louis
+ *
+ * Each attacker considers its few closest enemies, found through the spatial index. Every (attacker, enemy) pair is
+ * costed by how soon the attacker could kill the enemy alone: the time to come into range of where the enemy will be
+ * by then (from getXAfter/getYAfter), plus an attack for every hit the enemy can take. Enemies that can fight back are
+ * cheaper, so they are killed first, and enemies standing where the influence map says they outweigh us are dearer,
+ * so attackers pick off the edges of an enemy army rather than diving into it.
+ *
+ * The pairs are sorted by cost and handed out greedily. Each attacker given an enemy commits one attack's damage to
+ * it, and once an enemy's hit points are covered it's taken off the table, so the cheapest kills get just enough
+ * attackers to finish them in one volley and the rest move on to the next target. Attackers whose candidates were all
+ * covered fall back to their cheapest pair, since piling on beats standing around.
+ *
+ * With A attackers and E enemies this is O(A * K log(A * K)) for K = CANDIDATES_PER_ATTACKER, plus the ring searches,
+ * rather than a scan of every unit per attacker.
+ */
+public class TargetAssigner {
+	private static final int CANDIDATES_PER_ATTACKER = 4; /**< How many of its closest enemies each attacker considers */
+	private static final int THREAT_BONUS = 10; /**< Cycles knocked off the cost of enemies that can attack */
+	private static final float OUTNUMBERED_WEIGHT = 2.0f; /**< Cycles added to the cost of an enemy per unit of enemy influence over ours at its tile */
+
+	private static final Metrics.Timer assignTimer = Metrics.timer("targets.assign"); /**< Metrics timer of assignments */
+
+	private final UnitUtils units; /**< Unit utilities of the player */
+
+	// Reusable per-tick buffers
+	private final ArrayList<Unit> candidates = new ArrayList<Unit>(); /**< The candidate enemies of every attacker, attacker by attacker */
+	private int[] pairAttackers = new int[0]; /**< Attacker index of each pair */
+	private long[] sortedPairs = new long[0]; /**< Cost of each pair in the high bits and its index in the low bits, sorted */
+	private int[] committedDamage = new int[0]; /**< Damage committed to the enemy on each tile */
+	private int[] committedTiles = new int[0]; /**< Tiles with damage committed to them, so committedDamage can be cleared */
+	private int numCommittedTiles = 0; /**< Number of valid entries in committedTiles */
+	private Unit[] targets = new Unit[0]; /**< The target of each attacker */
+
+	/**
+	 * \brief Creates a target assigner
+	 * \param units the unit utilities of the player
+	 */
+	public TargetAssigner(UnitUtils units) {
+		this.units = units;
+	}
+
+	/**
+	 * \brief Assigns targets to attackers, setting the assigned target of each attacker's thinker
+	 * \param attackers the units to assign targets to. Every one must be able to attack
+	 * \param thinkers the thinkers of our units
+	 */
+	public void assign(List<Unit> attackers, UnitThinkerRegistry thinkers) {
+		long startTime = Metrics.start();
+		int numAttackers = attackers.size();
+		int width = units.getGameState().getPhysicalGameState().getWidth();
+		int numTiles = width * units.getGameState().getPhysicalGameState().getHeight();
+
+		if (committedDamage.length != numTiles) {
+			committedDamage = new int[numTiles];
+			committedTiles = new int[numTiles];
+			numCommittedTiles = 0;
+		}
+
+		if (targets.length < numAttackers) {
+			targets = new Unit[numAttackers * 2];
+			pairAttackers = new int[numAttackers * 2 * CANDIDATES_PER_ATTACKER];
+			sortedPairs = new long[numAttackers * 2 * CANDIDATES_PER_ATTACKER];
+		}
+
+		// Cost the candidates of every attacker
+		candidates.clear();
+
+		for (int i = 0; i < numAttackers; i++) {
+			Unit attacker = attackers.get(i);
+			int firstPair = candidates.size();
+
+			units.findClosestUnits(attacker.getX(), attacker.getY(), units.isEnemyCondition, CANDIDATES_PER_ATTACKER, candidates);
+
+			for (int pair = firstPair; pair < candidates.size(); pair++) {
+				pairAttackers[pair] = i;
+				sortedPairs[pair] = ((long)getKillCost(attacker, candidates.get(pair)) << 32) | pair;
+			}
+
+			targets[i] = null;
+		}
+
+		int numPairs = candidates.size();
+
+		Arrays.sort(sortedPairs, 0, numPairs);
+
+		// Hand out the cheapest kills, until each enemy has enough damage committed to it
+		for (int p = 0; p < numPairs; p++) {
+			int pair = (int)sortedPairs[p];
+			int attackerIndex = pairAttackers[pair];
+			Unit enemy = candidates.get(pair);
+			int tile = enemy.getX() + enemy.getY() * width;
+
+			if (targets[attackerIndex] != null || committedDamage[tile] >= enemy.getHitPoints()) {
+				continue;
+			}
+
+			if (committedDamage[tile] == 0) {
+				committedTiles[numCommittedTiles++] = tile;
+			}
+
+			targets[attackerIndex] = enemy;
+			committedDamage[tile] += Math.max(attackers.get(attackerIndex).getMinDamage(), 1);
+		}
+
+		// Attackers left over pile onto their cheapest kill
+		for (int p = 0; p < numPairs; p++) {
+			int pair = (int)sortedPairs[p];
+
+			if (targets[pairAttackers[pair]] == null) {
+				targets[pairAttackers[pair]] = candidates.get(pair);
+			}
+		}
+
+		for (int i = 0; i < numAttackers; i++) {
+			thinkers.get(attackers.get(i)).setAssignedTarget(targets[i]);
+			targets[i] = null;
+		}
+
+		// Clear the commitments for next time
+		for (int i = 0; i < numCommittedTiles; i++) {
+			committedDamage[committedTiles[i]] = 0;
+		}
+
+		numCommittedTiles = 0;
+		assignTimer.stop(startTime);
+	}
+
+	/**
+	 * \brief Returns roughly how many cycles an attacker would take to kill an enemy alone, less THREAT_BONUS for enemies that can attack,
+	 * plus OUTNUMBERED_WEIGHT for each unit of enemy influence over ours where the enemy will be
+	 */
+	private int getKillCost(Unit attacker, Unit enemy) {
+		int distance = Math.abs(attacker.getX() - enemy.getX()) + Math.abs(attacker.getY() - enemy.getY());
+		int approachTime = Math.max(distance - attacker.getAttackRange(), 0) * attacker.getMoveTime();
+
+		// Aim for where the enemy will be by the time we could strike
+		int enemyX = units.getXAfter(enemy, approachTime + attacker.getAttackTime());
+		int enemyY = units.getYAfter(enemy, approachTime + attacker.getAttackTime());
+		int predictedDistance = Math.abs(attacker.getX() - enemyX) + Math.abs(attacker.getY() - enemyY);
+		int numHits = (enemy.getHitPoints() + Math.max(attacker.getMinDamage(), 1) - 1) / Math.max(attacker.getMinDamage(), 1);
+		int cost = Math.max(predictedDistance - attacker.getAttackRange(), 0) * attacker.getMoveTime() + numHits * attacker.getAttackTime();
+
+		if (enemy.getType().canAttack) {
+			cost -= THREAT_BONUS;
+		}
+
+		// Avoid diving into where the enemy is stronger than we are
+		float outnumbered = MapUtils.getEnemyInfluence(enemyX, enemyY, units) - MapUtils.getAllyInfluence(enemyX, enemyY, units);
+
+		if (outnumbered > 0) {
+			cost += (int)(outnumbered * OUTNUMBERED_WEIGHT);
+		}
+
+		return Math.max(cost, 0);
+	}
+}
@@ -0,0 +1,160 @@
+package bot;
+
+import utilities.Metrics;
+
+/**
+ * \brief Keeps track of how much of the tick's time budget has been spent, so the bot can cut corners before running out
+ * \author Louis
+ *
+ * The bot starts the budget at the beginning of getAction and ends each phase as it goes, which records how long
+ * every phase took. During the thinker loop, canAffordThinker() estimates whether another full thinker tick still
+ * fits, based on a running average of previous thinker ticks, leaving a reserve for translating the actions.
+ * The simulation searches only run while canAffordSearch() says at least SEARCH_FRACTION of the budget is left, and
+ * check it between rollouts, so they stop with their best answer so far instead of eating into the thinkers' time.
+ */
+public class TickBudget {
+	/**
+	 * \brief The timed phases of a tick, in order
+	 */
+	public enum Phase {
+		SETUP,     /**< Unit utilities, thinker synchronisation and evaluation */
+		MACRO,     /**< Choosing a macro plan with the forward simulator, when enabled */
+		WORKERS,   /**< coordinateWorkers */
+		ATTACKERS, /**< coordinateAttackers */
+		PORTFOLIO, /**< Choosing squad strategies with the portfolio search, when enabled */
+		PRODUCERS, /**< coordinateProducers */
+		THINKERS,  /**< The thinker loop */
+		TRANSLATE  /**< Translating the abstract actions into unit actions */
+	}
+
+	private static final Phase[] PHASES = Phase.values(); /**< Cached, since values() allocates a new array every call */
+	private static final Metrics.Timer[] phaseTimers = new Metrics.Timer[PHASES.length]; /**< Metrics timer of each phase */
+	private static final Metrics.Counter degradedCounter = Metrics.counter("bot.degradedThinkers"); /**< Metrics count of cheap thinker ticks */
+
+	static {
+		for (Phase phase : PHASES) {
+			phaseTimers[phase.ordinal()] = Metrics.timer("bot.phase." + phase.name().toLowerCase());
+		}
+	}
+
+	private static final int DEFAULT_BUDGET_MILLIS = 100; /**< Budget used when the AI wasn't given one */
+	private static final double RESERVE_FRACTION = 0.2; /**< Fraction of the budget kept back for translating actions and overheads */
+	private static final double SEARCH_FRACTION = 0.5; /**< Fraction of the budget that must be left for the simulation searches to carry on */
+	private static final double COST_SMOOTHING = 0.1; /**< Weight of the latest sample in the running average thinker cost */
+
+	private long budget = DEFAULT_BUDGET_MILLIS * 1000000L; /**< The budget of the current tick, in nanoseconds */
+	private long startTime = 0; /**< When the current tick started */
+	private long phaseStartTime = 0; /**< When the current phase started */
+	private long[] phaseTimes = new long[PHASES.length]; /**< Time spent in each phase this tick, in nanoseconds */
+
+	private double averageThinkerCost = 0; /**< Running average of a full thinker tick, in nanoseconds */
+	private int numDegraded = 0; /**< Number of thinkers ticked cheaply this tick */
+
+	/**
+	 * \brief Starts timing a new tick
+	 * \param budgetMillis the time budget of the tick in milliseconds. Values of 0 or below use the default of 100ms
+	 */
+	public void start(int budgetMillis) {
+		budget = (budgetMillis > 0 ? budgetMillis : DEFAULT_BUDGET_MILLIS) * 1000000L;
+		startTime = System.nanoTime();
+		phaseStartTime = startTime;
+		numDegraded = 0;
+
+		for (int i = 0; i < phaseTimes.length; i++) {
+			phaseTimes[i] = 0;
+		}
+	}
+
+	/**
+	 * \brief Ends a phase, recording the time since the previous phase ended
+	 * \param phase the phase that just finished
+	 */
+	public void endPhase(Phase phase) {
+		long time = System.nanoTime();
+
+		phaseTimes[phase.ordinal()] += time - phaseStartTime;
+		phaseTimers[phase.ordinal()].record(time - phaseStartTime);
+		phaseStartTime = time;
+	}
+
+	/**
+	 * \brief Returns whether there is probably enough time left for another full thinker tick
+	 */
+	public boolean canAffordThinker() {
+		return getRemaining() - (long)(budget * RESERVE_FRACTION) > averageThinkerCost;
+	}
+
+	/**
+	 * \brief Returns whether there is time left for a simulation search to start or carry on with another rollout
+	 */
+	public boolean canAffordSearch() {
+		return getRemaining() > (long)(budget * SEARCH_FRACTION);
+	}
+
+	/**
+	 * \brief Returns how many full thinker ticks probably fit in the time left, when ticking several at once
+	 * \param parallelism the number of thinkers ticked at the same time
+	 */
+	public int getAffordableThinkers(int parallelism) {
+		long available = getRemaining() - (long)(budget * RESERVE_FRACTION);
+
+		if (available <= 0) {
+			return 0;
+		} else if (averageThinkerCost <= 0) {
+			return Integer.MAX_VALUE;
+		}
+
+		return (int)Math.min(Integer.MAX_VALUE, available * parallelism / averageThinkerCost);
+	}
+
+	/**
+	 * \brief Records the duration of a full thinker tick
+	 * \param nanoseconds how long the thinker took
+	 */
+	public void recordThinkerCost(long nanoseconds) {
+		averageThinkerCost += (nanoseconds - averageThinkerCost) * COST_SMOOTHING;
+	}
+
+	/**
+	 * \brief Records that a thinker was ticked cheaply because the budget was low
+	 */
+	public void recordDegraded() {
+		numDegraded++;
+		degradedCounter.increment();
+	}
+
+	/**
+	 * \brief Returns the time elapsed since the tick started, in nanoseconds
+	 */
+	public long getElapsed() {
+		return System.nanoTime() - startTime;
+	}
+
+	/**
+	 * \brief Returns the time left in the budget, in nanoseconds. Negative if the budget is exceeded
+	 */
+	public long getRemaining() {
+		return budget - getElapsed();
+	}
+
+	/**
+	 * \brief Returns the budget of the current tick, in nanoseconds
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * \brief Returns the time spent in a phase during the current (or last) tick, in nanoseconds
+	 */
+	public long getPhaseTime(Phase phase) {
+		return phaseTimes[phase.ordinal()];
+	}
+
+	/**
+	 * \brief Returns the number of thinkers ticked cheaply during the current (or last) tick
+	 */
+	public int getNumDegraded() {
+		return numDegraded;
+	}
+}
@@ -6,7 +6,6 @@ import ai.abstraction.Attack;
 import ai.abstraction.Build;
 import ai.abstraction.Harvest;
 import ai.abstraction.Move;
-import ai.abstraction.Train;
 import ai.abstraction.pathfinding.AStarPathFinding;
 import ai.abstraction.pathfinding.PathFinding;
 import ai.core.AI;
@@ -23,6 +22,7 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -32,8 +32,16 @@ import rts.*;
 import rts.units.Unit;
 import rts.units.UnitType;
 import rts.units.UnitTypeTable;
+import utilities.DangerAwarePathFinding;
 import utilities.DebugUtils;
 import utilities.MapUtils;
+import utilities.Metrics;
+import utilities.OpponentModel;
+import utilities.ReservationTable;
+import utilities.SituationCache;
+import utilities.SituationHash;
+import utilities.TileReservations;
+import utilities.UnitConditions;
 import utilities.UnitUtils;
 
 /**
@@ -56,30 +64,122 @@ public class UnitThinker {
     
     private GameState gameState; /**< The GameState as of the last tick */
     
-    private PathFinding pathFinding; /**< The default PathFinding engine to be used with this thinker */
+    private PathFinding pathFinding; /**< The PathFinding engine given to abstract actions such as Harvest and Attack. Shared by the bot's thinkers */
     
-    private boolean[] blockedTiles; /**< A list of tiles being blocked by other units moving in the same position */
+    private final ThreadLocal<DangerAwarePathFinding> safePathFinders; /**< The bot's pathfinders for moveSafely, one per thread since they aren't thread-safe */
+    
+    private TileReservations blockedTiles; /**< The tiles being blocked by other units moving in the same position */
     
     private int timeWaited = 0; /**< The current number of ticks that this bot spent waiting since a wait began something */
     
     public String role = ""; /**< A custom descriptor of this unit's role, used in coordination */
     
-    @FunctionalInterface
-    public interface StrategyFunc {
-    	void invoke();
+    /**
+     * \brief The strategies that can be assigned to a thinker. Each tick the thinker dispatches on its assigned strategy,
+     * passing the strategy parameters that were set alongside it, so assigning a strategy never allocates a closure
+     */
+    public enum Strategy {
+    	NONE,                  /**< No strategy; the unit keeps its default action */
+    	DO_NOTHING,            /**< doNothingStrategy() */
+    	WORKER_COLLECT,        /**< workerCollectStrategy() */
+    	WORKER_BUILD_BARRACKS, /**< workerBuildBarracksStrategy() */
+    	NINJA_WARRIOR,         /**< ninjaWarriorStrategy(target) */
+    	DRIVE_BY,              /**< driveByStrategy(target) */
+    	BROTHER,               /**< brotherStrategy(partner, target) */
+    	PRODUCE_COLLECTOR,     /**< produceCollectorStrategy() */
+    	PRODUCE_RUSHER,        /**< produceRusherStrategy(unitType) */
+    	RANGED_TEMP,           /**< rangedTempStrategy() */
+    	VACATE_BASE            /**< vacateBaseStrategy() */
     }
     
-    public StrategyFunc strategy = () -> doNothingStrategy();
+    private static final Metrics.Timer[] strategyTimers = new Metrics.Timer[Strategy.values().length]; /**< Metrics timer of each strategy */
+    
+    static {
+    	for (Strategy strategy : Strategy.values()) {
+    		strategyTimers[strategy.ordinal()] = Metrics.timer("thinker.strategy." + strategy.name().toLowerCase());
+    	}
+    }
+    
+    private Strategy strategy = Strategy.DO_NOTHING; /**< The strategy to undertake when ticked */
+    private Unit strategyTarget = null; /**< The enemy or victim parameter of the strategy, if any */
+    private Unit strategyPartner = null; /**< The brother parameter of the strategy, if any */
+    private UnitType strategyUnitType = null; /**< The unit type parameter of the strategy, if any */
+    private Unit assignedTarget = null; /**< The enemy the TargetAssigner chose for this unit this tick, or null */
+    
+    // Reusable actions, so that ticking doesn't allocate a new action each time. They are rebuilt when the unit object changes
+    private DoNothing doNothingAction = null; /**< Reusable wait action */
+    private Step stepAction = null; /**< Reusable step action */
+    private TrainWithPreferredTile trainAction = null; /**< Reusable train action */
+    private Attack attackAction = null; /**< The last attack action, reused while the target is the same */
+    private Unit attackTarget = null; /**< The target of attackAction */
+    private Harvest harvestAction = null; /**< The last harvest action, reused while the resource and base are the same */
+    private Unit harvestResource = null; /**< The resource of harvestAction */
+    private Unit harvestBase = null; /**< The base of harvestAction */
+    private Build buildAction = null; /**< The last build action, reused while the location is the same and it hasn't completed */
+    private int buildX = -1, buildY = -1; /**< The location of buildAction */
+    
+    private int moveTargetPosition = -1; /**< The target position of the last moveStrategy, or -1, so the path can be followed without rethinking */
+    private int moveRange = 0; /**< The range of the last moveStrategy */
+    
+    private int[] safePath = new int[16]; /**< The directions of the path moveSafely chose, followed and reserved instead of the shared distance fields */
+    private int safePathLength = 0; /**< The number of steps in safePath, or 0 if the unit is following the shared distance fields */
+    private int safePathOrigin = -1; /**< The position safePath starts from */
+    private static final int NOT_ON_PATH = -2; /**< Returned by getSafePathDirection for a tile the safe path doesn't cross */
+    
+    private int[] reservedCells = new int[16]; /**< The space-time cells reserved along this unit's planned path */
+    private int numReservedCells = 0; /**< The number of valid entries in reservedCells */
+    private boolean hasPlannedPath = false; /**< Whether moveStrategy planned a path during the current tick */
+    private ReservationTable reservationTable = null; /**< The reservation table as of the last tick, so the unit's cells can be released when it dies */
+    
+    // Decisions cached by the situation they were made in, shared by every thinker of the bot on the same thread since a decision only depends on the situation
+    private final ThreadLocal<SituationCache> barracksCaches; /**< The tile workerBuildBarracksStrategy chose, by situation, one cache per thread */
+    private static final long SITUATION_BARRACKS = 2; /**< Situation hash salt of workerBuildBarracksStrategy */
+    private static final int NO_CHOICE = -1; /**< Cached decision of a situation in which there was nothing to choose */
+    private static final int NUM_BARRACKS_CANDIDATES = 20; /**< Number of candidate barracks tiles around the base */
+    private static final int BARRACKS_WINDOW_RADIUS = 4; /**< Radius around the base covering every candidate barracks tile and the resources within two tiles of them */
+    private static final float BARRACKS_THREAT_STEP = 1.0f; /**< Enemy influence per threat level of a candidate barracks tile */
+    private static final int MAX_BARRACKS_THREAT = 2; /**< Highest threat level of a candidate barracks tile */
+    
+    private static final float DODGE_PROBABILITY = 0.25f; /**< How likely an enemy must be to threaten us after its next action before dodgeStrategy runs from it */
+    private final float[] positionScratch = new float[OpponentModel.STAY + 1]; /**< Next-position probabilities of an enemy, used by dodgeStrategy */
+    private final float[] symbolScratch = new float[OpponentModel.NUM_SYMBOLS]; /**< Next-action probabilities of an enemy, used by dodgeStrategy */
+    
+    private static final int VACATE_LOOK_AHEAD = 3; /**< How many tiles around itself vacateBaseStrategy looks for somewhere to go */
+    private final long[] freeRows = new long[VACATE_LOOK_AHEAD * 2 + 1]; /**< Free tile bits of each row around the unit, used by vacateBaseStrategy */
+    private static final float VACATE_THREAT_WEIGHT = 1.0f; /**< Tiles of distance from the base that vacateBaseStrategy trades for a unit of enemy influence */
+    private static final float VACATE_RESOURCE_WEIGHT = 0.05f; /**< Tiles of distance from the base that vacateBaseStrategy trades for a unit of resource influence, so it doesn't park on harvest routes */
+    
+    // State saved by saveState(), so a tick can be rolled back. The pooled action that 'action' refers to is copied too, since ticking restarts it in place
+    private AbstractAction savedAction = null; /**< Saved action */
+    private int savedTimeWaited = 0; /**< Saved timeWaited */
+    private int savedMoveTargetPosition = -1; /**< Saved moveTargetPosition */
+    private int savedMoveRange = 0; /**< Saved moveRange */
+    private int[] savedSafePath = new int[16]; /**< Saved safePath */
+    private int savedSafePathLength = 0; /**< Saved safePathLength */
+    private int savedSafePathOrigin = -1; /**< Saved safePathOrigin */
+    private DoNothing savedDoNothingAction = null; /**< Copy of doNothingAction, if it was the saved action */
+    private Step savedStepAction = null; /**< Copy of stepAction, if it was the saved action */
+    private TrainWithPreferredTile savedTrainAction = null; /**< Copy of trainAction, if it was the saved action */
+    private int[] savedReservedCells = new int[16]; /**< Saved reservedCells */
+    private int savedNumReservedCells = 0; /**< Saved numReservedCells */
+    
+    private final UnitConditions isReachableResourceCondition = (Unit u) -> u.getType().isResource && MapUtils.isReachable(unit, u.getX(), u.getY(), units); /**< Matches resources this unit can reach */
     
     /**
      * \brief Instantiates the UnitThinker with the associated unit and bot dependencies
      * \param unit the unit associated with this thinker 
      * \param units the UnitUtils of the controlling bot
+     * \param pathFinding the PathFinding engine to give to abstract actions
+     * \param barracksCaches the bot's caches of workerBuildBarracksStrategy decisions, one per thread
+     * \param safePathFinders the bot's danger-aware pathfinders, one per thread
      */
-    public UnitThinker(Unit unit, UnitUtils units) {
+    public UnitThinker(Unit unit, UnitUtils units, PathFinding pathFinding, ThreadLocal<SituationCache> barracksCaches,
+    				   ThreadLocal<DangerAwarePathFinding> safePathFinders) {
     	this.unit = unit;
     	this.units = units;
-    	this.pathFinding = new AStarPathFinding();
+    	this.pathFinding = pathFinding;
+    	this.safePathFinders = safePathFinders;
+    	this.barracksCaches = barracksCaches;
     }
     
     /**
@@ -89,40 +189,266 @@ public class UnitThinker {
     	return unit;
     }
     
+    /**
+     * \brief Points the thinker at a new object for the same unit, e.g. after the game state was cloned
+     * \param unit the unit associated with this thinker
+     */
+    public void setUnit(Unit unit) {
+    	if (unit != this.unit) {
+    		// The reusable actions refer to the old unit object
+    		doNothingAction = null;
+    		stepAction = null;
+    		trainAction = null;
+    		savedDoNothingAction = null;
+    		savedStepAction = null;
+    		savedTrainAction = null;
+    		attackAction = null;
+    		harvestAction = null;
+    		buildAction = null;
+    	}
+    	
+    	this.unit = unit;
+    }
+    
+    /**
+     * \brief Assigns a strategy that takes no parameters
+     * \param strategy the strategy to undertake from the next tick, or Strategy.NONE
+     */
+    public void setStrategy(Strategy strategy) {
+    	this.strategy = strategy;
+    	this.strategyTarget = null;
+    	this.strategyPartner = null;
+    	this.strategyUnitType = null;
+    }
+    
+    /**
+     * \brief Assigns a strategy that takes a target unit, such as NINJA_WARRIOR or DRIVE_BY
+     * \param strategy the strategy to undertake from the next tick
+     * \param target the target unit to pass to the strategy
+     */
+    public void setStrategy(Strategy strategy, Unit target) {
+    	setStrategy(strategy);
+    	this.strategyTarget = target;
+    }
+    
+    /**
+     * \brief Assigns a strategy that takes a unit type, such as PRODUCE_RUSHER
+     * \param strategy the strategy to undertake from the next tick
+     * \param unitType the unit type to pass to the strategy
+     */
+    public void setStrategy(Strategy strategy, UnitType unitType) {
+    	setStrategy(strategy);
+    	this.strategyUnitType = unitType;
+    }
+    
+    /**
+     * \brief Assigns the BROTHER strategy
+     * \param brother this unit's loyal companion
+     * \param victim the most likely next victim of the pair
+     */
+    public void setBrotherStrategy(Unit brother, Unit victim) {
+    	setStrategy(Strategy.BROTHER);
+    	this.strategyPartner = brother;
+    	this.strategyTarget = victim;
+    }
+    
+    /**
+     * \brief Assigns the WORKER_COLLECT strategy along a route chosen by the EconomyPlanner
+     * \param resource the resource to harvest, or null to pick the closest reachable one
+     * \param base the base to return resources to, or null to pick the closest one
+     */
+    public void setCollectStrategy(Unit resource, Unit base) {
+    	setStrategy(Strategy.WORKER_COLLECT);
+    	this.strategyTarget = resource;
+    	this.strategyPartner = base;
+    }
+    
+    /**
+     * \brief Sets the enemy this unit should attack when it has a choice, so that the squad focuses its fire
+     * \param target the enemy, or null to choose freely
+     */
+    public void setAssignedTarget(Unit target) {
+    	this.assignedTarget = target;
+    }
+    
+    /**
+     * \brief Returns the enemy chosen for this unit by the TargetAssigner this tick, or null
+     */
+    public Unit getAssignedTarget() {
+    	return assignedTarget;
+    }
+    
+    /**
+     * \brief Returns the assigned strategy
+     */
+    public Strategy getStrategy() {
+    	return strategy;
+    }
+    
+    /**
+     * \brief Returns whether a strategy other than NONE is assigned
+     */
+    public boolean hasStrategy() {
+    	return strategy != Strategy.NONE;
+    }
+    
     /**
      * \brief Ticks the thinker, undertaking any assigned strategies.
      * \param gs the current game state to be used for strategies
      */
-    public void tick(GameState gs, boolean[] blockedTiles) {
+    public void tick(GameState gs, TileReservations blockedTiles) {
     	// Update state variables
     	this.gameState = gs;
     	this.blockedTiles = blockedTiles;
+    	this.reservationTable = blockedTiles.getTable();
+    	this.hasPlannedPath = false;
     	
     	// Do nothing by default
     	if (units.getAction(unit) == null) {
-    		action = new DoNothing(unit, 1);
+    		action = doNothing();
     	}
     	
     	// Try the assigned strategy
-    	if (strategy != null) {
-    		strategy.invoke();
+    	invokeStrategy();
+    	
+    	// A unit that has stopped moving shouldn't keep others off its old path
+    	if (!hasPlannedPath && units.getAction(unit) == null) {
+    		releaseReservations(blockedTiles);
+    	}
+    	
+    	finishTick();
+    }
+    
+    /**
+     * \brief Saves the state that ticking changes, so that restoreState() can undo a tick
+     */
+    public void saveState() {
+    	savedAction = action;
+    	savedTimeWaited = timeWaited;
+    	savedMoveTargetPosition = moveTargetPosition;
+    	savedMoveRange = moveRange;
+    	
+    	if (savedSafePath.length < safePathLength) {
+    		savedSafePath = new int[safePath.length];
+    	}
+    	
+    	System.arraycopy(safePath, 0, savedSafePath, 0, safePathLength);
+    	savedSafePathLength = safePathLength;
+    	savedSafePathOrigin = safePathOrigin;
+    	
+    	if (savedReservedCells.length < numReservedCells) {
+    		savedReservedCells = new int[reservedCells.length];
+    	}
+    	
+    	System.arraycopy(reservedCells, 0, savedReservedCells, 0, numReservedCells);
+    	savedNumReservedCells = numReservedCells;
+    	
+    	if (action != null && action == doNothingAction) {
+    		if (savedDoNothingAction == null) {
+    			savedDoNothingAction = new DoNothing(unit, 1);
+    		}
+    		
+    		savedDoNothingAction.copyFrom(doNothingAction);
+    	} else if (action != null && action == stepAction) {
+    		if (savedStepAction == null) {
+    			savedStepAction = new Step(unit, UnitAction.DIRECTION_UP);
+    		}
+    		
+    		savedStepAction.copyFrom(stepAction);
+    	} else if (action != null && action == trainAction) {
+    		if (savedTrainAction == null) {
+    			savedTrainAction = new TrainWithPreferredTile(unit, units.worker, unit.getX(), unit.getY());
+    		}
+    		
+    		savedTrainAction.copyFrom(trainAction);
+    	}
+    }
+    
+    /**
+     * \brief Undoes every tick since the last saveState()
+     */
+    public void restoreState() {
+    	action = savedAction;
+    	timeWaited = savedTimeWaited;
+    	moveTargetPosition = savedMoveTargetPosition;
+    	moveRange = savedMoveRange;
+    	System.arraycopy(savedSafePath, 0, safePath, 0, savedSafePathLength);
+    	safePathLength = savedSafePathLength;
+    	safePathOrigin = savedSafePathOrigin;
+    	
+    	System.arraycopy(savedReservedCells, 0, reservedCells, 0, savedNumReservedCells);
+    	numReservedCells = savedNumReservedCells;
+    	
+    	if (action != null && action == doNothingAction) {
+    		doNothingAction.copyFrom(savedDoNothingAction);
+    	} else if (action != null && action == stepAction) {
+    		stepAction.copyFrom(savedStepAction);
+    	} else if (action != null && action == trainAction) {
+    		trainAction.copyFrom(savedTrainAction);
+    	}
+    }
+    
+    /**
+     * \brief Ticks the thinker without running its strategy, for when the bot is running out of time.
+     * Busy units carry on, moving units keep following their last path and other units repeat their last action
+     * \param gs the current game state
+     * \param blockedTiles the tiles being moved into by other units this tick
+     */
+    public void tickCheaply(GameState gs, TileReservations blockedTiles) {
+    	this.gameState = gs;
+    	this.blockedTiles = blockedTiles;
+    	this.reservationTable = blockedTiles.getTable();
+    	
+    	if (units.getAction(unit) == null) {
+    		if (action instanceof Step && moveTargetPosition != -1) {
+    			// Follow the safe path or the cached field if we have one, otherwise keep going the same way if we can
+    			int direction = ((Step)action).getDirection();
+    			int safeDirection = getSafePathDirection(unit.getX(), unit.getY());
+    			
+    			if (safeDirection != NOT_ON_PATH) {
+    				direction = safeDirection;
+    			} else if (units.getPathService().hasField(moveTargetPosition, moveRange)) {
+    				direction = units.getPathService().getStepDirection(unit.getX(), unit.getY(), moveTargetPosition, moveRange);
+    			} else {
+    				int nextX = unit.getX() + UnitAction.DIRECTION_OFFSET_X[direction], nextY = unit.getY() + UnitAction.DIRECTION_OFFSET_Y[direction];
+    				
+    				// Without a path to check against, don't walk into anyone, including an enemy that might step there first
+    				if (!MapUtils.tileIsFree(nextX, nextY, units, blockedTiles) || units.getOccupancy().isEnemyNext(nextX, nextY)) {
+    					direction = UnitAction.DIRECTION_NONE;
+    				}
+    			}
+    			
+    			action = direction != UnitAction.DIRECTION_NONE ? step(direction) : doNothing();
+    		} else if (action == null || action instanceof Step || action instanceof TrainWithPreferredTile) {
+    			// Training again without the producers being coordinated could overspend
+    			action = doNothing();
+    		}
+    		
+    		DebugUtils.setUnitLabel(unit, "[budget] Reusing last action");
     	}
     	
+    	finishTick();
+    }
+    
+    /**
+     * \brief Claims the tile the unit is stepping into and keeps track of how long it has waited
+     */
+    private void finishTick() {
     	// Detect blockages
 		if (action instanceof Step) {
 			int stepDirection = ((Step)action).getDirection();
 			int position = MapUtils.toPosition(unit.getX() + UnitAction.DIRECTION_OFFSET_X[stepDirection], 
-											   unit.getY() + UnitAction.DIRECTION_OFFSET_Y[stepDirection], gs);
+											   unit.getY() + UnitAction.DIRECTION_OFFSET_Y[stepDirection], gameState);
 			
-			if (position >= 0 && position < blockedTiles.length) {
-				if (blockedTiles[position]) {
+			if (position >= 0 && position < blockedTiles.size()) {
+				if (blockedTiles.isReserved(position)) {
 					// This unit was blocked, wait a while
-					DebugUtils.setUnitLabel(unit, "[B]locked" + UnitAction.DIRECTION_NAMES[stepDirection]);
+					DebugUtils.setUnitLabel(unit, "[B]locked", UnitAction.DIRECTION_NAMES[stepDirection]);
 					
 					// This is where a backup plan would be good
-					action = new DoNothing(unit, 1);
+					action = doNothing();
 				} else {
-					blockedTiles[position] = true;
+					blockedTiles.reserve(position);
 				}
 			}
 		}
@@ -135,23 +461,159 @@ public class UnitThinker {
     	}
     }
     
+    /**
+     * \brief Runs the assigned strategy with its parameters
+     */
+    private void invokeStrategy() {
+    	long startTime = Metrics.start();
+    	
+    	switch (strategy) {
+    		case DO_NOTHING:
+    			doNothingStrategy();
+    			break;
+    		case WORKER_COLLECT:
+    			workerCollectStrategy(strategyTarget, strategyPartner);
+    			break;
+    		case WORKER_BUILD_BARRACKS:
+    			workerBuildBarracksStrategy();
+    			break;
+    		case NINJA_WARRIOR:
+    			ninjaWarriorStrategy(strategyTarget);
+    			break;
+    		case DRIVE_BY:
+    			driveByStrategy(strategyTarget);
+    			break;
+    		case BROTHER:
+    			brotherStrategy(strategyPartner, strategyTarget);
+    			break;
+    		case PRODUCE_COLLECTOR:
+    			produceCollectorStrategy();
+    			break;
+    		case PRODUCE_RUSHER:
+    			produceRusherStrategy(strategyUnitType);
+    			break;
+    		case RANGED_TEMP:
+    			rangedTempStrategy();
+    			break;
+    		case VACATE_BASE:
+    			vacateBaseStrategy();
+    			break;
+    		case NONE:
+    		default:
+    			break;
+    	}
+    	
+    	strategyTimers[strategy.ordinal()].stop(startTime);
+    }
+    
+    /**
+     * \brief Returns the reusable wait action, reset to wait for 1 tick
+     */
+    private DoNothing doNothing() {
+    	if (doNothingAction == null) {
+    		doNothingAction = new DoNothing(unit, 1);
+    	} else {
+    		doNothingAction.restart(1);
+    	}
+    	
+    	return doNothingAction;
+    }
+    
+    /**
+     * \brief Returns the reusable step action, reset to step in the given direction
+     */
+    private Step step(int direction) {
+    	if (stepAction == null) {
+    		stepAction = new Step(unit, direction);
+    	} else {
+    		stepAction.restart(direction);
+    	}
+    	
+    	return stepAction;
+    }
+    
+    /**
+     * \brief Returns the reusable train action, reset to train the given type towards a position
+     */
+    private TrainWithPreferredTile train(UnitType type, int targetX, int targetY) {
+    	if (trainAction == null) {
+    		trainAction = new TrainWithPreferredTile(unit, type, targetX, targetY);
+    	} else {
+    		trainAction.restart(type, targetX, targetY);
+    	}
+    	
+    	return trainAction;
+    }
+    
+    /**
+     * \brief Returns an attack action against the target, reusing the last one if the target is the same
+     */
+    private Attack attack(Unit target) {
+    	if (attackAction == null || attackTarget != target) {
+    		attackAction = new Attack(unit, target, pathFinding);
+    		attackTarget = target;
+    	}
+    	
+    	return attackAction;
+    }
+    
+    /**
+     * \brief Returns a harvest action for the resource and base, reusing the last one if they are the same
+     */
+    private Harvest harvest(Unit resource, Unit base) {
+    	if (harvestAction == null || harvestResource != resource || harvestBase != base) {
+    		harvestAction = new Harvest(unit, resource, base, pathFinding);
+    		harvestResource = resource;
+    		harvestBase = base;
+    	}
+    	
+    	return harvestAction;
+    }
+    
+    /**
+     * \brief Returns a build action at the location, reusing the last one if it is for the same place and hasn't completed
+     */
+    private Build build(UnitType type, int x, int y) {
+    	if (buildAction == null || buildX != x || buildY != y || buildAction.completed(gameState)) {
+    		buildAction = new Build(unit, type, x, y, pathFinding);
+    		buildX = x;
+    		buildY = y;
+    	}
+    	
+    	return buildAction;
+    }
+    
     /**
      * \brief Does nothing (waits for 1 tick)
      */
     public void doNothingStrategy() {
-    	action = new DoNothing(unit, 1);
+    	action = doNothing();
     }
     
     /**
 	 * \brief Sends the worker out to collect resources. Uses moveSafely to avoid getting murdered along the way
 	 */
 	public void workerCollectStrategy() {
+		workerCollectStrategy(null, null);
+	}
+	
+	/**
+	 * \brief Sends the worker out to collect resources along a planned route. Uses moveSafely to avoid getting murdered along the way
+	 * \param resource the resource to harvest, or null to find the closest reachable one
+	 * \param base the base to return resources to, or null to find the closest one
+	 */
+	public void workerCollectStrategy(Unit resource, Unit base) {
 		// Go collect resources and stuff
-		Unit closestResource = null, closestBase = null;
+		Unit closestResource = resource, closestBase = base;
 		
-		// Find the closest relevant units
-		closestResource = units.findClosestUnit(unit.getX(), unit.getY(), (Unit u) -> u.getType().isResource && MapUtils.doesPathExist(unit, u.getX(), u.getY(), pathFinding, gameState));
-		closestBase = units.findClosestUnit(unit.getX(), unit.getY(), (Unit u) -> units.isBase(u) && !units.isEnemy(u));
+		// Find the closest relevant units, unless the economy planner already has
+		if (closestResource == null) {
+			closestResource = units.findClosestUnit(unit.getX(), unit.getY(), isReachableResourceCondition);
+		}
+		
+		if (closestBase == null) {
+			closestBase = units.findClosestUnit(unit.getX(), unit.getY(), units.isMyBaseCondition);
+		}
 		
 		if (closestResource != null && closestBase != null) {
 			if (unit.getResources() == 1) {
@@ -162,7 +624,7 @@ public class UnitThinker {
 				} else {
 					// We're next to a base! Install our resources into the base
 					DebugUtils.setUnitLabel(unit, "dropping weed for da boiz");
-					action = new Harvest(unit, closestResource, closestBase, pathFinding);
+					action = harvest(closestResource, closestBase);
 				}
 			} else {
 				if (MapUtils.distance(unit,  closestResource) > 1) {
@@ -171,7 +633,7 @@ public class UnitThinker {
 					DebugUtils.setUnitLabel(unit, "finding some weed");
 				} else {
 					DebugUtils.setUnitLabel(unit, "grabbing some weed");
-					action = new Harvest(unit, closestResource, closestBase, pathFinding);
+					action = harvest(closestResource, closestBase);
 				}
 			}
 		} else {
@@ -190,83 +652,109 @@ public class UnitThinker {
 	public void workerBuildBarracksStrategy() {
 		// Only build if we're not already building/doing something
 		if (units.getAction(unit) == null) {
-			Unit myBase = units.findFirstUnit((Unit u) -> units.isBase(u) && !units.isEnemy(u));
-			GameState gs = units.getGameState();
-			PhysicalGameState pgs = gs.getPhysicalGameState();
+			Unit myBase = units.findFirstUnit(units.isMyBaseCondition);
 			int buildX = unit.getX(), buildY = unit.getY();
 			
 			// Decide where to build the barracks
 			if (myBase != null) {
-				// Build the barracks in a safe place meeting the following conditions:
-				// 1) at least 2 tiles away from the base
-				// 2) at least 2 tiles away from resources (let's ignore this for now to make this easier plz)
-				// 3) far from approaching enemies (let's ignore this because actually 
-				
-				Unit closestEnemyAttacker = units.findClosestUnit(myBase.getX(), myBase.getY(), (Unit u) -> (units.isEnemy(u) && u.getType().canAttack)); 
-				int avoidX = pgs.getWidth() / 2, avoidY = pgs.getHeight() / 2;
-				int bestTile = -1;
-				int bestTileHeuristic = 0;
-				boolean doesResourceExist = units.findFirstUnit((Unit u) -> units.isResource(u)) != null;
+				// Everything the choice depends on is near the base, apart from enemy strength and our own movers
+				int freeTiles = 0;
+				long threatLevels = 0;
 				
-				if (closestEnemyAttacker != null) {
-					// Maximise distance to the closest threatening enemy
-					avoidX = closestEnemyAttacker.getX();
-					avoidY = closestEnemyAttacker.getY();
+				for (int candidate = 0; candidate < NUM_BARRACKS_CANDIDATES; candidate++) {
+					int tileX = getBarracksCandidateX(myBase, candidate), tileY = getBarracksCandidateY(myBase, candidate);
+					
+					if (MapUtils.tileIsFree(tileX, tileY, units, blockedTiles)) {
+						freeTiles |= 1 << candidate;
+					}
+					
+					// Enemy influence, bucketed into two bits so that nearly identical threats share cache entries
+					int threat = Math.min((int)(MapUtils.getEnemyInfluence(tileX, tileY, units) / BARRACKS_THREAT_STEP), MAX_BARRACKS_THREAT);
+					
+					threatLevels |= (long)threat << (candidate * 2);
 				}
 				
-				// Check tiles in a square
-				for (int line = -2; line <= 2; line++) {
-					for (int side = 0; side < 4; side++) {
-						// Retrieve this part of the square
-						int tileX, tileY;
-						
-						switch (side) {
-							case 0:
-								tileX = myBase.getX() + line; tileY = myBase.getY() - 2;
-								break;
-							case 1:
-								tileX = myBase.getX() + line; tileY = myBase.getY() + 2;
-								break;
-							case 2:
-								tileX = myBase.getX() - 2; tileY = myBase.getY() ;
-								break;
-							case 3:
-							default:
-								tileX = myBase.getX() + 2; tileY = myBase.getY();
-								break;
-						}
-						
-						// Check we can go there first
-						if (!MapUtils.tileIsFree(tileX, tileY, gs, blockedTiles)) {
-							continue;
-						}
-						
-						// Pick the position furthest from the enemies, but ideally at least two tiles from the base and resources
-						int heuristic = Math.min(MapUtils.distance(tileX,  tileY, avoidX, avoidY), 2) + Math.min(MapUtils.distance(myBase, tileX, tileY), 2);
-
-						if (doesResourceExist) {
-							heuristic += Math.min(MapUtils.distance(units.findClosestUnit(tileX, tileY, (Unit u) -> units.isResource(u)), tileX, tileY), 2);
-						}
-						
-						if (heuristic > bestTileHeuristic || bestTile == -1) {
-							bestTile = MapUtils.toPosition(tileX, tileY, gs);
-							bestTileHeuristic = heuristic;
-						}
-					}
+				long situation = SituationHash.hashWindow(myBase.getX(), myBase.getY(), BARRACKS_WINDOW_RADIUS, SITUATION_BARRACKS, units)
+						^ SituationHash.mix(freeTiles | (threatLevels << NUM_BARRACKS_CANDIDATES));
+				SituationCache barracksCache = barracksCaches.get();
+				int bestCandidate = barracksCache.get(situation);
+				
+				if (bestCandidate == SituationCache.MISSING) {
+					bestCandidate = chooseBarracksCandidate(myBase, freeTiles, threatLevels);
+					barracksCache.put(situation, bestCandidate);
 				}
 				
 				// Select the best tile
-				if (bestTile != -1) {
-					buildX = MapUtils.toX(bestTile, gs);
-					buildY = MapUtils.toY(bestTile, gs);
+				if (bestCandidate != NO_CHOICE) {
+					buildX = getBarracksCandidateX(myBase, bestCandidate);
+					buildY = getBarracksCandidateY(myBase, bestCandidate);
 				}
 			}
 			
 			// Build the barracks
-			action = new Build(unit, units.barracks, buildX, buildY, pathFinding);
+			action = build(units.barracks, buildX, buildY);
+			
+			DebugUtils.setUnitLabel(unit, "[buildBarks] ", MapUtils.distance(unit, buildX, buildY));
+		}
+	}
+	
+	/**
+	 * \brief Picks the tile to build barracks on from the candidates around the base
+	 * \param myBase our base
+	 * \param freeTiles bit per candidate, set if the candidate tile is free
+	 * \param threatLevels two bits per candidate: how strongly enemies hold the tile, from 0 to MAX_BARRACKS_THREAT
+	 * \return the best candidate, or NO_CHOICE if none are free
+	 */
+	private int chooseBarracksCandidate(Unit myBase, int freeTiles, long threatLevels) {
+		// Build the barracks in a safe place meeting the following conditions:
+		// 1) at least 2 tiles away from the base
+		// 2) at least 2 tiles away from resources (let's ignore this for now to make this easier plz)
+		// 3) far from approaching enemies (let's ignore this because actually 
+		boolean doesResourceExist = units.findFirstUnit(units.isResourceCondition) != null;
+		int bestCandidate = NO_CHOICE;
+		int bestTileHeuristic = 0;
+		
+		for (int candidate = 0; candidate < NUM_BARRACKS_CANDIDATES; candidate++) {
+			int tileX = getBarracksCandidateX(myBase, candidate), tileY = getBarracksCandidateY(myBase, candidate);
+			
+			// Check we can go there first
+			if ((freeTiles & (1 << candidate)) == 0) {
+				continue;
+			}
+			
+			// Pick the position least held by enemies, but ideally at least two tiles from the base and resources
+			int threat = (int)(threatLevels >>> (candidate * 2)) & 3;
+			int heuristic = (MAX_BARRACKS_THREAT - threat) + Math.min(MapUtils.distance(myBase, tileX, tileY), 2);
+
+			if (doesResourceExist) {
+				heuristic += Math.min(MapUtils.distance(units.findClosestUnit(tileX, tileY, units.isResourceCondition), tileX, tileY), 2);
+			}
 			
-			DebugUtils.setUnitLabel(unit, "[buildBarks] " + MapUtils.distance(unit, buildX, buildY));
+			if (heuristic > bestTileHeuristic || bestCandidate == NO_CHOICE) {
+				bestCandidate = candidate;
+				bestTileHeuristic = heuristic;
+			}
 		}
+		
+		return bestCandidate;
+	}
+	
+	/**
+	 * \brief Returns the X coordinate of a candidate barracks tile. The candidates walk a square two tiles out from the base
+	 */
+	private static int getBarracksCandidateX(Unit myBase, int candidate) {
+		int line = candidate / 4 - 2, side = candidate % 4;
+		
+		return myBase.getX() + (side < 2 ? line : (side == 2 ? -2 : 2));
+	}
+	
+	/**
+	 * \brief Returns the Y coordinate of a candidate barracks tile
+	 */
+	private static int getBarracksCandidateY(Unit myBase, int candidate) {
+		int side = candidate % 4;
+		
+		return myBase.getY() + (side == 0 ? -2 : (side == 1 ? 2 : 0));
 	}
 	
 	/**
@@ -285,15 +773,16 @@ public class UnitThinker {
 
 		int danger = MapUtils.getDangerTime(unit.getX(), unit.getY(), 1, units);
 		
-		// Dodge the enemy if a) they are about to move next to us and b) we have time to run
+		// Dodge the enemy if a) they are about to move next to us, and are likely to, and b) we have time to run
 		int enemyTimeTilMove = units.timeToFinishAction(enemyToDodge);
 		
-		if ((enemyToDodge != null && enemyTimeTilMove < unit.getMoveTime() - 1 && enemyTimeTilMove + enemyToDodge.getAttackTime() > unit.getMoveTime())
+		if ((enemyToDodge != null && enemyTimeTilMove < unit.getMoveTime() - 1 && enemyTimeTilMove + enemyToDodge.getAttackTime() > unit.getMoveTime()
+				&& units.getOpponentModel().getThreatProbability(enemyToDodge, unit.getX(), unit.getY(), positionScratch, symbolScratch) >= DODGE_PROBABILITY)
 				|| (enemyToDodge == null && MapUtils.getDangerTime(unit.getX(), unit.getY(), 1, units) < unit.getMoveTime() + 1)) {
 			// Run to a safe neighbouring tile
 			int runDirection = MapUtils.findSafestNeighbour(unit.getX(), unit.getY(), unit.getMoveTime(), units);
 			
-			action = new Step(unit, runDirection);
+			action = step(runDirection);
 			return true;
 		}
 		else
@@ -319,46 +808,22 @@ public class UnitThinker {
 		
 		// If no one was attacked, but there is a dangerous enemy approaching, wait for it to arrive and kill it
 		if (timeUntilDeath <= unit.getMoveTime() || !onlyIfDangerous) {
-			// Choose an enemy to attack. Ideally the one with the lowest HP
-			Unit bestEnemyToAttack = null;
-			int bestEnemyArrivalTime = Integer.MAX_VALUE;
-			
-			for (Unit enemy : gameState.getPhysicalGameState().getUnitsAround(unit.getX(), unit.getY(), unit.getAttackRange() + 1)) {
-				if (!units.isEnemy(enemy)) {
-					continue;
-				}
-				
-				// Figure out where the enemy will be in a moment
-				int enemyX = units.getXAfter(enemy, unit.getAttackTime()), enemyY = units.getYAfter(enemy, unit.getAttackTime());
-				
-				// Is this enemy close enough?
-				if (MapUtils.isInAttackRange(unit, enemyX, enemyY)) {
-					// Can we kill it in time?
-					if (enemy.getAttackTime() >= unit.getAttackTime() || !enemy.getType().canAttack) {
-						// Check when it'll arrive
-						int arrivalTime = 0;
-						
-						if (units.getAction(enemy) != null && units.getAction(enemy).getType() == UnitAction.TYPE_MOVE) {
-							arrivalTime = units.timeToFinishAction(enemy);
-						}
-						
-						// Kill the fastest, most violent enemies first
-						if (bestEnemyToAttack == null || 
-							(enemy.getType().canAttack && !bestEnemyToAttack.getType().canAttack) || 
-							(arrivalTime <= bestEnemyArrivalTime)) {
-								// Attack this enemy
-								bestEnemyToAttack = enemy;
-								bestEnemyArrivalTime = arrivalTime;
-						}
-					}
-				}
+			// Stick to the squad's plan if our assigned target is in range, so the squad doesn't overkill
+			if (assignedTarget != null && units.isEnemy(assignedTarget) && MapUtils.isInAttackRange(unit, assignedTarget.getX(), assignedTarget.getY())
+					&& (!onlyIfDangerous || assignedTarget.getType().canAttack)) {
+				DebugUtils.setUnitLabel(unit, "[AtkNbr]: Attacking assigned");
+				action = attack(assignedTarget);
+				return true;
 			}
 			
+			// Choose an enemy to attack
+			Unit bestEnemyToAttack = chooseNeighbourToAttack(unit.getAttackRange() + 1);
+			
 			// Decide what to do
 			if (bestEnemyToAttack != null && MapUtils.isInAttackRange(unit, bestEnemyToAttack.getX(), bestEnemyToAttack.getY())) {
 				// Attack now!
 				DebugUtils.setUnitLabel(unit, "[AtkNbr]: Attacking");
-				action = new Attack(unit, bestEnemyToAttack, pathFinding);
+				action = attack(bestEnemyToAttack);
 				return true;
 			} else if (bestEnemyToAttack != null) {
 				// Wait for this enemy to arrive
@@ -368,7 +833,7 @@ public class UnitThinker {
 				}
 				
 				DebugUtils.setUnitLabel(unit, "[AtkNbr]: Waiting");
-				action = new DoNothing(unit, 1);
+				action = doNothing();
 				return true;
 			}
 		}
@@ -376,6 +841,49 @@ public class UnitThinker {
 		return false;
 	}
 	
+	/**
+	 * \brief Chooses the neighbour for attackNeighbourStrategy to attack or wait for. Ideally the one with the lowest HP
+	 * \param window how far around the unit to look
+	 * \return the enemy, or null if none could be attacked in time
+	 */
+	private Unit chooseNeighbourToAttack(int window) {
+		Unit bestEnemyToAttack = null;
+		int bestEnemyArrivalTime = Integer.MAX_VALUE;
+		
+		for (Unit enemy : gameState.getPhysicalGameState().getUnitsAround(unit.getX(), unit.getY(), window)) {
+			if (!units.isEnemy(enemy)) {
+				continue;
+			}
+			
+			// Figure out where the enemy will be in a moment
+			int enemyX = units.getXAfter(enemy, unit.getAttackTime()), enemyY = units.getYAfter(enemy, unit.getAttackTime());
+			
+			// Is this enemy close enough?
+			if (MapUtils.isInAttackRange(unit, enemyX, enemyY)) {
+				// Can we kill it in time?
+				if (enemy.getAttackTime() >= unit.getAttackTime() || !enemy.getType().canAttack) {
+					// Check when it'll arrive
+					int arrivalTime = 0;
+					
+					if (units.getAction(enemy) != null && units.getAction(enemy).getType() == UnitAction.TYPE_MOVE) {
+						arrivalTime = units.timeToFinishAction(enemy);
+					}
+					
+					// Kill the fastest, most violent enemies first
+					if (bestEnemyToAttack == null || 
+						(enemy.getType().canAttack && !bestEnemyToAttack.getType().canAttack) || 
+						(arrivalTime <= bestEnemyArrivalTime)) {
+							// Attack this enemy
+							bestEnemyToAttack = enemy;
+							bestEnemyArrivalTime = arrivalTime;
+					}
+				}
+			}
+		}
+		
+		return bestEnemyToAttack;
+	}
+	
 	/**
 	 * \brief Focuses on an enemy, avoiding all distractions like a good ninja
 	 * \param enemy the enemy to focus. If null, the closest enemy is chosen
@@ -388,7 +896,7 @@ public class UnitThinker {
 		
 		// Pick the closest enemy if one isn't provided
 		if (enemy == null) {
-			enemy = units.findClosestUnit(unit.getX(), unit.getY(), (Unit u) -> units.isEnemy(u));
+			enemy = units.findClosestUnit(unit.getX(), unit.getY(), units.isEnemyCondition);
 		}
 		
 		DebugUtils.setUnitLabel(unit, "[ninja]");
@@ -399,7 +907,9 @@ public class UnitThinker {
 		} else if (dodgeStrategy(null)) {
 			DebugUtils.setUnitLabel(unit, "[ninja] Dodging!");
 		} else if (enemy != null) {
-			DebugUtils.setUnitLabel(unit, "[ninja] Running! (" + enemy.getX() + "," + enemy.getY() + ")");
+			if (DebugUtils.areLabelsEnabled()) {
+				DebugUtils.setUnitLabel(unit, "[ninja] Running! (" + enemy.getX() + "," + enemy.getY() + ")");
+			}
 			moveSafely(enemy.getX(), enemy.getY(), 1, 2);
 		}
 	}
@@ -432,7 +942,7 @@ public class UnitThinker {
 		
 		if (targetAction == null) {
 			// wait
-			action = new DoNothing(unit, 1);
+			action = doNothing();
 			return;
 		}
 		
@@ -482,7 +992,7 @@ public class UnitThinker {
 				if (MapUtils.distance(unit, units.getXAfter(target, target.getMoveTime()), units.getYAfter(unit,  unit.getMoveTime())) == 3) {
 					// We want to wait a moment for the enemy to walk in. TODO: Add maximum wait time
 					DebugUtils.setUnitLabel(unit, "Hold it!");
-					action = new DoNothing(unit, 1);
+					action = doNothing();
 				}
 			}
 		} else {
@@ -498,7 +1008,7 @@ public class UnitThinker {
 	public void produceCollectorStrategy() {
 		// Drop a collector
 		// Put a worker in the position closest to a resource
-		Unit closestResource = units.findClosestUnit(unit.getX(), unit.getY(), (Unit u) -> u.getType().isResource);
+		Unit closestResource = units.findClosestUnit(unit.getX(), unit.getY(), units.isResourceCondition);
 		int trainX = 0, trainY = 0;
 
 		if (closestResource != null) {
@@ -506,7 +1016,7 @@ public class UnitThinker {
 			trainY = closestResource.getY();
 		}
 
-		action = new TrainWithPreferredTile(unit, units.worker, trainX, trainY);
+		action = train(units.worker, trainX, trainY);
 	}
 	
 	/**
@@ -515,13 +1025,13 @@ public class UnitThinker {
 	 */
 	public void produceRusherStrategy(UnitType type) {
 		// Train a unit furthest from the resources
-		Unit closestResource = units.findClosestUnit(unit.getX(), unit.getY(), (Unit u) -> u.getType().isResource);
+		Unit closestResource = units.findClosestUnit(unit.getX(), unit.getY(), units.isResourceCondition);
 		
 		if (closestResource != null) {
-			action = new TrainWithPreferredTile(unit, type, unit.getX() - (closestResource.getX() - unit.getX()), unit.getY() - (closestResource.getY() - unit.getY()));	
+			action = train(type, unit.getX() - (closestResource.getX() - unit.getX()), unit.getY() - (closestResource.getY() - unit.getY()));	
 		} else {
-			// OK....uh, train a unit wherever then.
-			action = new Train(unit, type);
+			// OK....uh, train a unit wherever then. Every neighbouring tile is equally preferred
+			action = train(type, unit.getX(), unit.getY());
 		}
 		
 	}
@@ -539,69 +1049,113 @@ public class UnitThinker {
 			return false;
 		}
 		
-		// todo rewrite the entire A* algorithm to avoid dangerous tiles.....
 		if (attackNeighbourStrategy(false, maxWaitTime)) {
 			return true;
 		}
 		
-		// Try the move strategy
-		if (!moveStrategy(targetX, targetY, range)) {
+		// Route around tiles that enemies could reach before we could get off them, and keep the route to follow and reserve
+		DangerAwarePathFinding safePathFinding = safePathFinders.get();
+		int targetPosition = MapUtils.toPosition(targetX, targetY, gameState);
+		int direction = safePathFinding.findFirstStep(unit, targetPosition, range, gameState);
+		
+		safePathLength = safePathFinding.getPathLength();
+		safePathOrigin = MapUtils.toPosition(unit.getX(), unit.getY(), gameState);
+		
+		if (safePath.length < safePathLength) {
+			safePath = new int[safePathLength * 2];
+		}
+		
+		for (int step = 0; step < safePathLength; step++) {
+			safePath[step] = safePathFinding.getPathDirection(step);
+		}
+		
+		if (!stepTowards(direction, targetPosition, range)) {
 			DebugUtils.setUnitLabel(unit,  "[moveSafely] Impossible");
 			return false;
 		}
 
-		// Ensure the next step is not a dangerous tile
+		// The path only starts on a dangerous tile if there was no safer way round, so wait a while for it to clear
 		int stepDirection = ((Step)action).getDirection();
 		int dangerTime = MapUtils.getDangerTimeAssumingEnemiesCharge(unit.getX() + UnitAction.DIRECTION_OFFSET_X[stepDirection],
 				   unit.getY() + UnitAction.DIRECTION_OFFSET_Y[stepDirection], 1, unit.getMoveTime(), units);
 
 		if (dangerTime > unit.getMoveTime() + unit.getAttackTime() || timeWaited >= maxWaitTime) {
 			// If we can move to AND escape the tile unharmed (or attack), it's safe
-			DebugUtils.setUnitLabel(unit, "[moveSafely] Moving normally " + dangerTime);
+			DebugUtils.setUnitLabel(unit, "[moveSafely] Moving normally ", dangerTime);
 		} else {
-			DebugUtils.setUnitLabel(unit, "[moveSafely] Run safest " + dangerTime);
-			
-			// Consider waiting for a while. When time has expired, move somewhere else I guess!
-			//action = new Step(unit, MapUtils.findSafestNeighbour(unit.getX(), unit.getY(), 1, units));
-			action = new DoNothing(unit, 1);
+			DebugUtils.setUnitLabel(unit, "[moveSafely] Waiting for safety ", dangerTime);
+			action = doNothing();
 		}
 		
 		return true;
 	}
 	
 	/**
-	 * \brief Moves to a position with pathfinding
+	 * \brief Moves to a position with pathfinding, giving way to units that have already reserved the tiles ahead
 	 * \param targetX the X position of the target
 	 * \param targetY the Y position of the target
 	 * \param range how close to the target to arrive at
+	 * \return whether the unit is stepping towards the target. If it has to give way, it waits and false is returned
 	 */
 	public boolean moveStrategy(int targetX, int targetY, int range) {
 		if (units.getAction(unit) != null) {
 			return false;
 		}
 		
-		// Get a path to the target
-		ResourceUsage ru = new ResourceUsage();
-		UnitAction moveAction = pathFinding.findPathToPositionInRange(unit, MapUtils.toPosition(targetX, targetY, gameState), range, gameState, ru);
+		// Get a path to the target from the shared distance fields
+		int targetPosition = MapUtils.toPosition(targetX, targetY, gameState);
 		
+		safePathLength = 0;
+		return stepTowards(units.getPathService().getStepDirection(unit.getX(), unit.getY(), targetPosition, range), targetPosition, range);
+	}
+	
+	/**
+	 * \brief Steps in the first direction of a path to a target, giving way to units that have already reserved the tiles ahead.
+	 * The rest of the path is reserved by following the safe path if moveSafely chose one, otherwise the shared distance fields
+	 * \param direction the direction of the first step, or UnitAction.DIRECTION_NONE if there is no path
+	 * \param targetPosition the position of the target
+	 * \param range how close to the target to arrive at
+	 * \return whether the unit is stepping towards the target
+	 */
+	private boolean stepTowards(int direction, int targetPosition, int range) {
 		// Make sure we have somewhere to go!
-		if (moveAction != null && moveAction.getType() == UnitAction.TYPE_MOVE) {
+		if (direction != UnitAction.DIRECTION_NONE) {
+			// Forget our old plan, then sidestep anyone who planned to be on our next tile first
+			releaseReservations(blockedTiles);
+			hasPlannedPath = true;
+			int pathDirection = direction;
+			direction = findUnreservedDirection(direction, targetPosition, range);
+			
+			if (direction != pathDirection) {
+				// Sidestepping leaves the safe path, so fall back to the distance fields
+				safePathLength = 0;
+			}
+			
+			if (direction == UnitAction.DIRECTION_NONE) {
+				// Let them past
+				DebugUtils.setUnitLabel(unit, "[move] Giving way");
+				action = doNothing();
+				reservePath(UnitAction.DIRECTION_NONE, targetPosition, range);
+				return false;
+			}
+			
+			reservePath(direction, targetPosition, range);
+			
 			// Go there
-			action = new Step(unit, moveAction.getDirection());
+			action = step(direction);
+			moveTargetPosition = targetPosition;
+			moveRange = range;
 			
 			// If there is another step in the path, block it. This is to stop two units from fighting each other whilst pathfinding
-			Unit clone = unit.clone(); // we can only access pathfinding functions with a unit :/
-			clone.setX(unit.getX() + UnitAction.DIRECTION_OFFSET_X[moveAction.getDirection()]);
-			clone.setY(unit.getY() + UnitAction.DIRECTION_OFFSET_Y[moveAction.getDirection()]);
-			UnitAction nextAction = pathFinding.findPathToPositionInRange(clone, MapUtils.toPosition(targetX, targetY, gameState), range, gameState, ru);
+			int stepX = unit.getX() + UnitAction.DIRECTION_OFFSET_X[direction], stepY = unit.getY() + UnitAction.DIRECTION_OFFSET_Y[direction];
+			int nextDirection = getPathDirection(stepX, stepY, targetPosition, range);
 			
-			if (nextAction != null && nextAction.getType() == UnitAction.TYPE_MOVE) {
+			if (nextDirection != UnitAction.DIRECTION_NONE) {
 				// Block this tile
-				int position = MapUtils.getStep(clone, nextAction.getDirection(), gameState);
-				int x = clone.getX(), y = clone.getY();
+				int position = MapUtils.toPosition(stepX + UnitAction.DIRECTION_OFFSET_X[nextDirection], stepY + UnitAction.DIRECTION_OFFSET_Y[nextDirection], gameState);
 				
-				if (!blockedTiles[position]) {
-					blockedTiles[position] = true;
+				if (!blockedTiles.isReserved(position)) {
+					blockedTiles.reserve(position);
 				} else {
 					// if the tile is already blocked, let's say we failed
 					return false;
@@ -615,6 +1169,210 @@ public class UnitThinker {
 		return false;
 	}
 	
+	/**
+	 * \brief Returns a direction to step towards a target in, avoiding tiles that other units have reserved for the next few moves
+	 * \param direction the best direction, from the path service
+	 * \param targetPosition the position of the target
+	 * \param range how close to the target to arrive at
+	 * \return the best direction if it is unreserved, otherwise a free sidestep no more than one step further from the target, or UnitAction.DIRECTION_NONE
+	 */
+	private int findUnreservedDirection(int direction, int targetPosition, int range) {
+		int startTime = gameState.getTime(), endTime = startTime + unit.getMoveTime() * 2;
+		int x = unit.getX(), y = unit.getY();
+		
+		if (!isReservedByOther(MapUtils.toPosition(x + UnitAction.DIRECTION_OFFSET_X[direction], y + UnitAction.DIRECTION_OFFSET_Y[direction], gameState), startTime, endTime)) {
+			return direction;
+		}
+		
+		int maxDistance = units.getPathService().getDistance(x + UnitAction.DIRECTION_OFFSET_X[direction], y + UnitAction.DIRECTION_OFFSET_Y[direction], targetPosition, range) + 1;
+		int bestDistance = Integer.MAX_VALUE;
+		int bestDirection = UnitAction.DIRECTION_NONE;
+		
+		for (int sidestep = 0; sidestep < 4; sidestep++) {
+			int nextX = x + UnitAction.DIRECTION_OFFSET_X[sidestep], nextY = y + UnitAction.DIRECTION_OFFSET_Y[sidestep];
+			
+			if (sidestep == direction || !MapUtils.tileIsFree(nextX, nextY, units, blockedTiles)) {
+				continue;
+			}
+			
+			int distance = units.getPathService().getDistance(nextX, nextY, targetPosition, range);
+			
+			if (distance <= maxDistance && distance < bestDistance && !isReservedByOther(MapUtils.toPosition(nextX, nextY, gameState), startTime, endTime)) {
+				bestDistance = distance;
+				bestDirection = sidestep;
+			}
+		}
+		
+		return bestDirection;
+	}
+	
+	/**
+	 * \brief Reserves the space-time cells along the path to a target, until the path leaves the table's window or runs into another unit's cells
+	 * \param direction the direction of the first step, or UnitAction.DIRECTION_NONE to reserve the current tile while waiting
+	 * \param targetPosition the position of the target
+	 * \param range how close to the target to arrive at
+	 */
+	private void reservePath(int direction, int targetPosition, int range) {
+		ReservationTable table = blockedTiles.getTable();
+		
+		if (table == null) {
+			return;
+		}
+		
+		int now = gameState.getTime(), moveTime = unit.getMoveTime();
+		int x = unit.getX(), y = unit.getY();
+		
+		// The unit stays on its tile until the step completes
+		reserveInterval(MapUtils.toPosition(x, y, gameState), now, now + moveTime);
+		
+		// It's then on each tile of the path from when it starts stepping there until it has stepped off
+		for (int step = 1; direction != UnitAction.DIRECTION_NONE; step++) {
+			x += UnitAction.DIRECTION_OFFSET_X[direction];
+			y += UnitAction.DIRECTION_OFFSET_Y[direction];
+			
+			int position = MapUtils.toPosition(x, y, gameState);
+			int startTime = now + (step - 1) * moveTime, endTime = now + (step + 1) * moveTime;
+			
+			if (table.getCell(position, startTime) == ReservationTable.NO_CELL || isReservedByOther(position, startTime, endTime)) {
+				break;
+			}
+			
+			reserveInterval(position, startTime, endTime);
+			direction = getPathDirection(x, y, targetPosition, range);
+		}
+	}
+	
+	/**
+	 * \brief Returns the direction to step in from a tile of the path to a target: along the safe path if the tile is on it, otherwise from the shared distance fields
+	 * \param x the X position of the tile
+	 * \param y the Y position of the tile
+	 * \param targetPosition the position of the target
+	 * \param range how close to the target to arrive at
+	 */
+	private int getPathDirection(int x, int y, int targetPosition, int range) {
+		int direction = getSafePathDirection(x, y);
+		
+		return direction != NOT_ON_PATH ? direction : units.getPathService().getStepDirection(x, y, targetPosition, range);
+	}
+	
+	/**
+	 * \brief Returns the direction the safe path takes from a tile
+	 * \param x the X position of the tile
+	 * \param y the Y position of the tile
+	 * \return the direction, UnitAction.DIRECTION_NONE at the end of the path, or NOT_ON_PATH if there is no safe path or the tile isn't on it
+	 */
+	private int getSafePathDirection(int x, int y) {
+		if (safePathLength == 0) {
+			return NOT_ON_PATH;
+		}
+		
+		int width = gameState.getPhysicalGameState().getWidth();
+		int pathX = safePathOrigin % width, pathY = safePathOrigin / width;
+		
+		for (int step = 0; step <= safePathLength; step++) {
+			if (pathX == x && pathY == y) {
+				return step < safePathLength ? safePath[step] : UnitAction.DIRECTION_NONE;
+			}
+			
+			if (step < safePathLength) {
+				pathX += UnitAction.DIRECTION_OFFSET_X[safePath[step]];
+				pathY += UnitAction.DIRECTION_OFFSET_Y[safePath[step]];
+			}
+		}
+		
+		return NOT_ON_PATH;
+	}
+	
+	/**
+	 * \brief Returns whether another unit has reserved a tile at any time in an interval
+	 * \param position the position of the tile
+	 * \param startTime the first game time of the interval
+	 * \param endTime the last game time of the interval
+	 */
+	private boolean isReservedByOther(int position, int startTime, int endTime) {
+		ReservationTable table = blockedTiles.getTable();
+		
+		if (table == null) {
+			return false;
+		}
+		
+		for (int time = startTime - startTime % table.getCyclesPerSlot(); time <= endTime; time += table.getCyclesPerSlot()) {
+			int cell = table.getCell(position, time);
+			
+			if (cell == ReservationTable.NO_CELL) {
+				break;
+			}
+			
+			long owner = blockedTiles.getCellOwner(cell);
+			
+			if (owner != ReservationTable.FREE && owner != unit.getID()) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * \brief Reserves a tile for every slot of an interval that is free, and remembers the cells so they can be released
+	 * \param position the position of the tile
+	 * \param startTime the first game time of the interval
+	 * \param endTime the last game time of the interval
+	 */
+	private void reserveInterval(int position, int startTime, int endTime) {
+		ReservationTable table = blockedTiles.getTable();
+		
+		for (int time = startTime - startTime % table.getCyclesPerSlot(); time <= endTime; time += table.getCyclesPerSlot()) {
+			int cell = table.getCell(position, time);
+			
+			if (cell == ReservationTable.NO_CELL) {
+				break;
+			}
+			
+			if (blockedTiles.getCellOwner(cell) == ReservationTable.FREE) {
+				blockedTiles.setCellOwner(cell, unit.getID());
+				
+				if (numReservedCells == reservedCells.length) {
+					reservedCells = Arrays.copyOf(reservedCells, numReservedCells * 2);
+				}
+				
+				reservedCells[numReservedCells++] = cell;
+			}
+		}
+	}
+	
+	/**
+	 * \brief Releases the cells this unit reserved along its last planned path
+	 * \param reservations the reservations to release them through
+	 */
+	private void releaseReservations(TileReservations reservations) {
+		if (reservations.getTable() != null) {
+			for (int i = 0; i < numReservedCells; i++) {
+				// Slots that have since fallen into the past may have been reused by other units
+				if (reservations.getCellOwner(reservedCells[i]) == unit.getID()) {
+					reservations.setCellOwner(reservedCells[i], ReservationTable.FREE);
+				}
+			}
+		}
+		
+		numReservedCells = 0;
+	}
+	
+	/**
+	 * \brief Releases the cells this unit reserved along its last planned path directly in the reservation table, e.g. when the unit has died
+	 */
+	public void releaseReservations() {
+		if (reservationTable != null) {
+			for (int i = 0; i < numReservedCells; i++) {
+				if (reservationTable.getOwner(reservedCells[i]) == unit.getID()) {
+					reservationTable.setOwner(reservedCells[i], ReservationTable.FREE);
+				}
+			}
+		}
+		
+		numReservedCells = 0;
+	}
+	
 	/**
 	 * \brief Runs a bait-and-switch strategy, where one brother baits an enemy into attacking, while the other leaps in to finish them off
 	 * \param myBrother this unit's loyal companion
@@ -689,19 +1447,19 @@ public class UnitThinker {
 					if (myDistance == 2) {
 						// We're the ATTACKER. We're going to step in just as soon as the victim has started
 						if (units.timeToFinishAction(victim) <= unit.getMoveTime() - 2) {
-							action = new Attack(unit, victim, pathFinding);
+							action = attack(victim);
 						} else {
 							// wait until the victim can feel reasonably disappointed with themselves
-							action = new DoNothing(unit, 1);
+							action = doNothing();
 						}
 					} else {
 						// We're the BAIT. Let's get outta here!
-						action = new Step(unit, MapUtils.findSafestNeighbour(unit.getX(), unit.getY(), 1, units));
+						action = step(MapUtils.findSafestNeighbour(unit.getX(), unit.getY(), 1, units));
 					}
 					DebugUtils.setUnitLabel(unit,  "CALL TO ACTION!");
 				} else {
 					// Wait for the enemy to come closer, but attack any dangerous neighbours if any randomly show up
-					action = new DoNothing(unit, 1);
+					action = doNothing();
 					attackNeighbourStrategy(true, 20);
 					DebugUtils.setUnitLabel(unit, "HOLD IT!!");
 				}
@@ -719,7 +1477,7 @@ public class UnitThinker {
 			return;
 		}
 		
-		Unit closestEnemy = units.findClosestUnit(unit.getX(), unit.getY(), (Unit u) -> units.isEnemy(u));
+		Unit closestEnemy = units.findClosestUnit(unit.getX(), unit.getY(), units.isEnemyCondition);
 		
 		if (closestEnemy != null) {
 			if (attackNeighbourStrategy(false, unit.getMoveTime())) {
@@ -730,7 +1488,7 @@ public class UnitThinker {
 			}
 		} else {
 			DebugUtils.setUnitLabel(unit, "[ranged] chilling");
-			action = new DoNothing(unit, 1);
+			action = doNothing();
 		}
 	}
 	
@@ -749,22 +1507,28 @@ public class UnitThinker {
 		
 		DebugUtils.setUnitLabel(unit, "[vacate]");
 		
-		// Find the best free tile that moves away from the base
-		Unit myBase = units.findFirstUnit((Unit u) -> units.isBase(u) && !units.isEnemy(u));
+		// Find the best free tile that moves away from the base, without walking into enemy strength or onto the resources
+		Unit myBase = units.findFirstUnit(units.isMyBaseCondition);
 		
 		if (myBase != null) {
-			float bestDistance = MapUtils.euclideanDistance(unit, myBase.getX(), myBase.getY());
+			float bestScore = getVacateScore(myBase, unit.getX(), unit.getY());
 			int targetX = unit.getX(), targetY = unit.getY();
-			int range = 3;
+			int range = VACATE_LOOK_AHEAD;
+			
+			// Look ahead a few tiles, reading the free tiles of each row at once
+			int startX = Math.max(unit.getX() - range, 0), startY = Math.max(unit.getY() - range, 0);
+			
+			for (int y = startY; y <= unit.getY() + range; y++) {
+				freeRows[y - startY] = units.getOccupancy().getFreeBits(y, startX, unit.getX() + range);
+			}
 			
-			// Look ahead a few tiles
-			for (int x = Math.max(unit.getX() - range, 0); x <= unit.getX() + range; x++) {
-				for (int y = Math.max(unit.getY() - range, 0); y <= unit.getY() + range; y++) {
-					if (MapUtils.tileIsFree(x, y, units.getGameState())) {
-						float distance = MapUtils.euclideanDistance(myBase, x, y);
+			for (int x = startX; x <= unit.getX() + range; x++) {
+				for (int y = startY; y <= unit.getY() + range; y++) {
+					if ((freeRows[y - startY] & (1L << (x - startX))) != 0) {
+						float score = getVacateScore(myBase, x, y);
 						
-						if (distance > bestDistance) {
-							bestDistance = distance;
+						if (score > bestScore) {
+							bestScore = score;
 							targetX = x;
 							targetY = y;
 						}
@@ -777,7 +1541,7 @@ public class UnitThinker {
 				moveStrategy(targetX, targetY, 0);
 				DebugUtils.setUnitLabel(unit, "[vacate] move");
 			} else {
-				action = new DoNothing(unit, 1);
+				action = doNothing();
 				DebugUtils.setUnitLabel(unit, "[vacate] blocked");
 			}
 		} else {
@@ -786,6 +1550,14 @@ public class UnitThinker {
 		}
 	}
 	
+	/**
+	 * \brief Returns how good a tile is for vacateBaseStrategy to move to: far from the base, and away from enemy strength and resources
+	 */
+	private float getVacateScore(Unit myBase, int x, int y) {
+		return MapUtils.euclideanDistance(myBase, x, y) - VACATE_THREAT_WEIGHT * MapUtils.getEnemyInfluence(x, y, units)
+				- VACATE_RESOURCE_WEIGHT * MapUtils.getResourceInfluence(x, y, units);
+	}
+	
 	/**
 	 * Returns the action to be performed by this bot
 	 */
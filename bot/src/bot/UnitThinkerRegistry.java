@@ -0,0 +1,104 @@
+package bot;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ai.abstraction.pathfinding.PathFinding;
+import rts.units.Unit;
+import utilities.DangerAwarePathFinding;
+import utilities.LongObjectMap;
+import utilities.SituationCache;
+import utilities.UnitUtils;
+
+/**
+ * \brief Keeps a UnitThinker for every unit owned by the bot, keyed by unit ID
+ * \author Louis
+ *
+ * Units are identified by ID rather than by object, so thinkers survive the game state being cloned.
+ * Each tick the registry adds thinkers for new units and drops the thinkers of dead units by comparing
+ * the sorted IDs of this tick's units against the last tick's, without rebuilding the map.
+ */
+public class UnitThinkerRegistry {
+	private LongObjectMap<UnitThinker> thinkers = new LongObjectMap<UnitThinker>(); /**< Thinker of each unit ID */
+
+	private long[] liveIds = new long[16]; /**< Sorted IDs of the units with thinkers */
+	private int numLive = 0; /**< Number of IDs in liveIds */
+	private long[] currentIds = new long[16]; /**< Sorted IDs of this tick's units (swapped with liveIds after each synchronise) */
+
+	private final ThreadLocal<SituationCache> barracksCaches; /**< The bot's caches of workerBuildBarracksStrategy decisions, one per thread, given to every thinker */
+	private final ThreadLocal<DangerAwarePathFinding> safePathFinders; /**< The bot's danger-aware pathfinders, one per thread, given to every thinker */
+
+	/**
+	 * \brief Creates an empty registry
+	 * \param barracksCaches the bot's caches of workerBuildBarracksStrategy decisions, one per thread
+	 * \param safePathFinders the bot's danger-aware pathfinders, one per thread
+	 */
+	public UnitThinkerRegistry(ThreadLocal<SituationCache> barracksCaches, ThreadLocal<DangerAwarePathFinding> safePathFinders) {
+		this.barracksCaches = barracksCaches;
+		this.safePathFinders = safePathFinders;
+	}
+
+	/**
+	 * \brief Synchronises the thinkers with the bot's current units
+	 * \param myUnits every unit currently owned by the bot
+	 * \param units the UnitUtils to give to new thinkers
+	 * \param pathFinding the PathFinding engine to give to new thinkers
+	 */
+	public void synchronise(List<Unit> myUnits, UnitUtils units, PathFinding pathFinding) {
+		int numCurrent = 0;
+
+		if (currentIds.length < myUnits.size()) {
+			currentIds = new long[myUnits.size() * 2];
+		}
+
+		// Add thinkers for new units, and point existing thinkers at this tick's unit objects
+		for (Unit u : myUnits) {
+			UnitThinker thinker = thinkers.get(u.getID());
+
+			if (thinker == null) {
+				thinkers.put(u.getID(), new UnitThinker(u, units, pathFinding, barracksCaches, safePathFinders));
+			} else {
+				thinker.setUnit(u);
+			}
+
+			currentIds[numCurrent++] = u.getID();
+		}
+
+		Arrays.sort(currentIds, 0, numCurrent);
+
+		// Drop the thinkers of units that have disappeared since the last tick
+		for (int live = 0, current = 0; live < numLive; live++) {
+			while (current < numCurrent && currentIds[current] < liveIds[live]) {
+				current++;
+			}
+
+			if (current >= numCurrent || currentIds[current] != liveIds[live]) {
+				// Don't leave the dead unit's path reserved
+				thinkers.remove(liveIds[live]).releaseReservations();
+			}
+		}
+
+		// This tick's IDs are now the live IDs
+		long[] swap = liveIds;
+
+		liveIds = currentIds;
+		currentIds = swap;
+		numLive = numCurrent;
+	}
+
+	/**
+	 * \brief Returns the thinker of a unit
+	 * \param u the unit
+	 * \return the unit's thinker, or null if the unit wasn't present at the last synchronise
+	 */
+	public UnitThinker get(Unit u) {
+		return thinkers.get(u.getID());
+	}
+
+	/**
+	 * \brief Returns the number of thinkers
+	 */
+	public int size() {
+		return thinkers.size();
+	}
+}
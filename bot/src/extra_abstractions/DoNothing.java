@@ -34,6 +34,24 @@ public class DoNothing extends AbstractAction {
         this.unit = u;
     }
     
+    /**
+     * \brief Resets the action so that it can be reused instead of allocating a new one
+     * \param duration how long to wait for, in game ticks
+     */
+    public void restart(int duration) {
+        this.waitDuration = duration;
+        this.completed = false;
+    }
+    
+    /**
+     * \brief Copies the duration and progress of another wait of the same unit, e.g. to roll back a speculative tick
+     * \param other the wait to copy
+     */
+    public void copyFrom(DoNothing other) {
+        this.waitDuration = other.waitDuration;
+        this.completed = other.completed;
+    }
+    
     public boolean completed(GameState pgs) {
         return completed;
     }
@@ -34,6 +34,24 @@ public class Step extends AbstractAction {
         this.moveDirection = direction;
     }
     
+    /**
+     * \brief Resets the action so that it can be reused instead of allocating a new one
+     * \param direction the direction to step in
+     */
+    public void restart(int direction) {
+        this.moveDirection = direction;
+        this.completed = false;
+    }
+    
+    /**
+     * \brief Copies the direction and progress of another step of the same unit, e.g. to roll back a speculative tick
+     * \param other the step to copy
+     */
+    public void copyFrom(Step other) {
+        this.moveDirection = other.moveDirection;
+        this.completed = other.completed;
+    }
+    
     public boolean completed(GameState pgs) {
         return completed;
     }
@@ -58,6 +58,30 @@ public class TrainWithPreferredTile extends AbstractAction {
         targetY = destinationY;
     }
     
+    /**
+     * \brief Resets the action so that it can be reused instead of allocating a new one
+     * \param a_type the type of unit to be trained
+     * \param destinationX the X coordinate towards which the training is preferred
+     * \param destinationY the Y coordinate towards which the training is preferred
+     */
+    public void restart(UnitType a_type, int destinationX, int destinationY) {
+        type = a_type;
+        targetX = destinationX;
+        targetY = destinationY;
+        completed = false;
+    }
+    
+    /**
+     * \brief Copies the type, target and progress of another train action of the same unit, e.g. to roll back a speculative tick
+     * \param other the train action to copy
+     */
+    public void copyFrom(TrainWithPreferredTile other) {
+        type = other.type;
+        targetX = other.targetX;
+        targetY = other.targetY;
+        completed = other.completed;
+    }
+    
     public boolean completed(GameState pgs) {
         return completed;
     }
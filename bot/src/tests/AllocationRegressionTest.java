@@ -0,0 +1,106 @@
+package tests;
+
+import java.lang.management.ManagementFactory;
+
+import ai.abstraction.RangedRush;
+import ai.core.AI;
+import bot.MyDisappointingRoboticSon;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.PlayerAction;
+import rts.units.Unit;
+import rts.units.UnitTypeTable;
+import utilities.DebugUtils;
+
+/**
+ * \brief Plays headless games against RangedRush and checks how much memory the bot allocates per getAction call
+ * \author Louis
+ *
+ * Run as a Java application (or 'ant AllocationRegressionTest'). Exits with status 1 if the worst call on any map,
+ * once warm, allocates more than BASE_BYTES_PER_CALL plus BYTES_PER_UNIT for each of our units. Labels are
+ * disabled, as they are in tournaments. That budget only covers what the bot cannot avoid: the PlayerAction,
+ * ResourceUsage and lists made by AbstractionLayerAI.translateActions, and a UnitAction per unit handed to the
+ * engine. Calls on which one of our units appears are left out of the worst case, since the new unit's thinker
+ * and its pooled actions are allocated then, once per unit.
+ */
+public class AllocationRegressionTest {
+	private static final String[] MAPS = {
+		"../microrts/maps/8x8/bases8x8.xml",
+		"../microrts/maps/12x12/basesWorkers12x12.xml",
+		"../microrts/maps/24x24/basesWorkers24x24.xml"
+	}; /**< Maps to test on */
+
+	private static final int WARMUP_CYCLES = 300; /**< Cycles played before measuring, so that buffers and caches are grown */
+	private static final int MEASURED_CYCLES = 1500; /**< Cycles to measure after warming up */
+	private static final long BASE_BYTES_PER_CALL = 2048; /**< Allocations every getAction call may make, whatever the number of units */
+	private static final long BYTES_PER_UNIT = 256; /**< Allocations a getAction call may make per unit of ours */
+
+	public static void main(String args[]) throws Exception {
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		boolean passed = true;
+
+		DebugUtils.setLabelsEnabled(false);
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		for (String map : MAPS) {
+			UnitTypeTable utt = new UnitTypeTable();
+			GameState gs = new GameState(PhysicalGameState.load(map, utt), utt);
+			AI bot = new MyDisappointingRoboticSon(utt);
+			AI opponent = new RangedRush(utt);
+			long totalBytes = 0, worstExcess = Long.MIN_VALUE, worstBytes = 0, worstBudget = 0;
+			long newestId = -1;
+			int numMeasured = 0;
+			boolean gameover = false;
+
+			while (!gameover && gs.getTime() < WARMUP_CYCLES + MEASURED_CYCLES) {
+				// Count our units, and whether any are new to the bot
+				int numMyUnits = 0;
+				boolean isBirth = false;
+
+				for (Unit unit : gs.getUnits()) {
+					if (unit.getPlayer() == 0) {
+						numMyUnits++;
+
+						if (unit.getID() > newestId) {
+							newestId = unit.getID();
+							isBirth = true;
+						}
+					}
+				}
+
+				// Measure only the bot's own call
+				long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+				PlayerAction pa1 = bot.getAction(0, gs);
+				long bytes = threadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+				if (gs.getTime() >= WARMUP_CYCLES) {
+					long budget = BASE_BYTES_PER_CALL + BYTES_PER_UNIT * numMyUnits;
+
+					totalBytes += bytes;
+					numMeasured++;
+
+					if (!isBirth && bytes - budget > worstExcess) {
+						worstExcess = bytes - budget;
+						worstBytes = bytes;
+						worstBudget = budget;
+					}
+				}
+
+				PlayerAction pa2 = opponent.getAction(1, gs);
+				gs.issueSafe(pa1);
+				gs.issueSafe(pa2);
+				gameover = gs.cycle();
+			}
+
+			long averageBytes = numMeasured > 0 ? totalBytes / numMeasured : 0;
+			boolean mapPassed = worstExcess <= 0;
+
+			System.out.println((mapPassed ? "PASS " : "FAIL ") + map + ": worst call " + worstBytes + " bytes (budget " + worstBudget
+					+ " for its units), " + averageBytes + " bytes/call average, over " + numMeasured + " calls");
+			passed &= mapPassed;
+		}
+
+		System.exit(passed ? 0 : 1);
+	}
+}
@@ -0,0 +1,143 @@
+package tests;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ai.abstraction.WorkerRush;
+import ai.core.AI;
+import bot.MyDisappointingRoboticSon;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.Player;
+import rts.UnitActionAssignment;
+import rts.units.Unit;
+import rts.units.UnitTypeTable;
+import utilities.BinaryTraceReader;
+import utilities.BinaryTraceWriter;
+import utilities.DebugUtils;
+
+/**
+ * \brief Checks that a binary trace replays to exactly the states that were recorded
+ * \author Louis
+ *
+ * Plays a headless game against WorkerRush, which keeps its base training workers, while recording it with a short
+ * keyframe period, and describes every recorded state by the units' recorded IDs. The trace is then read back,
+ * forwards cycle by cycle and then backwards (so every state is rebuilt from its keyframe), and each state's
+ * description is compared with the recorded one. Fails if no unit was born between keyframes, since that's the case
+ * the replay has to match births for.
+ *
+ * Run as a Java application (or 'ant BinaryTraceReplayTest'). Exits with status 1 on the first difference.
+ */
+public class BinaryTraceReplayTest {
+	private static final String[] MAPS = {
+		"../microrts/maps/8x8/bases8x8.xml",
+		"../microrts/maps/12x12/basesWorkers12x12.xml"
+	}; /**< Maps to play on */
+
+	private static final int MAX_CYCLES = 1000; /**< Length of each game */
+	private static final int KEYFRAME_PERIOD = 50; /**< Cycles between keyframes, short so that plenty of births fall between them */
+
+	public static void main(String args[]) throws Exception {
+		DebugUtils.setLabelsEnabled(false);
+
+		for (String map : MAPS) {
+			UnitTypeTable utt = new UnitTypeTable();
+			GameState gs = new GameState(PhysicalGameState.load(map, utt), utt);
+			AI bot = new MyDisappointingRoboticSon(utt);
+			AI opponent = new WorkerRush(utt);
+			File traceFile = File.createTempFile("replay", ".mrtb");
+			List<String> recordedStates = new ArrayList<String>();
+			long newestId = -1;
+			int numBirthsBetweenKeyframes = 0;
+			boolean gameover = false;
+
+			traceFile.deleteOnExit();
+
+			// Play and record, describing each state as it's recorded
+			try (BinaryTraceWriter trace = new BinaryTraceWriter(traceFile.getPath(), KEYFRAME_PERIOD)) {
+				while (!gameover && gs.getTime() < MAX_CYCLES) {
+					gs.issueSafe(bot.getAction(0, gs));
+					gs.issueSafe(opponent.getAction(1, gs));
+					trace.record(gs);
+					recordedStates.add(describe(gs, null));
+
+					for (Unit unit : gs.getUnits()) {
+						if (unit.getID() > newestId) {
+							if (newestId >= 0 && gs.getTime() % KEYFRAME_PERIOD != 0) {
+								numBirthsBetweenKeyframes++;
+							}
+
+							newestId = unit.getID();
+						}
+					}
+
+					gameover = gs.cycle();
+				}
+			}
+
+			if (numBirthsBetweenKeyframes == 0) {
+				fail(map + ": no unit was born between keyframes, so the test proves nothing");
+			}
+
+			// Replay forwards, then backwards
+			try (BinaryTraceReader reader = new BinaryTraceReader(traceFile.getPath(), utt)) {
+				for (int time = 0; time < recordedStates.size(); time++) {
+					compare(map, time, recordedStates.get(time), describe(reader.getStateAtTime(time), reader));
+				}
+
+				for (int time = recordedStates.size() - 1; time >= 0; time -= 7) {
+					compare(map, time, recordedStates.get(time), describe(reader.getStateAtTime(time), reader));
+				}
+			}
+
+			System.out.println("OK: " + map + " (" + recordedStates.size() + " cycles, " + numBirthsBetweenKeyframes + " births between keyframes)");
+		}
+	}
+
+	/**
+	 * \brief Returns a description of a state's players, units and actions in progress, by recorded unit ID
+	 * \param gs the state
+	 * \param reader the reader the state was replayed by, or null if it's the recorded state itself
+	 */
+	private static String describe(GameState gs, BinaryTraceReader reader) {
+		Map<Long, String> unitsById = new TreeMap<Long, String>();
+		StringBuilder description = new StringBuilder();
+
+		for (Player player : gs.getPhysicalGameState().getPlayers()) {
+			description.append("player ").append(player.getID()).append(": ").append(player.getResources()).append(" resources\n");
+		}
+
+		for (Unit unit : gs.getUnits()) {
+			UnitActionAssignment assignment = gs.getActionAssignment(unit);
+
+			unitsById.put(reader != null ? reader.getRecordedId(unit) : unit.getID(), unit.getPlayer() + " " + unit.getType().name + " at " + unit.getX() + ", " + unit.getY()
+					+ " hp " + unit.getHitPoints() + " carrying " + unit.getResources() + (assignment != null ? " doing " + assignment.action : ""));
+		}
+
+		for (Map.Entry<Long, String> entry : unitsById.entrySet()) {
+			description.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		}
+
+		return description.toString();
+	}
+
+	/**
+	 * \brief Fails if a replayed state's description differs from the recorded one
+	 */
+	private static void compare(String map, int time, String recorded, String replayed) {
+		if (!recorded.equals(replayed)) {
+			fail(map + " at cycle " + time + "\n  recorded:\n" + recorded + "  replayed:\n" + replayed);
+		}
+	}
+
+	/**
+	 * \brief Prints a failure and exits with status 1
+	 */
+	private static void fail(String message) {
+		System.out.println("FAILED: " + message);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,368 @@
+package tests;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ai.ForwardSimulator;
+import ai.GameEvaluator;
+import ai.MacroPlan;
+import ai.abstraction.LightRush;
+import ai.abstraction.RangedRush;
+import ai.abstraction.WorkerRush;
+import ai.core.AI;
+import bot.MyDisappointingRoboticSon;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.PlayerAction;
+import rts.UnitAction;
+import rts.units.Unit;
+import rts.units.UnitTypeTable;
+import utilities.DangerAwarePathFinding;
+import utilities.DebugUtils;
+import utilities.MapUtils;
+import utilities.UnitUtils;
+
+/**
+ * \brief Microbenchmarks for the bot's hot path, run headless
+ * \author Louis
+ *
+ * First records games by playing the bot against each opponent on each map, cloning every state. Then it times
+ * MyDisappointingRoboticSon.getAction on those games, as well as MapUtils.getDangerTime, UnitUtils.findClosestUnit,
+ * pathfinding, the GameEvaluator and the forward simulator on their own. Reports the average and 99th percentile
+ * latency and the allocation rate of each benchmark.
+ *
+ * The bot and its helpers keep state from tick to tick (the thinkers, the incremental evaluator, the danger map diff,
+ * path reservations, the opponent model...), so each recorded game is replayed in cycle order on a fresh subject,
+ * exactly as it was played, and every pass over the games starts afresh. Only the operation itself is timed and
+ * counted towards the allocations, not setting up the subject.
+ *
+ * Run as a Java application (or 'ant BotBenchmark').
+ */
+public class BotBenchmark {
+	private static final String[] MAPS = {
+		"../microrts/maps/8x8/bases8x8.xml",
+		"../microrts/maps/10x10/basesWorkers10x10.xml",
+		"../microrts/maps/12x12/basesWorkers12x12.xml",
+		"../microrts/maps/24x24/basesWorkers24x24.xml"
+	}; /**< Maps to record games on */
+
+	private static final int RECORD_CYCLES = 1000; /**< How long to play each recording game for */
+	private static final int WARMUP_PASSES = 2; /**< Untimed passes over the games before each benchmark, to let the JIT settle */
+	private static final int MEASURED_PASSES = 3; /**< Timed passes over the games of each benchmark */
+	private static final int MACRO_PLAN_PERIOD = 100; /**< Cycles between timed macro plan searches, which are too slow to run on every state */
+
+	private static com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	/**
+	 * \brief A recorded game: every state of it, in cycle order
+	 */
+	private static class RecordedGame {
+		String map; /**< The map the game was played on */
+		String name; /**< Map and opponent */
+		UnitTypeTable utt; /**< The unit type table of the game */
+		List<GameState> states = new ArrayList<GameState>(); /**< The state at every cycle */
+	}
+
+	/**
+	 * \brief A benchmarked operation on one game's subject, run on each of its states in turn
+	 */
+	@FunctionalInterface
+	private interface Operation {
+		/**
+		 * \brief Runs the operation on a state, timed
+		 */
+		void run(GameState gs) throws Exception;
+
+		/**
+		 * \brief Brings the subject up to a state whose run isn't timed. By default the same as run
+		 */
+		default void advance(GameState gs) throws Exception {
+			run(gs);
+		}
+	}
+
+	/**
+	 * \brief Creates a fresh subject for a game and returns the operation on it
+	 */
+	@FunctionalInterface
+	private interface Setup {
+		Operation start(RecordedGame game) throws Exception;
+	}
+
+	public static void main(String args[]) throws Exception {
+		DebugUtils.setLabelsEnabled(false);
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		System.out.println("Recording games...");
+		List<RecordedGame> games = recordGames();
+		System.out.println("Recorded " + games.size() + " games\n");
+		System.out.println(String.format("%-40s %12s %12s %14s %12s", "benchmark", "avg (us)", "p99 (us)", "alloc (B/op)", "alloc (MB/s)"));
+
+		// The whole bot, on every map separately
+		for (String map : MAPS) {
+			List<RecordedGame> mapGames = getGames(games, map);
+			long[] barracksLookups = new long[2];
+
+			benchmark("getAction " + shortName(map), mapGames, 1, (RecordedGame game) -> {
+				MyDisappointingRoboticSon bot = new MyDisappointingRoboticSon(game.utt);
+
+				return (GameState gs) -> {
+					bot.getAction(0, gs);
+
+					if (gs == game.states.get(game.states.size() - 1)) {
+						barracksLookups[0] += bot.getBarracksCacheHits();
+						barracksLookups[1] += bot.getBarracksCacheMisses();
+					}
+				};
+			});
+			System.out.println(String.format("situation cache hit rate on %s: barracks %.1f%%", shortName(map),
+					barracksLookups[0] + barracksLookups[1] > 0 ? barracksLookups[0] * 100.0 / (barracksLookups[0] + barracksLookups[1]) : 0));
+		}
+
+		// The whole bot with parallel thinkers, and with portfolio search, on the largest map where they matter most
+		List<RecordedGame> largestMapGames = getGames(games, MAPS[MAPS.length - 1]);
+
+		benchmark("getAction (parallel) " + shortName(MAPS[MAPS.length - 1]), largestMapGames, 1, (RecordedGame game) -> {
+			MyDisappointingRoboticSon bot = new MyDisappointingRoboticSon(game.utt);
+
+			bot.setParallelThinkersEnabled(true);
+			bot.setParallelThinkersThreshold(0);
+			return (GameState gs) -> bot.getAction(0, gs);
+		});
+		benchmark("getAction (portfolio search) " + shortName(MAPS[MAPS.length - 1]), largestMapGames, 1, (RecordedGame game) -> {
+			MyDisappointingRoboticSon bot = new MyDisappointingRoboticSon(game.utt);
+
+			bot.setPortfolioSearchEnabled(true);
+			return (GameState gs) -> bot.getAction(0, gs);
+		});
+
+		// Individual components, each game on fresh utilities
+		benchmark("UnitUtils.tick", games, 1, (RecordedGame game) -> {
+			UnitUtils units = new UnitUtils(game.utt);
+
+			return (GameState gs) -> units.tick(0, gs);
+		});
+		benchmark("getDangerTime (tick + every tile)", games, 1, (RecordedGame game) -> {
+			UnitUtils units = new UnitUtils(game.utt);
+
+			return (GameState gs) -> {
+				PhysicalGameState pgs = gs.getPhysicalGameState();
+
+				units.tick(0, gs);
+
+				for (int y = 0; y < pgs.getHeight(); y++) {
+					for (int x = 0; x < pgs.getWidth(); x++) {
+						MapUtils.getDangerTime(x, y, 1, units);
+					}
+				}
+			};
+		});
+		benchmark("findClosestUnit (every unit)", games, 1, (RecordedGame game) -> {
+			UnitUtils units = new UnitUtils(game.utt);
+
+			return (GameState gs) -> {
+				units.tick(0, gs);
+
+				for (Unit u : units.myUnits) {
+					units.findClosestUnit(u.getX(), u.getY(), units.isEnemyCondition);
+				}
+			};
+		});
+		benchmark("step + danger check to closest enemy (every mobile unit)", games, 1, (RecordedGame game) -> {
+			UnitUtils units = new UnitUtils(game.utt);
+
+			return (GameState gs) -> {
+				units.tick(0, gs);
+
+				for (Unit u : units.myUnits) {
+					Unit enemy = u.getType().canMove ? units.findClosestUnit(u.getX(), u.getY(), units.isEnemyCondition) : null;
+
+					if (enemy != null) {
+						int direction = units.getPathService().getStepDirection(u.getX(), u.getY(), MapUtils.toPosition(enemy.getX(), enemy.getY(), gs), 1);
+
+						if (direction != UnitAction.DIRECTION_NONE) {
+							MapUtils.getDangerTimeAssumingEnemiesCharge(u.getX() + UnitAction.DIRECTION_OFFSET_X[direction], u.getY() + UnitAction.DIRECTION_OFFSET_Y[direction], 1, u.getMoveTime(), units);
+						}
+					}
+				}
+			};
+		});
+		benchmark("danger-aware path to closest enemy (every mobile unit)", games, 1, (RecordedGame game) -> {
+			UnitUtils units = new UnitUtils(game.utt);
+			DangerAwarePathFinding safePathFinding = new DangerAwarePathFinding(units);
+
+			return (GameState gs) -> {
+				units.tick(0, gs);
+
+				for (Unit u : units.myUnits) {
+					Unit enemy = u.getType().canMove ? units.findClosestUnit(u.getX(), u.getY(), units.isEnemyCondition) : null;
+
+					if (enemy != null) {
+						safePathFinding.findFirstStep(u, MapUtils.toPosition(enemy.getX(), enemy.getY(), gs), 1, gs);
+					}
+				}
+			};
+		});
+		benchmark("GameEvaluator (from scratch)", games, 1, (RecordedGame game) -> {
+			UnitUtils units = new UnitUtils(game.utt);
+
+			return (GameState gs) -> {
+				units.tick(0, gs);
+				new GameEvaluator(0, gs, units);
+			};
+		});
+		benchmark("GameEvaluator.update (incremental)", games, 1, (RecordedGame game) -> {
+			UnitUtils units = new UnitUtils(game.utt);
+			GameEvaluator evaluator = new GameEvaluator(0, units);
+
+			return (GameState gs) -> {
+				units.tick(0, gs);
+				evaluator.update(gs);
+			};
+		});
+		benchmark("ForwardSimulator.choosePlan (300 cycles)", games, MACRO_PLAN_PERIOD, (RecordedGame game) -> {
+			UnitUtils units = new UnitUtils(game.utt);
+			ForwardSimulator simulator = new ForwardSimulator(units);
+			ForwardSimulator.State root = new ForwardSimulator.State(), scratch = new ForwardSimulator.State();
+			List<MacroPlan> candidates = MacroPlan.getCandidates(units), scripts = MacroPlan.getOpponentScripts(units);
+
+			return new Operation() {
+				@Override
+				public void run(GameState gs) {
+					units.tick(0, gs);
+					simulator.capture(gs, root);
+					simulator.choosePlan(root, 0, candidates, scripts, 300, scratch, null);
+				}
+
+				@Override
+				public void advance(GameState gs) {
+					units.tick(0, gs);
+				}
+			};
+		});
+	}
+
+	/**
+	 * \brief Plays the bot against every opponent on every map, recording a clone of every state
+	 */
+	private static List<RecordedGame> recordGames() throws Exception {
+		List<RecordedGame> games = new ArrayList<RecordedGame>();
+
+		for (String map : MAPS) {
+			UnitTypeTable utt = new UnitTypeTable();
+			AI[] opponents = { new RangedRush(utt), new LightRush(utt), new WorkerRush(utt) };
+
+			for (AI opponent : opponents) {
+				GameState gs = new GameState(PhysicalGameState.load(map, utt), utt);
+				AI bot = new MyDisappointingRoboticSon(utt);
+				RecordedGame game = new RecordedGame();
+				boolean gameover = false;
+
+				game.map = map;
+				game.name = map + " vs " + opponent.getClass().getSimpleName();
+				game.utt = utt;
+
+				while (!gameover && gs.getTime() < RECORD_CYCLES) {
+					game.states.add(gs.clone());
+
+					PlayerAction pa1 = bot.getAction(0, gs);
+					PlayerAction pa2 = opponent.getAction(1, gs);
+					gs.issueSafe(pa1);
+					gs.issueSafe(pa2);
+					gameover = gs.cycle();
+				}
+
+				games.add(game);
+			}
+		}
+
+		return games;
+	}
+
+	/**
+	 * \brief Returns the recorded games played on a map
+	 */
+	private static List<RecordedGame> getGames(List<RecordedGame> games, String map) {
+		List<RecordedGame> mapGames = new ArrayList<RecordedGame>();
+
+		for (RecordedGame game : games) {
+			if (game.map.equals(map)) {
+				mapGames.add(game);
+			}
+		}
+
+		return mapGames;
+	}
+
+	/**
+	 * \brief Replays every game in cycle order on a fresh subject, pass after pass, and prints the latency and
+	 * allocation statistics of the operation on the timed states
+	 * \param name the name of the benchmark
+	 * \param games the games to replay
+	 * \param period only states whose cycle is a multiple of this are timed; the subject is advanced through the others
+	 * \param setup creates the subject of each game
+	 */
+	private static void benchmark(String name, List<RecordedGame> games, int period, Setup setup) throws Exception {
+		long threadId = Thread.currentThread().getId();
+		int timedPerPass = 0;
+
+		for (RecordedGame game : games) {
+			for (GameState gs : game.states) {
+				if (gs.getTime() % period == 0) {
+					timedPerPass++;
+				}
+			}
+		}
+
+		long[] latencies = new long[timedPerPass * MEASURED_PASSES];
+		int numTimed = 0;
+		long bytes = 0;
+		long totalTime = 0;
+
+		for (int pass = 0; pass < WARMUP_PASSES + MEASURED_PASSES; pass++) {
+			boolean isMeasured = pass >= WARMUP_PASSES;
+
+			for (RecordedGame game : games) {
+				Operation operation = setup.start(game);
+
+				for (GameState gs : game.states) {
+					if (!isMeasured || gs.getTime() % period != 0) {
+						if (gs.getTime() % period == 0) {
+							operation.run(gs);
+						} else {
+							operation.advance(gs);
+						}
+
+						continue;
+					}
+
+					long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+					long startTime = System.nanoTime();
+
+					operation.run(gs);
+					latencies[numTimed] = System.nanoTime() - startTime;
+					bytes += threadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+					totalTime += latencies[numTimed];
+					numTimed++;
+				}
+			}
+		}
+
+		Arrays.sort(latencies);
+
+		double averageMicros = totalTime / 1000.0 / numTimed;
+		double p99Micros = latencies[(int)(numTimed * 0.99)] / 1000.0;
+		double megabytesPerSecond = (bytes / (1024.0 * 1024.0)) / (totalTime / 1e9);
+
+		System.out.println(String.format("%-40s %12.2f %12.2f %14d %12.2f", name, averageMicros, p99Micros, bytes / numTimed, megabytesPerSecond));
+	}
+
+	/**
+	 * \brief Returns the file name of a map without its folders or extension
+	 */
+	private static String shortName(String map) {
+		return map.substring(map.lastIndexOf('/') + 1, map.lastIndexOf('.'));
+	}
+}
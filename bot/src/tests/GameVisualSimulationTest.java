@@ -40,6 +40,7 @@ import rts.PlayerAction;
 import rts.Trace;
 import rts.units.UnitTypeTable;
 import util.XMLWriter;
+import utilities.BinaryTraceReader;
 import utilities.DebugUtils;
 
 /**
@@ -54,6 +55,7 @@ public class GameVisualSimulationTest implements KeyListener, WindowListener {
 	private boolean gameover = false;
 
     Trace currentTrace = null;
+    BinaryTraceReader binaryTrace = null;
     int currentGameCycle = 0;
     
     PhysicalGameStatePanel statePanel = null;
@@ -89,6 +91,7 @@ public class GameVisualSimulationTest implements KeyListener, WindowListener {
         
         // uncomment this to load an existing trace
         //loadTrace();
+        //loadBinaryTrace("../trace.mrtb", utt);
         
         // Set the debug labels if the capability exists
         for (Field field : PhysicalGameStatePanel.class.getFields()) {
@@ -137,7 +140,7 @@ public class GameVisualSimulationTest implements KeyListener, WindowListener {
             // Simulate!
             if (System.currentTimeMillis()>=nextTimeToUpdate) {
             	if (speed != 0) {
-            		if (currentTrace == null) {
+            		if (currentTrace == null && binaryTrace == null) {
             			// simulate the real game
 		                PlayerAction pa1 = ai1.getAction(0, gs);
 		                PlayerAction pa2 = ai2.getAction(1, gs);
@@ -147,7 +150,7 @@ public class GameVisualSimulationTest implements KeyListener, WindowListener {
 		                // simulate:
 		                gameover = gs.cycle();
             		} else {
-            	        GameState tmp_gs = currentTrace.getGameStateAtCycle(currentGameCycle++);
+            	        GameState tmp_gs = currentTrace != null ? currentTrace.getGameStateAtCycle(currentGameCycle++) : binaryTrace.getStateAtTime(currentGameCycle++);
             	        
             	        w.setStateDirect(tmp_gs);
             	        w.repaint();
@@ -179,6 +182,15 @@ public class GameVisualSimulationTest implements KeyListener, WindowListener {
             ex.printStackTrace();
         }
     }
+
+    public void loadBinaryTrace(String path, UnitTypeTable utt) {
+        try {
+            binaryTrace = new BinaryTraceReader(path, utt);
+            currentGameCycle = binaryTrace.getFirstTime();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
     
 	@Override
 	public void keyPressed(KeyEvent arg0) {
@@ -0,0 +1,92 @@
+package tests;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import ai.abstraction.LightRush;
+import ai.abstraction.RangedRush;
+import ai.abstraction.WorkerRush;
+import ai.core.AI;
+import bot.MyDisappointingRoboticSon;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.PlayerAction;
+import rts.UnitAction;
+import rts.units.Unit;
+import rts.units.UnitTypeTable;
+import util.Pair;
+import utilities.DebugUtils;
+
+/**
+ * \brief Checks that ticking the thinkers in parallel chooses exactly the same actions as ticking them in order
+ * \author Louis
+ *
+ * Two copies of the bot, one sequential and one parallel, play in lockstep: both are asked for an action on the
+ * same state every cycle and their actions are compared. The time budget is effectively unlimited so that neither
+ * copy cuts corners. Exits with status 1 on the first difference.
+ *
+ * Run as a Java application (or 'ant ParallelThinkerEquivalenceTest').
+ */
+public class ParallelThinkerEquivalenceTest {
+	private static final String[] MAPS = {
+		"../microrts/maps/8x8/bases8x8.xml",
+		"../microrts/maps/12x12/basesWorkers12x12.xml",
+		"../microrts/maps/24x24/basesWorkers24x24.xml"
+	}; /**< Maps to play on */
+
+	private static final int MAX_CYCLES = 3000; /**< Length of each game */
+	private static final int UNLIMITED_BUDGET = 1000000; /**< Time budget given to both bots, in milliseconds */
+
+	public static void main(String args[]) throws Exception {
+		DebugUtils.setLabelsEnabled(false);
+
+		for (String map : MAPS) {
+			UnitTypeTable utt = new UnitTypeTable();
+			AI[] opponents = { new WorkerRush(utt), new LightRush(utt), new RangedRush(utt) };
+
+			for (AI opponent : opponents) {
+				GameState gs = new GameState(PhysicalGameState.load(map, utt), utt);
+				MyDisappointingRoboticSon sequentialBot = new MyDisappointingRoboticSon(utt);
+				MyDisappointingRoboticSon parallelBot = new MyDisappointingRoboticSon(utt);
+				boolean gameover = false;
+
+				sequentialBot.setParallelThinkersEnabled(false);
+				sequentialBot.setTimeBudget(UNLIMITED_BUDGET);
+				parallelBot.setParallelThinkersEnabled(true);
+				parallelBot.setParallelThinkersThreshold(0);
+				parallelBot.setTimeBudget(UNLIMITED_BUDGET);
+
+				while (!gameover && gs.getTime() < MAX_CYCLES) {
+					PlayerAction sequentialAction = sequentialBot.getAction(0, gs);
+					PlayerAction parallelAction = parallelBot.getAction(0, gs);
+
+					if (!describe(sequentialAction).equals(describe(parallelAction))) {
+						System.out.println("FAILED: " + map + " vs " + opponent.getClass().getSimpleName() + " at cycle " + gs.getTime());
+						System.out.println("  sequential: " + describe(sequentialAction));
+						System.out.println("  parallel:   " + describe(parallelAction));
+						System.exit(1);
+					}
+
+					gs.issueSafe(sequentialAction);
+					gs.issueSafe(opponent.getAction(1, gs));
+					gameover = gs.cycle();
+				}
+
+				System.out.println("OK: " + map + " vs " + opponent.getClass().getSimpleName() + " (" + gs.getTime() + " cycles)");
+			}
+		}
+	}
+
+	/**
+	 * \brief Returns a description of a player action that doesn't depend on the order of its unit actions
+	 */
+	private static String describe(PlayerAction playerAction) {
+		Map<Long, String> actionsById = new TreeMap<Long, String>();
+
+		for (Pair<Unit, UnitAction> unitAction : playerAction.getActions()) {
+			actionsById.put(unitAction.m_a.getID(), unitAction.m_b.toString());
+		}
+
+		return actionsById.toString();
+	}
+}
@@ -0,0 +1,213 @@
+package tests;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ai.abstraction.HeavyRush;
+import ai.abstraction.LightRush;
+import ai.abstraction.RangedRush;
+import ai.abstraction.WorkerRush;
+import ai.core.AI;
+import bot.MyDisappointingRoboticSon;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.PlayerAction;
+import rts.units.UnitTypeTable;
+import utilities.BinaryTraceWriter;
+import utilities.DebugUtils;
+import utilities.LatencyHistogram;
+
+/**
+ * \brief Plays batches of headless games between the bot and the scripted opponents on every core
+ * \author Louis
+ *
+ * Every combination of map, opponent and player slot is played GAMES_PER_PAIRING times. Each game is a task on a
+ * fixed thread pool with its own GameState and its own clones of both AIs, so games never share mutable state.
+ * Prints wins/draws/losses and game length for each map and opponent, followed by a histogram of the bot's
+ * per-tick decision latency.
+ *
+ * Run as a Java application (or 'ant TournamentRunner'). Optional arguments: [games per pairing] [threads]
+ * With -Dbot.traceDir=[directory], every game is also recorded there as a binary trace (see BinaryTraceWriter).
+ */
+public class TournamentRunner {
+	private static final String[] MAPS = {
+		"../microrts/maps/8x8/bases8x8.xml",
+		"../microrts/maps/8x8/basesWorkers8x8Obstacle.xml",
+		"../microrts/maps/10x10/basesWorkers10x10.xml",
+		"../microrts/maps/12x12/basesWorkers12x12.xml",
+		"../microrts/maps/24x24/basesWorkers24x24.xml",
+		"../microrts/maps/noWhereToRun9x8.xml"
+	}; /**< Maps to play on */
+
+	private static final int MAX_CYCLES = 5000; /**< Games still running after this many cycles are draws */
+
+	private static final String TRACE_DIR = System.getProperty("bot.traceDir"); /**< Directory to record binary traces in, or null */
+
+	private static final int WIN = 0, DRAW = 1, LOSS = 2; /**< Result indices */
+
+	/**
+	 * \brief Results of every game between the bot and one opponent on one map
+	 */
+	private static class PairingResults {
+		final AtomicLongArray results = new AtomicLongArray(3); /**< Number of wins, draws and losses */
+		final AtomicLongArray totalCycles = new AtomicLongArray(1); /**< Sum of the lengths of every game */
+	}
+
+	public static void main(String args[]) throws Exception {
+		int gamesPerPairing = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		// Labels are shared between every bot, so recording them from several games at once would be a race
+		DebugUtils.setLabelsEnabled(false);
+
+		UnitTypeTable utt = new UnitTypeTable();
+		AI bot = new MyDisappointingRoboticSon(utt);
+		AI[] opponents = { new WorkerRush(utt), new LightRush(utt), new RangedRush(utt), new HeavyRush(utt) };
+
+		Map<String, PairingResults> pairings = new LinkedHashMap<String, PairingResults>();
+		LatencyHistogram latency = new LatencyHistogram();
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<?>> games = new ArrayList<Future<?>>();
+		long startTime = System.currentTimeMillis();
+
+		// Queue every game
+		for (String map : MAPS) {
+			for (AI opponent : opponents) {
+				PairingResults pairing = new PairingResults();
+
+				pairings.put(map.substring(map.lastIndexOf('/') + 1) + " vs " + opponent.getClass().getSimpleName(), pairing);
+
+				for (int slot = 0; slot < 2; slot++) {
+					for (int game = 0; game < gamesPerPairing; game++) {
+						final int botSlot = slot;
+						final String tracePath = TRACE_DIR != null ? TRACE_DIR + "/" + map.substring(map.lastIndexOf('/') + 1).replace(".xml", "")
+								+ "_" + opponent.getClass().getSimpleName() + "_p" + slot + "_" + game + ".mrtb" : null;
+
+						games.add(executor.submit(() -> {
+							playGame(map, utt, bot.clone(), opponent.clone(), botSlot, pairing, latency, tracePath);
+							return null;
+						}));
+					}
+				}
+			}
+		}
+
+		// Wait for them to finish, rethrowing any failure
+		for (Future<?> game : games) {
+			game.get();
+		}
+
+		executor.shutdown();
+
+		System.out.println(String.format("Played %d games on %d threads in %.1fs\n", games.size(), numThreads, (System.currentTimeMillis() - startTime) / 1000.0));
+		printResults(pairings);
+		printLatency(latency);
+	}
+
+	/**
+	 * \brief Plays one game to the end and records its result
+	 * \param map path of the map to load
+	 * \param utt the unit type table
+	 * \param bot a fresh instance of the bot
+	 * \param opponent a fresh instance of the opponent
+	 * \param botSlot the player index of the bot (0 or 1)
+	 * \param pairing where to record the result
+	 * \param latency where to record the bot's per-tick decision time
+	 * \param tracePath where to record the game's binary trace, or null
+	 */
+	private static void playGame(String map, UnitTypeTable utt, AI bot, AI opponent, int botSlot, PairingResults pairing, LatencyHistogram latency, String tracePath) throws Exception {
+		GameState gs = new GameState(PhysicalGameState.load(map, utt), utt);
+		LatencyHistogram gameLatency = new LatencyHistogram();
+		BinaryTraceWriter trace = tracePath != null ? new BinaryTraceWriter(tracePath) : null;
+		boolean gameover = false;
+
+		while (!gameover && gs.getTime() < MAX_CYCLES) {
+			long tickStartTime = System.nanoTime();
+			PlayerAction botAction = bot.getAction(botSlot, gs);
+
+			gameLatency.record(System.nanoTime() - tickStartTime);
+
+			PlayerAction opponentAction = opponent.getAction(1 - botSlot, gs);
+
+			gs.issueSafe(botAction);
+			gs.issueSafe(opponentAction);
+
+			if (trace != null) {
+				trace.record(gs);
+			}
+
+			gameover = gs.cycle();
+		}
+
+		if (trace != null) {
+			trace.close();
+		}
+
+		// Record the result
+		int winner = gs.winner();
+
+		if (winner == -1 || !gameover) {
+			pairing.results.incrementAndGet(DRAW);
+		} else if (winner == botSlot) {
+			pairing.results.incrementAndGet(WIN);
+		} else {
+			pairing.results.incrementAndGet(LOSS);
+		}
+
+		pairing.totalCycles.addAndGet(0, gs.getTime());
+		latency.merge(gameLatency);
+	}
+
+	/**
+	 * \brief Prints the results of every pairing and the totals
+	 */
+	private static void printResults(Map<String, PairingResults> pairings) {
+		long[] totals = new long[3];
+
+		System.out.println(String.format("%-50s %6s %6s %6s %12s", "pairing", "win", "draw", "loss", "avg length"));
+
+		for (Map.Entry<String, PairingResults> entry : pairings.entrySet()) {
+			PairingResults pairing = entry.getValue();
+			long numGames = 0;
+
+			for (int i = 0; i < 3; i++) {
+				totals[i] += pairing.results.get(i);
+				numGames += pairing.results.get(i);
+			}
+
+			System.out.println(String.format("%-50s %6d %6d %6d %12d", entry.getKey(), pairing.results.get(WIN), pairing.results.get(DRAW),
+					pairing.results.get(LOSS), numGames > 0 ? pairing.totalCycles.get(0) / numGames : 0));
+		}
+
+		System.out.println(String.format("%-50s %6d %6d %6d\n", "total", totals[WIN], totals[DRAW], totals[LOSS]));
+	}
+
+	/**
+	 * \brief Prints a summary and the non-empty powers of two of the decision latency histogram
+	 */
+	private static void printLatency(LatencyHistogram latency) {
+		System.out.println(String.format("Decision latency over %d ticks: mean %.1fus, p50 <%.1fus, p99 <%.1fus, p99.9 <%.1fus, max %.1fus",
+				latency.getCount(), latency.getMean() / 1000.0, latency.getPercentile(50) / 1000.0, latency.getPercentile(99) / 1000.0,
+				latency.getPercentile(99.9) / 1000.0, latency.getMax() / 1000.0));
+
+		// Each run of SUB_BUCKETS buckets covers one power of two
+		for (int first = 0; first < LatencyHistogram.getNumBuckets(); first += LatencyHistogram.SUB_BUCKETS) {
+			int last = first + LatencyHistogram.SUB_BUCKETS - 1;
+			long count = 0;
+
+			for (int i = first; i <= last; i++) {
+				count += latency.getBucketCount(i);
+			}
+
+			if (count > 0) {
+				System.out.println(String.format("  <%10.1fus %10d", (LatencyHistogram.getBucketUpperBound(last) + 1) / 1000.0, count));
+			}
+		}
+	}
+}
@@ -0,0 +1,523 @@
+package utilities;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.Player;
+import rts.PlayerAction;
+import rts.UnitAction;
+import rts.UnitActionAssignment;
+import rts.units.Unit;
+import rts.units.UnitTypeTable;
+
+/**
+ * \brief Reads a trace written by BinaryTraceWriter, with random access to any cycle
+ * \author Louis
+ *
+ * The file is memory-mapped, so opening it costs next to nothing and only the parts that are read are paged in.
+ * To get the state at a cycle, the reader rebuilds the state from the last keyframe at or before it, then cycles
+ * it forward, issuing the recorded actions as it goes. Moving forward a little from the last cycle asked for carries
+ * on from where it left off, so playing a trace back from start to end simulates each cycle once.
+ *
+ * A trace that wasn't closed (e.g. the game crashed) has no index; the keyframes are then found by scanning the
+ * records, and the trace ends at the last complete record.
+ *
+ * A state is as it was recorded: after that cycle's actions were issued, before it was cycled. microRTS offers no
+ * way to set a GameState's time, so it is set through reflection if possible, and otherwise the rebuilt state
+ * counts from 0 at its keyframe; the times of actions in progress are shifted to match either way.
+ *
+ * Units in a rebuilt state are numbered by this process like any other new units, so their IDs aren't the recorded
+ * ones, and the reader never touches Unit.next_ID. Instead it keeps a map from each recorded ID to its unit: the
+ * keyframe's units are mapped as they are made, and each unit the replay produces is matched to the birth recorded
+ * on its tile. getUnit() and getRecordedId() translate between the two. If the replay stops matching the recording
+ * (a recorded action's unit is missing, or a unit is born that wasn't recorded, or the other way round), the reader
+ * throws an IllegalStateException rather than carry on with a different game.
+ */
+public class BinaryTraceReader implements AutoCloseable {
+	private final FileChannel channel; /**< The trace file */
+	private final MappedByteBuffer data; /**< The mapped file */
+	private final UnitTypeTable utt; /**< Unit types, by the IDs in the trace */
+
+	// Header
+	private int width = 0; /**< Width of the map */
+	private int height = 0; /**< Height of the map */
+	private boolean[] walls = new boolean[0]; /**< Whether each tile is a wall */
+	private int dataEnd = 0; /**< Offset after the last record */
+	private int lastTime = -1; /**< The last recorded time */
+
+	// Keyframe index
+	private int[] keyframeTimes = new int[16]; /**< Time of each keyframe */
+	private int[] keyframeOffsets = new int[16]; /**< File offset of each keyframe */
+	private int numKeyframes = 0; /**< Number of keyframes */
+
+	// Playback cursor
+	private GameState cursorState = null; /**< The state most recently returned */
+	private int cursorTime = -1; /**< The recorded time of cursorState */
+	private int cursorOffset = 0; /**< Offset of the next record to apply to cursorState */
+	private int cursorRecordTime = 0; /**< Time of the record before cursorOffset, which the next time delta is from */
+	private int cursorKeyframe = -1; /**< The keyframe cursorState was rebuilt from */
+	private final LongObjectMap<Unit> unitsByRecordedId = new LongObjectMap<Unit>(); /**< The unit of cursorState with each recorded ID, including units that have since died */
+	private final LongObjectMap<Long> recordedIds = new LongObjectMap<Long>(); /**< The recorded ID of each unit of cursorState, by the unit's own ID */
+
+	private static Field timeField = findTimeField(); /**< GameState's time field, or null if it can't be set */
+
+	/**
+	 * \brief Opens a trace
+	 * \param path the path of the file
+	 * \param utt the unit type table the game was played with
+	 */
+	public BinaryTraceReader(String path, UnitTypeTable utt) throws IOException {
+		this.utt = utt;
+		this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+		this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+		readHeader();
+
+		if (!readIndex()) {
+			scanRecords();
+		}
+	}
+
+	/**
+	 * \brief Returns the first recorded time, or -1 if nothing was recorded
+	 */
+	public int getFirstTime() {
+		return numKeyframes > 0 ? keyframeTimes[0] : -1;
+	}
+
+	/**
+	 * \brief Returns the last recorded time, or -1 if nothing was recorded
+	 */
+	public int getLastTime() {
+		return lastTime;
+	}
+
+	/**
+	 * \brief Returns the state at a recorded time. The state belongs to the reader, and changes with the next call;
+	 * clone it to keep it
+	 * \param time the recorded time, clamped to the recorded range
+	 * \return the state, or null if nothing was recorded
+	 * \throws IllegalStateException if the replay stops matching the recording
+	 */
+	public GameState getStateAtTime(int time) {
+		if (numKeyframes == 0) {
+			return null;
+		}
+
+		time = Math.max(Math.min(time, lastTime), keyframeTimes[0]);
+
+		int keyframe = findKeyframe(time);
+
+		// Carry on from the cursor if it's on the way, otherwise start again from the keyframe
+		if (cursorState == null || keyframe != cursorKeyframe || time < cursorTime) {
+			readKeyframe(keyframe);
+		}
+
+		while (cursorTime < time) {
+			int nextRecordTime = Integer.MAX_VALUE;
+
+			if (cursorOffset < dataEnd && data.get(cursorOffset) == BinaryTraceWriter.TAG_ACTIONS) {
+				data.position(cursorOffset + 1);
+				nextRecordTime = cursorRecordTime + (int)readVarint();
+			}
+
+			// Cycle up to the next record, or the time asked for
+			while (cursorTime < Math.min(nextRecordTime, time)) {
+				cursorState.cycle();
+				cursorTime++;
+			}
+
+			if (cursorTime == nextRecordTime) {
+				readActions();
+			}
+		}
+
+		return cursorState;
+	}
+
+	/**
+	 * \brief Returns the unit of the last state returned that had an ID in the recorded game
+	 * \param recordedId the unit's ID in the recorded game
+	 * \return the unit, or null if there was no such unit or it has died
+	 */
+	public Unit getUnit(long recordedId) {
+		Unit unit = unitsByRecordedId.get(recordedId);
+
+		return unit != null && unit.getHitPoints() > 0 ? unit : null;
+	}
+
+	/**
+	 * \brief Returns the ID a unit of the last state returned had in the recorded game
+	 * \param unit the unit
+	 * \return the recorded ID, or -1 if the unit isn't part of the replay
+	 */
+	public long getRecordedId(Unit unit) {
+		Long recordedId = recordedIds.get(unit.getID());
+
+		return recordedId != null ? recordedId : -1;
+	}
+
+	/**
+	 * \brief Closes the file. The mapping stays valid until it is garbage collected
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * \brief Reads the header: the map's size and terrain
+	 */
+	private void readHeader() throws IOException {
+		data.position(0);
+
+		if (data.remaining() < 4 || data.getInt() != BinaryTraceWriter.MAGIC) {
+			throw new IOException("Not a binary trace");
+		}
+
+		int version = (int)readVarint();
+
+		if (version != BinaryTraceWriter.VERSION) {
+			throw new IOException("Unsupported binary trace version " + version);
+		}
+
+		width = (int)readVarint();
+		height = (int)readVarint();
+		readVarint(); // Keyframe period
+		walls = new boolean[width * height];
+
+		for (int start = 0; start < width * height; start += 8) {
+			int bits = data.get();
+
+			for (int bit = 0; bit < 8 && start + bit < width * height; bit++) {
+				walls[start + bit] = (bits & (1 << bit)) != 0;
+			}
+		}
+
+		dataEnd = data.position();
+	}
+
+	/**
+	 * \brief Reads the keyframe index from the end of a closed trace
+	 * \return false if the trace wasn't closed
+	 */
+	private boolean readIndex() {
+		int size = data.capacity();
+
+		if (size < dataEnd + 12 || data.getInt(size - 4) != BinaryTraceWriter.FOOTER_MAGIC) {
+			return false;
+		}
+
+		int indexOffset = (int)data.getLong(size - 12);
+
+		if (indexOffset < dataEnd || data.get(indexOffset) != BinaryTraceWriter.TAG_INDEX) {
+			return false;
+		}
+
+		data.position(indexOffset + 1);
+		lastTime = (int)readVarint();
+
+		int count = (int)readVarint();
+		int time = 0, offset = 0;
+
+		for (int i = 0; i < count; i++) {
+			time += (int)readVarint();
+			offset += (int)readVarint();
+			addKeyframe(time, offset);
+		}
+
+		dataEnd = indexOffset;
+		return true;
+	}
+
+	/**
+	 * \brief Finds the keyframes and the end of the data by reading every record
+	 */
+	private void scanRecords() {
+		int offset = dataEnd, recordTime = 0;
+
+		try {
+			while (offset < data.capacity()) {
+				byte tag = data.get(offset);
+
+				data.position(offset + 1);
+
+				if (tag == BinaryTraceWriter.TAG_KEYFRAME) {
+					recordTime = (int)readVarint();
+					skipKeyframeBody();
+					addKeyframe(recordTime, offset);
+				} else if (tag == BinaryTraceWriter.TAG_ACTIONS) {
+					recordTime += (int)readVarint();
+
+					for (int count = (int)readVarint(); count > 0; count--) {
+						for (int field = 0; field < 4; field++) {
+							readVarint();
+						}
+					}
+
+					for (int count = (int)readVarint(); count > 0; count--) {
+						readVarint();
+						readAction();
+					}
+				} else {
+					break;
+				}
+
+				// Only complete records count
+				offset = data.position();
+				lastTime = recordTime;
+			}
+		} catch (BufferUnderflowException e) {
+			// The last record was cut off
+		}
+
+		dataEnd = offset;
+	}
+
+	/**
+	 * \brief Reads past the players, units and actions of a keyframe
+	 */
+	private void skipKeyframeBody() {
+		for (int count = (int)readVarint(); count > 0; count--) {
+			readVarint();
+		}
+
+		for (int count = (int)readVarint(); count > 0; count--) {
+			for (int field = 0; field < 7; field++) {
+				readVarint();
+			}
+		}
+
+		for (int count = (int)readVarint(); count > 0; count--) {
+			readVarint();
+			readVarint();
+			readAction();
+		}
+	}
+
+	/**
+	 * \brief Rebuilds the state of a keyframe into the cursor
+	 */
+	private void readKeyframe(int keyframe) {
+		data.position(keyframeOffsets[keyframe] + 1);
+
+		int time = (int)readVarint();
+		PhysicalGameState pgs = new PhysicalGameState(width, height);
+
+		for (int position = 0; position < width * height; position++) {
+			pgs.setTerrain(position % width, position / width, walls[position] ? PhysicalGameState.TERRAIN_WALL : PhysicalGameState.TERRAIN_NONE);
+		}
+
+		// Players
+		for (int player = 0, count = (int)readVarint(); player < count; player++) {
+			pgs.addPlayer(new Player(player, (int)readVarint()));
+		}
+
+		// Units, numbered afresh
+		long id = 0;
+
+		unitsByRecordedId.clear();
+		recordedIds.clear();
+
+		for (int count = (int)readVarint(); count > 0; count--) {
+			id += readVarint();
+
+			int player = (int)readVarint() - 1;
+			int type = (int)readVarint();
+			int x = (int)readVarint(), y = (int)readVarint();
+			int hitPoints = (int)readVarint();
+			int resources = (int)readVarint();
+			Unit unit = new Unit(player, utt.getUnitType(type), x, y, resources);
+
+			unit.setHitPoints(hitPoints);
+			pgs.addUnit(unit);
+			mapUnit(id, unit);
+		}
+
+		GameState gs = new GameState(pgs, utt);
+		int stateTime = setTime(gs, time);
+
+		// Actions in progress, with their start times shifted to the state's clock
+		id = 0;
+
+		for (int count = (int)readVarint(); count > 0; count--) {
+			id += readVarint();
+
+			int age = (int)readVarint();
+			UnitAction action = readAction();
+			Unit unit = unitsByRecordedId.get(id);
+
+			if (unit == null) {
+				throw new IllegalStateException("Keyframe at cycle " + time + " has an action for unit " + id + ", which it doesn't have");
+			}
+
+			gs.getUnitActions().put(unit, new UnitActionAssignment(unit, action, stateTime - age));
+		}
+
+		cursorState = gs;
+		cursorTime = time;
+		cursorOffset = data.position();
+		cursorRecordTime = time;
+		cursorKeyframe = keyframe;
+	}
+
+	/**
+	 * \brief Matches the births of the record at the cursor to the units the replay produced, issues its actions,
+	 * and moves the cursor past it
+	 */
+	private void readActions() {
+		data.position(cursorOffset + 1);
+		cursorRecordTime += (int)readVarint();
+
+		// Each recorded birth is the unproduced unit on its tile
+		long id = 0;
+
+		for (int count = (int)readVarint(); count > 0; count--) {
+			id += readVarint();
+
+			int type = (int)readVarint();
+			int x = (int)readVarint(), y = (int)readVarint();
+			Unit unit = cursorState.getPhysicalGameState().getUnitAt(x, y);
+
+			if (unit == null || unit.getType().ID != type || recordedIds.containsKey(unit.getID())) {
+				throw new IllegalStateException("Replay diverged at cycle " + cursorTime + ": unit " + id + " was born at " + x + ", " + y + " but the replay has no new unit there");
+			}
+
+			mapUnit(id, unit);
+		}
+
+		// Every unit the replay produced should have been recorded
+		for (Unit unit : cursorState.getUnits()) {
+			if (!recordedIds.containsKey(unit.getID())) {
+				throw new IllegalStateException("Replay diverged at cycle " + cursorTime + ": unit " + unit.getID() + " at " + unit.getX() + ", " + unit.getY() + " was born in the replay but not in the recorded game");
+			}
+		}
+
+		PlayerAction actions = new PlayerAction();
+
+		id = 0;
+
+		for (int count = (int)readVarint(); count > 0; count--) {
+			id += readVarint();
+
+			UnitAction action = readAction();
+			Unit unit = getUnit(id);
+
+			if (unit == null) {
+				throw new IllegalStateException("Replay diverged at cycle " + cursorTime + ": unit " + id + " acted in the recorded game but isn't in the replay");
+			}
+
+			actions.addUnitAction(unit, action);
+		}
+
+		cursorState.issue(actions);
+		cursorOffset = data.position();
+	}
+
+	/**
+	 * \brief Remembers which recorded ID a unit of the cursor state stands for
+	 */
+	private void mapUnit(long recordedId, Unit unit) {
+		unitsByRecordedId.put(recordedId, unit);
+		recordedIds.put(unit.getID(), recordedId);
+	}
+
+	/**
+	 * \brief Reads an action
+	 */
+	private UnitAction readAction() {
+		int type = data.get();
+
+		if (type == UnitAction.TYPE_ATTACK_LOCATION) {
+			int x = (int)readVarint();
+
+			return new UnitAction(type, x, (int)readVarint());
+		}
+
+		int parameter = (int)readVarint() - 1;
+
+		if (type == UnitAction.TYPE_PRODUCE) {
+			return new UnitAction(type, parameter, utt.getUnitType((int)readVarint()));
+		}
+
+		return new UnitAction(type, parameter);
+	}
+
+	/**
+	 * \brief Reads a non-negative integer written by BinaryTraceWriter.putVarint
+	 */
+	private long readVarint() {
+		long value = 0;
+
+		for (int shift = 0; ; shift += 7) {
+			byte b = data.get();
+
+			value |= (long)(b & 0x7F) << shift;
+
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * \brief Returns the last keyframe at or before a time
+	 */
+	private int findKeyframe(int time) {
+		int index = Arrays.binarySearch(keyframeTimes, 0, numKeyframes, time);
+
+		return index >= 0 ? index : Math.max(-index - 2, 0);
+	}
+
+	/**
+	 * \brief Adds a keyframe to the index
+	 */
+	private void addKeyframe(int time, int offset) {
+		if (numKeyframes == keyframeTimes.length) {
+			keyframeTimes = Arrays.copyOf(keyframeTimes, numKeyframes * 2);
+			keyframeOffsets = Arrays.copyOf(keyframeOffsets, numKeyframes * 2);
+		}
+
+		keyframeTimes[numKeyframes] = time;
+		keyframeOffsets[numKeyframes] = offset;
+		numKeyframes++;
+	}
+
+	/**
+	 * \brief Sets a state's time if possible
+	 * \return the state's time afterwards
+	 */
+	private static int setTime(GameState gs, int time) {
+		if (timeField != null) {
+			try {
+				timeField.setInt(gs, time);
+			} catch (IllegalAccessException e) {
+				timeField = null;
+			}
+		}
+
+		return gs.getTime();
+	}
+
+	/**
+	 * \brief Returns GameState's time field, made accessible, or null if there isn't one we can set
+	 */
+	private static Field findTimeField() {
+		try {
+			Field field = GameState.class.getDeclaredField("time");
+
+			field.setAccessible(true);
+			return field.getType() == int.class ? field : null;
+		} catch (ReflectiveOperationException | SecurityException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package utilities;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import rts.GameState;
+import rts.Player;
+import rts.PhysicalGameState;
+import rts.UnitAction;
+import rts.UnitActionAssignment;
+import rts.units.Unit;
+
+/**
+ * \brief Streams a game to a compact binary trace, for fast replays of long games. Read back with BinaryTraceReader
+ * \author Louis
+ *
+ * Call record() once per cycle, after both players' actions have been issued and before the state is cycled. Every
+ * keyframePeriod cycles the whole state is written (units, players and actions in progress); on the other cycles
+ * only the units born since the last record, and the actions that started that cycle, i.e. the ones issueSafe
+ * accepted from either PlayerAction. Cycles in which no unit was born and no action started aren't written at all.
+ * Births are written with the ID the unit was given, so that a replay, whose units are numbered by the replaying
+ * process, can tell which of its units the later actions refer to.
+ *
+ * Integers are written as variable-length quantities (7 bits a byte), and everything that can be is delta-encoded:
+ * record times from the previous record, and unit IDs (written in ascending order) from the previous ID. A typical
+ * action takes four or five bytes. Records go through a direct buffer to a FileChannel, and close() appends an index
+ * of the keyframes so the reader can jump straight to any cycle.
+ *
+ * Layout:
+ *  - header: MAGIC, VERSION, width, height, keyframe period, terrain (one bit per tile)
+ *  - TAG_KEYFRAME: time, players (count, resources each), units (count, then ID delta, player + 1, type, x, y, hit
+ *    points, resources each), actions in progress (count, then ID delta, cycles since it started, action each)
+ *  - TAG_ACTIONS: time delta, births (count, then ID delta, type, x and y each), actions (count, then ID delta and
+ *    action each)
+ *  - TAG_INDEX: last time, keyframes (count, then time delta and file offset delta each), then the index's offset
+ *    as a fixed 8-byte long and FOOTER_MAGIC as a fixed 4-byte int
+ * An action is its type, then its direction/parameter, plus the unit type ID for productions or the target
+ * location for attacks.
+ */
+public class BinaryTraceWriter implements AutoCloseable {
+	static final int MAGIC = 0x4D525442; /**< "MRTB", at the start of every trace */
+	static final int FOOTER_MAGIC = 0x4D525445; /**< "MRTE", at the end of every trace that was closed */
+	static final int VERSION = 2; /**< Format version */
+	static final byte TAG_KEYFRAME = 'K'; /**< Record holding the whole state */
+	static final byte TAG_ACTIONS = 'A'; /**< Record holding the units born since the last record and the actions started in one cycle */
+	static final byte TAG_INDEX = 'I'; /**< Record holding the keyframe index */
+
+	public static final int DEFAULT_KEYFRAME_PERIOD = 200; /**< Cycles between keyframes unless told otherwise */
+
+	private static final int BUFFER_SIZE = 1 << 16; /**< Size of the write buffer */
+	private static final int MAX_ITEM_SIZE = 64; /**< Most bytes a single unit or action can take, so the buffer is flushed before it can overflow */
+
+	/** Orders units by ascending ID, for delta encoding */
+	private static final Comparator<Unit> idOrder = (Unit a, Unit b) -> Long.compare(a.getID(), b.getID());
+
+	/** Orders assignments by ascending unit ID, for delta encoding */
+	private static final Comparator<UnitActionAssignment> assignmentOrder = (UnitActionAssignment a, UnitActionAssignment b) -> Long.compare(a.unit.getID(), b.unit.getID());
+
+	private final FileChannel channel; /**< The trace file */
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE); /**< Bytes not yet written to the channel */
+	private final int keyframePeriod; /**< Cycles between keyframes */
+
+	private boolean hasHeader = false; /**< Whether the header has been written */
+	private int lastRecordTime = -1; /**< Time of the last record written */
+	private int lastTime = -1; /**< The last time record() was called with */
+	private int lastKeyframeTime = 0; /**< Time of the last keyframe */
+	private long newestId = -1; /**< The highest unit ID written so far. Units are numbered in the order they're made, so any higher ID is a birth */
+	private long[] keyframeOffsets = new long[16]; /**< File offset of each keyframe */
+	private int[] keyframeTimes = new int[16]; /**< Time of each keyframe */
+	private int numKeyframes = 0; /**< Number of keyframes written */
+
+	// Reusable per-record buffers
+	private final ArrayList<Unit> sortedUnits = new ArrayList<Unit>(); /**< The units of a keyframe, or the units born since the last record, by ID */
+	private final ArrayList<UnitActionAssignment> sortedAssignments = new ArrayList<UnitActionAssignment>(); /**< The actions of a record, by unit ID */
+
+	/**
+	 * \brief Creates a trace file, replacing any existing file, with a keyframe every DEFAULT_KEYFRAME_PERIOD cycles
+	 * \param path the path of the file
+	 */
+	public BinaryTraceWriter(String path) throws IOException {
+		this(path, DEFAULT_KEYFRAME_PERIOD);
+	}
+
+	/**
+	 * \brief Creates a trace file, replacing any existing file
+	 * \param path the path of the file
+	 * \param keyframePeriod cycles between keyframes. Shorter periods make random access faster and files bigger
+	 */
+	public BinaryTraceWriter(String path, int keyframePeriod) throws IOException {
+		this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		this.keyframePeriod = keyframePeriod;
+	}
+
+	/**
+	 * \brief Records the current cycle. Call once per cycle, after issuing both players' actions and before cycling
+	 * \param gs the game state
+	 */
+	public void record(GameState gs) throws IOException {
+		int time = gs.getTime();
+
+		if (time <= lastTime) {
+			// Already recorded, or a different game
+			return;
+		}
+
+		if (!hasHeader) {
+			writeHeader(gs.getPhysicalGameState());
+		}
+
+		if (numKeyframes == 0 || time - lastKeyframeTime >= keyframePeriod) {
+			writeKeyframe(gs);
+		} else {
+			writeActions(gs);
+		}
+
+		lastTime = time;
+	}
+
+	/**
+	 * \brief Writes the keyframe index and closes the file
+	 */
+	@Override
+	public void close() throws IOException {
+		if (hasHeader) {
+			long indexOffset = getOffset();
+
+			ensureSpace(MAX_ITEM_SIZE);
+			buffer.put(TAG_INDEX);
+			putVarint(lastTime);
+			putVarint(numKeyframes);
+
+			for (int i = 0; i < numKeyframes; i++) {
+				ensureSpace(MAX_ITEM_SIZE);
+				putVarint(keyframeTimes[i] - (i > 0 ? keyframeTimes[i - 1] : 0));
+				putVarint(keyframeOffsets[i] - (i > 0 ? keyframeOffsets[i - 1] : 0));
+			}
+
+			ensureSpace(MAX_ITEM_SIZE);
+			buffer.putLong(indexOffset);
+			buffer.putInt(FOOTER_MAGIC);
+			flush();
+		}
+
+		channel.close();
+	}
+
+	/**
+	 * \brief Writes the header, with the map's size and terrain
+	 */
+	private void writeHeader(PhysicalGameState pgs) throws IOException {
+		int width = pgs.getWidth(), height = pgs.getHeight();
+
+		buffer.putInt(MAGIC);
+		putVarint(VERSION);
+		putVarint(width);
+		putVarint(height);
+		putVarint(keyframePeriod);
+
+		for (int start = 0; start < width * height; start += 8) {
+			int bits = 0;
+
+			for (int bit = 0; bit < 8 && start + bit < width * height; bit++) {
+				int position = start + bit;
+
+				if (pgs.getTerrain(position % width, position / width) == PhysicalGameState.TERRAIN_WALL) {
+					bits |= 1 << bit;
+				}
+			}
+
+			ensureSpace(1);
+			buffer.put((byte)bits);
+		}
+
+		hasHeader = true;
+	}
+
+	/**
+	 * \brief Writes the whole state
+	 */
+	private void writeKeyframe(GameState gs) throws IOException {
+		int time = gs.getTime();
+
+		if (numKeyframes == keyframeTimes.length) {
+			keyframeTimes = Arrays.copyOf(keyframeTimes, numKeyframes * 2);
+			keyframeOffsets = Arrays.copyOf(keyframeOffsets, numKeyframes * 2);
+		}
+
+		keyframeTimes[numKeyframes] = time;
+		keyframeOffsets[numKeyframes] = getOffset();
+		numKeyframes++;
+
+		ensureSpace(MAX_ITEM_SIZE);
+		buffer.put(TAG_KEYFRAME);
+		putVarint(time);
+
+		// Players
+		int numPlayers = gs.getPhysicalGameState().getPlayers().size();
+
+		putVarint(numPlayers);
+
+		for (Player player : gs.getPhysicalGameState().getPlayers()) {
+			ensureSpace(MAX_ITEM_SIZE);
+			putVarint(player.getResources());
+		}
+
+		// Units
+		sortedUnits.clear();
+		sortedUnits.addAll(gs.getUnits());
+		sortedUnits.sort(idOrder);
+
+		ensureSpace(MAX_ITEM_SIZE);
+		putVarint(sortedUnits.size());
+
+		long previousId = 0;
+
+		for (Unit unit : sortedUnits) {
+			ensureSpace(MAX_ITEM_SIZE);
+			putVarint(unit.getID() - previousId);
+			putVarint(unit.getPlayer() + 1);
+			putVarint(unit.getType().ID);
+			putVarint(unit.getX());
+			putVarint(unit.getY());
+			putVarint(unit.getHitPoints());
+			putVarint(unit.getResources());
+			previousId = unit.getID();
+			newestId = Math.max(newestId, unit.getID());
+		}
+
+		// Actions in progress, including the ones started this cycle
+		sortedAssignments.clear();
+		sortedAssignments.addAll(gs.getUnitActions().values());
+		sortedAssignments.sort(assignmentOrder);
+
+		ensureSpace(MAX_ITEM_SIZE);
+		putVarint(sortedAssignments.size());
+		previousId = 0;
+
+		for (UnitActionAssignment assignment : sortedAssignments) {
+			ensureSpace(MAX_ITEM_SIZE);
+			putVarint(assignment.unit.getID() - previousId);
+			putVarint(Math.max(time - assignment.time, 0));
+			putAction(assignment.action);
+			previousId = assignment.unit.getID();
+		}
+
+		lastKeyframeTime = time;
+		lastRecordTime = time;
+	}
+
+	/**
+	 * \brief Writes the units born since the last record and the actions that started this cycle, if there are any
+	 */
+	private void writeActions(GameState gs) throws IOException {
+		int time = gs.getTime();
+
+		sortedUnits.clear();
+
+		for (Unit unit : gs.getUnits()) {
+			if (unit.getID() > newestId) {
+				sortedUnits.add(unit);
+			}
+		}
+
+		sortedAssignments.clear();
+
+		for (UnitActionAssignment assignment : gs.getUnitActions().values()) {
+			if (assignment.time == time) {
+				sortedAssignments.add(assignment);
+			}
+		}
+
+		if (sortedUnits.isEmpty() && sortedAssignments.isEmpty()) {
+			return;
+		}
+
+		sortedUnits.sort(idOrder);
+		sortedAssignments.sort(assignmentOrder);
+
+		ensureSpace(MAX_ITEM_SIZE);
+		buffer.put(TAG_ACTIONS);
+		putVarint(time - lastRecordTime);
+		putVarint(sortedUnits.size());
+
+		long previousId = 0;
+
+		for (Unit unit : sortedUnits) {
+			ensureSpace(MAX_ITEM_SIZE);
+			putVarint(unit.getID() - previousId);
+			putVarint(unit.getType().ID);
+			putVarint(unit.getX());
+			putVarint(unit.getY());
+			previousId = unit.getID();
+			newestId = Math.max(newestId, unit.getID());
+		}
+
+		ensureSpace(MAX_ITEM_SIZE);
+		putVarint(sortedAssignments.size());
+		previousId = 0;
+
+		for (UnitActionAssignment assignment : sortedAssignments) {
+			ensureSpace(MAX_ITEM_SIZE);
+			putVarint(assignment.unit.getID() - previousId);
+			putAction(assignment.action);
+			previousId = assignment.unit.getID();
+		}
+
+		lastRecordTime = time;
+	}
+
+	/**
+	 * \brief Writes an action: its type, parameter, and production type or attack location
+	 */
+	private void putAction(UnitAction action) {
+		buffer.put((byte)action.getType());
+
+		if (action.getType() == UnitAction.TYPE_ATTACK_LOCATION) {
+			putVarint(action.getLocationX());
+			putVarint(action.getLocationY());
+		} else {
+			// The direction, or the duration of a wait. DIRECTION_NONE is -1, so shift it up
+			putVarint(action.getDirection() + 1);
+
+			if (action.getType() == UnitAction.TYPE_PRODUCE) {
+				putVarint(action.getUnitType().ID);
+			}
+		}
+	}
+
+	/**
+	 * \brief Writes a non-negative integer, 7 bits a byte, low bits first
+	 */
+	private void putVarint(long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		buffer.put((byte)value);
+	}
+
+	/**
+	 * \brief Returns the file offset of the next byte to be written
+	 */
+	private long getOffset() throws IOException {
+		return channel.position() + buffer.position();
+	}
+
+	/**
+	 * \brief Flushes the buffer if it has less than a number of bytes left
+	 */
+	private void ensureSpace(int numBytes) throws IOException {
+		if (buffer.remaining() < numBytes) {
+			flush();
+		}
+	}
+
+	/**
+	 * \brief Writes the buffer to the channel
+	 */
+	private void flush() throws IOException {
+		buffer.flip();
+
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+
+		buffer.clear();
+	}
+}
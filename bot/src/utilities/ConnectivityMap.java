@@ -0,0 +1,243 @@
+package utilities;
+
+import java.util.Arrays;
+import java.util.List;
+
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.UnitAction;
+import rts.units.Unit;
+
+/**
+ * \brief Labels the connected regions of the map that mobile units can walk through
+ * \author Louis
+ *
+ * A tile is passable if it is not a wall and no building or resource sits on it. Mobile units are ignored,
+ * since they will eventually move out of the way. The labels are only rebuilt when the terrain or the
+ * buildings change, so reachability queries are usually just a comparison of two labels.
+ */
+public class ConnectivityMap {
+	private int width = 0; /**< Width of the labelled map */
+	private int height = 0; /**< Height of the labelled map */
+	private int[] labels = new int[0]; /**< Component of each tile, or -1 if the tile is impassable */
+	private int numComponents = 0; /**< Number of components in labels */
+
+	private PhysicalGameState labelledMap = null; /**< The map the labels were built from, to detect new games */
+	private long buildingSignature = 0; /**< Signature of the buildings the labels were built with */
+	private int version = 0; /**< Incremented every time the labels are rebuilt */
+
+	// Scratch buffers
+	private int[] queue = new int[0]; /**< Flood fill queue */
+	private boolean[] markedComponents = new boolean[0]; /**< Per-component marks used by set queries */
+
+	/**
+	 * \brief Rebuilds the labels if the terrain or buildings have changed since the last call
+	 * \param gs the current game state
+	 */
+	public void update(GameState gs) {
+		PhysicalGameState pgs = gs.getPhysicalGameState();
+		long signature = computeBuildingSignature(pgs);
+
+		// Terrain can only change with the map itself
+		if (pgs == labelledMap && signature == buildingSignature) {
+			return;
+		}
+
+		labelledMap = pgs;
+		buildingSignature = signature;
+		rebuild(pgs);
+	}
+
+	/**
+	 * \brief Marks the labels as belonging to another map with identical terrain and buildings, e.g. when they were built from a clone
+	 * \param pgs the map the labels now describe
+	 */
+	public void rebind(PhysicalGameState pgs) {
+		labelledMap = pgs;
+	}
+
+	/**
+	 * \brief Returns the version of the labels, which changes whenever they are rebuilt
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * \brief Returns the component label of a tile
+	 * \param x the X coordinate of the tile
+	 * \param y the Y coordinate of the tile
+	 * \return the label of the tile, or -1 if it is impassable or off the map
+	 */
+	public int getComponent(int x, int y) {
+		if (x < 0 || y < 0 || x >= width || y >= height) {
+			return -1;
+		}
+
+		return labels[x + y * width];
+	}
+
+	/**
+	 * \brief Returns whether a unit standing at one position could walk next to another position
+	 * \param fromX the X coordinate of the start
+	 * \param fromY the Y coordinate of the start
+	 * \param toX the X coordinate of the destination
+	 * \param toY the Y coordinate of the destination
+	 * \return whether the destination is reachable within a range of 1
+	 */
+	public boolean isReachable(int fromX, int fromY, int toX, int toY) {
+		if (MapUtils.distance(fromX, fromY, toX, toY) <= 1) {
+			return true;
+		}
+
+		// Compare every component touching the start with every component touching the destination
+		for (int i = 0; i < 5; i++) {
+			int fromComponent = getComponentAround(fromX, fromY, i);
+
+			if (fromComponent == -1) {
+				continue;
+			}
+
+			for (int j = 0; j < 5; j++) {
+				if (getComponentAround(toX, toY, j) == fromComponent) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * \brief Returns whether any unit in one list can reach any unit in another
+	 * \param from the units to start at
+	 * \param to the units to reach
+	 * \return whether a unit in 'from' could walk next to a unit in 'to'
+	 */
+	public boolean isAnyReachable(List<Unit> from, List<Unit> to) {
+		if (markedComponents.length < numComponents) {
+			markedComponents = new boolean[numComponents];
+		} else {
+			Arrays.fill(markedComponents, 0, numComponents, false);
+		}
+
+		// Mark every component the destinations touch
+		for (Unit u : to) {
+			for (int i = 0; i < 5; i++) {
+				int component = getComponentAround(u.getX(), u.getY(), i);
+
+				if (component != -1) {
+					markedComponents[component] = true;
+				}
+			}
+		}
+
+		// Check whether any start touches one of them
+		for (Unit u : from) {
+			for (int i = 0; i < 5; i++) {
+				int component = getComponentAround(u.getX(), u.getY(), i);
+
+				if (component != -1 && markedComponents[component]) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * \brief Returns the component of the tile itself (index 4) or of one of its neighbours (index = direction)
+	 * A passable tile only reports its own component, since its neighbours are either the same or unreachable from it
+	 */
+	private int getComponentAround(int x, int y, int index) {
+		int ownComponent = getComponent(x, y);
+
+		if (index == 4) {
+			return ownComponent;
+		} else if (ownComponent != -1) {
+			return -1;
+		}
+
+		return getComponent(x + UnitAction.DIRECTION_OFFSET_X[index], y + UnitAction.DIRECTION_OFFSET_Y[index]);
+	}
+
+	/**
+	 * \brief Flood fills every passable region of the map with its own label
+	 */
+	private void rebuild(PhysicalGameState pgs) {
+		width = pgs.getWidth();
+		height = pgs.getHeight();
+		version++;
+
+		if (labels.length != width * height) {
+			labels = new int[width * height];
+			queue = new int[width * height];
+		}
+
+		// Mark impassable tiles with -1 and passable tiles with -2 (unlabelled)
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				labels[x + y * width] = pgs.getTerrain(x, y) == PhysicalGameState.TERRAIN_WALL ? -1 : -2;
+			}
+		}
+
+		for (Unit u : pgs.getUnits()) {
+			if (!u.getType().canMove) {
+				labels[u.getX() + u.getY() * width] = -1;
+			}
+		}
+
+		// Flood fill each unlabelled region
+		numComponents = 0;
+
+		for (int start = 0; start < labels.length; start++) {
+			if (labels[start] != -2) {
+				continue;
+			}
+
+			int head = 0, tail = 0;
+
+			labels[start] = numComponents;
+			queue[tail++] = start;
+
+			while (head < tail) {
+				int position = queue[head++];
+				int x = position % width, y = position / width;
+
+				for (int direction = 0; direction < 4; direction++) {
+					int nextX = x + UnitAction.DIRECTION_OFFSET_X[direction], nextY = y + UnitAction.DIRECTION_OFFSET_Y[direction];
+
+					if (nextX >= 0 && nextY >= 0 && nextX < width && nextY < height && labels[nextX + nextY * width] == -2) {
+						labels[nextX + nextY * width] = numComponents;
+						queue[tail++] = nextX + nextY * width;
+					}
+				}
+			}
+
+			numComponents++;
+		}
+	}
+
+	/**
+	 * \brief Returns an order-independent signature of every building's ID and position
+	 */
+	private static long computeBuildingSignature(PhysicalGameState pgs) {
+		long signature = pgs.getWidth() * 31L + pgs.getHeight();
+
+		for (Unit u : pgs.getUnits()) {
+			if (!u.getType().canMove) {
+				long key = u.getID() * 0x9E3779B97F4A7C15L + (u.getX() + u.getY() * (long)pgs.getWidth());
+
+				// Mix the key so that sums of different building sets rarely collide
+				key ^= key >>> 31;
+				key *= 0xBF58476D1CE4E5B9L;
+				key ^= key >>> 29;
+
+				signature += key;
+			}
+		}
+
+		return signature;
+	}
+}
@@ -0,0 +1,316 @@
+package utilities;
+
+import java.util.Arrays;
+
+import ai.abstraction.pathfinding.PathFinding;
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.ResourceUsage;
+import rts.UnitAction;
+import rts.units.Unit;
+
+/**
+ * \brief An A* pathfinder that routes around tiles enemies could reach before the unit could get off them
+ * \author Louis
+ *
+ * Each step costs 1, plus DANGER_COST if the tile it steps onto is dangerous: the tile could be attacked (assuming
+ * enemies charge) before the unit could step onto it and attack or leave again. The danger times come from the
+ * danger map's charge layers, which are brought up to date once per tick and shared by every query.
+ *
+ * Obstacles are taken from the occupancy grid, which already includes tiles being moved into or produced on, so the
+ * ResourceUsage passed in is not consulted. The open list is a binary heap over primitive arrays, and the search
+ * buffers are reused between calls, with generation stamps instead of clearing them. The whole path of the last
+ * search is kept until the next one, so callers can follow and reserve the route that was actually chosen. An
+ * instance is therefore not safe to use from several threads at once; the bot keeps one per thread.
+ */
+public class DangerAwarePathFinding extends PathFinding {
+	public static final int DANGER_COST = 8; /**< Extra cost of stepping onto a dangerous tile, in steps */
+
+	private final UnitUtils units; /**< The unit utilities of the player, ticked with the state being searched */
+
+	// Search buffers, resized when the map size changes
+	private int numTiles = 0; /**< Number of tiles the buffers are sized for */
+	private int[] costs = new int[0]; /**< Cost of the best known path to each tile, valid if its stamp is the current generation */
+	private int[] parents = new int[0]; /**< Previous tile on the best known path to each tile */
+	private int[] stamps = new int[0]; /**< Generation in which each tile was last reached */
+	private int[] closedStamps = new int[0]; /**< Generation in which each tile was last expanded */
+	private int generation = 0; /**< Current search generation */
+
+	// The path found by the last search
+	private int[] pathDirections = new int[16]; /**< Direction of each step of the path */
+	private int pathLength = 0; /**< Number of steps in the path, 0 if the last search found none */
+
+	// Binary heap open list, ordered by estimated total cost. Tiles may appear more than once; stale entries are skipped
+	private int heapSize = 0; /**< Number of entries in the heap */
+	private int[] heapTiles = new int[16]; /**< Tile of each heap entry */
+	private int[] heapKeys = new int[16]; /**< Estimated total cost of each heap entry */
+
+	/**
+	 * \brief Creates a pathfinder using the danger map of a player's unit utilities
+	 * \param units the unit utilities of the player
+	 */
+	public DangerAwarePathFinding(UnitUtils units) {
+		this.units = units;
+	}
+
+	@Override
+	public boolean pathExists(Unit start, int targetPosition, GameState gs, ResourceUsage ru) {
+		return pathToPositionInRangeExists(start, targetPosition, 0, gs, ru);
+	}
+
+	@Override
+	public boolean pathToPositionInRangeExists(Unit start, int targetPosition, int range, GameState gs, ResourceUsage ru) {
+		int width = gs.getPhysicalGameState().getWidth();
+
+		return isInRange(start.getX(), start.getY(), targetPosition % width, targetPosition / width, range)
+				|| findPathToPositionInRange(start, targetPosition, range, gs, ru) != null;
+	}
+
+	@Override
+	public UnitAction findPath(Unit start, int targetPosition, GameState gs, ResourceUsage ru) {
+		return findPathToPositionInRange(start, targetPosition, 0, gs, ru);
+	}
+
+	@Override
+	public UnitAction findPathToAdjacentPosition(Unit start, int targetPosition, GameState gs, ResourceUsage ru) {
+		return findPathToPositionInRange(start, targetPosition, 1, gs, ru);
+	}
+
+	/**
+	 * \brief Finds the cheapest path to within range of a target, counting dangerous tiles as DANGER_COST extra steps
+	 * \param start the unit to move
+	 * \param targetPosition the position of the target
+	 * \param range how close to the target to arrive at (Euclidean, as with AStarPathFinding)
+	 * \param gs the current game state
+	 * \param ru ignored; the occupancy grid already includes tiles being moved into
+	 * \return a move action for the first step of the path, or null if already in range or there is no path
+	 */
+	@Override
+	public UnitAction findPathToPositionInRange(Unit start, int targetPosition, int range, GameState gs, ResourceUsage ru) {
+		int direction = findFirstStep(start, targetPosition, range, gs);
+
+		return direction != UnitAction.DIRECTION_NONE ? new UnitAction(UnitAction.TYPE_MOVE, direction) : null;
+	}
+
+	/**
+	 * \brief Finds the direction of the first step of the cheapest path to within range of a target, without allocating
+	 * \param start the unit to move
+	 * \param targetPosition the position of the target
+	 * \param range how close to the target to arrive at
+	 * \param gs the current game state
+	 * \return the direction to step in, or UnitAction.DIRECTION_NONE if already in range or there is no path
+	 */
+	public int findFirstStep(Unit start, int targetPosition, int range, GameState gs) {
+		PhysicalGameState pgs = gs.getPhysicalGameState();
+		int width = pgs.getWidth(), height = pgs.getHeight();
+		int targetX = targetPosition % width, targetY = targetPosition / width;
+		int startPosition = start.getX() + start.getY() * width;
+
+		pathLength = 0;
+
+		if (isInRange(start.getX(), start.getY(), targetX, targetY, range)) {
+			return UnitAction.DIRECTION_NONE;
+		}
+
+		beginSearch(width * height);
+
+		// A tile is safe if we could step onto it and then attack or step off again before an enemy could get there
+		OccupancyGrid occupancy = units.getOccupancy();
+		DangerMap dangerMap = units.getDangerMap();
+		int moveTime = start.getMoveTime();
+		int safeTime = moveTime + start.getAttackTime();
+
+		costs[startPosition] = 0;
+		parents[startPosition] = -1;
+		stamps[startPosition] = generation;
+		push(startPosition, distance(start.getX(), start.getY(), targetX, targetY, range));
+
+		while (heapSize > 0) {
+			int position = pop();
+
+			if (closedStamps[position] == generation) {
+				continue;
+			}
+
+			closedStamps[position] = generation;
+
+			int x = position % width, y = position / width;
+
+			if (isInRange(x, y, targetX, targetY, range)) {
+				return recordPath(position, startPosition, width);
+			}
+
+			for (int direction = 0; direction < 4; direction++) {
+				int nextX = x + UnitAction.DIRECTION_OFFSET_X[direction], nextY = y + UnitAction.DIRECTION_OFFSET_Y[direction];
+				int nextPosition = nextX + nextY * width;
+
+				if (!occupancy.isFree(nextX, nextY) || closedStamps[nextPosition] == generation) {
+					continue;
+				}
+
+				int cost = costs[position] + 1;
+
+				if (dangerMap.getDangerTimeAssumingEnemiesCharge(nextX, nextY, 1, moveTime) <= safeTime) {
+					cost += DANGER_COST;
+				}
+
+				if (stamps[nextPosition] != generation || cost < costs[nextPosition]) {
+					costs[nextPosition] = cost;
+					parents[nextPosition] = position;
+					stamps[nextPosition] = generation;
+					push(nextPosition, cost + distance(nextX, nextY, targetX, targetY, range));
+				}
+			}
+		}
+
+		return UnitAction.DIRECTION_NONE;
+	}
+
+	/**
+	 * \brief Prepares the buffers for a new search on a map with the given number of tiles
+	 */
+	private void beginSearch(int numTiles) {
+		if (numTiles != this.numTiles) {
+			this.numTiles = numTiles;
+			costs = new int[numTiles];
+			parents = new int[numTiles];
+			stamps = new int[numTiles];
+			closedStamps = new int[numTiles];
+			generation = 0;
+		}
+
+		if (++generation == Integer.MAX_VALUE) {
+			// Old stamps could match again after wrapping around
+			Arrays.fill(stamps, 0);
+			Arrays.fill(closedStamps, 0);
+			generation = 1;
+		}
+
+		heapSize = 0;
+	}
+
+	/**
+	 * \brief Returns the number of steps in the path found by the last findFirstStep, 0 if it found none
+	 */
+	public int getPathLength() {
+		return pathLength;
+	}
+
+	/**
+	 * \brief Returns the direction of a step of the path found by the last findFirstStep
+	 * \param step the index of the step, from 0 for the first
+	 */
+	public int getPathDirection(int step) {
+		return pathDirections[step];
+	}
+
+	/**
+	 * \brief Walks back from a reached tile to the start, recording the direction of every step of the path
+	 * \return the direction of the first step
+	 */
+	private int recordPath(int position, int startPosition, int width) {
+		pathLength = 0;
+
+		for (int tile = position; tile != startPosition; tile = parents[tile]) {
+			pathLength++;
+		}
+
+		if (pathDirections.length < pathLength) {
+			pathDirections = new int[pathLength * 2];
+		}
+
+		for (int step = pathLength - 1; position != startPosition; step--) {
+			int parent = parents[position];
+			int offset = position - parent;
+
+			for (int direction = 0; direction < 4; direction++) {
+				if (offset == UnitAction.DIRECTION_OFFSET_X[direction] + UnitAction.DIRECTION_OFFSET_Y[direction] * width) {
+					pathDirections[step] = direction;
+					break;
+				}
+			}
+
+			position = parent;
+		}
+
+		return pathDirections[0];
+	}
+
+	/**
+	 * \brief Adds a tile to the open list
+	 */
+	private void push(int position, int key) {
+		if (heapSize == heapTiles.length) {
+			heapTiles = Arrays.copyOf(heapTiles, heapSize * 2);
+			heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+		}
+
+		// Sift up
+		int index = heapSize++;
+
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+
+			if (heapKeys[parent] <= key) {
+				break;
+			}
+
+			heapTiles[index] = heapTiles[parent];
+			heapKeys[index] = heapKeys[parent];
+			index = parent;
+		}
+
+		heapTiles[index] = position;
+		heapKeys[index] = key;
+	}
+
+	/**
+	 * \brief Removes and returns the tile with the lowest estimated total cost from the open list
+	 */
+	private int pop() {
+		int top = heapTiles[0];
+		int lastTile = heapTiles[--heapSize], lastKey = heapKeys[heapSize];
+
+		// Sift the last entry down from the root
+		int index = 0;
+
+		while (true) {
+			int child = index * 2 + 1;
+
+			if (child >= heapSize) {
+				break;
+			}
+
+			if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) {
+				child++;
+			}
+
+			if (heapKeys[child] >= lastKey) {
+				break;
+			}
+
+			heapTiles[index] = heapTiles[child];
+			heapKeys[index] = heapKeys[child];
+			index = child;
+		}
+
+		heapTiles[index] = lastTile;
+		heapKeys[index] = lastKey;
+		return top;
+	}
+
+	/**
+	 * \brief Returns a lower bound on the number of steps from a tile to within range of the target. A tile in
+	 * (Euclidean) range can be up to range * sqrt(2) steps from the target, so that much is taken off
+	 */
+	private static int distance(int x, int y, int targetX, int targetY, int range) {
+		return Math.max(Math.abs(x - targetX) + Math.abs(y - targetY) - (range + range / 2), 0);
+	}
+
+	/**
+	 * \brief Returns whether a tile is within range of the target, using the same test as AStarPathFinding
+	 */
+	private static boolean isInRange(int x, int y, int targetX, int targetY, int range) {
+		return (x - targetX) * (x - targetX) + (y - targetY) * (y - targetY) <= range * range;
+	}
+}
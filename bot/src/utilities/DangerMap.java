@@ -0,0 +1,758 @@
+package utilities;
+
+import java.util.Arrays;
+
+import rts.GameState;
+import rts.UnitAction;
+import rts.units.Unit;
+
+/**
+ * \brief A per-tile cache of how soon each tile could be attacked, built from a snapshot of the enemy units
+ * \author Louis
+ *
+ * Each damage amount gets its own layer, built on the first query of a tick. Busy enemies contribute absolute game
+ * times, counted from the end of their current action, and idle enemies contribute times relative to now, each kind
+ * in its own half of the layer. Either way an enemy that carries on with the same action, or stays idle on the same
+ * tile, keeps the same values between ticks, which lets a layer update only the tiles affected by the few enemies
+ * that moved or changed action since the last tick.
+ *
+ * Enemies that the OpponentModel has learnt to dither before charging get an expected delay added to their travel
+ * time, so tiles they would have to walk to aren't treated as dangerous as soon as a straight charge could reach
+ * them. Tiles an enemy can already attack get no delay.
+ *
+ * The charging layers only look CHARGE_HORIZON cycles ahead, so they too only update the tiles around enemies
+ * that changed.
+ *
+ * Queries are safe to make from several threads at once between updates. Up-to-date layers are found without
+ * locking, and layers are brought up to date under a lock, then published through their volatile tickId. The
+ * snapshot and the layers are rewritten in place, so update() and refreshChargeDelays() must not run while any
+ * query is in flight; the bot calls them from UnitUtils.tick, before any thinker (or worker thread) starts.
+ */
+public class DangerMap {
+	// Enemy snapshot, sorted by ID (refreshed every tick)
+	private int numEnemies = 0; /**< Number of enemies in the snapshot */
+	private long[] enemyIds = new long[16]; /**< ID of each enemy */
+	private int[] enemyX = new int[16]; /**< X position of each enemy once its current move has finished */
+	private int[] enemyY = new int[16]; /**< Y position of each enemy once its current move has finished */
+	private int[] enemyReadyTime = new int[16]; /**< Absolute game time at which each enemy finishes its current action, or IDLE */
+	private int[] enemyRange = new int[16]; /**< Attack range of each enemy */
+	private int[] enemyMoveTime = new int[16]; /**< Move time of each enemy */
+	private int[] enemyAttackTime = new int[16]; /**< Attack time of each enemy */
+	private int[] enemyChargeDelay = new int[16]; /**< Cycles each enemy is expected to dither before it travels towards a tile, from the opponent model */
+	private final float[] symbolScratch = new float[OpponentModel.NUM_SYMBOLS]; /**< Scratch space for the opponent model's predictions */
+
+	private static final int IDLE = -1; /**< Ready time of an enemy with no action in progress */
+
+	/**
+	 * Charging danger times later than this many cycles are reported as Integer.MAX_VALUE, so each enemy only affects
+	 * the tiles around it. Well past the move and attack times that callers compare charging danger times against
+	 */
+	public static final int CHARGE_HORIZON = 64;
+
+	// Map info
+	private int width = 0; /**< Width of the map */
+	private int height = 0; /**< Height of the map */
+	private int time = 0; /**< Game time of the snapshot */
+	private int tickId = 0; /**< Incremented every time the snapshot is refreshed */
+
+	private volatile Layer[] layers = new Layer[0]; /**< Layers for getDangerTime, one per damage amount. Copied on write */
+	private volatile ChargeLayer[] chargeLayers = new ChargeLayer[0]; /**< Layers for getDangerTimeAssumingEnemiesCharge. Copied on write */
+
+	private static final Metrics.Counter queryCounter = Metrics.counter("danger.queries"); /**< Metrics count of danger time queries */
+	private static final Metrics.Timer syncTimer = Metrics.timer("danger.layerSync"); /**< Metrics timer of bringing a layer up to date */
+	private static final Metrics.Timer chargeSyncTimer = Metrics.timer("danger.chargeLayerSync"); /**< Metrics timer of bringing a charge layer up to date */
+
+	/**
+	 * \brief Refreshes the enemy snapshot. Layers are brought up to date lazily on their next query. Must not overlap any query
+	 * \param gs the current game state
+	 * \param units the unit utilities of the player, already ticked
+	 */
+	public void update(GameState gs, UnitUtils units) {
+		width = gs.getPhysicalGameState().getWidth();
+		height = gs.getPhysicalGameState().getHeight();
+		time = gs.getTime();
+		tickId++;
+		numEnemies = 0;
+
+		// Collect every enemy that can attack us
+		for (Unit u : units.enemies) {
+			if (!u.getType().canAttack) {
+				continue;
+			}
+
+			if (numEnemies == enemyIds.length) {
+				growSnapshot();
+			}
+
+			int x = u.getX(), y = u.getY();
+			int timeToFinishCurrentAction = units.timeToFinishAction(u);
+
+			if (timeToFinishCurrentAction > 0) {
+				// Simulate enemy movement if necessary
+				UnitAction enemyAction = units.getAction(u);
+
+				if (enemyAction.getType() == UnitAction.TYPE_MOVE) {
+					x += UnitAction.DIRECTION_OFFSET_X[enemyAction.getDirection()];
+					y += UnitAction.DIRECTION_OFFSET_Y[enemyAction.getDirection()];
+				}
+			}
+
+			// Insert, keeping the snapshot sorted by ID (units are usually already in ID order so this is cheap)
+			int index = numEnemies++;
+
+			while (index > 0 && enemyIds[index - 1] > u.getID()) {
+				enemyIds[index] = enemyIds[index - 1];
+				enemyX[index] = enemyX[index - 1];
+				enemyY[index] = enemyY[index - 1];
+				enemyReadyTime[index] = enemyReadyTime[index - 1];
+				enemyRange[index] = enemyRange[index - 1];
+				enemyMoveTime[index] = enemyMoveTime[index - 1];
+				enemyAttackTime[index] = enemyAttackTime[index - 1];
+				enemyChargeDelay[index] = enemyChargeDelay[index - 1];
+				index--;
+			}
+
+			enemyIds[index] = u.getID();
+			enemyX[index] = x;
+			enemyY[index] = y;
+			enemyReadyTime[index] = timeToFinishCurrentAction > 0 ? time + timeToFinishCurrentAction : IDLE;
+			enemyRange[index] = u.getType().attackRange;
+			enemyMoveTime[index] = u.getType().moveTime;
+			enemyAttackTime[index] = u.getType().attackTime;
+			enemyChargeDelay[index] = units.getOpponentModel().getExpectedChargeDelay(u, symbolScratch);
+		}
+	}
+
+	/**
+	 * \brief Recomputes the enemies' charge delays from another opponent model, for a snapshot built by other unit
+	 * utilities. Layers are resynced on their next query, but only around the enemies whose delay changed
+	 * \param gs the current game state, with the same units as the snapshot
+	 * \param units the unit utilities of the player, already ticked, whose opponent model has learnt from the whole game
+	 */
+	public void refreshChargeDelays(GameState gs, UnitUtils units) {
+		boolean changed = false;
+
+		for (int enemy = 0; enemy < numEnemies; enemy++) {
+			Unit u = gs.getUnit(enemyIds[enemy]);
+
+			if (u == null) {
+				continue;
+			}
+
+			int chargeDelay = units.getOpponentModel().getExpectedChargeDelay(u, symbolScratch);
+
+			if (chargeDelay != enemyChargeDelay[enemy]) {
+				enemyChargeDelay[enemy] = chargeDelay;
+				changed = true;
+			}
+		}
+
+		if (changed) {
+			tickId++;
+		}
+	}
+
+	/**
+	 * \brief Returns how quickly a tile could receive a certain amount of damage, if every enemy unit attacked. See MapUtils.getDangerTime
+	 * \param x the X coordinate of the position
+	 * \param y the Y coordinate of the position
+	 * \param damageAmount the amount of damage that could be taken before a tile is considered dangerous
+	 * \return The shortest time that this tile could be attacked by an enemy to the amount 'damageAmount'
+	 */
+	public int getDangerTime(int x, int y, int damageAmount) {
+		queryCounter.increment();
+
+		if (x < 0 || y < 0 || x >= width || y >= height) {
+			return computeDangerTime(x, y, damageAmount);
+		}
+
+		Layer layer = getLayer(damageAmount);
+		int busyTime = layer.busyDangerTime[x + y * width];
+
+		return Math.min(busyTime != Integer.MAX_VALUE ? busyTime - time : Integer.MAX_VALUE, layer.idleDangerTime[x + y * width]);
+	}
+
+	/**
+	 * \brief Returns how quickly a tile could receive a certain amount of damage, assuming enemies never wait on a tile. See MapUtils.getDangerTimeAssumingEnemiesCharge
+	 * \param x the X coordinate of the position
+	 * \param y the Y coordinate of the position
+	 * \param damageAmount the amount of damage that could be taken before a tile is considered dangerous
+	 * \param arrivalTime the time it would take for an allied unit to arrive at the position
+	 * \return The shortest time that this tile could be attacked by an enemy to the amount 'damageAmount', or Integer.MAX_VALUE if it is later than CHARGE_HORIZON
+	 */
+	public int getDangerTimeAssumingEnemiesCharge(int x, int y, int damageAmount, int arrivalTime) {
+		queryCounter.increment();
+
+		if (x < 0 || y < 0 || x >= width || y >= height) {
+			return computeChargeDangerTime(x, y, damageAmount, arrivalTime);
+		}
+
+		return getChargeLayer(damageAmount, arrivalTime).dangerTime[x + y * width];
+	}
+
+	/**
+	 * \brief Returns the layer for the damage amount, bringing it up to date with the snapshot
+	 */
+	private Layer getLayer(int damageAmount) {
+		for (Layer layer : layers) {
+			if (layer.damage == damageAmount && layer.tickId == tickId) {
+				return layer;
+			}
+		}
+
+		return syncLayer(damageAmount);
+	}
+
+	/**
+	 * \brief Creates the layer for the damage amount if necessary and brings it up to date with the snapshot
+	 */
+	private synchronized Layer syncLayer(int damageAmount) {
+		Layer layer = null;
+
+		for (Layer existingLayer : layers) {
+			if (existingLayer.damage == damageAmount) {
+				layer = existingLayer;
+				break;
+			}
+		}
+
+		if (layer == null) {
+			Layer[] newLayers = Arrays.copyOf(layers, layers.length + 1);
+
+			layer = new Layer(damageAmount);
+			newLayers[layers.length] = layer;
+			layers = newLayers;
+		}
+
+		if (layer.tickId != tickId) {
+			long startTime = Metrics.start();
+
+			layer.sync();
+			layer.tickId = tickId;
+			syncTimer.stop(startTime);
+		}
+
+		return layer;
+	}
+
+	/**
+	 * \brief Returns the charge layer for the damage amount and arrival time, bringing it up to date with the snapshot
+	 */
+	private ChargeLayer getChargeLayer(int damageAmount, int arrivalTime) {
+		for (ChargeLayer layer : chargeLayers) {
+			if (layer.damage == damageAmount && layer.arrivalTime == arrivalTime && layer.tickId == tickId) {
+				return layer;
+			}
+		}
+
+		return syncChargeLayer(damageAmount, arrivalTime);
+	}
+
+	/**
+	 * \brief Creates the charge layer for the damage amount and arrival time if necessary and brings it up to date with the snapshot
+	 */
+	private synchronized ChargeLayer syncChargeLayer(int damageAmount, int arrivalTime) {
+		ChargeLayer layer = null;
+
+		for (ChargeLayer existingLayer : chargeLayers) {
+			if (existingLayer.damage == damageAmount && existingLayer.arrivalTime == arrivalTime) {
+				layer = existingLayer;
+				break;
+			}
+		}
+
+		if (layer == null) {
+			ChargeLayer[] newLayers = Arrays.copyOf(chargeLayers, chargeLayers.length + 1);
+
+			layer = new ChargeLayer(damageAmount, arrivalTime);
+			newLayers[chargeLayers.length] = layer;
+			chargeLayers = newLayers;
+		}
+
+		if (layer.tickId != tickId) {
+			long startTime = Metrics.start();
+
+			layer.sync();
+			layer.tickId = tickId;
+			chargeSyncTimer.stop(startTime);
+		}
+
+		return layer;
+	}
+
+	/**
+	 * \brief Returns how long after it is ready an enemy in the snapshot could deal the damage amount to a tile
+	 */
+	private int enemyDangerTime(int enemy, int x, int y, int damageAmount) {
+		int distance = MapUtils.distance(enemyX[enemy], enemyY[enemy], x, y);
+		int timeToTravel = Math.max(distance - enemyRange[enemy], 0) * enemyMoveTime[enemy];
+
+		if (timeToTravel > 0) {
+			timeToTravel += enemyChargeDelay[enemy];
+		}
+
+		return timeToTravel + damageAmount * enemyAttackTime[enemy];
+	}
+
+	/**
+	 * \brief Returns how long an enemy in the snapshot has left of its current action
+	 */
+	private int timeToReady(int enemy) {
+		return enemyReadyTime[enemy] != IDLE ? enemyReadyTime[enemy] - time : 0;
+	}
+
+	/**
+	 * \brief Computes the relative danger time of a tile directly from the snapshot
+	 */
+	private int computeDangerTime(int x, int y, int damageAmount) {
+		int dangerTime = Integer.MAX_VALUE;
+
+		for (int i = 0; i < numEnemies; i++) {
+			dangerTime = Math.min(dangerTime, timeToReady(i) + enemyDangerTime(i, x, y, damageAmount));
+		}
+
+		return dangerTime;
+	}
+
+	/**
+	 * \brief Returns how long an enemy in the snapshot would take to deal the damage amount to a tile, assuming it charges
+	 */
+	private int enemyChargeDangerTime(int enemy, int x, int y, int damageAmount, int arrivalTime) {
+		int distance = MapUtils.distance(enemyX[enemy], enemyY[enemy], x, y);
+		int timeToTravel = Math.max(distance - enemyRange[enemy], 0) * enemyMoveTime[enemy];
+		int timeToFinishCurrentAction = timeToReady(enemy);
+
+		if ((timeToTravel + timeToFinishCurrentAction) % arrivalTime == 0) {
+			// We expect the arrival time of the enemy to be in sync with the arrival time of our unit
+			return timeToFinishCurrentAction + timeToTravel + damageAmount * enemyAttackTime[enemy];
+		}
+
+		// We expect the enemy will rush past and need to turn back
+		return timeToFinishCurrentAction + timeToTravel + enemyMoveTime[enemy] + damageAmount * enemyAttackTime[enemy];
+	}
+
+	/**
+	 * \brief Returns how far from an enemy in the snapshot a tile can be and still be reached within CHARGE_HORIZON
+	 */
+	private int chargeRadius(int enemy) {
+		return enemyRange[enemy] + CHARGE_HORIZON / Math.max(enemyMoveTime[enemy], 1);
+	}
+
+	/**
+	 * \brief Computes the relative charging danger time of a tile directly from the snapshot
+	 */
+	private int computeChargeDangerTime(int x, int y, int damageAmount, int arrivalTime) {
+		int dangerTime = Integer.MAX_VALUE;
+
+		for (int i = 0; i < numEnemies; i++) {
+			dangerTime = Math.min(dangerTime, enemyChargeDangerTime(i, x, y, damageAmount, arrivalTime));
+		}
+
+		return dangerTime <= CHARGE_HORIZON ? dangerTime : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * \brief Doubles the capacity of the snapshot arrays
+	 */
+	private void growSnapshot() {
+		int capacity = enemyIds.length * 2;
+
+		enemyIds = Arrays.copyOf(enemyIds, capacity);
+		enemyX = Arrays.copyOf(enemyX, capacity);
+		enemyY = Arrays.copyOf(enemyY, capacity);
+		enemyReadyTime = Arrays.copyOf(enemyReadyTime, capacity);
+		enemyRange = Arrays.copyOf(enemyRange, capacity);
+		enemyMoveTime = Arrays.copyOf(enemyMoveTime, capacity);
+		enemyAttackTime = Arrays.copyOf(enemyAttackTime, capacity);
+		enemyChargeDelay = Arrays.copyOf(enemyChargeDelay, capacity);
+	}
+
+	/**
+	 * \brief Danger times for a single damage amount, updated incrementally from the snapshot it was last built from
+	 */
+	private class Layer {
+		final int damage; /**< The damage amount this layer is for */
+		volatile int tickId = -1; /**< The snapshot this layer is up to date with. Written last, to publish the layer */
+
+		int[] busyDangerTime = new int[0]; /**< Absolute danger time per tile from enemies in the middle of an action */
+		long[] busyOwner = new long[0]; /**< ID of the busy enemy that gives each tile its busy danger time, or -1 */
+		int[] idleDangerTime = new int[0]; /**< Danger time per tile relative to now from idle enemies */
+		long[] idleOwner = new long[0]; /**< ID of the idle enemy that gives each tile its idle danger time, or -1 */
+
+		// The snapshot this layer was built from
+		int builtWidth = -1, builtHeight = -1;
+		int numBuilt = 0;
+		long[] builtIds = new long[16];
+		int[] builtX = new int[16];
+		int[] builtY = new int[16];
+		int[] builtReadyTime = new int[16];
+		int[] builtChargeDelay = new int[16];
+
+		// Scratch lists for the diff
+		long[] staleIds = new long[16]; /**< Enemies whose old contribution is no longer valid, sorted */
+		int[] freshEnemies = new int[16]; /**< Snapshot indices of enemies whose contribution must be added */
+
+		Layer(int damage) {
+			this.damage = damage;
+		}
+
+		/**
+		 * \brief Brings the layer up to date with the snapshot, rebuilding only what changed where possible
+		 */
+		void sync() {
+			if (builtWidth != width || builtHeight != height) {
+				rebuild();
+				return;
+			}
+
+			// Diff the sorted ID lists
+			int numStale = 0, numFresh = 0;
+			int built = 0, current = 0;
+
+			ensureScratch();
+
+			while (built < numBuilt || current < numEnemies) {
+				if (current >= numEnemies || (built < numBuilt && builtIds[built] < enemyIds[current])) {
+					// Enemy died or stopped being a threat
+					staleIds[numStale++] = builtIds[built++];
+				} else if (built >= numBuilt || enemyIds[current] < builtIds[built]) {
+					// New enemy
+					freshEnemies[numFresh++] = current++;
+				} else {
+					// Same enemy (and therefore the same type), check whether it moved or changed action
+					if (builtX[built] != enemyX[current] || builtY[built] != enemyY[current] || builtReadyTime[built] != enemyReadyTime[current]
+							|| builtChargeDelay[built] != enemyChargeDelay[current]) {
+						staleIds[numStale++] = builtIds[built];
+						freshEnemies[numFresh++] = current;
+					}
+
+					built++;
+					current++;
+				}
+			}
+
+			// Not worth it if most of the enemies changed
+			if (numFresh * 2 > numEnemies + 1) {
+				rebuild();
+				return;
+			}
+
+			// Recompute the tiles that relied on stale enemies
+			if (numStale > 0) {
+				for (int position = 0; position < busyDangerTime.length; position++) {
+					if (busyOwner[position] != -1 && Arrays.binarySearch(staleIds, 0, numStale, busyOwner[position]) >= 0) {
+						recomputeTile(position, false);
+					}
+
+					if (idleOwner[position] != -1 && Arrays.binarySearch(staleIds, 0, numStale, idleOwner[position]) >= 0) {
+						recomputeTile(position, true);
+					}
+				}
+			}
+
+			// Add the contributions of the new or changed enemies
+			for (int i = 0; i < numFresh; i++) {
+				relaxEnemy(freshEnemies[i]);
+			}
+
+			storeSnapshot();
+		}
+
+		/**
+		 * \brief Rebuilds every tile from scratch
+		 */
+		void rebuild() {
+			if (busyDangerTime.length != width * height) {
+				busyDangerTime = new int[width * height];
+				busyOwner = new long[width * height];
+				idleDangerTime = new int[width * height];
+				idleOwner = new long[width * height];
+			}
+
+			builtWidth = width;
+			builtHeight = height;
+
+			Arrays.fill(busyDangerTime, Integer.MAX_VALUE);
+			Arrays.fill(busyOwner, -1);
+			Arrays.fill(idleDangerTime, Integer.MAX_VALUE);
+			Arrays.fill(idleOwner, -1);
+
+			for (int i = 0; i < numEnemies; i++) {
+				relaxEnemy(i);
+			}
+
+			storeSnapshot();
+		}
+
+		/**
+		 * \brief Lowers the danger time of every tile that the enemy could reach sooner
+		 */
+		void relaxEnemy(int enemy) {
+			boolean isIdle = enemyReadyTime[enemy] == IDLE;
+			int[] dangerTime = isIdle ? idleDangerTime : busyDangerTime;
+			long[] owner = isIdle ? idleOwner : busyOwner;
+			int readyTime = isIdle ? 0 : enemyReadyTime[enemy];
+
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					int position = x + y * width;
+					int enemyTime = readyTime + enemyDangerTime(enemy, x, y, damage);
+
+					if (enemyTime < dangerTime[position]) {
+						dangerTime[position] = enemyTime;
+						owner[position] = enemyIds[enemy];
+					}
+				}
+			}
+		}
+
+		/**
+		 * \brief Recomputes a single tile of the idle or busy half against every enemy of that kind in the snapshot
+		 */
+		void recomputeTile(int position, boolean isIdle) {
+			int x = position % width, y = position / width;
+			int[] dangerTime = isIdle ? idleDangerTime : busyDangerTime;
+			long[] owner = isIdle ? idleOwner : busyOwner;
+
+			dangerTime[position] = Integer.MAX_VALUE;
+			owner[position] = -1;
+
+			for (int i = 0; i < numEnemies; i++) {
+				if ((enemyReadyTime[i] == IDLE) != isIdle) {
+					continue;
+				}
+
+				int enemyTime = (isIdle ? 0 : enemyReadyTime[i]) + enemyDangerTime(i, x, y, damage);
+
+				if (enemyTime < dangerTime[position]) {
+					dangerTime[position] = enemyTime;
+					owner[position] = enemyIds[i];
+				}
+			}
+		}
+
+		/**
+		 * \brief Remembers the snapshot this layer now reflects
+		 */
+		void storeSnapshot() {
+			if (builtIds.length < numEnemies) {
+				builtIds = new long[enemyIds.length];
+				builtX = new int[enemyIds.length];
+				builtY = new int[enemyIds.length];
+				builtReadyTime = new int[enemyIds.length];
+				builtChargeDelay = new int[enemyIds.length];
+			}
+
+			numBuilt = numEnemies;
+			System.arraycopy(enemyIds, 0, builtIds, 0, numEnemies);
+			System.arraycopy(enemyX, 0, builtX, 0, numEnemies);
+			System.arraycopy(enemyY, 0, builtY, 0, numEnemies);
+			System.arraycopy(enemyReadyTime, 0, builtReadyTime, 0, numEnemies);
+			System.arraycopy(enemyChargeDelay, 0, builtChargeDelay, 0, numEnemies);
+		}
+
+		/**
+		 * \brief Makes sure the scratch lists can hold every built and current enemy
+		 */
+		void ensureScratch() {
+			if (staleIds.length < numBuilt + numEnemies) {
+				staleIds = new long[(numBuilt + numEnemies) * 2];
+				freshEnemies = new int[(numBuilt + numEnemies) * 2];
+			}
+		}
+	}
+
+	/**
+	 * \brief Relative charging danger times for a damage amount and arrival time, updated incrementally from the snapshot
+	 * it was last synced with
+	 *
+	 * An enemy only reaches the tiles within its range plus CHARGE_HORIZON / moveTime of itself in time to count, so
+	 * both building and updating only touch the tiles around enemies. An update recomputes the tiles around the old
+	 * positions of the enemies that died, moved or changed action that one of them was giving the danger time of, then
+	 * relaxes the tiles around every new or changed enemy. Busy enemies count as changed whenever time has passed,
+	 * since whether they arrive in step with our unit depends on how long they have left.
+	 */
+	private class ChargeLayer {
+		final int damage; /**< The damage amount this layer is for */
+		final int arrivalTime; /**< The arrival time this layer is for */
+		volatile int tickId = -1; /**< The snapshot this layer is up to date with. Written last, to publish the layer */
+
+		int[] dangerTime = new int[0]; /**< Relative danger time per tile, or Integer.MAX_VALUE beyond the horizon */
+		long[] owner = new long[0]; /**< ID of the enemy that gives each tile its danger time, or -1 */
+
+		// The snapshot this layer was synced with
+		int builtWidth = -1, builtHeight = -1;
+		int builtTime = 0;
+		int numBuilt = 0;
+		long[] builtIds = new long[16];
+		int[] builtX = new int[16];
+		int[] builtY = new int[16];
+		int[] builtReadyTime = new int[16];
+		int[] builtRadius = new int[16];
+
+		// Scratch lists for the diff
+		int[] staleEnemies = new int[16]; /**< Built indices of enemies whose old contribution is no longer valid */
+		int[] freshEnemies = new int[16]; /**< Snapshot indices of enemies whose contribution must be added */
+
+		ChargeLayer(int damage, int arrivalTime) {
+			this.damage = damage;
+			this.arrivalTime = arrivalTime;
+		}
+
+		/**
+		 * \brief Brings the layer up to date with the snapshot, touching only the tiles around enemies that changed where possible
+		 */
+		void sync() {
+			if (builtWidth != width || builtHeight != height) {
+				rebuild();
+				return;
+			}
+
+			// Diff the sorted ID lists
+			int numStale = 0, numFresh = 0;
+			int built = 0, current = 0;
+
+			if (staleEnemies.length < numBuilt + numEnemies) {
+				staleEnemies = new int[(numBuilt + numEnemies) * 2];
+				freshEnemies = new int[(numBuilt + numEnemies) * 2];
+			}
+
+			while (built < numBuilt || current < numEnemies) {
+				if (current >= numEnemies || (built < numBuilt && builtIds[built] < enemyIds[current])) {
+					// Enemy died or stopped being a threat
+					staleEnemies[numStale++] = built++;
+				} else if (built >= numBuilt || enemyIds[current] < builtIds[built]) {
+					// New enemy
+					freshEnemies[numFresh++] = current++;
+				} else {
+					// Same enemy (and therefore the same type), check whether it moved, changed action or is busy while time passed
+					if (builtX[built] != enemyX[current] || builtY[built] != enemyY[current] || builtReadyTime[built] != enemyReadyTime[current]
+							|| (enemyReadyTime[current] != IDLE && builtTime != time)) {
+						staleEnemies[numStale++] = built;
+						freshEnemies[numFresh++] = current;
+					}
+
+					built++;
+					current++;
+				}
+			}
+
+			// Not worth it if most of the enemies changed
+			if (numStale * 2 > numBuilt + 1) {
+				rebuild();
+				return;
+			}
+
+			// Recompute the tiles around stale enemies that relied on them
+			for (int i = 0; i < numStale; i++) {
+				int enemy = staleEnemies[i];
+				int radius = builtRadius[enemy];
+
+				for (int y = Math.max(builtY[enemy] - radius, 0); y <= Math.min(builtY[enemy] + radius, height - 1); y++) {
+					for (int x = Math.max(builtX[enemy] - radius, 0); x <= Math.min(builtX[enemy] + radius, width - 1); x++) {
+						if (owner[x + y * width] == builtIds[enemy]) {
+							recomputeTile(x, y);
+						}
+					}
+				}
+			}
+
+			// Add the contributions of the new or changed enemies
+			for (int i = 0; i < numFresh; i++) {
+				relaxEnemy(freshEnemies[i]);
+			}
+
+			storeSnapshot();
+		}
+
+		/**
+		 * \brief Rebuilds the layer from scratch, touching only the tiles around enemies after clearing it
+		 */
+		void rebuild() {
+			if (dangerTime.length != width * height) {
+				dangerTime = new int[width * height];
+				owner = new long[width * height];
+			}
+
+			builtWidth = width;
+			builtHeight = height;
+
+			Arrays.fill(dangerTime, Integer.MAX_VALUE);
+			Arrays.fill(owner, -1);
+
+			for (int i = 0; i < numEnemies; i++) {
+				relaxEnemy(i);
+			}
+
+			storeSnapshot();
+		}
+
+		/**
+		 * \brief Lowers the danger time of every tile around the enemy that it could reach sooner
+		 */
+		void relaxEnemy(int enemy) {
+			int radius = chargeRadius(enemy);
+
+			for (int y = Math.max(enemyY[enemy] - radius, 0); y <= Math.min(enemyY[enemy] + radius, height - 1); y++) {
+				for (int x = Math.max(enemyX[enemy] - radius, 0); x <= Math.min(enemyX[enemy] + radius, width - 1); x++) {
+					int position = x + y * width;
+					int enemyTime = enemyChargeDangerTime(enemy, x, y, damage, arrivalTime);
+
+					if (enemyTime <= CHARGE_HORIZON && enemyTime < dangerTime[position]) {
+						dangerTime[position] = enemyTime;
+						owner[position] = enemyIds[enemy];
+					}
+				}
+			}
+		}
+
+		/**
+		 * \brief Recomputes a single tile against every enemy in the snapshot close enough to reach it
+		 */
+		void recomputeTile(int x, int y) {
+			int position = x + y * width;
+
+			dangerTime[position] = Integer.MAX_VALUE;
+			owner[position] = -1;
+
+			for (int i = 0; i < numEnemies; i++) {
+				int radius = chargeRadius(i);
+
+				if (Math.abs(enemyX[i] - x) > radius || Math.abs(enemyY[i] - y) > radius) {
+					continue;
+				}
+
+				int enemyTime = enemyChargeDangerTime(i, x, y, damage, arrivalTime);
+
+				if (enemyTime <= CHARGE_HORIZON && enemyTime < dangerTime[position]) {
+					dangerTime[position] = enemyTime;
+					owner[position] = enemyIds[i];
+				}
+			}
+		}
+
+		/**
+		 * \brief Remembers the snapshot this layer now reflects
+		 */
+		void storeSnapshot() {
+			if (builtIds.length < numEnemies) {
+				builtIds = new long[enemyIds.length];
+				builtX = new int[enemyIds.length];
+				builtY = new int[enemyIds.length];
+				builtReadyTime = new int[enemyIds.length];
+				builtRadius = new int[enemyIds.length];
+			}
+
+			numBuilt = numEnemies;
+			builtTime = time;
+			System.arraycopy(enemyIds, 0, builtIds, 0, numEnemies);
+			System.arraycopy(enemyX, 0, builtX, 0, numEnemies);
+			System.arraycopy(enemyY, 0, builtY, 0, numEnemies);
+			System.arraycopy(enemyReadyTime, 0, builtReadyTime, 0, numEnemies);
+
+			for (int i = 0; i < numEnemies; i++) {
+				builtRadius[i] = chargeRadius(i);
+			}
+		}
+	}
+}
@@ -12,7 +12,9 @@ import rts.units.Unit;
 public class DebugUtils {
 	private static boolean isPaused = false; /**< Whether the game is paused. Only works with visualisation mods */
 	
-	private static HashMap<Unit, String> unitLabels = new HashMap<Unit, String>(); /**< Visual per-unit labels for debugging */
+	private static volatile boolean areLabelsEnabled = true; /**< Whether unit labels are recorded. Disable for tournaments so that labelling doesn't allocate */
+	
+	private static HashMap<Unit, String> unitLabels = new HashMap<Unit, String>(); /**< Visual per-unit labels for debugging. Only modified while synchronized on itself, since thinkers may label in parallel */
 	
 	/**
 	 * \brief Prints a debug message in the console
@@ -28,7 +30,60 @@ public class DebugUtils {
 	 * \param label the label text to assign
 	 */
 	public static void setUnitLabel(Unit u, String label) {
-		unitLabels.put(u, label);
+		if (areLabelsEnabled) {
+			synchronized (unitLabels) {
+				unitLabels.put(u, label);
+			}
+		}
+	}
+	
+	/**
+	 * \brief Sets the label of a unit to a message followed by a number. The string is only built if labels are enabled
+	 * \param u the unit to set the label
+	 * \param label the label text to assign
+	 * \param value the number to append to the label
+	 */
+	public static void setUnitLabel(Unit u, String label, int value) {
+		if (areLabelsEnabled) {
+			synchronized (unitLabels) {
+				unitLabels.put(u, label + value);
+			}
+		}
+	}
+
+	/**
+	 * \brief Sets the label of a unit to a message followed by a suffix. The string is only built if labels are enabled
+	 * \param u the unit to set the label
+	 * \param label the label text to assign
+	 * \param suffix the text to append to the label
+	 */
+	public static void setUnitLabel(Unit u, String label, String suffix) {
+		if (areLabelsEnabled) {
+			synchronized (unitLabels) {
+				unitLabels.put(u, label + suffix);
+			}
+		}
+	}
+	
+	/**
+	 * \brief Enables or disables unit labels. When disabled, setUnitLabel does nothing
+	 * \param enabled whether labels should be recorded
+	 */
+	public static void setLabelsEnabled(boolean enabled) {
+		areLabelsEnabled = enabled;
+		
+		if (!enabled) {
+			synchronized (unitLabels) {
+				unitLabels.clear();
+			}
+		}
+	}
+	
+	/**
+	 * \brief Returns whether unit labels are being recorded
+	 */
+	public static boolean areLabelsEnabled() {
+		return areLabelsEnabled;
 	}
 
 	/**
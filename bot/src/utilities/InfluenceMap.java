@@ -0,0 +1,170 @@
+package utilities;
+
+import java.util.List;
+
+import rts.GameState;
+import rts.units.Unit;
+
+/**
+ * \brief Per-tile float layers of allied strength, enemy strength and resource value
+ * \author Louis
+ *
+ * Each unit deposits its value on its own tile: units that can attack deposit their cost scaled by their remaining
+ * hit points, and resources deposit what's left in them. A deposit spreads through a kernel that decays by DECAY per
+ * step (DECAY^(|dx| + |dy|), out to RADIUS tiles on each axis), so a unit's influence fades with Manhattan distance.
+ *
+ * Influence also fades over time: every update keeps TEMPORAL_DECAY of the last tick's layers and adds the rest from
+ * this tick's deposits, so a unit that moves on or dies leaves a trail that fades over a few ticks rather than
+ * vanishing. Scaling every tile each tick would cost a pass over the map, so the layers are stored divided by a
+ * running scale instead: decaying only shrinks the scale, and each unit stamps its kernel divided by it. Only the
+ * tiles around units are touched, apart from folding the scale back into the layers every RENORMALISE_PERIOD updates,
+ * before it can lose float precision.
+ *
+ * The units come from the UnitUtils lists, so nothing scans the map for deposits. Walls are ignored; influence is
+ * about where strength is, not how to get there. Queries only read, so they are safe from several threads between
+ * updates.
+ */
+public class InfluenceMap {
+	public static final int ALLY = 0; /**< Layer of our strength */
+	public static final int ENEMY = 1; /**< Layer of enemy strength */
+	public static final int RESOURCE = 2; /**< Layer of resources left */
+
+	private static final int NUM_LAYERS = 3; /**< Number of layers, each built from its own deposits */
+	private static final int RADIUS = 4; /**< How far influence spreads along each axis */
+	private static final float DECAY = 0.6f; /**< Fraction of influence kept per step */
+	private static final float TEMPORAL_DECAY = 0.9f; /**< Fraction of influence kept per tick */
+	private static final int RENORMALISE_PERIOD = 64; /**< Updates between folding the scale back into the layers */
+
+	private static final float[] kernel = new float[RADIUS + 1]; /**< DECAY^d for each distance d along one axis */
+
+	private static final Metrics.Timer updateTimer = Metrics.timer("influence.update"); /**< Metrics timer of updates */
+	private static final Metrics.Counter renormaliseCounter = Metrics.counter("influence.renormalisations"); /**< Metrics count of folding the scale into the layers */
+
+	static {
+		kernel[0] = 1;
+
+		for (int d = 1; d <= RADIUS; d++) {
+			kernel[d] = kernel[d - 1] * DECAY;
+		}
+	}
+
+	private int width = 0; /**< Width of the map */
+	private int height = 0; /**< Height of the map */
+	private float[][] layers = new float[NUM_LAYERS][0]; /**< Influence of each layer divided by scale, indexed by position */
+	private float scale = 1; /**< What the stored layers must be multiplied by to give the influence */
+	private int updatesSinceRenormalise = 0; /**< Updates since the scale was last folded into the layers */
+	private boolean isEmpty = true; /**< Whether the layers hold nothing yet, so the first deposits count in full */
+
+	/**
+	 * \brief Fades the layers and adds this tick's deposits
+	 * \param gs the current game state
+	 * \param units the unit utilities of the player, with the unit lists already refreshed
+	 */
+	public void update(GameState gs, UnitUtils units) {
+		long startTime = Metrics.start();
+		int mapWidth = gs.getPhysicalGameState().getWidth(), mapHeight = gs.getPhysicalGameState().getHeight();
+
+		if (mapWidth != width || mapHeight != height) {
+			resize(mapWidth, mapHeight);
+		}
+
+		// Keep what's left of the last ticks' influence, and give this tick's deposits the rest
+		float weight;
+
+		if (isEmpty) {
+			weight = 1;
+			isEmpty = false;
+		} else {
+			if (++updatesSinceRenormalise >= RENORMALISE_PERIOD) {
+				renormalise();
+			}
+
+			scale *= TEMPORAL_DECAY;
+			weight = 1 - TEMPORAL_DECAY;
+		}
+
+		float amount = weight / scale;
+
+		stampUnits(layers[ALLY], units.myUnits, amount);
+		stampUnits(layers[ENEMY], units.enemies, amount);
+
+		for (Unit u : units.getResources()) {
+			stamp(layers[RESOURCE], u.getX(), u.getY(), amount * u.getResources());
+		}
+
+		updateTimer.stop(startTime);
+	}
+
+	/**
+	 * \brief Returns the influence of a layer on a tile
+	 * \param layer ALLY, ENEMY or RESOURCE
+	 * \param x the X coordinate of the tile
+	 * \param y the Y coordinate of the tile
+	 * \return the influence, or 0 off the map
+	 */
+	public float get(int layer, int x, int y) {
+		if (x < 0 || y < 0 || x >= width || y >= height) {
+			return 0;
+		}
+
+		return layers[layer][x + y * width] * scale;
+	}
+
+	/**
+	 * \brief Resizes every buffer for a new map, starting empty
+	 */
+	private void resize(int mapWidth, int mapHeight) {
+		width = mapWidth;
+		height = mapHeight;
+
+		for (int layer = 0; layer < NUM_LAYERS; layer++) {
+			layers[layer] = new float[width * height];
+		}
+
+		scale = 1;
+		updatesSinceRenormalise = 0;
+		isEmpty = true;
+	}
+
+	/**
+	 * \brief Multiplies the scale into every layer, so the stored values don't grow without bound
+	 */
+	private void renormalise() {
+		for (int layer = 0; layer < NUM_LAYERS; layer++) {
+			float[] values = layers[layer];
+
+			for (int position = 0; position < values.length; position++) {
+				values[position] *= scale;
+			}
+		}
+
+		scale = 1;
+		updatesSinceRenormalise = 0;
+		renormaliseCounter.increment();
+	}
+
+	/**
+	 * \brief Stamps the strength of every unit in a list that can attack, scaled by an amount, onto a layer
+	 */
+	private void stampUnits(float[] layer, List<Unit> units, float amount) {
+		for (Unit u : units) {
+			if (u.getType().canAttack) {
+				stamp(layer, u.getX(), u.getY(), amount * u.getType().cost * u.getHitPoints() / Math.max(u.getMaxHitPoints(), 1));
+			}
+		}
+	}
+
+	/**
+	 * \brief Adds an amount times the kernel around a tile to a layer
+	 */
+	private void stamp(float[] layer, int x, int y, float amount) {
+		for (int dy = Math.max(-RADIUS, -y); dy <= Math.min(RADIUS, height - 1 - y); dy++) {
+			float rowAmount = amount * kernel[Math.abs(dy)];
+			int row = (y + dy) * width;
+
+			for (int dx = Math.max(-RADIUS, -x); dx <= Math.min(RADIUS, width - 1 - x); dx++) {
+				layer[row + x + dx] += rowAmount * kernel[Math.abs(dx)];
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package utilities;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * \brief A thread-safe histogram of durations in nanoseconds, with log-linear buckets as in HdrHistogram
+ * \author Louis
+ *
+ * Durations below SUB_BUCKETS nanoseconds get a bucket each. Above that, every power of two [2^e, 2^(e+1)) is split
+ * into SUB_BUCKETS equal sub-buckets, so a bucket is never wider than 1/SUB_BUCKETS of the durations it counts and
+ * percentiles are accurate to about 3%, close enough to compare p99s between changes.
+ *
+ * Counts, the total and the maximum are LongAdders and a LongAccumulator, which spread concurrent updates over
+ * per-thread cells instead of making every thread CAS the same slot. Any number of threads can record into the same
+ * histogram without contending, and histograms from several threads can be merged afterwards. Every cell is
+ * created up front, so recording never allocates.
+ */
+public class LatencyHistogram {
+	public static final int SUB_BUCKET_BITS = 5; /**< Bits of each duration below its leading one that pick its sub-bucket */
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; /**< Number of sub-buckets per power of two */
+	private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS; /**< Enough buckets for every non-negative long */
+
+	private final LongAdder[] counts = new LongAdder[NUM_BUCKETS]; /**< Number of samples in each bucket */
+	private final LongAdder total = new LongAdder(); /**< Sum of the samples */
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0); /**< Largest sample */
+
+	/**
+	 * \brief Creates an empty histogram
+	 */
+	public LatencyHistogram() {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * \brief Records a duration
+	 * \param nanoseconds the duration to record. Negative durations are counted as zero
+	 */
+	public void record(long nanoseconds) {
+		if (nanoseconds < 0) {
+			nanoseconds = 0;
+		}
+
+		counts[getBucket(nanoseconds)].increment();
+		total.add(nanoseconds);
+		max.accumulate(nanoseconds);
+	}
+
+	/**
+	 * \brief Adds every sample of another histogram to this one
+	 * \param other the histogram to merge in. It is not modified
+	 */
+	public void merge(LatencyHistogram other) {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			long count = other.counts[i].sum();
+
+			if (count > 0) {
+				counts[i].add(count);
+			}
+		}
+
+		total.add(other.total.sum());
+		max.accumulate(other.max.get());
+	}
+
+	/**
+	 * \brief Returns the number of samples recorded
+	 */
+	public long getCount() {
+		long count = 0;
+
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			count += counts[i].sum();
+		}
+
+		return count;
+	}
+
+	/**
+	 * \brief Returns the mean of the samples in nanoseconds, or 0 if there are none
+	 */
+	public double getMean() {
+		long count = getCount();
+
+		return count > 0 ? (double)total.sum() / count : 0;
+	}
+
+	/**
+	 * \brief Returns the largest sample in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * \brief Returns an upper bound of a percentile
+	 * \param percentile the percentile, from 0 to 100
+	 * \return the upper bound of the bucket containing the percentile, in nanoseconds, capped at the largest sample
+	 */
+	public long getPercentile(double percentile) {
+		long count = getCount();
+		long rank = (long)Math.ceil(count * percentile / 100.0);
+		long seen = 0;
+
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += counts[i].sum();
+
+			if (seen >= rank && seen > 0) {
+				return Math.min(getBucketUpperBound(i), getMax());
+			}
+		}
+
+		return getMax();
+	}
+
+	/**
+	 * \brief Returns the number of samples in a bucket
+	 * \param bucket the bucket index, from 0 to getNumBuckets() - 1
+	 */
+	public long getBucketCount(int bucket) {
+		return counts[bucket].sum();
+	}
+
+	/**
+	 * \brief Returns the largest duration counted by a bucket, in nanoseconds
+	 * \param bucket the bucket index
+	 */
+	public static long getBucketUpperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		if (bucket >= NUM_BUCKETS - 1) {
+			return Long.MAX_VALUE;
+		}
+
+		// The bucket's leading bits, then the size of its steps
+		long mantissa = SUB_BUCKETS + bucket % SUB_BUCKETS;
+		int shift = bucket / SUB_BUCKETS - 1;
+
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	/**
+	 * \brief Returns the number of buckets
+	 */
+	public static int getNumBuckets() {
+		return NUM_BUCKETS;
+	}
+
+	/**
+	 * \brief Returns the bucket that a duration falls into
+	 */
+	private static int getBucket(long nanoseconds) {
+		if (nanoseconds < SUB_BUCKETS) {
+			return (int)nanoseconds;
+		}
+
+		// Keep the leading one and the SUB_BUCKET_BITS bits below it
+		int shift = 63 - Long.numberOfLeadingZeros(nanoseconds) - SUB_BUCKET_BITS;
+
+		return (shift + 1) * SUB_BUCKETS + (int)(nanoseconds >>> shift) - SUB_BUCKETS;
+	}
+}
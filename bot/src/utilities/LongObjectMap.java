@@ -0,0 +1,185 @@
+package utilities;
+
+import java.util.Arrays;
+
+/**
+ * \brief A hash map from primitive longs to objects, using open addressing so that lookups never allocate
+ * \author Louis
+ *
+ * Keys are stored inline and probed linearly. Removal shifts the following entries back instead of leaving
+ * tombstones, so the table never needs cleaning up. Null values are not allowed.
+ *
+ * \param <V> the type of the values
+ */
+public class LongObjectMap<V> {
+	private long[] keys; /**< Key of each slot */
+	private Object[] values; /**< Value of each slot, or null if the slot is empty */
+	private int size = 0; /**< Number of entries */
+	private int mask; /**< Capacity - 1, where capacity is always a power of two */
+
+	/**
+	 * \brief Creates an empty map
+	 */
+	public LongObjectMap() {
+		this(16);
+	}
+
+	/**
+	 * \brief Creates an empty map with room for the given number of entries before it needs to grow
+	 * \param expectedSize the expected number of entries
+	 */
+	public LongObjectMap(int expectedSize) {
+		int capacity = 8;
+
+		while (capacity < expectedSize * 2) {
+			capacity *= 2;
+		}
+
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * \brief Returns the value for a key
+	 * \param key the key to look up
+	 * \return the value, or null if the key isn't in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		for (int slot = slotOf(key); values[slot] != null; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				return (V)values[slot];
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * \brief Returns whether the map contains a key
+	 */
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * \brief Associates a value with a key, replacing any previous value
+	 * \param key the key
+	 * \param value the value, which must not be null
+	 * \return the previous value, or null if there wasn't one
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("LongObjectMap does not support null values");
+		}
+
+		int slot = slotOf(key);
+
+		for (; values[slot] != null; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				V previous = (V)values[slot];
+
+				values[slot] = value;
+				return previous;
+			}
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+
+		// Keep the load factor at or below 1/2
+		if (++size * 2 > keys.length) {
+			grow();
+		}
+
+		return null;
+	}
+
+	/**
+	 * \brief Removes a key from the map
+	 * \param key the key to remove
+	 * \return the removed value, or null if the key wasn't in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int slot = slotOf(key);
+
+		for (; values[slot] != null; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				break;
+			}
+		}
+
+		if (values[slot] == null) {
+			return null;
+		}
+
+		V removed = (V)values[slot];
+
+		// Shift back any following entries that would otherwise become unreachable
+		int hole = slot;
+
+		for (int next = (hole + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+			int home = slotOf(keys[next]);
+
+			// Move the entry if the hole lies between its home slot and where it is now (cyclically)
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+		}
+
+		values[hole] = null;
+		size--;
+
+		return removed;
+	}
+
+	/**
+	 * \brief Returns the number of entries in the map
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * \brief Removes every entry
+	 */
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * \brief Doubles the capacity and reinserts every entry
+	 */
+	@SuppressWarnings("unchecked")
+	private void grow() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+
+		keys = new long[oldKeys.length * 2];
+		values = new Object[oldValues.length * 2];
+		mask = keys.length - 1;
+		size = 0;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				put(oldKeys[i], (V)oldValues[i]);
+			}
+		}
+	}
+
+	/**
+	 * \brief Returns the home slot of a key
+	 */
+	private int slotOf(long key) {
+		// Spread the bits, since unit IDs are small sequential numbers
+		long hash = key * 0x9E3779B97F4A7C15L;
+
+		return (int)(hash ^ (hash >>> 32)) & mask;
+	}
+}
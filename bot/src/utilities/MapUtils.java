@@ -148,32 +148,38 @@ public class MapUtils {
 			return Integer.MAX_VALUE;
 		}
 		
-		int dangerTime = Integer.MAX_VALUE;
-		
-		// Search all enemy units that can attack us
-		for (Unit u : units.findUnits((Unit u) -> units.isEnemy(u) && u.getType().canAttack)) {
-			int enemyX = u.getX(), enemyY = u.getY();
-			int timeToFinishCurrentAction = units.timeToFinishAction(u);
-			
-			if (timeToFinishCurrentAction > 0) {
-				// Simulate enemy movement if necessary
-				UnitAction enemyAction = units.getAction(u);
-				
-				if (enemyAction.getType() == UnitAction.TYPE_MOVE) {
-					enemyX += UnitAction.DIRECTION_OFFSET_X[enemyAction.getDirection()];
-					enemyY += UnitAction.DIRECTION_OFFSET_Y[enemyAction.getDirection()];
-				}
-			}
-			
-			// Check how long it would take to get in range of the player
-			int distance = MapUtils.distance(enemyX, enemyY, x, y);
-			int timeToTravel = Math.max(distance - u.getType().attackRange, 0) * u.getType().moveTime;
-			
-			// Update the danger level
-			dangerTime = Math.min(dangerTime, timeToFinishCurrentAction + timeToTravel + damageAmount * u.getType().attackTime);
-		}
-		
-		return dangerTime;
+		// Look it up in this tick's danger map
+		return units.getDangerMap().getDangerTime(x, y, damageAmount);
+	}
+	
+	/**
+	 * \brief Returns how strongly enemies hold a tile, from the influence map: enemy strength nearby, fading with distance
+	 * \param x the X coordinate of the tile
+	 * \param y the Y coordinate of the tile
+	 * \return the enemy influence, 0 if no enemies are near
+	 */
+	public static float getEnemyInfluence(int x, int y, UnitUtils units) {
+		return units.getInfluence().get(InfluenceMap.ENEMY, x, y);
+	}
+	
+	/**
+	 * \brief Returns how strongly we hold a tile, from the influence map: our strength nearby, fading with distance
+	 * \param x the X coordinate of the tile
+	 * \param y the Y coordinate of the tile
+	 * \return our influence, 0 if none of our fighting units are near
+	 */
+	public static float getAllyInfluence(int x, int y, UnitUtils units) {
+		return units.getInfluence().get(InfluenceMap.ALLY, x, y);
+	}
+	
+	/**
+	 * \brief Returns how much is left to harvest around a tile, from the influence map, fading with distance
+	 * \param x the X coordinate of the tile
+	 * \param y the Y coordinate of the tile
+	 * \return the resource influence, 0 if no resources are near
+	 */
+	public static float getResourceInfluence(int x, int y, UnitUtils units) {
+		return units.getInfluence().get(InfluenceMap.RESOURCE, x, y);
 	}
 	
 	/**
@@ -182,44 +188,15 @@ public class MapUtils {
 	 * \param y the Y coordinate of the position
 	 * \param arrivalTime the time it would take for an allied unit to arrive at the position
 	 * \param damageAmount the amount of damage could be taken before a tile is considered dangerous
-	 * \return The shortest time that this tile could be attacked by an enemy to the amount 'damageAmount'
+	 * \return The shortest time that this tile could be attacked by an enemy to the amount 'damageAmount', or Integer.MAX_VALUE if it is later than DangerMap.CHARGE_HORIZON
 	 */
 	public static int getDangerTimeAssumingEnemiesCharge(int x, int y, int damageAmount, int arrivalTime, UnitUtils units) {
 		if (damageAmount == 0) {
 			return Integer.MAX_VALUE;
 		}
 		
-		int dangerTime = Integer.MAX_VALUE;
-		
-		// Search all enemy units that can attack us
-		for (Unit u : units.findUnits((Unit u) -> units.isEnemy(u) && u.getType().canAttack)) {
-			int enemyX = u.getX(), enemyY = u.getY();
-			int timeToFinishCurrentAction = units.timeToFinishAction(u);
-			
-			if (timeToFinishCurrentAction > 0) {
-				// Simulate enemy movement if necessary
-				UnitAction enemyAction = units.getAction(u);
-				
-				if (enemyAction.getType() == UnitAction.TYPE_MOVE) {
-					enemyX += UnitAction.DIRECTION_OFFSET_X[enemyAction.getDirection()];
-					enemyY += UnitAction.DIRECTION_OFFSET_Y[enemyAction.getDirection()];
-				}
-			}
-			
-			// Check how long it would take to get in range of the player
-			int distance = MapUtils.distance(enemyX, enemyY, x, y);
-			int timeToTravel = Math.max(distance - u.getType().attackRange, 0) * u.getType().moveTime;
-			
-			if ((timeToTravel + timeToFinishCurrentAction) % arrivalTime == 0) {
-				// We expect the arrival time of the enemy to be in sync with the arrival time of our unit
-				dangerTime = Math.min(dangerTime, timeToFinishCurrentAction + timeToTravel + damageAmount * u.getType().attackTime);
-			} else {
-				// We expect the enemy will rush past and need to turn back
-				dangerTime = Math.min(dangerTime, timeToFinishCurrentAction + timeToTravel + u.getType().moveTime + damageAmount * u.getType().attackTime);
-			}
-		}
-		
-		return dangerTime;
+		// Look it up in this tick's danger map
+		return units.getDangerMap().getDangerTimeAssumingEnemiesCharge(x, y, damageAmount, arrivalTime);
 	}
 	
 
@@ -232,8 +209,6 @@ public class MapUtils {
 	 * \return The safest neighbour for a unit to take
 	 */
 	public static int findSafestNeighbour(int x, int y, int damageAmount, UnitUtils units) {
-		GameState gs = units.getGameState();
-		int mapWidth = gs.getPhysicalGameState().getWidth(), mapHeight = gs.getPhysicalGameState().getHeight();
 		int safestDangerTime = Integer.MIN_VALUE;  // 'dangerLevel' is determined by 'how quickly could you die by standing in this spot'
 		int safestTile = UnitAction.DIRECTION_DOWN;
 		
@@ -242,7 +217,7 @@ public class MapUtils {
 			int targetX = x + UnitAction.DIRECTION_OFFSET_X[i], targetY = y + UnitAction.DIRECTION_OFFSET_Y[i];
 			
 			// Skip if we can't move here
-			if (targetX >= mapWidth || targetX < 0 || targetY >= mapHeight|| targetY < 0 || !gs.free(targetX, targetY)) {
+			if (!units.getOccupancy().isFree(targetX, targetY)) {
 				continue;
 			}
 			
@@ -281,19 +256,27 @@ public class MapUtils {
 		return (x >= 0 && y >= 0 && x < pgs.getWidth() && y < pgs.getHeight() && gs.free(x, y));
 	}
 
+	/**
+	 * \brief Returns whether the tile at the given position is free AND exists. A bit test, unlike the GameState version
+	 * \param x the X coordinate of the tile
+	 * \param y the Y coordinate of the tile
+	 * \param units the unit utilities of the player, already ticked
+	 * \return true of the tile is free and exists, false otherwise
+	 */
+	public static boolean tileIsFree(int x, int y, UnitUtils units) {
+		return units.getOccupancy().isFree(x, y);
+	}
+
 	/**
 	 * \brief Returns whether the tile at the given position is free AND exists, and is not in blockedTiles
 	 * \param x the X coordinate of the tile
 	 * \param y the Y coordinate of the tile
-	 * \param gs current game state
-	 * \param blockedTiles an array where the index=a position and the value=whether that position is blocked by a moving ally
+	 * \param units the unit utilities of the player, already ticked
+	 * \param blockedTiles the tiles being moved into by our units this tick
 	 * \return true of the tile is free and exists, false otherwise
 	 */
-	public static boolean tileIsFree(int x, int y, GameState gs, boolean[] blockedTiles) {
-		PhysicalGameState pgs = gs.getPhysicalGameState();
-		int position = toPosition(x, y, gs);
-		
-		return (x >= 0 && y >= 0 && x < pgs.getWidth() && y < pgs.getHeight() && !blockedTiles[position] && gs.free(x, y));
+	public static boolean tileIsFree(int x, int y, UnitUtils units, TileReservations blockedTiles) {
+		return units.getOccupancy().isFree(x, y, blockedTiles);
 	}
 	
 	/**
@@ -310,6 +293,18 @@ public class MapUtils {
 		return pf.pathToPositionInRangeExists(start, toPosition(targetX, targetY, gs), 1, gs, ru);
 	}
 	
+	/**
+	 * \brief Returns whether a unit could walk next to a position, ignoring other mobile units. Much cheaper than doesPathExist
+	 * \param start the unit at the starting position
+	 * \param targetX the destination X position
+	 * \param targetY the destination Y position
+	 * \param units the unit utilities holding the current connectivity map
+	 * \return whether the destination is in a region the unit can reach
+	 */
+	public static boolean isReachable(Unit start, int targetX, int targetY, UnitUtils units) {
+		return units.getConnectivity().isReachable(start.getX(), start.getY(), targetX, targetY);
+	}
+	
 	/**
 	 * \brief Returns the position of a unit's single step in 'stepDirection'
 	 * \param unit the unit to start at
@@ -0,0 +1,275 @@
+package utilities;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * \brief Lightweight counters and timers for finding out where the bot spends its time
+ * \author Louis
+ *
+ * Metrics are disabled unless the JVM is started with -Dbot.metrics=true. ENABLED is a static final constant, so
+ * when disabled the JIT removes the recording code entirely and the calls cost nothing but a branch at most.
+ * Counters and timers are created once, held in static final fields by the code that records them, and record
+ * into LongAdders, which give each contending thread its own cell, so any number of games and thinker threads can
+ * record at once without fighting over one counter.
+ *
+ * Usage:
+ *   private static final Metrics.Timer myTimer = Metrics.timer("my.timer");
+ *   long startTime = Metrics.start();
+ *   ...
+ *   myTimer.stop(startTime);
+ *
+ * Setting -Dbot.metrics.file=path additionally dumps a snapshot to the file every -Dbot.metrics.period
+ * milliseconds (default 10000) and on exit, as CSV if the path ends in .csv and as JSON otherwise.
+ */
+public class Metrics {
+	public static final boolean ENABLED = Boolean.getBoolean("bot.metrics"); /**< Whether metrics are recorded */
+
+	private static final Map<String, Counter> counters = new ConcurrentHashMap<String, Counter>(); /**< Every counter by name */
+	private static final Map<String, Timer> timers = new ConcurrentHashMap<String, Timer>(); /**< Every timer by name */
+
+	private static ScheduledExecutorService dumper = null; /**< Thread that dumps the metrics periodically, if started */
+
+	static {
+		String file = System.getProperty("bot.metrics.file");
+
+		if (ENABLED && file != null) {
+			startDumping(file, Long.getLong("bot.metrics.period", 10000));
+		}
+	}
+
+	/**
+	 * \brief Counts occurrences of an event
+	 */
+	public static class Counter {
+		private final LongAdder count = new LongAdder(); /**< The count */
+
+		/**
+		 * \brief Adds one to the count, if metrics are enabled
+		 */
+		public void increment() {
+			if (ENABLED) {
+				count.increment();
+			}
+		}
+
+		/**
+		 * \brief Adds to the count, if metrics are enabled
+		 * \param amount the amount to add
+		 */
+		public void add(long amount) {
+			if (ENABLED) {
+				count.add(amount);
+			}
+		}
+
+		/**
+		 * \brief Returns the count
+		 */
+		public long get() {
+			return count.sum();
+		}
+	}
+
+	/**
+	 * \brief Records the durations of an operation in a histogram
+	 */
+	public static class Timer {
+		private final LatencyHistogram histogram = new LatencyHistogram(); /**< Every recorded duration */
+
+		/**
+		 * \brief Records the time since a start time returned by Metrics.start(), if metrics are enabled
+		 * \param startTime the value returned by Metrics.start() when the operation began
+		 */
+		public void stop(long startTime) {
+			if (ENABLED) {
+				histogram.record(System.nanoTime() - startTime);
+			}
+		}
+
+		/**
+		 * \brief Records a duration measured elsewhere, if metrics are enabled
+		 * \param nanoseconds the duration to record
+		 */
+		public void record(long nanoseconds) {
+			if (ENABLED) {
+				histogram.record(nanoseconds);
+			}
+		}
+
+		/**
+		 * \brief Returns the histogram of recorded durations
+		 */
+		public LatencyHistogram getHistogram() {
+			return histogram;
+		}
+	}
+
+	/**
+	 * \brief A point-in-time copy of a timer's statistics, in nanoseconds
+	 */
+	public static class TimerSnapshot {
+		public final long count; /**< Number of recorded durations */
+		public final double mean; /**< Mean duration */
+		public final long p50; /**< Upper bound of the median */
+		public final long p99; /**< Upper bound of the 99th percentile */
+		public final long max; /**< Longest duration */
+
+		TimerSnapshot(LatencyHistogram histogram) {
+			count = histogram.getCount();
+			mean = histogram.getMean();
+			p50 = histogram.getPercentile(50);
+			p99 = histogram.getPercentile(99);
+			max = histogram.getMax();
+		}
+	}
+
+	/**
+	 * \brief A point-in-time copy of every metric, sorted by name
+	 */
+	public static class Snapshot {
+		public final long time; /**< System time the snapshot was taken, in milliseconds */
+		public final Map<String, Long> counters; /**< Count of each counter */
+		public final Map<String, TimerSnapshot> timers; /**< Statistics of each timer */
+
+		Snapshot(long time, Map<String, Long> counters, Map<String, TimerSnapshot> timers) {
+			this.time = time;
+			this.counters = Collections.unmodifiableMap(counters);
+			this.timers = Collections.unmodifiableMap(timers);
+		}
+	}
+
+	/**
+	 * \brief Returns the counter with a name, creating it if it doesn't exist
+	 * \param name the name of the counter, e.g. "danger.queries"
+	 */
+	public static Counter counter(String name) {
+		return counters.computeIfAbsent(name, (String key) -> new Counter());
+	}
+
+	/**
+	 * \brief Returns the timer with a name, creating it if it doesn't exist
+	 * \param name the name of the timer, e.g. "bot.getAction"
+	 */
+	public static Timer timer(String name) {
+		return timers.computeIfAbsent(name, (String key) -> new Timer());
+	}
+
+	/**
+	 * \brief Returns the start time of an operation to pass to Timer.stop, or 0 if metrics are disabled
+	 */
+	public static long start() {
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * \brief Takes a snapshot of every metric
+	 */
+	public static Snapshot snapshot() {
+		Map<String, Long> counterValues = new LinkedHashMap<String, Long>();
+		Map<String, TimerSnapshot> timerValues = new LinkedHashMap<String, TimerSnapshot>();
+
+		counters.keySet().stream().sorted().forEach((String name) -> counterValues.put(name, counters.get(name).get()));
+		timers.keySet().stream().sorted().forEach((String name) -> timerValues.put(name, new TimerSnapshot(timers.get(name).getHistogram())));
+
+		return new Snapshot(System.currentTimeMillis(), counterValues, timerValues);
+	}
+
+	/**
+	 * \brief Starts dumping a snapshot to a file periodically and when the JVM exits. Does nothing if already started
+	 * \param path the file to overwrite with each snapshot. CSV if it ends in .csv, JSON otherwise
+	 * \param periodMillis the time between dumps in milliseconds
+	 */
+	public static synchronized void startDumping(String path, long periodMillis) {
+		if (dumper != null) {
+			return;
+		}
+
+		dumper = Executors.newSingleThreadScheduledExecutor((Runnable runnable) -> {
+			Thread thread = new Thread(runnable, "Metrics dumper");
+
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		dumper.scheduleAtFixedRate(() -> dump(path), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> dump(path)));
+	}
+
+	/**
+	 * \brief Writes a snapshot of every metric to a file
+	 * \param path the file to overwrite. CSV if it ends in .csv, JSON otherwise
+	 */
+	public static void dump(String path) {
+		Snapshot snapshot = snapshot();
+
+		try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8))) {
+			if (path.endsWith(".csv")) {
+				writeCsv(snapshot, writer);
+			} else {
+				writeJson(snapshot, writer);
+			}
+		} catch (IOException e) {
+			DebugUtils.print("Couldn't dump metrics to " + path + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * \brief Writes a snapshot as CSV, one metric per row
+	 */
+	private static void writeCsv(Snapshot snapshot, PrintWriter writer) {
+		writer.println("name,type,count,mean_ns,p50_ns,p99_ns,max_ns");
+
+		for (Map.Entry<String, Long> counter : snapshot.counters.entrySet()) {
+			writer.println(counter.getKey() + ",counter," + counter.getValue() + ",,,,");
+		}
+
+		for (Map.Entry<String, TimerSnapshot> timer : snapshot.timers.entrySet()) {
+			TimerSnapshot t = timer.getValue();
+
+			writer.println(timer.getKey() + ",timer," + t.count + "," + (long)t.mean + "," + t.p50 + "," + t.p99 + "," + t.max);
+		}
+	}
+
+	/**
+	 * \brief Writes a snapshot as a JSON object with 'counters' and 'timers' members
+	 */
+	private static void writeJson(Snapshot snapshot, PrintWriter writer) {
+		String separator = "";
+
+		writer.println("{");
+		writer.println("  \"time\": " + snapshot.time + ",");
+		writer.print("  \"counters\": {");
+
+		for (Map.Entry<String, Long> counter : snapshot.counters.entrySet()) {
+			writer.print(separator + "\n    \"" + counter.getKey() + "\": " + counter.getValue());
+			separator = ",";
+		}
+
+		writer.println("\n  },");
+		writer.print("  \"timers\": {");
+		separator = "";
+
+		for (Map.Entry<String, TimerSnapshot> timer : snapshot.timers.entrySet()) {
+			TimerSnapshot t = timer.getValue();
+
+			writer.print(separator + "\n    \"" + timer.getKey() + "\": {\"count\": " + t.count + ", \"mean_ns\": " + (long)t.mean
+					+ ", \"p50_ns\": " + t.p50 + ", \"p99_ns\": " + t.p99 + ", \"max_ns\": " + t.max + "}");
+			separator = ",";
+		}
+
+		writer.println("\n  }");
+		writer.println("}");
+	}
+}
@@ -0,0 +1,233 @@
+package utilities;
+
+import java.util.Arrays;
+
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.UnitAction;
+import rts.UnitActionAssignment;
+import rts.units.Unit;
+
+/**
+ * \brief Bitset planes of what occupies each tile, rebuilt every tick so that free-tile tests are a single bit test
+ * \author Louis
+ *
+ * Each plane stores one bit per tile, indexed by position (x + y * width) and packed 64 to a long:
+ *  - walls: terrain walls, only rebuilt when the map changes
+ *  - units: tiles with a unit on them
+ *  - pending: tiles that a unit is about to move into or produce on
+ *  - enemyNext: tiles an enemy could be standing on after its next move
+ *  - blocked: walls | units | pending, the tiles GameState.free() considers taken
+ * Our own movers' reservations for the current tick are kept separately in TileReservations.
+ * Rows can be read 64 tiles at a time, so area queries work a word at a time rather than a tile at a time.
+ */
+public class OccupancyGrid {
+	private int width = 0; /**< Width of the map */
+	private int height = 0; /**< Height of the map */
+	private PhysicalGameState wallMap = null; /**< The map the walls plane was built from */
+
+	// Planes
+	private long[] walls = new long[0]; /**< Terrain walls */
+	private long[] units = new long[0]; /**< Tiles with a unit on them */
+	private long[] pending = new long[0]; /**< Targets of pending moves and productions */
+	private long[] enemyNext = new long[0]; /**< Possible enemy positions after their next move */
+	private long[] blocked = new long[0]; /**< walls | units | pending */
+
+	/**
+	 * \brief Rebuilds the planes for the current state
+	 * \param gs the current game state
+	 * \param playerId the player whose enemies fill the enemyNext plane
+	 */
+	public void update(GameState gs, int playerId) {
+		PhysicalGameState pgs = gs.getPhysicalGameState();
+		int numWords = (pgs.getWidth() * pgs.getHeight() + 63) >>> 6;
+
+		if (walls.length != numWords || pgs.getWidth() != width) {
+			walls = new long[numWords];
+			units = new long[numWords];
+			pending = new long[numWords];
+			enemyNext = new long[numWords];
+			blocked = new long[numWords];
+			wallMap = null;
+		} else {
+			Arrays.fill(units, 0);
+			Arrays.fill(pending, 0);
+			Arrays.fill(enemyNext, 0);
+		}
+
+		width = pgs.getWidth();
+		height = pgs.getHeight();
+
+		// Terrain only changes with the map
+		if (pgs != wallMap) {
+			wallMap = pgs;
+			Arrays.fill(walls, 0);
+
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					if (pgs.getTerrain(x, y) == PhysicalGameState.TERRAIN_WALL) {
+						set(walls, x + y * width);
+					}
+				}
+			}
+		}
+
+		// Units. Enemies that aren't moving could step onto any neighbour next
+		for (Unit u : gs.getUnits()) {
+			set(units, u.getX() + u.getY() * width);
+
+			if (u.getPlayer() != playerId && u.getPlayer() != -1 && u.getType().canMove && gs.getActionAssignment(u) == null) {
+				set(enemyNext, u.getX() + u.getY() * width);
+
+				for (int direction = 0; direction < 4; direction++) {
+					setIfOnMap(enemyNext, u.getX() + UnitAction.DIRECTION_OFFSET_X[direction], u.getY() + UnitAction.DIRECTION_OFFSET_Y[direction]);
+				}
+			}
+		}
+
+		// Pending moves and productions
+		for (UnitActionAssignment assignment : gs.getUnitActions().values()) {
+			Unit u = assignment.unit;
+			int type = assignment.action.getType();
+			boolean isEnemy = u.getPlayer() != playerId && u.getPlayer() != -1;
+
+			if (type == UnitAction.TYPE_MOVE || type == UnitAction.TYPE_PRODUCE) {
+				int x = u.getX() + UnitAction.DIRECTION_OFFSET_X[assignment.action.getDirection()];
+				int y = u.getY() + UnitAction.DIRECTION_OFFSET_Y[assignment.action.getDirection()];
+
+				setIfOnMap(pending, x, y);
+
+				if (type == UnitAction.TYPE_MOVE && isEnemy) {
+					setIfOnMap(enemyNext, x, y);
+				}
+			} else if (isEnemy && u.getType().canMove) {
+				// Busy enemies stay put until their action finishes
+				set(enemyNext, u.getX() + u.getY() * width);
+			}
+		}
+
+		for (int i = 0; i < numWords; i++) {
+			blocked[i] = walls[i] | units[i] | pending[i];
+		}
+	}
+
+	/**
+	 * \brief Returns whether a tile exists and is free, in the same sense as GameState.free()
+	 * \param x the X coordinate of the tile
+	 * \param y the Y coordinate of the tile
+	 */
+	public boolean isFree(int x, int y) {
+		return x >= 0 && y >= 0 && x < width && y < height && !get(blocked, x + y * width);
+	}
+
+	/**
+	 * \brief Returns whether a tile exists, is free and isn't reserved by one of our movers
+	 * \param x the X coordinate of the tile
+	 * \param y the Y coordinate of the tile
+	 * \param reservations the tiles our units are moving into this tick
+	 */
+	public boolean isFree(int x, int y, TileReservations reservations) {
+		return isFree(x, y) && !reservations.isReserved(x + y * width);
+	}
+
+	/**
+	 * \brief Returns whether a tile is a wall. Tiles off the map count as walls
+	 */
+	public boolean isWall(int x, int y) {
+		return x < 0 || y < 0 || x >= width || y >= height || get(walls, x + y * width);
+	}
+
+	/**
+	 * \brief Returns whether an enemy could be standing on a tile after its next move
+	 */
+	public boolean isEnemyNext(int x, int y) {
+		return x >= 0 && y >= 0 && x < width && y < height && get(enemyNext, x + y * width);
+	}
+
+	/**
+	 * \brief Returns the free tiles of part of a row as bits
+	 * \param y the row
+	 * \param startX the first column. May be off the map
+	 * \param endX the last column, less than 64 columns after startX. May be off the map
+	 * \return a bit per column, bit 0 being startX, set if the tile exists and is free
+	 */
+	public long getFreeBits(int y, int startX, int endX) {
+		if (y < 0 || y >= height) {
+			return 0;
+		}
+
+		int clippedStartX = Math.max(startX, 0), clippedEndX = Math.min(endX, width - 1);
+
+		if (clippedStartX > clippedEndX) {
+			return 0;
+		}
+
+		// Take the blocked bits of the row segment, which straddles at most two words
+		int start = clippedStartX + y * width, length = clippedEndX - clippedStartX + 1;
+		long bits = blocked[start >>> 6] >>> start;
+
+		if ((start & 63) + length > 64) {
+			bits |= blocked[(start >>> 6) + 1] << (64 - (start & 63));
+		}
+
+		long mask = length == 64 ? -1L : (1L << length) - 1;
+
+		return (~bits & mask) << (clippedStartX - startX);
+	}
+
+	/**
+	 * \brief Counts the free tiles in a rectangle, clipped to the map
+	 * \param startX the left column
+	 * \param startY the top row
+	 * \param endX the right column (inclusive)
+	 * \param endY the bottom row (inclusive)
+	 */
+	public int countFree(int startX, int startY, int endX, int endY) {
+		int count = 0;
+
+		for (int y = Math.max(startY, 0); y <= Math.min(endY, height - 1); y++) {
+			for (int x = startX; x <= endX; x += 64) {
+				count += Long.bitCount(getFreeBits(y, x, Math.min(x + 63, endX)));
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * \brief Copies the blocked plane, for helpers that keep their own copy
+	 * \param destination the array to copy into. Reallocated if it is the wrong size
+	 * \return the copy
+	 */
+	public long[] copyBlocked(long[] destination) {
+		if (destination == null || destination.length != blocked.length) {
+			destination = new long[blocked.length];
+		}
+
+		System.arraycopy(blocked, 0, destination, 0, blocked.length);
+		return destination;
+	}
+
+	/**
+	 * \brief Returns the bit of a position in a plane
+	 */
+	private static boolean get(long[] plane, int position) {
+		return (plane[position >>> 6] & (1L << position)) != 0;
+	}
+
+	/**
+	 * \brief Sets the bit of a position in a plane
+	 */
+	private static void set(long[] plane, int position) {
+		plane[position >>> 6] |= 1L << position;
+	}
+
+	/**
+	 * \brief Sets the bit of a tile in a plane if the tile is on the map
+	 */
+	private void setIfOnMap(long[] plane, int x, int y) {
+		if (x >= 0 && y >= 0 && x < width && y < height) {
+			set(plane, x + y * width);
+		}
+	}
+}
@@ -0,0 +1,396 @@
+package utilities;
+
+import java.util.Arrays;
+
+import rts.GameState;
+import rts.UnitAction;
+import rts.UnitActionAssignment;
+import rts.units.Unit;
+
+/**
+ * \brief Learns how the opponent's units tend to act over a game, and predicts where they'll go next
+ * \author Louis
+ *
+ * Every action an enemy unit starts is reduced to a symbol relative to the closest of our units at the time: a
+ * move towards it, away from it or sideways, an attack, a wait, or anything else (harvesting, producing...). The
+ * model counts, per unit type, how often each symbol follows each pair of previous symbols (trigrams), each single
+ * previous symbol (bigrams), and nothing (unigrams), in flat int arrays. A prediction uses the longest context that
+ * has been seen at least MIN_CONTEXT_COUNT times, with add-one smoothing.
+ *
+ * The counts start empty each game, and until a unit type has been seen MIN_OBSERVATIONS times the model claims no
+ * knowledge: getExpectedChargeDelay returns 0, so danger times stay worst-case, exactly as without a model.
+ *
+ * Histories are kept per enemy ID. Each observation diffs the sorted IDs of this tick's enemies against the last
+ * tick's, like the UnitThinkerRegistry does, so the histories of dead enemies are dropped and their arrays pooled
+ * for new enemies; the map only ever holds as many entries as there are enemies alive.
+ *
+ * observe() must only be called from one thread, but the queries only read, so they are safe from several threads
+ * between observations.
+ */
+public class OpponentModel {
+	public static final int WAIT = 0; /**< Symbol of a wait */
+	public static final int TOWARDS = 1; /**< Symbol of a move towards our closest unit */
+	public static final int AWAY = 2; /**< Symbol of a move away from our closest unit */
+	public static final int SIDEWAYS = 3; /**< Symbol of a move neither towards nor away from our closest unit */
+	public static final int ATTACK = 4; /**< Symbol of an attack */
+	public static final int OTHER = 5; /**< Symbol of any other action */
+	public static final int NUM_SYMBOLS = 6; /**< Number of action symbols */
+	public static final int STAY = 4; /**< Index of staying put in a next-position distribution, after the four directions */
+
+	private static final int START = NUM_SYMBOLS; /**< Context symbol before a unit's first action */
+	private static final int NUM_CONTEXTS = NUM_SYMBOLS + 1; /**< Number of context symbols, including START */
+	private static final int MAX_TYPES = 16; /**< Unit type IDs at or above this share counts */
+	private static final int MIN_CONTEXT_COUNT = 4; /**< Fewest observations of a context before it's trusted over a shorter one */
+	private static final int MIN_OBSERVATIONS = 8; /**< Fewest observations of a unit type before its charge delay is predicted */
+	private static final int MAX_DELAY_MOVES = 2; /**< The most moves of delay getExpectedChargeDelay will predict */
+
+	private static final Metrics.Counter observationCounter = Metrics.counter("opponent.observations"); /**< Metrics count of actions observed */
+
+	private final UnitUtils units; /**< Unit utilities of the player */
+	private final UnitConditions isMineCondition; /**< Matches our units */
+
+	// Counts of each symbol after each context, flattened with the next symbol last
+	private final int[] trigramCounts = new int[MAX_TYPES * NUM_CONTEXTS * NUM_CONTEXTS * NUM_SYMBOLS]; /**< By type, second-last symbol, last symbol and next symbol */
+	private final int[] bigramCounts = new int[MAX_TYPES * NUM_CONTEXTS * NUM_SYMBOLS]; /**< By type, last symbol and next symbol */
+	private final int[] unigramCounts = new int[MAX_TYPES * NUM_SYMBOLS]; /**< By type and next symbol */
+	private final int[] trigramTotals = new int[MAX_TYPES * NUM_CONTEXTS * NUM_CONTEXTS]; /**< Observations of each trigram context */
+	private final int[] bigramTotals = new int[MAX_TYPES * NUM_CONTEXTS]; /**< Observations of each bigram context */
+	private final int[] unigramTotals = new int[MAX_TYPES]; /**< Observations of each type */
+
+	private final LongObjectMap<int[]> histories = new LongObjectMap<int[]>(); /**< Per enemy ID: time of its last action seen, its last symbol and the one before */
+	private int[][] historyPool = new int[16][]; /**< History arrays of dead enemies, to reuse */
+	private int numPooled = 0; /**< Number of arrays in historyPool */
+	private long[] liveIds = new long[16]; /**< Sorted IDs of the enemies at the last observation */
+	private int numLive = 0; /**< Number of IDs in liveIds */
+	private long[] currentIds = new long[16]; /**< Sorted IDs of this observation's enemies (swapped with liveIds after each observation) */
+	private int lastTime = -1; /**< Game time of the last observation */
+
+	/**
+	 * \brief Creates an empty model
+	 * \param units the unit utilities of the player
+	 */
+	public OpponentModel(UnitUtils units) {
+		this.units = units;
+		this.isMineCondition = (Unit u) -> u.getPlayer() >= 0 && !units.isEnemy(u);
+	}
+
+	/**
+	 * \brief Learns from the actions enemies have started since the last observation
+	 * \param gs the current game state
+	 */
+	public void observe(GameState gs) {
+		if (gs.getTime() < lastTime) {
+			// A new game
+			reset();
+		}
+
+		lastTime = gs.getTime();
+		pruneHistories();
+
+		for (Unit enemy : units.enemies) {
+			UnitActionAssignment assignment = gs.getActionAssignment(enemy);
+
+			if (assignment == null) {
+				continue;
+			}
+
+			int[] history = histories.get(enemy.getID());
+
+			if (history == null) {
+				history = numPooled > 0 ? historyPool[--numPooled] : new int[3];
+				history[0] = Integer.MIN_VALUE;
+				history[1] = START;
+				history[2] = START;
+				histories.put(enemy.getID(), history);
+			}
+
+			if (history[0] == assignment.time) {
+				// Already seen
+				continue;
+			}
+
+			int symbol = classify(enemy, assignment.action);
+			int type = typeOf(enemy);
+			int bigram = type * NUM_CONTEXTS + history[1];
+			int trigram = (type * NUM_CONTEXTS + history[2]) * NUM_CONTEXTS + history[1];
+
+			trigramCounts[trigram * NUM_SYMBOLS + symbol]++;
+			trigramTotals[trigram]++;
+			bigramCounts[bigram * NUM_SYMBOLS + symbol]++;
+			bigramTotals[bigram]++;
+			unigramCounts[type * NUM_SYMBOLS + symbol]++;
+			unigramTotals[type]++;
+			observationCounter.increment();
+
+			history[0] = assignment.time;
+			history[2] = history[1];
+			history[1] = symbol;
+		}
+	}
+
+	/**
+	 * \brief Forgets everything learnt
+	 */
+	public void reset() {
+		Arrays.fill(trigramCounts, 0);
+		Arrays.fill(bigramCounts, 0);
+		Arrays.fill(unigramCounts, 0);
+		Arrays.fill(trigramTotals, 0);
+		Arrays.fill(bigramTotals, 0);
+		Arrays.fill(unigramTotals, 0);
+
+		for (int live = 0; live < numLive; live++) {
+			releaseHistory(liveIds[live]);
+		}
+
+		numLive = 0;
+		lastTime = -1;
+	}
+
+	/**
+	 * \brief Drops the histories of enemies that have disappeared since the last observation, by comparing sorted IDs
+	 */
+	private void pruneHistories() {
+		int numCurrent = 0;
+
+		if (currentIds.length < units.enemies.size()) {
+			currentIds = new long[units.enemies.size() * 2];
+		}
+
+		for (Unit enemy : units.enemies) {
+			currentIds[numCurrent++] = enemy.getID();
+		}
+
+		Arrays.sort(currentIds, 0, numCurrent);
+
+		for (int live = 0, current = 0; live < numLive; live++) {
+			while (current < numCurrent && currentIds[current] < liveIds[live]) {
+				current++;
+			}
+
+			if (current >= numCurrent || currentIds[current] != liveIds[live]) {
+				releaseHistory(liveIds[live]);
+			}
+		}
+
+		// This observation's IDs are now the live IDs
+		long[] swap = liveIds;
+
+		liveIds = currentIds;
+		currentIds = swap;
+		numLive = numCurrent;
+	}
+
+	/**
+	 * \brief Removes an enemy's history, if it has one, and pools its array
+	 */
+	private void releaseHistory(long id) {
+		int[] history = histories.remove(id);
+
+		if (history == null) {
+			return;
+		}
+
+		if (numPooled == historyPool.length) {
+			historyPool = Arrays.copyOf(historyPool, numPooled * 2);
+		}
+
+		historyPool[numPooled++] = history;
+	}
+
+	/**
+	 * \brief Predicts the symbol of an enemy's next action
+	 * \param enemy the enemy
+	 * \param probabilities filled with the probability of each symbol
+	 */
+	public void predictNextAction(Unit enemy, float[] probabilities) {
+		int type = typeOf(enemy);
+		int[] history = histories.get(enemy.getID());
+		int last = history != null ? history[1] : START, secondLast = history != null ? history[2] : START;
+		int trigram = (type * NUM_CONTEXTS + secondLast) * NUM_CONTEXTS + last;
+		int bigram = type * NUM_CONTEXTS + last;
+		int[] counts;
+		int offset, total;
+
+		// Back off to shorter contexts until one has been seen enough
+		if (trigramTotals[trigram] >= MIN_CONTEXT_COUNT) {
+			counts = trigramCounts;
+			offset = trigram * NUM_SYMBOLS;
+			total = trigramTotals[trigram];
+		} else if (bigramTotals[bigram] >= MIN_CONTEXT_COUNT) {
+			counts = bigramCounts;
+			offset = bigram * NUM_SYMBOLS;
+			total = bigramTotals[bigram];
+		} else {
+			counts = unigramCounts;
+			offset = type * NUM_SYMBOLS;
+			total = unigramTotals[type];
+		}
+
+		for (int symbol = 0; symbol < NUM_SYMBOLS; symbol++) {
+			probabilities[symbol] = (float)(counts[offset + symbol] + 1) / (total + NUM_SYMBOLS);
+		}
+	}
+
+	/**
+	 * \brief Predicts where an enemy will be after its next action, relative to a target it may approach
+	 * \param enemy the enemy
+	 * \param targetX the X coordinate of the unit the enemy is measured against, usually our unit closest to it
+	 * \param targetY the Y coordinate of the unit the enemy is measured against
+	 * \param probabilities filled with the probability of moving in each direction (indexed by UnitAction direction) and of staying (at STAY)
+	 * \param symbolScratch a scratch array of NUM_SYMBOLS floats
+	 */
+	public void predictNextPositions(Unit enemy, int targetX, int targetY, float[] probabilities, float[] symbolScratch) {
+		int x = units.getXAfter(enemy, Integer.MAX_VALUE), y = units.getYAfter(enemy, Integer.MAX_VALUE);
+		int distance = MapUtils.distance(x, y, targetX, targetY);
+		int numTowards = 0, numAway = 0, numSideways = 0;
+
+		predictNextAction(enemy, symbolScratch);
+
+		// Count the directions of each kind, so each kind's probability can be shared between them
+		for (int direction = 0; direction < 4; direction++) {
+			int newDistance = MapUtils.distance(x + UnitAction.DIRECTION_OFFSET_X[direction], y + UnitAction.DIRECTION_OFFSET_Y[direction], targetX, targetY);
+
+			if (newDistance < distance) {
+				numTowards++;
+			} else if (newDistance > distance) {
+				numAway++;
+			} else {
+				numSideways++;
+			}
+		}
+
+		probabilities[STAY] = symbolScratch[WAIT] + symbolScratch[ATTACK] + symbolScratch[OTHER];
+
+		for (int direction = 0; direction < 4; direction++) {
+			int newDistance = MapUtils.distance(x + UnitAction.DIRECTION_OFFSET_X[direction], y + UnitAction.DIRECTION_OFFSET_Y[direction], targetX, targetY);
+
+			if (newDistance < distance) {
+				probabilities[direction] = symbolScratch[TOWARDS] / numTowards;
+			} else if (newDistance > distance) {
+				probabilities[direction] = symbolScratch[AWAY] / numAway;
+			} else {
+				probabilities[direction] = symbolScratch[SIDEWAYS] / numSideways;
+			}
+		}
+
+		// Kinds of move with no direction to go in (e.g. towards, when already on the target) stay put instead
+		if (numTowards == 0) {
+			probabilities[STAY] += symbolScratch[TOWARDS];
+		}
+
+		if (numAway == 0) {
+			probabilities[STAY] += symbolScratch[AWAY];
+		}
+
+		if (numSideways == 0) {
+			probabilities[STAY] += symbolScratch[SIDEWAYS];
+		}
+	}
+
+	/**
+	 * \brief Returns how long an enemy is expected to dither before it next charges (moves towards us or attacks)
+	 * Each action is a charge with probability p, so the expected number of other actions first is (1 - p) / p,
+	 * each taken to last a move. This is rounded down to whole moves and capped at MAX_DELAY_MOVES.
+	 * \param enemy the enemy
+	 * \param symbolScratch a scratch array of NUM_SYMBOLS floats
+	 * \return the expected delay in cycles, or 0 if the enemy's type hasn't been seen enough to tell
+	 */
+	public int getExpectedChargeDelay(Unit enemy, float[] symbolScratch) {
+		if (!hasLearnt(enemy)) {
+			return 0;
+		}
+
+		predictNextAction(enemy, symbolScratch);
+
+		float chargeProbability = symbolScratch[TOWARDS] + symbolScratch[ATTACK];
+		int numMoves = (int)Math.min((1 - chargeProbability) / chargeProbability, MAX_DELAY_MOVES);
+
+		return numMoves * enemy.getMoveTime();
+	}
+
+	/**
+	 * \brief Returns the probability that an enemy will be able to attack a tile after its next action
+	 * \param enemy the enemy
+	 * \param x the X coordinate of the tile, where the unit the enemy is measured against stands
+	 * \param y the Y coordinate of the tile
+	 * \param positionScratch a scratch array of STAY + 1 floats
+	 * \param symbolScratch a scratch array of NUM_SYMBOLS floats
+	 * \return the probability, or 1 if the enemy's type hasn't been seen enough to tell
+	 */
+	public float getThreatProbability(Unit enemy, int x, int y, float[] positionScratch, float[] symbolScratch) {
+		if (!hasLearnt(enemy)) {
+			return 1;
+		}
+
+		int enemyX = units.getXAfter(enemy, Integer.MAX_VALUE), enemyY = units.getYAfter(enemy, Integer.MAX_VALUE);
+		int range = enemy.getAttackRange();
+		float probability = 0;
+
+		predictNextPositions(enemy, x, y, positionScratch, symbolScratch);
+
+		for (int position = 0; position <= STAY; position++) {
+			int dx = position < STAY ? enemyX + UnitAction.DIRECTION_OFFSET_X[position] - x : enemyX - x;
+			int dy = position < STAY ? enemyY + UnitAction.DIRECTION_OFFSET_Y[position] - y : enemyY - y;
+
+			// The same range test as MapUtils.isInAttackRange
+			if (range == 1 ? Math.abs(dx) + Math.abs(dy) == 1 : dx * dx + dy * dy <= range * range) {
+				probability += positionScratch[position];
+			}
+		}
+
+		return probability;
+	}
+
+	/**
+	 * \brief Returns whether an enemy's type has been seen often enough for its predictions to mean anything
+	 */
+	public boolean hasLearnt(Unit enemy) {
+		return unigramTotals[typeOf(enemy)] >= MIN_OBSERVATIONS;
+	}
+
+	/**
+	 * \brief Returns the number of enemy actions observed this game
+	 */
+	public int getNumObservations() {
+		int total = 0;
+
+		for (int type = 0; type < MAX_TYPES; type++) {
+			total += unigramTotals[type];
+		}
+
+		return total;
+	}
+
+	/**
+	 * \brief Reduces an action to its symbol, relative to the closest of our units
+	 */
+	private int classify(Unit enemy, UnitAction action) {
+		switch (action.getType()) {
+		case UnitAction.TYPE_NONE:
+			return WAIT;
+		case UnitAction.TYPE_ATTACK_LOCATION:
+			return ATTACK;
+		case UnitAction.TYPE_MOVE:
+			Unit closest = units.findClosestUnit(enemy.getX(), enemy.getY(), isMineCondition);
+
+			if (closest == null) {
+				return SIDEWAYS;
+			}
+
+			int distance = MapUtils.distance(enemy, closest);
+			int newDistance = MapUtils.distance(closest, enemy.getX() + UnitAction.DIRECTION_OFFSET_X[action.getDirection()], enemy.getY() + UnitAction.DIRECTION_OFFSET_Y[action.getDirection()]);
+
+			return newDistance < distance ? TOWARDS : (newDistance > distance ? AWAY : SIDEWAYS);
+		default:
+			return OTHER;
+		}
+	}
+
+	/**
+	 * \brief Returns the row of a unit's type in the counts
+	 */
+	private static int typeOf(Unit unit) {
+		return Math.min(unit.getType().ID, MAX_TYPES - 1);
+	}
+}
@@ -0,0 +1,225 @@
+package utilities;
+
+import java.util.Arrays;
+
+import rts.GameState;
+import rts.PhysicalGameState;
+import rts.UnitAction;
+
+/**
+ * \brief A per-tick pathfinding service shared by every unit of a player
+ * \author Louis
+ *
+ * Rather than searching from each unit to its target, a breadth-first distance field is grown outwards from
+ * the target the first time it is requested in a tick. Every unit heading to the same target with the same
+ * range then reads its next step (and the step after) straight from the field.
+ * Like AStarPathFinding, every unit and every tile about to be moved into or produced on counts as an obstacle.
+ *
+ * Queries are safe to make from several threads at once between updates. Built fields are found without locking,
+ * and new fields are built under a lock, then published by incrementing the volatile field count.
+ */
+public class PathService {
+	private int width = 0; /**< Width of the map */
+	private int height = 0; /**< Height of the map */
+	private long[] blockedTiles = null; /**< Bit per tile, set if it can't be walked through this tick. A copy of the occupancy grid's blocked plane */
+
+	// Field cache (cleared every tick)
+	private volatile int numFields = 0; /**< Number of fields built this tick. Written last, to publish a new field */
+	private volatile long[] fieldKeys = new long[16]; /**< Target position and range of each field */
+	private volatile int[][] fields = new int[16][]; /**< Distance from each tile to the target range, in steps, or Integer.MAX_VALUE if unreachable */
+
+	private int[] queue = new int[0]; /**< Breadth-first search queue */
+
+	private static final Metrics.Counter stepQueryCounter = Metrics.counter("path.stepQueries"); /**< Metrics count of step queries */
+	private static final Metrics.Timer buildFieldTimer = Metrics.timer("path.buildField"); /**< Metrics timer of building a distance field */
+
+	/**
+	 * \brief Refreshes the obstacles and forgets the previous tick's fields
+	 * \param gs the current game state
+	 * \param units the unit utilities of the player, with an up to date occupancy grid
+	 */
+	public void update(GameState gs, UnitUtils units) {
+		PhysicalGameState pgs = gs.getPhysicalGameState();
+
+		width = pgs.getWidth();
+		height = pgs.getHeight();
+		numFields = 0;
+
+		if (queue.length != width * height) {
+			queue = new int[width * height];
+
+			// Field buffers from another map size are useless now
+			Arrays.fill(fields, null);
+		}
+
+		// Walls, units and tiles that units are about to move into or produce on
+		blockedTiles = units.getOccupancy().copyBlocked(blockedTiles);
+	}
+	/**
+	 * \brief Returns the direction of the first step from a position towards a target
+	 * \param x the X coordinate to step from
+	 * \param y the Y coordinate to step from
+	 * \param targetPosition the position of the target
+	 * \param range how close to the target to arrive at (Euclidean, as with AStarPathFinding)
+	 * \return the direction to step in, or UnitAction.DIRECTION_NONE if already in range or there is no path
+	 */
+	public int getStepDirection(int x, int y, int targetPosition, int range) {
+		int targetX = targetPosition % width, targetY = targetPosition / width;
+
+		stepQueryCounter.increment();
+
+		if (isInRange(x, y, targetX, targetY, range)) {
+			return UnitAction.DIRECTION_NONE;
+		}
+
+		int[] field = getField(targetPosition, range);
+		int bestDirection = UnitAction.DIRECTION_NONE;
+		int bestDistance = Integer.MAX_VALUE;
+
+		// Step onto the neighbour closest to the target
+		for (int direction = 0; direction < 4; direction++) {
+			int nextX = x + UnitAction.DIRECTION_OFFSET_X[direction], nextY = y + UnitAction.DIRECTION_OFFSET_Y[direction];
+
+			if (nextX >= 0 && nextY >= 0 && nextX < width && nextY < height && field[nextX + nextY * width] < bestDistance) {
+				bestDistance = field[nextX + nextY * width];
+				bestDirection = direction;
+			}
+		}
+
+		return bestDirection;
+	}
+
+	/**
+	 * \brief Returns the number of steps from a free tile to a target
+	 * \param x the X coordinate of the tile
+	 * \param y the Y coordinate of the tile
+	 * \param targetPosition the position of the target
+	 * \param range how close to the target to arrive at
+	 * \return the number of steps, or Integer.MAX_VALUE if the tile is blocked or cannot reach the target
+	 */
+	public int getDistance(int x, int y, int targetPosition, int range) {
+		if (x < 0 || y < 0 || x >= width || y >= height) {
+			return Integer.MAX_VALUE;
+		}
+
+		return getField(targetPosition, range)[x + y * width];
+	}
+
+	/**
+	 * \brief Returns whether the distance field for a target and range has already been built this tick, making queries on it cheap
+	 * \param targetPosition the position of the target
+	 * \param range how close to the target to arrive at
+	 */
+	public boolean hasField(int targetPosition, int range) {
+		return findField(((long)targetPosition << 16) | range) != null;
+	}
+
+	/**
+	 * \brief Returns the distance field for a target and range, building it if it doesn't exist yet this tick
+	 */
+	private int[] getField(int targetPosition, int range) {
+		int[] field = findField(((long)targetPosition << 16) | range);
+
+		return field != null ? field : addField(targetPosition, range);
+	}
+
+	/**
+	 * \brief Returns the field with a key if it has been built this tick, otherwise null
+	 */
+	private int[] findField(long key) {
+		// Read the count first, so that the arrays are at least as new as it
+		int numBuiltFields = numFields;
+		long[] keys = fieldKeys;
+		int[][] builtFields = fields;
+
+		for (int i = 0; i < numBuiltFields; i++) {
+			if (keys[i] == key) {
+				return builtFields[i];
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * \brief Builds and publishes the field for a target and range, unless another thread just did
+	 */
+	private synchronized int[] addField(int targetPosition, int range) {
+		long key = ((long)targetPosition << 16) | range;
+		int[] existingField = findField(key);
+
+		if (existingField != null) {
+			return existingField;
+		}
+
+		// Make room for a new field, reusing a buffer from a previous tick where possible
+		if (numFields == fieldKeys.length) {
+			fieldKeys = Arrays.copyOf(fieldKeys, numFields * 2);
+			fields = Arrays.copyOf(fields, numFields * 2);
+		}
+
+		if (fields[numFields] == null) {
+			fields[numFields] = new int[width * height];
+		}
+
+		long startTime = Metrics.start();
+
+		int[] field = fields[numFields];
+
+		buildField(field, targetPosition % width, targetPosition / width, range);
+		fieldKeys[numFields] = key;
+		numFields++;
+		buildFieldTimer.stop(startTime);
+
+		return field;
+	}
+
+	/**
+	 * \brief Fills a distance field by searching outwards from every free tile within range of the target
+	 */
+	private void buildField(int[] field, int targetX, int targetY, int range) {
+		int head = 0, tail = 0;
+
+		Arrays.fill(field, Integer.MAX_VALUE);
+
+		// Seed with the free tiles in range
+		for (int y = Math.max(targetY - range, 0); y <= Math.min(targetY + range, height - 1); y++) {
+			for (int x = Math.max(targetX - range, 0); x <= Math.min(targetX + range, width - 1); x++) {
+				if (isFree(x + y * width) && isInRange(x, y, targetX, targetY, range)) {
+					field[x + y * width] = 0;
+					queue[tail++] = x + y * width;
+				}
+			}
+		}
+
+		// Expand through free tiles
+		while (head < tail) {
+			int position = queue[head++];
+			int x = position % width, y = position / width;
+
+			for (int direction = 0; direction < 4; direction++) {
+				int nextX = x + UnitAction.DIRECTION_OFFSET_X[direction], nextY = y + UnitAction.DIRECTION_OFFSET_Y[direction];
+				int nextPosition = nextX + nextY * width;
+
+				if (nextX >= 0 && nextY >= 0 && nextX < width && nextY < height && isFree(nextPosition) && field[nextPosition] == Integer.MAX_VALUE) {
+					field[nextPosition] = field[position] + 1;
+					queue[tail++] = nextPosition;
+				}
+			}
+		}
+	}
+
+	/**
+	 * \brief Returns whether a tile can be walked through this tick
+	 */
+	private boolean isFree(int position) {
+		return (blockedTiles[position >>> 6] & (1L << position)) == 0;
+	}
+
+	/**
+	 * \brief Returns whether a tile is within range of the target, using the same test as AStarPathFinding
+	 */
+	private static boolean isInRange(int x, int y, int targetX, int targetY, int range) {
+		return (x - targetX) * (x - targetX) + (y - targetY) * (y - targetY) <= range * range;
+	}
+}
@@ -0,0 +1,111 @@
+package utilities;
+
+import java.util.Arrays;
+
+/**
+ * \brief The (tile, time) cells that our units have claimed along their planned paths, as in cooperative A*
+ * \author Louis
+ *
+ * TileReservations only covers the tiles being stepped into this tick. This table looks further ahead: time is cut
+ * into slots of a few cycles, and each cell (tile, slot) records the ID of the unit planning to be on that tile at
+ * that time. Units planning later route around the cells of units that planned before them.
+ *
+ * Only a fixed window of slots is kept, in a ring buffer. As the game time advances, the slots that fall into the
+ * past are cleared and reused for the far end of the window, so memory stays at numSlots * numTiles owners.
+ * Cells are addressed by an index from getCell(), which stays valid until its slot falls into the past.
+ */
+public class ReservationTable {
+	public static final long FREE = -1; /**< Owner of a cell that nobody has reserved */
+	public static final int NO_CELL = -1; /**< Cell index of a time outside the window */
+
+	private final int numSlots; /**< Number of time slots in the window */
+	private final int cyclesPerSlot; /**< Number of game cycles covered by each slot */
+
+	private int numTiles = 0; /**< Number of tiles on the map */
+	private long[] owners = new long[0]; /**< ID of the unit reserving each cell, or FREE, indexed by ring slot * numTiles + position */
+	private long currentSlot = -1; /**< Absolute slot (game time / cyclesPerSlot) of the current time, which lives at ring slot currentSlot % numSlots */
+
+	/**
+	 * \brief Creates an empty reservation table
+	 * \param numSlots the number of time slots to keep
+	 * \param cyclesPerSlot the number of game cycles covered by each slot
+	 */
+	public ReservationTable(int numSlots, int cyclesPerSlot) {
+		this.numSlots = numSlots;
+		this.cyclesPerSlot = cyclesPerSlot;
+	}
+
+	/**
+	 * \brief Moves the window up to the current time, clearing the slots that are now in the past. Clears everything
+	 * when the map size changes or time goes backwards, e.g. in a new game
+	 * \param time the current game time
+	 * \param numTiles the number of tiles on the map
+	 */
+	public void advance(int time, int numTiles) {
+		long slot = time / cyclesPerSlot;
+
+		if (numTiles != this.numTiles || slot < currentSlot || slot - currentSlot >= numSlots) {
+			if (owners.length != numSlots * numTiles) {
+				owners = new long[numSlots * numTiles];
+			}
+
+			Arrays.fill(owners, FREE);
+			this.numTiles = numTiles;
+		} else {
+			for (long pastSlot = currentSlot; pastSlot < slot; pastSlot++) {
+				int start = (int)(pastSlot % numSlots) * numTiles;
+
+				Arrays.fill(owners, start, start + numTiles, FREE);
+			}
+		}
+
+		currentSlot = slot;
+	}
+
+	/**
+	 * \brief Returns the index of the cell for a tile at a time
+	 * \param position the position of the tile
+	 * \param time the game time
+	 * \return the cell index, or NO_CELL if the time is before the current slot or beyond the window
+	 */
+	public int getCell(int position, int time) {
+		long slot = time / cyclesPerSlot;
+
+		if (slot < currentSlot || slot - currentSlot >= numSlots) {
+			return NO_CELL;
+		}
+
+		return (int)(slot % numSlots) * numTiles + position;
+	}
+
+	/**
+	 * \brief Returns the ID of the unit reserving a cell, or FREE
+	 * \param cell the cell index
+	 */
+	public long getOwner(int cell) {
+		return owners[cell];
+	}
+
+	/**
+	 * \brief Sets the unit reserving a cell
+	 * \param cell the cell index
+	 * \param owner the ID of the unit, or FREE to release the cell
+	 */
+	public void setOwner(int cell, long owner) {
+		owners[cell] = owner;
+	}
+
+	/**
+	 * \brief Returns the number of game cycles covered by each slot
+	 */
+	public int getCyclesPerSlot() {
+		return cyclesPerSlot;
+	}
+
+	/**
+	 * \brief Returns the number of game cycles covered by the whole window
+	 */
+	public int getHorizon() {
+		return numSlots * cyclesPerSlot;
+	}
+}
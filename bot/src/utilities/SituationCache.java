@@ -0,0 +1,193 @@
+package utilities;
+
+import java.util.Arrays;
+
+/**
+ * \brief A bounded cache from situation hashes to decisions, evicting with the CLOCK algorithm
+ * \author Louis
+ *
+ * Decisions are stored as ints (a direction, a tile, an offset, an enum ordinal...) so that nothing is boxed. The
+ * entries live in a fixed ring of slots, found through an open-addressed index of twice as many buckets. Each slot
+ * has a reference bit, set whenever it is hit. When the cache is full, the clock hand sweeps the ring, clearing
+ * reference bits, and evicts the first entry whose bit was already clear: entries in use keep getting second
+ * chances, while entries that stopped coming up are replaced, much as with LRU but without reordering on every hit.
+ *
+ * A cache is not thread-safe. Thinkers ticking in parallel each use their own thread's cache rather than sharing one
+ * behind a lock. Hits and misses are counted both here and in the metrics, under cache.[name].hits and
+ * cache.[name].misses.
+ */
+public class SituationCache {
+	public static final int MISSING = Integer.MIN_VALUE; /**< Returned by get() for a situation that isn't cached */
+
+	private static final int EMPTY = -1; /**< Index bucket without a slot */
+
+	private final long[] keys; /**< Situation hash of each slot */
+	private final int[] values; /**< Decision of each slot */
+	private final boolean[] referenced; /**< Reference bit of each slot */
+	private final int[] buckets; /**< Slot of each index bucket, or EMPTY */
+	private final int bucketMask; /**< Number of buckets - 1 */
+	private int size = 0; /**< Number of slots in use */
+	private int hand = 0; /**< The slot the clock hand points at */
+
+	private long hits = 0; /**< Number of hits */
+	private long misses = 0; /**< Number of misses */
+	private final Metrics.Counter hitCounter; /**< Metrics count of hits */
+	private final Metrics.Counter missCounter; /**< Metrics count of misses */
+
+	/**
+	 * \brief Creates an empty cache
+	 * \param name the name of the cache in the metrics
+	 * \param capacity the most situations to keep, rounded up to a power of two
+	 */
+	public SituationCache(String name, int capacity) {
+		int numSlots = 8;
+
+		while (numSlots < capacity) {
+			numSlots *= 2;
+		}
+
+		keys = new long[numSlots];
+		values = new int[numSlots];
+		referenced = new boolean[numSlots];
+		buckets = new int[numSlots * 2];
+		bucketMask = buckets.length - 1;
+		Arrays.fill(buckets, EMPTY);
+
+		hitCounter = Metrics.counter("cache." + name + ".hits");
+		missCounter = Metrics.counter("cache." + name + ".misses");
+	}
+
+	/**
+	 * \brief Returns the decision cached for a situation, counting a hit or a miss
+	 * \param key the situation hash
+	 * \return the decision, or MISSING
+	 */
+	public int get(long key) {
+		for (int bucket = bucketOf(key); buckets[bucket] != EMPTY; bucket = (bucket + 1) & bucketMask) {
+			int slot = buckets[bucket];
+
+			if (keys[slot] == key) {
+				referenced[slot] = true;
+				hits++;
+				hitCounter.increment();
+				return values[slot];
+			}
+		}
+
+		misses++;
+		missCounter.increment();
+		return MISSING;
+	}
+
+	/**
+	 * \brief Caches the decision for a situation, evicting a little-used situation if the cache is full
+	 * \param key the situation hash
+	 * \param value the decision, which must not be MISSING
+	 */
+	public void put(long key, int value) {
+		int bucket = bucketOf(key);
+
+		for (; buckets[bucket] != EMPTY; bucket = (bucket + 1) & bucketMask) {
+			if (keys[buckets[bucket]] == key) {
+				values[buckets[bucket]] = value;
+				return;
+			}
+		}
+
+		int slot;
+
+		if (size < keys.length) {
+			slot = size++;
+		} else {
+			// Sweep for an entry that hasn't been hit since the hand last passed it
+			while (referenced[hand]) {
+				referenced[hand] = false;
+				hand = (hand + 1) & (keys.length - 1);
+			}
+
+			slot = hand;
+			hand = (hand + 1) & (keys.length - 1);
+			removeFromIndex(keys[slot], slot);
+
+			// The removal may have shifted entries into our bucket's probe sequence
+			bucket = bucketOf(key);
+
+			while (buckets[bucket] != EMPTY) {
+				bucket = (bucket + 1) & bucketMask;
+			}
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+		referenced[slot] = false;
+		buckets[bucket] = slot;
+	}
+
+	/**
+	 * \brief Removes every situation, keeping the hit and miss counts
+	 */
+	public void clear() {
+		Arrays.fill(buckets, EMPTY);
+		Arrays.fill(referenced, false);
+		size = 0;
+		hand = 0;
+	}
+
+	/**
+	 * \brief Returns the number of cached situations
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * \brief Returns the number of hits so far
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * \brief Returns the number of misses so far
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * \brief Returns the fraction of lookups that hit, or 0 if there haven't been any
+	 */
+	public double getHitRate() {
+		return hits + misses > 0 ? (double)hits / (hits + misses) : 0;
+	}
+
+	/**
+	 * \brief Removes a slot from the index, shifting back any following buckets that would otherwise become unreachable
+	 */
+	private void removeFromIndex(long key, int slot) {
+		int hole = bucketOf(key);
+
+		while (buckets[hole] != slot) {
+			hole = (hole + 1) & bucketMask;
+		}
+
+		for (int next = (hole + 1) & bucketMask; buckets[next] != EMPTY; next = (next + 1) & bucketMask) {
+			int home = bucketOf(keys[buckets[next]]);
+
+			// Move the bucket if the hole lies between its home and where it is now (cyclically)
+			if (((next - home) & bucketMask) >= ((next - hole) & bucketMask)) {
+				buckets[hole] = buckets[next];
+				hole = next;
+			}
+		}
+
+		buckets[hole] = EMPTY;
+	}
+
+	/**
+	 * \brief Returns the home bucket of a key. Situation hashes are already well mixed
+	 */
+	private int bucketOf(long key) {
+		return (int)(key ^ (key >>> 32)) & bucketMask;
+	}
+}
@@ -0,0 +1,138 @@
+package utilities;
+
+import java.util.Random;
+
+import rts.UnitAction;
+import rts.units.Unit;
+
+/**
+ * \brief Zobrist hashes of the window of tiles around a position, for caching decisions about local situations
+ * \author Louis
+ *
+ * Every feature a tile can have at every offset from the window's centre has its own random key: the type and side
+ * (ours, enemy or neutral) of the unit on it, the unit's hit point range, its pending action and direction, and how
+ * long until that action finishes. A tile without a unit only has a key if it is blocked (a wall, or a tile being
+ * moved into or produced on). The hash of a window is the XOR of the keys of every feature in it, so two windows
+ * with the same contents relative to their centre hash the same wherever they are on the map.
+ *
+ * The keys come from a fixed seed, so hashes are the same from game to game. They are only a few bits short of
+ * unique, which is plenty for a cache: a collision costs one poorer decision, not a crash.
+ */
+public class SituationHash {
+	public static final int MAX_RADIUS = 8; /**< The largest window radius that can be hashed */
+	public static final int HP_BUCKETS = 4; /**< Number of hit point ranges distinguished */
+
+	private static final int WINDOW_SIZE = MAX_RADIUS * 2 + 1; /**< Width of the largest window */
+	private static final int NUM_CELLS = WINDOW_SIZE * WINDOW_SIZE; /**< Number of tiles in the largest window */
+	private static final int MAX_TYPES = 16; /**< Unit type IDs at or above this share keys */
+	private static final int NUM_SIDES = 3; /**< Ours, enemy, neutral */
+	private static final int NUM_ACTIONS = UnitAction.NUMBER_OF_ACTION_TYPES * 5; /**< Action types times directions (including none) */
+	private static final int MAX_ETA = 31; /**< Times until an action finishes are capped at this */
+
+	private static final long[] unitKeys = randomKeys(NUM_CELLS * NUM_SIDES * MAX_TYPES, 1); /**< Key of each (cell, side, type) */
+	private static final long[] hpKeys = randomKeys(NUM_CELLS * HP_BUCKETS, 2); /**< Key of each (cell, hit point range) */
+	private static final long[] actionKeys = randomKeys(NUM_CELLS * NUM_ACTIONS, 3); /**< Key of each (cell, action type and direction) */
+	private static final long[] etaKeys = randomKeys(NUM_CELLS * (MAX_ETA + 1), 4); /**< Key of each (cell, time until the action finishes) */
+	private static final long[] blockedKeys = randomKeys(NUM_CELLS, 5); /**< Key of each blocked empty cell */
+	private static final long[] offMapKeys = randomKeys(NUM_CELLS, 6); /**< Key of each cell off the map */
+
+	/**
+	 * \brief Returns the hash of the square window of tiles around a position
+	 * \param centreX the X coordinate of the centre of the window
+	 * \param centreY the Y coordinate of the centre of the window
+	 * \param radius the window's radius, at most MAX_RADIUS. The window is radius * 2 + 1 tiles wide
+	 * \param salt a value mixed into the hash, to tell apart different decisions made about the same window
+	 * \param units the unit utilities, ticked with the current state
+	 * \return the hash
+	 */
+	public static long hashWindow(int centreX, int centreY, int radius, long salt, UnitUtils units) {
+		OccupancyGrid occupancy = units.getOccupancy();
+		int width = units.getGameState().getPhysicalGameState().getWidth();
+		int height = units.getGameState().getPhysicalGameState().getHeight();
+		long hash = mix(salt * WINDOW_SIZE + radius);
+
+		radius = Math.min(radius, MAX_RADIUS);
+
+		for (int dy = -radius; dy <= radius; dy++) {
+			int y = centreY + dy;
+
+			for (int dx = -radius; dx <= radius; dx++) {
+				int x = centreX + dx;
+				int cell = (dy + MAX_RADIUS) * WINDOW_SIZE + dx + MAX_RADIUS;
+
+				if (x < 0 || y < 0 || x >= width || y >= height) {
+					hash ^= offMapKeys[cell];
+					continue;
+				}
+
+				Unit unit = units.getUnitAt(x, y);
+
+				if (unit != null) {
+					hash ^= hashUnit(unit, cell, units);
+				} else if (!occupancy.isFree(x, y)) {
+					hash ^= blockedKeys[cell];
+				}
+			}
+		}
+
+		return hash;
+	}
+
+	/**
+	 * \brief Returns the hash of a single unit as if it were at an offset from the window's centre
+	 * \param unit the unit
+	 * \param dx the unit's X offset from the centre, between -MAX_RADIUS and MAX_RADIUS
+	 * \param dy the unit's Y offset from the centre, between -MAX_RADIUS and MAX_RADIUS
+	 * \param units the unit utilities, ticked with the current state
+	 * \return the hash, which can be XORed with the hashes of other units and windows
+	 */
+	public static long hashUnit(Unit unit, int dx, int dy, UnitUtils units) {
+		return hashUnit(unit, (dy + MAX_RADIUS) * WINDOW_SIZE + dx + MAX_RADIUS, units);
+	}
+
+	/**
+	 * \brief Returns the XOR of the keys of a unit's features at a cell
+	 */
+	private static long hashUnit(Unit unit, int cell, UnitUtils units) {
+		int side = unit.getPlayer() < 0 ? 2 : (units.isEnemy(unit) ? 1 : 0);
+		int type = Math.min(unit.getType().ID, MAX_TYPES - 1);
+		int hpBucket = unit.getHitPoints() * (HP_BUCKETS - 1) / Math.max(unit.getMaxHitPoints(), 1);
+		long hash = unitKeys[(cell * NUM_SIDES + side) * MAX_TYPES + type]
+				  ^ hpKeys[cell * HP_BUCKETS + Math.min(Math.max(hpBucket, 0), HP_BUCKETS - 1)];
+		UnitAction action = units.getAction(unit);
+
+		if (action != null) {
+			int direction = action.getDirection() >= 0 && action.getDirection() < 4 ? action.getDirection() + 1 : 0;
+			int eta = Math.min(Math.max(units.timeToFinishAction(unit), 0), MAX_ETA);
+
+			hash ^= actionKeys[cell * NUM_ACTIONS + action.getType() * 5 + direction] ^ etaKeys[cell * (MAX_ETA + 1) + eta];
+		}
+
+		return hash;
+	}
+
+	/**
+	 * \brief Spreads the bits of a value, so that similar salts give unrelated hashes (SplitMix64 finaliser)
+	 * \param value the value to mix
+	 * \return the mixed value
+	 */
+	public static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+		value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+		return value ^ (value >>> 31);
+	}
+
+	/**
+	 * \brief Returns an array of random keys from a fixed seed
+	 */
+	private static long[] randomKeys(int count, long seed) {
+		Random random = new Random(0x5EED0000L + seed);
+		long[] keys = new long[count];
+
+		for (int i = 0; i < count; i++) {
+			keys[i] = random.nextLong();
+		}
+
+		return keys;
+	}
+}
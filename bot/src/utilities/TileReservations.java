@@ -0,0 +1,219 @@
+package utilities;
+
+import java.util.Arrays;
+
+/**
+ * \brief The tiles that our units have claimed to move into this tick (formerly a plain boolean[] blockedTiles)
+ * \author Louis
+ *
+ * Normally a TileReservations reads and writes its own tiles directly. A recording view instead proposes changes
+ * against another TileReservations without touching it: reads of the other's tiles are logged along with the value
+ * seen, and reservations are buffered. Afterwards the view can check whether what it read is still true and, if
+ * so, commit its reservations. This lets thinkers run in parallel and still end up with the sequential result.
+ *
+ * The tiles are stored as a bitset, like the planes of OccupancyGrid.
+ *
+ * The space-time cells of a ReservationTable are read and written through here too, so that they are recorded the
+ * same way. Unlike the tiles, the table is kept from tick to tick.
+ */
+public class TileReservations {
+	private int numTiles = 0; /**< Number of tiles on the map */
+	private long[] tiles = new long[0]; /**< Bit per tile, set if it is reserved. Shared with the committed reservations in a recording view */
+
+	// Recording view state
+	private TileReservations committed = null; /**< The reservations this view proposes changes to, or null if this isn't a view */
+	private int numReads = 0; /**< Number of logged reads */
+	private int[] readPositions = new int[8]; /**< Position of each logged read */
+	private boolean[] readValues = new boolean[8]; /**< Value seen by each logged read */
+	private int numWrites = 0; /**< Number of buffered reservations */
+	private int[] writePositions = new int[8]; /**< Position of each buffered reservation */
+
+	// Space-time cells
+	private ReservationTable table = null; /**< The reservations along our units' planned paths, or null if there are none */
+	private int numCellReads = 0; /**< Number of logged cell reads */
+	private int[] cellReadIndices = new int[8]; /**< Cell of each logged cell read */
+	private long[] cellReadOwners = new long[8]; /**< Owner seen by each logged cell read */
+	private int numCellWrites = 0; /**< Number of buffered cell writes */
+	private int[] cellWriteIndices = new int[8]; /**< Cell of each buffered cell write */
+	private long[] cellWriteOwners = new long[8]; /**< Owner written by each buffered cell write */
+
+	/**
+	 * \brief Clears every reservation, resizing for a map if necessary. Stops recording
+	 * \param numTiles the number of tiles on the map
+	 */
+	public void clear(int numTiles) {
+		clear(numTiles, null);
+	}
+
+	/**
+	 * \brief Clears every reservation, resizing for a map if necessary, and attaches a space-time reservation table. Stops recording
+	 * \param numTiles the number of tiles on the map
+	 * \param table the reservations along planned paths, already advanced to the current time, or null
+	 */
+	public void clear(int numTiles, ReservationTable table) {
+		committed = null;
+		this.table = table;
+		this.numTiles = numTiles;
+
+		if (tiles.length != (numTiles + 63) >>> 6) {
+			tiles = new long[(numTiles + 63) >>> 6];
+		} else {
+			Arrays.fill(tiles, 0);
+		}
+	}
+
+	/**
+	 * \brief Turns this into a recording view of other reservations, forgetting any previous proposal
+	 * \param committed the reservations to propose changes to. They must not change until the view is validated
+	 */
+	public void beginRecording(TileReservations committed) {
+		this.committed = committed;
+		this.tiles = committed.tiles;
+		this.numTiles = committed.numTiles;
+		this.table = committed.table;
+		numReads = 0;
+		numWrites = 0;
+		numCellReads = 0;
+		numCellWrites = 0;
+	}
+
+	/**
+	 * \brief Returns the number of tiles
+	 */
+	public int size() {
+		return numTiles;
+	}
+
+	/**
+	 * \brief Returns whether a tile is reserved
+	 * \param position the position of the tile
+	 */
+	public boolean isReserved(int position) {
+		if (committed == null) {
+			return (tiles[position >>> 6] & (1L << position)) != 0;
+		}
+
+		// Our own proposals come first
+		for (int i = 0; i < numWrites; i++) {
+			if (writePositions[i] == position) {
+				return true;
+			}
+		}
+
+		boolean value = (tiles[position >>> 6] & (1L << position)) != 0;
+
+		if (numReads == readPositions.length) {
+			readPositions = Arrays.copyOf(readPositions, numReads * 2);
+			readValues = Arrays.copyOf(readValues, numReads * 2);
+		}
+
+		readPositions[numReads] = position;
+		readValues[numReads++] = value;
+		return value;
+	}
+
+	/**
+	 * \brief Reserves a tile
+	 * \param position the position of the tile
+	 */
+	public void reserve(int position) {
+		if (committed == null) {
+			tiles[position >>> 6] |= 1L << position;
+			return;
+		}
+
+		if (numWrites == writePositions.length) {
+			writePositions = Arrays.copyOf(writePositions, numWrites * 2);
+		}
+
+		writePositions[numWrites++] = position;
+	}
+
+	/**
+	 * \brief Returns the space-time reservation table, or null if there is none
+	 */
+	public ReservationTable getTable() {
+		return table;
+	}
+
+	/**
+	 * \brief Returns the unit reserving a space-time cell
+	 * \param cell the cell index, from ReservationTable.getCell()
+	 * \return the ID of the unit, or ReservationTable.FREE
+	 */
+	public long getCellOwner(int cell) {
+		if (committed == null) {
+			return table.getOwner(cell);
+		}
+
+		// Our own latest proposal comes first
+		for (int i = numCellWrites - 1; i >= 0; i--) {
+			if (cellWriteIndices[i] == cell) {
+				return cellWriteOwners[i];
+			}
+		}
+
+		long owner = table.getOwner(cell);
+
+		if (numCellReads == cellReadIndices.length) {
+			cellReadIndices = Arrays.copyOf(cellReadIndices, numCellReads * 2);
+			cellReadOwners = Arrays.copyOf(cellReadOwners, numCellReads * 2);
+		}
+
+		cellReadIndices[numCellReads] = cell;
+		cellReadOwners[numCellReads++] = owner;
+		return owner;
+	}
+
+	/**
+	 * \brief Sets the unit reserving a space-time cell
+	 * \param cell the cell index, from ReservationTable.getCell()
+	 * \param owner the ID of the unit, or ReservationTable.FREE to release it
+	 */
+	public void setCellOwner(int cell, long owner) {
+		if (committed == null) {
+			table.setOwner(cell, owner);
+			return;
+		}
+
+		if (numCellWrites == cellWriteIndices.length) {
+			cellWriteIndices = Arrays.copyOf(cellWriteIndices, numCellWrites * 2);
+			cellWriteOwners = Arrays.copyOf(cellWriteOwners, numCellWrites * 2);
+		}
+
+		cellWriteIndices[numCellWrites] = cell;
+		cellWriteOwners[numCellWrites++] = owner;
+	}
+
+	/**
+	 * \brief Returns whether every tile and cell this view read still has the value it saw in the committed reservations
+	 */
+	public boolean isValid() {
+		for (int i = 0; i < numReads; i++) {
+			if (((tiles[readPositions[i] >>> 6] & (1L << readPositions[i])) != 0) != readValues[i]) {
+				return false;
+			}
+		}
+
+		for (int i = 0; i < numCellReads; i++) {
+			if (table.getOwner(cellReadIndices[i]) != cellReadOwners[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * \brief Applies this view's reservations to the committed reservations
+	 */
+	public void commit() {
+		for (int i = 0; i < numWrites; i++) {
+			tiles[writePositions[i] >>> 6] |= 1L << writePositions[i];
+		}
+
+		for (int i = 0; i < numCellWrites; i++) {
+			table.setOwner(cellWriteIndices[i], cellWriteOwners[i]);
+		}
+	}
+}
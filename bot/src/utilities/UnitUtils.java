@@ -4,6 +4,7 @@ import rts.units.UnitTypeTable;
 import rts.units.UnitType;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -32,10 +33,39 @@ public class UnitUtils {
     public ArrayList<Unit> myUnits = new ArrayList<Unit>(); /**< units owned by this player */
     public ArrayList<Unit> myWorkers = new ArrayList<Unit>(); /**< workers owned by this player */
     public ArrayList<Unit> enemies = new ArrayList<Unit>(); /**< enemies to this player */
+    private ArrayList<Unit> resources = new ArrayList<Unit>(); /**< resources on the map */
+    
+    // Reusable conditions, so that common searches don't allocate a capturing lambda every call
+    public final UnitConditions isEnemyCondition = (Unit u) -> isEnemy(u); /**< Matches enemy units */
+    public final UnitConditions isEnemyAttackerCondition = (Unit u) -> isEnemy(u) && u.getType().canAttack; /**< Matches enemy units that can attack */
+    public final UnitConditions isResourceCondition = (Unit u) -> isResource(u); /**< Matches resources */
+    public final UnitConditions isMyBaseCondition = (Unit u) -> isBase(u) && !isEnemy(u); /**< Matches bases that aren't the enemy's */
     
     public Unit myBase = null; /**< Our base on the map, or the base with the lowest ID if there are multiple */
     public Unit enemyBase = null; /**< The enemy base on the map, or the base with the lowest ID if there are multiple */
     
+    // Spatial index (rebuilt every tick)
+    private int mapWidth = 0;  /**< Width of the map indexed by unitGrid */
+    private int mapHeight = 0; /**< Height of the map indexed by unitGrid */
+    private Unit[] unitGrid = new Unit[0]; /**< The unit occupying each tile, indexed by position (x + y * mapWidth), or null if there is none */
+    private Unit[] allUnits = new Unit[0]; /**< Every unit on the map, in GameState order. Only the first numUnits entries are valid */
+    private int numUnits = 0; /**< The number of units in allUnits */
+    private int minMoveTime = Integer.MAX_VALUE; /**< The shortest moveTime of any mobile unit on the map, used to bound soonest-unit searches */
+    
+    // Buckets of units that ring searches can be limited to, so they stop once every candidate has been seen
+    private static final int BUCKET_ALL = 0; /**< Every unit */
+    private static final int BUCKET_ENEMIES = 1; /**< The enemies list */
+    private static final int BUCKET_RESOURCES = 2; /**< The resources list */
+    private static final int BUCKET_MINE = 3; /**< The myUnits list */
+    private static final int RING_TILES_PER_CANDIDATE = 16; /**< Ring searches switch to scanning the bucket once they've covered this many tiles per unit in it */
+    
+    private OccupancyGrid occupancy = new OccupancyGrid(); /**< Bitset planes of occupied tiles, rebuilt every tick */
+    private DangerMap dangerMap = new DangerMap(); /**< Cached per-tile danger times, refreshed every tick */
+    private InfluenceMap influence = new InfluenceMap(); /**< Strength and resource influence layers, updated every tick */
+    private OpponentModel opponentModel = new OpponentModel(this); /**< What the opponent's units tend to do, learnt over the game */
+    private ConnectivityMap connectivity = new ConnectivityMap(); /**< Connected regions of the map, rebuilt when buildings change */
+    private PathService pathService = new PathService(); /**< Distance fields shared by every unit, cleared every tick */
+    
     // Misc vars
     private int playerId; /**< The player owning this unit utils */
     private GameState gs; /**< The gamestate on the last tick */
@@ -61,6 +91,17 @@ public class UnitUtils {
      * \param gs the current GameState
      */
     public void tick(int playerId, GameState gs) {
+    	tick(playerId, gs, null);
+    }
+    
+    /** 
+     * \brief Refreshes dependencies, taking the danger map, connectivity and paths from another UnitUtils instead of rebuilding them
+     * \param playerId ID of the player owning this UnitUtils
+     * \param gs the current GameState
+     * \param precomputed a UnitUtils ticked on a state identical to gs (e.g. a prediction), or null to rebuild as usual.
+     *        Its helpers are swapped with this one's, so it ends up holding the old ones
+     */
+    public void tick(int playerId, GameState gs, UnitUtils precomputed) {
     	// Refresh vars
     	this.playerId = playerId;
     	this.gs = gs;
@@ -69,6 +110,10 @@ public class UnitUtils {
     	myUnits.clear();
     	myWorkers.clear();
     	enemies.clear();
+    	resources.clear();
+    	
+    	// Refresh the spatial index
+    	rebuildSpatialIndex();
     	
     	// Fill relevant unit lists
     	for (Unit u : gs.getUnits()) {
@@ -86,8 +131,152 @@ public class UnitUtils {
     			if (u.getType() == base) {
     				enemyBase = u;
     			}
+    		} else {
+    			resources.add(u);
     		}
     	}
+    	
+    	// Refresh the occupancy planes and influence layers
+    	occupancy.update(gs, playerId);
+    	influence.update(gs, this);
+    	
+    	// Learn from the actions the enemies have started
+    	opponentModel.observe(gs);
+    	
+    	if (precomputed != null) {
+    		// The helpers only store positions and IDs, so they are valid for any state with the same units and actions
+    		DangerMap oldDangerMap = dangerMap;
+    		ConnectivityMap oldConnectivity = connectivity;
+    		PathService oldPathService = pathService;
+    		
+    		dangerMap = precomputed.dangerMap;
+    		connectivity = precomputed.connectivity;
+    		pathService = precomputed.pathService;
+    		precomputed.dangerMap = oldDangerMap;
+    		precomputed.connectivity = oldConnectivity;
+    		precomputed.pathService = oldPathService;
+    		
+    		connectivity.rebind(gs.getPhysicalGameState());
+    		
+    		// The precomputed charge delays came from the speculating utilities' own, barely trained, opponent model
+    		dangerMap.refreshChargeDelays(gs, this);
+    		return;
+    	}
+    	
+    	// Refresh the danger snapshot now that the enemy list is ready
+    	dangerMap.update(gs, this);
+    	
+    	// Relabel the map if any buildings have appeared or disappeared
+    	connectivity.update(gs);
+    	
+    	// Forget last tick's paths
+    	pathService.update(gs, this);
+    }
+    
+    /**
+     * \brief Rebuilds the tile grid and unit snapshot used by the unit queries
+     */
+    private void rebuildSpatialIndex() {
+    	List<Unit> units = gs.getUnits();
+    	
+    	mapWidth = gs.getPhysicalGameState().getWidth();
+    	mapHeight = gs.getPhysicalGameState().getHeight();
+    	
+    	// Reuse the buffers where possible, they only change size between maps
+    	if (unitGrid.length != mapWidth * mapHeight) {
+    		unitGrid = new Unit[mapWidth * mapHeight];
+    	} else {
+    		Arrays.fill(unitGrid, null);
+    	}
+    	
+    	if (allUnits.length < units.size()) {
+    		allUnits = new Unit[units.size() * 2];
+    	} else {
+    		Arrays.fill(allUnits, units.size(), numUnits > units.size() ? numUnits : units.size(), null);
+    	}
+    	
+    	// Place every unit on the grid
+    	numUnits = 0;
+    	minMoveTime = Integer.MAX_VALUE;
+    	
+    	for (Unit u : units) {
+    		allUnits[numUnits++] = u;
+    		unitGrid[u.getX() + u.getY() * mapWidth] = u;
+    		
+    		if (u.getType().canMove && u.getType().moveTime < minMoveTime) {
+    			minMoveTime = u.getType().moveTime;
+    		}
+    	}
+    }
+    
+    /**
+     * \brief Returns the unit standing on the given tile
+     * \param x the X coordinate of the tile
+     * \param y the Y coordinate of the tile
+     * \return the unit on the tile, or null if the tile is empty or off the map
+     */
+    public Unit getUnitAt(int x, int y) {
+    	if (x < 0 || y < 0 || x >= mapWidth || y >= mapHeight) {
+    		return null;
+    	}
+    	
+    	return unitGrid[x + y * mapWidth];
+    }
+    
+    /**
+     * \brief Returns the furthest distance from a position to any tile on the map, which bounds ring searches
+     */
+    private int maxRingRadius(int x, int y) {
+    	return Math.max(Math.abs(x), Math.abs(x - (mapWidth - 1))) + Math.max(Math.abs(y), Math.abs(y - (mapHeight - 1)));
+    }
+    
+    /**
+     * \brief Returns the occupancy planes of the current tick
+     */
+    public OccupancyGrid getOccupancy() {
+    	return occupancy;
+    }
+    
+    /**
+     * \brief Returns the danger map for the current tick
+     */
+    public DangerMap getDangerMap() {
+    	return dangerMap;
+    }
+    
+    /**
+     * \brief Returns the resources on the map this tick
+     */
+    public List<Unit> getResources() {
+    	return resources;
+    }
+    
+    /**
+     * \brief Returns the influence layers for the current tick
+     */
+    public InfluenceMap getInfluence() {
+    	return influence;
+    }
+    
+    /**
+     * \brief Returns the model of the opponent's tendencies
+     */
+    public OpponentModel getOpponentModel() {
+    	return opponentModel;
+    }
+    
+    /**
+     * \brief Returns the connectivity map for the current tick
+     */
+    public ConnectivityMap getConnectivity() {
+    	return connectivity;
+    }
+    
+    /**
+     * \brief Returns the shared path service for the current tick
+     */
+    public PathService getPathService() {
+    	return pathService;
     }
     
     /**
@@ -161,9 +350,9 @@ public class UnitUtils {
 	public List<Unit> findUnits(UnitConditions conditions) {
 		List<Unit> result = new ArrayList<Unit>();
 
-		for (Unit u : gs.getUnits()) {
-			if (conditions.meetsConditions(u)) {
-				result.add(u);
+		for (int i = 0; i < numUnits; i++) {
+			if (conditions.meetsConditions(allUnits[i])) {
+				result.add(allUnits[i]);
 			}
 		}
 
@@ -178,27 +367,104 @@ public class UnitUtils {
 	 * \return the closest unit to x,y matching the given conditions
 	 */
 	public Unit findClosestUnit(int x, int y, UnitConditions conditions) {
-		int closestDistance = Integer.MAX_VALUE;
-		Unit closestUnit = null;
+		int bucket = getBucket(conditions);
+		int bucketSize = getBucketSize(bucket);
+		int maxRadius = maxRingRadius(x, y);
+		int numVisited = 0;
+		long numTiles = 0;
 
-		// Find the unit closest to the supplied position
-		for (Unit unit : gs.getUnits()) {
-			// Ensure the unit meets the supplied conditions
-			if (conditions.meetsConditions(unit)) {
-				/*
-				 * Since only horizontal and vertical movements are possible, distance is always
-				 * equal to xDifference + yDifference
-				 */
-				int thisDistance = Math.abs(unit.getX() - x) + Math.abs(unit.getY() - y);
+		/*
+		 * Since only horizontal and vertical movements are possible, distance is always
+		 * equal to xDifference + yDifference. Search outwards in rings of equal distance,
+		 * so the first ring containing a match holds the closest unit.
+		 */
+		for (int radius = 0; radius <= maxRadius && numVisited < bucketSize; radius++) {
+			// Few candidates spread over a large area are quicker to scan directly
+			numTiles += radius == 0 ? 1 : radius * 4;
+			
+			if (numTiles > (long)bucketSize * RING_TILES_PER_CANDIDATE) {
+				return scanClosestUnit(x, y, conditions, bucket);
+			}
+			
+			Unit closestUnit = null;
+			
+			for (int xOffset = -radius; xOffset <= radius; xOffset++) {
+				int yOffset = radius - Math.abs(xOffset);
+				
+				// Check the tile above and the tile below (once, if they are the same tile)
+				for (int side = 0; side < (yOffset != 0 ? 2 : 1); side++) {
+					Unit unit = getUnitAt(x + xOffset, side == 0 ? y - yOffset : y + yOffset);
+					
+					if (unit == null || !isInBucket(unit, bucket)) {
+						continue;
+					}
+					
+					numVisited++;
 
-				if (thisDistance < closestDistance) {
-					closestUnit = unit;
-					closestDistance = thisDistance;
+					// Ensure the unit meets the supplied conditions
+					if (closestUnit == null && conditions.meetsConditions(unit)) {
+						closestUnit = unit;
+					}
 				}
 			}
+			
+			if (closestUnit != null) {
+				return closestUnit;
+			}
 		}
 
-		return closestUnit;
+		return null;
+	}
+
+	/**
+	 * \brief Finds the closest few units of the given conditions, searching outwards in rings like findClosestUnit
+	 * \param x the X coordinate to measure against
+	 * \param y the Y coordinate to measure against
+	 * \param conditions a set of conditions that the units must match
+	 * \param maxCount the most units to find
+	 * \param found the list to add the units to, closest first. It isn't cleared
+	 * \return the number of units found
+	 */
+	public int findClosestUnits(int x, int y, UnitConditions conditions, int maxCount, List<Unit> found) {
+		int bucket = getBucket(conditions);
+		int bucketSize = getBucketSize(bucket);
+		int maxRadius = maxRingRadius(x, y);
+		int numVisited = 0, numFound = 0;
+		long numTiles = 0;
+
+		for (int radius = 0; radius <= maxRadius && numVisited < bucketSize && numFound < maxCount; radius++) {
+			numTiles += radius == 0 ? 1 : radius * 4;
+			
+			if (numTiles > (long)bucketSize * RING_TILES_PER_CANDIDATE) {
+				// Start again with a direct scan
+				for (; numFound > 0; numFound--) {
+					found.remove(found.size() - 1);
+				}
+				
+				return scanClosestUnits(x, y, conditions, bucket, maxCount, found);
+			}
+			
+			for (int xOffset = -radius; xOffset <= radius && numFound < maxCount; xOffset++) {
+				int yOffset = radius - Math.abs(xOffset);
+				
+				for (int side = 0; side < (yOffset != 0 ? 2 : 1) && numFound < maxCount; side++) {
+					Unit unit = getUnitAt(x + xOffset, side == 0 ? y - yOffset : y + yOffset);
+					
+					if (unit == null || !isInBucket(unit, bucket)) {
+						continue;
+					}
+					
+					numVisited++;
+
+					if (conditions.meetsConditions(unit)) {
+						found.add(unit);
+						numFound++;
+					}
+				}
+			}
+		}
+
+		return numFound;
 	}
 
 	// 
@@ -212,20 +478,195 @@ public class UnitUtils {
 	public Unit findSoonestUnit(int x, int y, UnitConditions conditions) {
 		int bestTravelTime = Integer.MAX_VALUE;
 		Unit bestUnit = null;
+		int bucket = getBucket(conditions);
+		int bucketSize = getBucketSize(bucket);
+		int maxRadius = maxRingRadius(x, y);
+		int numVisited = 0;
+		long numTiles = 0;
+		
+		// Nothing can reach the position if nothing can move
+		if (minMoveTime == Integer.MAX_VALUE) {
+			return null;
+		}
 
-		// Return the unit with the smallest timeToReach
-		for (Unit unit : gs.getUnits()) {
-			// Verify the conditions
-			if (conditions.meetsConditions(unit)) {
-				int thisTravelTime = MapUtils.timeToReach(unit, x, y);
+		// Return the unit with the smallest timeToReach, searching outwards until no further ring could contain a faster unit
+		for (int radius = 0; radius <= maxRadius && numVisited < bucketSize && (long)radius * minMoveTime < bestTravelTime; radius++) {
+			numTiles += radius == 0 ? 1 : radius * 4;
+			
+			if (numTiles > (long)bucketSize * RING_TILES_PER_CANDIDATE) {
+				return scanSoonestUnit(x, y, conditions, bucket);
+			}
+			
+			for (int xOffset = -radius; xOffset <= radius; xOffset++) {
+				int yOffset = radius - Math.abs(xOffset);
+				
+				for (int side = 0; side < (yOffset != 0 ? 2 : 1); side++) {
+					Unit unit = getUnitAt(x + xOffset, side == 0 ? y - yOffset : y + yOffset);
+					
+					if (unit == null || !isInBucket(unit, bucket)) {
+						continue;
+					}
+					
+					numVisited++;
+					
+					// Verify the conditions
+					if (conditions.meetsConditions(unit)) {
+						int thisTravelTime = MapUtils.timeToReach(unit, x, y);
+		
+						if (thisTravelTime < bestTravelTime) {
+							bestTravelTime = thisTravelTime;
+							bestUnit = unit;
+						}
+					}
+				}
+			}
+		}
 
-				if (thisTravelTime < bestTravelTime) {
-					bestTravelTime = thisTravelTime;
+		return bestUnit;
+	}
+	
+	/**
+	 * \brief Returns the bucket holding every unit that could meet a condition: a narrower one for the shared conditions
+	 * of this class, since they are known to only match one kind of unit, otherwise BUCKET_ALL
+	 */
+	private int getBucket(UnitConditions conditions) {
+		if (conditions == isEnemyCondition || conditions == isEnemyAttackerCondition) {
+			return BUCKET_ENEMIES;
+		} else if (conditions == isResourceCondition) {
+			return BUCKET_RESOURCES;
+		} else if (conditions == isMyBaseCondition) {
+			return BUCKET_MINE;
+		}
+		
+		return BUCKET_ALL;
+	}
+	
+	/**
+	 * \brief Returns the number of units in a bucket
+	 */
+	private int getBucketSize(int bucket) {
+		switch (bucket) {
+			case BUCKET_ENEMIES:
+				return enemies.size();
+			case BUCKET_RESOURCES:
+				return resources.size();
+			case BUCKET_MINE:
+				return myUnits.size();
+			default:
+				return numUnits;
+		}
+	}
+	
+	/**
+	 * \brief Returns the unit at an index of a bucket
+	 */
+	private Unit getBucketUnit(int bucket, int index) {
+		switch (bucket) {
+			case BUCKET_ENEMIES:
+				return enemies.get(index);
+			case BUCKET_RESOURCES:
+				return resources.get(index);
+			case BUCKET_MINE:
+				return myUnits.get(index);
+			default:
+				return allUnits[index];
+		}
+	}
+	
+	/**
+	 * \brief Returns whether a unit is in a bucket
+	 */
+	private boolean isInBucket(Unit u, int bucket) {
+		switch (bucket) {
+			case BUCKET_ENEMIES:
+				return isEnemy(u);
+			case BUCKET_RESOURCES:
+				return u.getPlayer() == -1;
+			case BUCKET_MINE:
+				return u.getPlayer() == playerId;
+			default:
+				return true;
+		}
+	}
+	
+	/**
+	 * \brief Returns the closest unit of a bucket meeting the conditions, by scanning the whole bucket
+	 */
+	private Unit scanClosestUnit(int x, int y, UnitConditions conditions, int bucket) {
+		Unit closestUnit = null;
+		int closestDistance = Integer.MAX_VALUE;
+		
+		for (int i = 0, size = getBucketSize(bucket); i < size; i++) {
+			Unit unit = getBucketUnit(bucket, i);
+			int distance = Math.abs(unit.getX() - x) + Math.abs(unit.getY() - y);
+			
+			if (distance < closestDistance && conditions.meetsConditions(unit)) {
+				closestUnit = unit;
+				closestDistance = distance;
+			}
+		}
+		
+		return closestUnit;
+	}
+	
+	/**
+	 * \brief Adds the closest few units of a bucket meeting the conditions to a list, closest first, by scanning the
+	 * whole bucket once per unit found. Units at the same distance are taken in bucket order
+	 * \return the number of units found
+	 */
+	private int scanClosestUnits(int x, int y, UnitConditions conditions, int bucket, int maxCount, List<Unit> found) {
+		int size = getBucketSize(bucket);
+		int lastDistance = -1, lastIndex = -1;
+		int numFound = 0;
+		
+		while (numFound < maxCount) {
+			int bestDistance = Integer.MAX_VALUE, bestIndex = -1;
+			
+			// The next unit is the closest one ordered after the last unit found
+			for (int i = 0; i < size; i++) {
+				Unit unit = getBucketUnit(bucket, i);
+				int distance = Math.abs(unit.getX() - x) + Math.abs(unit.getY() - y);
+				
+				if ((distance > lastDistance || (distance == lastDistance && i > lastIndex)) && distance < bestDistance
+						&& conditions.meetsConditions(unit)) {
+					bestDistance = distance;
+					bestIndex = i;
+				}
+			}
+			
+			if (bestIndex == -1) {
+				break;
+			}
+			
+			found.add(getBucketUnit(bucket, bestIndex));
+			numFound++;
+			lastDistance = bestDistance;
+			lastIndex = bestIndex;
+		}
+		
+		return numFound;
+	}
+	
+	/**
+	 * \brief Returns the unit of a bucket meeting the conditions that could reach a position soonest, by scanning the whole bucket
+	 */
+	private Unit scanSoonestUnit(int x, int y, UnitConditions conditions, int bucket) {
+		Unit bestUnit = null;
+		int bestTravelTime = Integer.MAX_VALUE;
+		
+		for (int i = 0, size = getBucketSize(bucket); i < size; i++) {
+			Unit unit = getBucketUnit(bucket, i);
+			
+			if (conditions.meetsConditions(unit)) {
+				int travelTime = MapUtils.timeToReach(unit, x, y);
+				
+				if (travelTime < bestTravelTime) {
+					bestTravelTime = travelTime;
 					bestUnit = unit;
 				}
 			}
 		}
-
+		
 		return bestUnit;
 	}
 	
@@ -235,9 +676,9 @@ public class UnitUtils {
 	 */
 	public Unit findFirstUnit(UnitConditions conditions) {
 		// Find and return the first match
-		for (Unit unit : gs.getUnits()) {
-			if (conditions.meetsConditions(unit)) {
-				return unit;
+		for (int i = 0; i < numUnits; i++) {
+			if (conditions.meetsConditions(allUnits[i])) {
+				return allUnits[i];
 			}
 		}
 		
@@ -312,9 +753,9 @@ public class UnitUtils {
 	public int countMyUnits(UnitConditions conditions) {
 		int count = 0;
 
-		// Count matching units
-		for (Unit u : gs.getUnits()) {
-			if (u.getPlayer() == playerId && conditions.meetsConditions(u)) {
+		// Count matching units (myUnits only ever holds this player's units)
+		for (Unit u : myUnits) {
+			if (conditions.meetsConditions(u)) {
 				count++;
 			}
 		}